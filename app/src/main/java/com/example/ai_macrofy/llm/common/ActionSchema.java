@@ -0,0 +1,242 @@
+package com.example.ai_macrofy.llm.common;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The JSON structure of a model step ({@code observation}, {@code analysis}, {@code actions}) and of every action
+ * type the accessibility service executes, defined once and rendered as a response schema for each provider.
+ * With a schema the model cannot add markdown fences or prose around the JSON, invent action types or leave the
+ * object unfinished, so the response is shorter and always parses.
+ * <p>
+ * The two renderings differ because the providers support different schema subsets:
+ * <ul>
+ *   <li>Gemini ({@link #forGemini()}): an OpenAPI-style schema with one action object holding the union of all
+ *   fields, of which only {@code type} is required. The model leaves out the fields an action does not use.</li>
+ *   <li>OpenAI ({@link #forOpenAi()}): strict JSON Schema, where every property must be required. Each action type
+ *   is its own {@code anyOf} branch, so the output contains exactly that action's fields and no null padding.</li>
+ * </ul>
+ * Keep this in sync with the action list in the system prompt and with MacroAccessibilityService.
+ */
+public final class ActionSchema {
+    public static final String NAME = "macro_step";
+    static final int MAX_OBSERVATIONS = 12; // The observation list is evidence for the analysis, not a screen dump
+
+    private enum Kind { INTEGER, STRING, BOOLEAN, POINT, TARGET }
+
+    private static final class Field {
+        final String name;
+        final Kind kind;
+        final String[] values; // Allowed values of a string field, or null for any string
+
+        Field(String name, Kind kind, String... values) {
+            this.name = name;
+            this.kind = kind;
+            this.values = values.length > 0 ? values : null;
+        }
+    }
+
+    private static final class Action {
+        final String type;
+        final Field[] fields;
+
+        Action(String type, Field... fields) {
+            this.type = type;
+            this.fields = fields;
+        }
+    }
+
+    private static final String[] DIRECTIONS = {"up", "down", "left", "right"};
+
+    private static final Action[] ACTIONS = {
+            new Action("touch", new Field("coordinates", Kind.POINT)),
+            new Action("input", new Field("text", Kind.STRING), new Field("coordinates", Kind.POINT),
+                    new Field("submit", Kind.BOOLEAN)),
+            new Action("scroll", new Field("direction", Kind.STRING, DIRECTIONS), new Field("distance", Kind.INTEGER),
+                    new Field("coordinates", Kind.POINT)),
+            new Action("scroll_until", new Field("target", Kind.TARGET), new Field("direction", Kind.STRING, DIRECTIONS),
+                    new Field("max", Kind.INTEGER)),
+            new Action("long_touch", new Field("coordinates", Kind.POINT), new Field("duration", Kind.INTEGER)),
+            new Action("drag_and_drop", new Field("start", Kind.POINT), new Field("end", Kind.POINT),
+                    new Field("duration", Kind.INTEGER)),
+            new Action("double_tap", new Field("coordinates", Kind.POINT)),
+            new Action("swipe", new Field("start", Kind.POINT), new Field("end", Kind.POINT),
+                    new Field("duration", Kind.INTEGER)),
+            new Action("gesture", new Field("name", Kind.STRING, "back", "home", "recent_apps")),
+            new Action("wait", new Field("duration", Kind.INTEGER)),
+            new Action("open_application", new Field("application_name", Kind.STRING)),
+            new Action("done"),
+    };
+
+    private static JsonObject geminiSchema;
+    private static JsonObject openAiSchema;
+
+    private ActionSchema() {}
+
+    /** Schema for Gemini's generationConfig.response_schema. Callers must not modify it. */
+    public static synchronized JsonObject forGemini() {
+        if (geminiSchema == null) {
+            JsonObject action = new JsonObject();
+            action.addProperty("type", "OBJECT");
+            JsonObject properties = new JsonObject();
+            JsonArray ordering = new JsonArray();
+            JsonArray types = new JsonArray();
+            for (Action a : ACTIONS) {
+                types.add(a.type);
+            }
+            properties.add("type", geminiString(types));
+            ordering.add("type");
+            for (Action a : ACTIONS) {
+                for (Field field : a.fields) {
+                    if (properties.has(field.name)) continue; // Shared fields have the same shape in every action
+                    properties.add(field.name, geminiField(field));
+                    ordering.add(field.name);
+                }
+            }
+            action.add("properties", properties);
+            action.add("required", stringArray("type"));
+            action.add("propertyOrdering", ordering);
+
+            JsonObject observation = new JsonObject();
+            observation.addProperty("type", "ARRAY");
+            observation.add("items", geminiType("STRING"));
+            observation.addProperty("maxItems", MAX_OBSERVATIONS);
+            JsonObject actions = new JsonObject();
+            actions.addProperty("type", "ARRAY");
+            actions.add("items", action);
+
+            JsonObject root = new JsonObject();
+            root.addProperty("type", "OBJECT");
+            JsonObject rootProperties = new JsonObject();
+            rootProperties.add("observation", observation);
+            rootProperties.add("analysis", geminiType("STRING"));
+            rootProperties.add("actions", actions);
+            root.add("properties", rootProperties);
+            root.add("required", stringArray("observation", "analysis", "actions"));
+            // Gemini orders properties alphabetically unless told otherwise; the actions must come last
+            root.add("propertyOrdering", stringArray("observation", "analysis", "actions"));
+            geminiSchema = root;
+        }
+        return geminiSchema;
+    }
+
+    /** Strict JSON Schema for OpenAI's json_schema response format. Callers must not modify it. */
+    public static synchronized JsonObject forOpenAi() {
+        if (openAiSchema == null) {
+            JsonArray variants = new JsonArray();
+            for (Action a : ACTIONS) {
+                JsonObject properties = new JsonObject();
+                JsonObject type = jsonType("string");
+                type.add("enum", stringArray(a.type));
+                properties.add("type", type);
+                JsonArray required = stringArray("type");
+                for (Field field : a.fields) {
+                    properties.add(field.name, jsonField(field));
+                    required.add(field.name);
+                }
+                variants.add(strictObject(properties, required));
+            }
+            JsonObject action = new JsonObject();
+            action.add("anyOf", variants);
+
+            JsonObject observation = jsonType("array");
+            observation.add("items", jsonType("string"));
+            observation.addProperty("maxItems", MAX_OBSERVATIONS);
+            JsonObject actions = jsonType("array");
+            actions.add("items", action);
+
+            JsonObject properties = new JsonObject();
+            properties.add("observation", observation);
+            properties.add("analysis", jsonType("string"));
+            properties.add("actions", actions);
+            openAiSchema = strictObject(properties, stringArray("observation", "analysis", "actions"));
+        }
+        return openAiSchema;
+    }
+
+    private static JsonObject geminiField(Field field) {
+        switch (field.kind) {
+            case INTEGER: return geminiType("INTEGER");
+            case BOOLEAN: return geminiType("BOOLEAN");
+            case STRING: return field.values != null ? geminiString(stringArray(field.values)) : geminiType("STRING");
+            case POINT: {
+                JsonObject point = new JsonObject();
+                point.addProperty("type", "OBJECT");
+                JsonObject properties = new JsonObject();
+                properties.add("x", geminiType("INTEGER"));
+                properties.add("y", geminiType("INTEGER"));
+                point.add("properties", properties);
+                point.add("required", stringArray("x", "y"));
+                point.add("propertyOrdering", stringArray("x", "y"));
+                return point;
+            }
+            default: { // TARGET
+                JsonObject target = new JsonObject();
+                target.addProperty("type", "OBJECT");
+                JsonObject properties = new JsonObject();
+                properties.add("text", geminiType("STRING"));
+                target.add("properties", properties);
+                target.add("required", stringArray("text"));
+                return target;
+            }
+        }
+    }
+
+    private static JsonObject jsonField(Field field) {
+        switch (field.kind) {
+            case INTEGER: return jsonType("integer");
+            case BOOLEAN: return jsonType("boolean");
+            case STRING: {
+                JsonObject string = jsonType("string");
+                if (field.values != null) string.add("enum", stringArray(field.values));
+                return string;
+            }
+            case POINT: {
+                JsonObject properties = new JsonObject();
+                properties.add("x", jsonType("integer"));
+                properties.add("y", jsonType("integer"));
+                return strictObject(properties, stringArray("x", "y"));
+            }
+            default: { // TARGET
+                JsonObject properties = new JsonObject();
+                properties.add("text", jsonType("string"));
+                return strictObject(properties, stringArray("text"));
+            }
+        }
+    }
+
+    private static JsonObject geminiType(String type) {
+        JsonObject schema = new JsonObject();
+        schema.addProperty("type", type);
+        return schema;
+    }
+
+    private static JsonObject geminiString(JsonArray values) {
+        JsonObject schema = geminiType("STRING");
+        schema.addProperty("format", "enum");
+        schema.add("enum", values);
+        return schema;
+    }
+
+    private static JsonObject jsonType(String type) {
+        JsonObject schema = new JsonObject();
+        schema.addProperty("type", type);
+        return schema;
+    }
+
+    private static JsonObject strictObject(JsonObject properties, JsonArray required) {
+        JsonObject schema = jsonType("object");
+        schema.add("properties", properties);
+        schema.add("required", required);
+        schema.addProperty("additionalProperties", false);
+        return schema;
+    }
+
+    private static JsonArray stringArray(String... values) {
+        JsonArray array = new JsonArray();
+        for (String value : values) {
+            array.add(value);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,111 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Incremental scanner over a streamed model response that hands out each element of the top-level
+ * {@code "actions"} array as soon as its closing brace arrives, so the first action can run while the
+ * rest of the response is still being generated.
+ * <p>
+ * The scanner tracks string/escape state and bracket depth only; it does not validate the rest of the
+ * document. The full response is still parsed normally once the stream completes. If an element cannot
+ * be parsed on its own, no further elements are handed out, so the caller can pick up from
+ * {@link #getEmittedCount()} in the full response without reordering actions.
+ */
+public class ActionStreamParser {
+    private static final String TAG = "ActionStreamParser";
+    private static final int ACTIONS_NOT_SEEN = -1;
+    private static final int ACTIONS_CLOSED = -2;
+
+    public interface Listener {
+        void onAction(JSONObject action);
+    }
+
+    private final Listener listener;
+    private final StringBuilder buffer = new StringBuilder();
+    private int scanIndex = 0;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escaped = false;
+    private int stringStart = -1;
+    private String lastRootString; // Last string literal closed directly inside the root object
+    private int actionsDepth = ACTIONS_NOT_SEEN; // Depth of the actions array once it has been opened
+    private int elementStart = -1;
+    private int emittedCount = 0;
+    private boolean stopped = false;
+
+    public ActionStreamParser(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** Number of actions handed to the listener so far; they are always the first elements of the array. */
+    public int getEmittedCount() {
+        return emittedCount;
+    }
+
+    public void feed(String chunk) {
+        buffer.append(chunk);
+        for (; scanIndex < buffer.length(); scanIndex++) {
+            char c = buffer.charAt(scanIndex);
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (c == '\\') {
+                    escaped = true;
+                } else if (c == '"') {
+                    inString = false;
+                    if (depth == 1) {
+                        lastRootString = buffer.substring(stringStart + 1, scanIndex);
+                    }
+                }
+                continue;
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    stringStart = scanIndex;
+                    break;
+                case '{':
+                case '[':
+                    depth++;
+                    if (c == '[' && depth == 2 && actionsDepth == ACTIONS_NOT_SEEN && "actions".equals(lastRootString)) {
+                        actionsDepth = depth;
+                    } else if (c == '{' && actionsDepth > 0 && depth == actionsDepth + 1) {
+                        elementStart = scanIndex;
+                    }
+                    break;
+                case '}':
+                case ']':
+                    if (c == '}' && actionsDepth > 0 && depth == actionsDepth + 1 && elementStart >= 0) {
+                        emit(buffer.substring(elementStart, scanIndex + 1));
+                        elementStart = -1;
+                    } else if (c == ']' && depth == actionsDepth) {
+                        actionsDepth = ACTIONS_CLOSED;
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private void emit(String elementJson) {
+        if (stopped) return;
+        JSONObject action;
+        try {
+            action = new JSONObject(elementJson);
+        } catch (JSONException e) {
+            // This and all later actions are left to the full parse at the end of the stream
+            Log.w(TAG, "Streamed action is not valid JSON on its own, waiting for the full response: " + elementJson, e);
+            stopped = true;
+            return;
+        }
+        emittedCount++;
+        listener.onAction(action);
+    }
+}
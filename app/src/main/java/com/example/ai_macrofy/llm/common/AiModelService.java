@@ -11,7 +11,11 @@ public interface AiModelService {
     void setApiKey(String apiKey);
     void setContext(Context context); // Context for file operations, etc.
 
-    void generateResponse(String systemInstruction, // The main system prompt
+    /**
+     * Starts a request. The callback is called at most once with the result, unless the returned handle is
+     * cancelled first, in which case it is not called at all.
+     */
+    RequestHandle generateResponse(String systemInstruction, // The main system prompt
                           List<ChatMessage> conversationHistory, // Past user/assistant messages
                           @Nullable String currentScreenLayoutJson, // No longer used by new flow, but kept for compatibility
                           @Nullable Bitmap currentScreenBitmap, // The screenshot
@@ -19,6 +23,18 @@ public interface AiModelService {
                           String currentUserVoiceCommand, // User's latest voice command
                           ModelResponseCallback callback);
 
+    /**
+     * Selects the model used by the following requests. Called before each request when model routing is on;
+     * otherwise every request uses {@link ModelTier#STANDARD}.
+     */
+    default void setModelTier(ModelTier tier) {}
+
+    /**
+     * Called when the same instance is reused for a new macro command, so that provider-side conversation
+     * state from the previous command is not carried over. Warm resources (clients, sessions) are kept.
+     */
+    default void startNewConversation() {}
+
     String processUserCommandForPrompt(String userCommand); // Remains as is, used by managers internally
 
     void cleanup();
@@ -0,0 +1,217 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.util.Log;
+
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Conversation history bounded by an estimated token budget instead of a message count.
+ * When the budget is exceeded, older assistant turns are compacted into short action-only
+ * summaries (the verbose observation/analysis text is dropped) and their screenshot placeholders
+ * are removed. Only if that is still not enough are the oldest entries dropped.
+ */
+public class ChatHistoryStore {
+    private static final String TAG = "ChatHistoryStore";
+
+    // Rough per-provider prompt budgets for the history part of the request.
+    private static final int OPENAI_HISTORY_TOKEN_BUDGET = 6000;
+    private static final int GEMINI_HISTORY_TOKEN_BUDGET = 8000;
+    private static final int GEMINI_WEB_HISTORY_TOKEN_BUDGET = 3000;
+    private static final int GEMMA_HISTORY_TOKEN_BUDGET = 1500; // Local model has a small context window
+
+    private static final int RECENT_MESSAGES_KEPT_VERBATIM = 4; // The latest turns are never compacted
+    private static final String SUMMARY_PREFIX = "[Summary of an earlier step] ";
+
+    private static final class Entry {
+        final ChatMessage message;
+        final int tokens;
+        final boolean compacted;
+
+        Entry(ChatMessage message, boolean compacted) {
+            this.message = message;
+            this.tokens = estimateTokens(message.content);
+            this.compacted = compacted;
+        }
+    }
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int tokenBudget;
+    private int totalTokens = 0;
+    private List<ChatMessage> snapshot; // Cached immutable view, rebuilt only after a change
+
+    public ChatHistoryStore(int tokenBudget) {
+        this.tokenBudget = tokenBudget;
+    }
+
+    public static int budgetFor(String provider) {
+        if (AppPreferences.PROVIDER_GEMMA_LOCAL.equals(provider)) return GEMMA_HISTORY_TOKEN_BUDGET;
+        if (AppPreferences.PROVIDER_GEMINI_WEB.equals(provider)) return GEMINI_WEB_HISTORY_TOKEN_BUDGET;
+        if (AppPreferences.PROVIDER_GEMINI.equals(provider)) return GEMINI_HISTORY_TOKEN_BUDGET;
+        return OPENAI_HISTORY_TOKEN_BUDGET;
+    }
+
+    public void setTokenBudget(int tokenBudget) {
+        this.tokenBudget = tokenBudget;
+        enforceBudget();
+    }
+
+    public void add(ChatMessage message) {
+        addEntry(entries.size(), new Entry(message, false));
+        enforceBudget();
+    }
+
+    public void clear() {
+        entries.clear();
+        totalTokens = 0;
+        snapshot = null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public int getEstimatedTokens() {
+        return totalTokens;
+    }
+
+    /**
+     * Returns an immutable view of the current history. The same instance is returned until the history changes,
+     * so callers can pass it to a request without copying.
+     */
+    public List<ChatMessage> getMessages() {
+        if (snapshot == null) {
+            List<ChatMessage> messages = new ArrayList<>(entries.size());
+            for (Entry entry : entries) {
+                messages.add(entry.message);
+            }
+            snapshot = Collections.unmodifiableList(messages);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Very rough token estimate: about four ASCII characters per token, and one token per non-ASCII character
+     * (Korean text and similar scripts tokenize much more densely).
+     */
+    public static int estimateTokens(String text) {
+        if (text == null || text.isEmpty()) return 0;
+        int asciiChars = 0;
+        int otherChars = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 0x80) {
+                asciiChars++;
+            } else {
+                otherChars++;
+            }
+        }
+        return (asciiChars + 3) / 4 + otherChars;
+    }
+
+    private void addEntry(int index, Entry entry) {
+        entries.add(index, entry);
+        totalTokens += entry.tokens;
+        snapshot = null;
+    }
+
+    private Entry removeEntry(int index) {
+        Entry removed = entries.remove(index);
+        totalTokens -= removed.tokens;
+        snapshot = null;
+        return removed;
+    }
+
+    private void enforceBudget() {
+        if (totalTokens <= tokenBudget) return;
+        int before = totalTokens;
+
+        // 1. Compact older turns, oldest first, until the history fits.
+        int index = 0;
+        while (totalTokens > tokenBudget && index < entries.size() - RECENT_MESSAGES_KEPT_VERBATIM) {
+            Entry entry = entries.get(index);
+            if (entry.compacted) {
+                index++;
+                continue;
+            }
+            if ("user".equals(entry.message.role) && entry.message.content.startsWith("[SCREENSHOT]")) {
+                // The screenshot placeholder carries no information once the turn is summarized.
+                removeEntry(index);
+                continue;
+            }
+            if ("assistant".equals(entry.message.role)) {
+                removeEntry(index);
+                addEntry(index, new Entry(new ChatMessage("assistant", summarizeAssistantTurn(entry.message.content)), true));
+            }
+            index++;
+        }
+
+        // 2. Still too large: drop the oldest entries, keeping the most recent ones.
+        while (totalTokens > tokenBudget && entries.size() > RECENT_MESSAGES_KEPT_VERBATIM) {
+            removeEntry(0);
+        }
+        Log.d(TAG, "History compacted from ~" + before + " to ~" + totalTokens + " tokens (" + entries.size() + " messages, budget " + tokenBudget + ").");
+    }
+
+    /**
+     * Reduces a model response to the actions it issued, e.g. "touch (540,1200); input \"hello\" + submit".
+     */
+    static String summarizeAssistantTurn(String responseJson) {
+        try {
+            JSONArray actions = new JSONObject(responseJson).optJSONArray("actions");
+            if (actions == null || actions.length() == 0) {
+                return SUMMARY_PREFIX + "no actions";
+            }
+            StringBuilder summary = new StringBuilder(SUMMARY_PREFIX);
+            for (int i = 0; i < actions.length(); i++) {
+                JSONObject action = actions.optJSONObject(i);
+                if (action == null) continue;
+                if (i > 0) summary.append("; ");
+                summary.append(describeAction(action));
+            }
+            return summary.toString();
+        } catch (JSONException e) {
+            String trimmed = responseJson.length() > 120 ? responseJson.substring(0, 120) + "..." : responseJson;
+            return SUMMARY_PREFIX + trimmed;
+        }
+    }
+
+    private static String describeAction(JSONObject action) {
+        String type = action.optString("type");
+        StringBuilder description = new StringBuilder(type);
+        JSONObject coordinates = action.optJSONObject("coordinates");
+        if (coordinates != null) {
+            description.append(" (").append(coordinates.optInt("x")).append(",").append(coordinates.optInt("y")).append(")");
+        }
+        switch (type) {
+            case "input":
+                description.append(" \"").append(action.optString("text")).append("\"");
+                if (action.optBoolean("submit", false)) description.append(" + submit");
+                break;
+            case "scroll":
+            case "scroll_until":
+                description.append(" ").append(action.optString("direction"));
+                JSONObject target = action.optJSONObject("target");
+                if (target != null) description.append(" to ").append(target);
+                break;
+            case "gesture":
+                description.append(" ").append(action.optString("name"));
+                break;
+            case "open_application":
+                description.append(" ").append(action.optString("application_name"));
+                break;
+            case "wait":
+                description.append(" ").append(action.optLong("duration")).append("ms");
+                break;
+            default:
+                break;
+        }
+        return description.toString();
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.metrics.MacroMetrics;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers screenshots that were already uploaded through a provider's file API, keyed by the hash of the
+ * encoded frame, so a request for the same frame can reference the uploaded file instead of carrying the
+ * image inline.
+ * <p>
+ * A frame that is not known yet is still sent inline. Only exact repeats can hit (a retried step on an unchanged
+ * screen, or a screen the macro returns to), and most frames are never seen again, so
+ * {@link #uploadInBackground} only uploads a frame the second time it is sent, on a background thread so the
+ * request itself is never delayed. Entries expire after {@code maxAgeMs}, which must be shorter than the
+ * provider's own file lifetime, and the least recently used entry is dropped beyond {@code maxEntries}; an
+ * upload dropped without ever being referenced is counted as "frame_upload.unused.*". A failed upload pauses
+ * uploading for a while, since the next frame would most likely fail the same way.
+ */
+public final class FrameUploadCache {
+    private static final String TAG = "FrameUploadCache";
+
+    private static final long FAILURE_BACKOFF_MS = 5 * 60_000;
+    private static final int MAX_PENDING_UPLOADS = 2; // Frames arriving while these are in flight are skipped
+    private static final int SEEN_PER_ENTRY = 4; // Hashes are small, so more sightings than uploads are remembered
+
+    /** Uploads a file to the provider and returns the URI requests can reference it by. */
+    public interface Uploader {
+        String upload(byte[] content, String mimeType) throws IOException;
+    }
+
+    private final Uploader uploader;
+    private final int maxEntries;
+    private final long maxAgeMs;
+    private final String metricsName;
+
+    private final Map<String, Entry> entries; // Guarded by this
+    private final Map<String, Long> seenOnce; // Content hash -> first sent (elapsedRealtime), not uploaded. Guarded by this
+    private final Set<String> pending = new HashSet<>(); // Guarded by this
+    private long pausedUntil; // Guarded by this
+    private final ThreadPoolExecutor uploadExecutor;
+
+    private static final class Entry {
+        final String uri;
+        final long uploadedAt; // elapsedRealtime
+        boolean reused; // Guarded by the cache
+
+        Entry(String uri, long uploadedAt) {
+            this.uri = uri;
+            this.uploadedAt = uploadedAt;
+        }
+    }
+
+    /**
+     * @param metricsName provider name used in the "frame_upload.*" counters
+     */
+    public FrameUploadCache(Uploader uploader, int maxEntries, long maxAgeMs, String metricsName) {
+        this.uploader = uploader;
+        this.maxEntries = maxEntries;
+        this.maxAgeMs = maxAgeMs;
+        this.metricsName = metricsName;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= FrameUploadCache.this.maxEntries) return false;
+                dropped(eldest.getValue());
+                return true;
+            }
+        };
+        this.seenOnce = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > FrameUploadCache.this.maxEntries * SEEN_PER_ENTRY;
+            }
+        };
+        // One thread that goes away when idle; uploads are rare outside of a running macro.
+        this.uploadExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                r -> new Thread(r, "FrameUpload"));
+        this.uploadExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /** URI of the uploaded frame with this content hash, or null if it was never uploaded or has expired. */
+    @Nullable
+    public synchronized String lookup(String contentHash) {
+        Entry entry = entries.get(contentHash);
+        if (entry == null) return null;
+        if (SystemClock.elapsedRealtime() - entry.uploadedAt >= maxAgeMs) {
+            entries.remove(contentHash);
+            dropped(entry);
+            return null;
+        }
+        entry.reused = true;
+        MacroMetrics.getInstance().incrementCounter("frame_upload.reused." + metricsName);
+        return entry.uri;
+    }
+
+    /**
+     * Records that the frame was sent inline, and uploads it if this is the second time within {@code maxAgeMs}
+     * and it is not already cached or being uploaded. Returns immediately; the frame can be referenced once a
+     * later {@link #lookup} returns its URI.
+     */
+    public void uploadInBackground(String contentHash, byte[] content, String mimeType) {
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (now < pausedUntil || pending.contains(contentHash) || pending.size() >= MAX_PENDING_UPLOADS) return;
+            Entry entry = entries.get(contentHash);
+            if (entry != null && now - entry.uploadedAt < maxAgeMs) return;
+            Long firstSent = seenOnce.remove(contentHash);
+            if (firstSent == null || now - firstSent >= maxAgeMs) {
+                seenOnce.put(contentHash, now);
+                return;
+            }
+            evictExpired(now);
+            pending.add(contentHash);
+        }
+        uploadExecutor.execute(() -> {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                String uri = uploader.upload(content, mimeType);
+                synchronized (this) {
+                    entries.put(contentHash, new Entry(uri, start)); // Age from the request, so it never outlives the file
+                }
+                MacroMetrics.getInstance().incrementCounter("frame_upload.uploaded." + metricsName);
+                Log.d(TAG, "Uploaded frame " + contentHash + " (" + content.length + " bytes) in "
+                        + (SystemClock.elapsedRealtime() - start) + "ms: " + uri);
+            } catch (IOException | RuntimeException e) {
+                synchronized (this) {
+                    pausedUntil = SystemClock.elapsedRealtime() + FAILURE_BACKOFF_MS;
+                }
+                MacroMetrics.getInstance().incrementCounter("frame_upload.failed." + metricsName);
+                Log.w(TAG, "Frame upload failed, sending frames inline for a while: " + e.getMessage());
+            } finally {
+                synchronized (this) {
+                    pending.remove(contentHash);
+                }
+            }
+        });
+    }
+
+    /** Forgets an uploaded file the provider no longer accepts. The frame is uploaded again the next time it is seen. */
+    public synchronized void invalidate(String uri) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (uri.equals(entry.uri)) {
+                Log.w(TAG, "Invalidating " + uri);
+                iterator.remove();
+                dropped(entry);
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (now - entry.uploadedAt >= maxAgeMs) {
+                iterator.remove();
+                dropped(entry);
+            }
+        }
+    }
+
+    // Counts uploads that never saved an inline image, to tell whether uploading pays off
+    private void dropped(Entry entry) {
+        if (!entry.reused) MacroMetrics.getInstance().incrementCounter("frame_upload.unused." + metricsName);
+    }
+}
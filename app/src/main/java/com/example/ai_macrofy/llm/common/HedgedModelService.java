@@ -0,0 +1,358 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sends each request to a primary provider and, if it has not started answering within the hedge delay,
+ * also to a secondary provider. The first usable answer wins and the other request is cancelled.
+ * <p>
+ * "Started answering" is the first streamed chunk when the caller streams, and the full response otherwise.
+ * A streamed attempt commits as soon as its first chunk arrives, because chunks are forwarded (and actions
+ * dispatched) immediately. Without streaming, a response is only accepted if a JSON object can be extracted
+ * from it, so a malformed answer from one provider does not beat a good one from the other.
+ * <p>
+ * If the primary fails (error, quota, malformed response) before the hedge fired, the secondary is started
+ * right away. Hedges to each provider are capped per minute; when the cap is reached the primary is left to
+ * finish on its own. If every attempt fails, the primary's outcome is reported, so callers see the same
+ * results as without hedging.
+ * <p>
+ * Counters in {@link MacroMetrics}: {@code hedge.requests}, {@code hedge.fired.<provider>},
+ * {@code hedge.won.<provider>} (the provider that won a hedged race) and {@code hedge.budget_exhausted.<provider>}.
+ */
+public class HedgedModelService implements AiModelService {
+    private static final String TAG = "HedgedModelService";
+
+    private static final long BUDGET_WINDOW_MS = 60_000;
+    private static final int DEFAULT_HEDGES_PER_MINUTE = 20;
+    // Gemini's free tier only allows a handful of requests per minute, so hedge into it sparingly.
+    private static final int GEMINI_HEDGES_PER_MINUTE = 5;
+
+    private static final Map<String, Deque<Long>> HEDGE_TIMES = new HashMap<>(); // Guarded by itself
+
+    private final String primaryName;
+    private final AiModelService primary;
+    private final String secondaryName;
+    private final AiModelService secondary;
+    private final long hedgeDelayMs;
+    private final Handler timerHandler = new Handler(Looper.getMainLooper());
+
+    public HedgedModelService(String primaryName, AiModelService primary,
+                              String secondaryName, AiModelService secondary, long hedgeDelayMs) {
+        this.primaryName = primaryName;
+        this.primary = primary;
+        this.secondaryName = secondaryName;
+        this.secondary = secondary;
+        this.hedgeDelayMs = hedgeDelayMs;
+    }
+
+    @Override
+    public void setApiKey(String apiKey) {
+        primary.setApiKey(apiKey); // The secondary keeps the key it was created with
+    }
+
+    @Override
+    public void setContext(Context context) {
+        primary.setContext(context);
+        secondary.setContext(context);
+    }
+
+    @Override
+    public RequestHandle generateResponse(String systemInstruction,
+                                          List<ChatMessage> conversationHistory,
+                                          @Nullable String currentScreenLayoutJson,
+                                          @Nullable Bitmap currentScreenBitmap,
+                                          @Nullable String currentScreenText,
+                                          String currentUserVoiceCommand,
+                                          ModelResponseCallback callback) {
+        RequestHandle handle = new RequestHandle();
+        Race race = new Race(handle.guard(callback));
+        race.secondaryStarter = attemptCallback -> secondary.generateResponse(systemInstruction, conversationHistory,
+                currentScreenLayoutJson, currentScreenBitmap, currentScreenText, currentUserVoiceCommand, attemptCallback);
+        handle.setCanceller(race::cancel);
+        MacroMetrics.getInstance().incrementCounter("hedge.requests");
+
+        RequestHandle primaryHandle = primary.generateResponse(systemInstruction, conversationHistory,
+                currentScreenLayoutJson, currentScreenBitmap, currentScreenText, currentUserVoiceCommand,
+                race.primaryAttempt.callback());
+        race.primaryAttempt.attach(primaryHandle);
+        race.scheduleHedge();
+        return handle;
+    }
+
+    @Override
+    public void setModelTier(ModelTier tier) {
+        primary.setModelTier(tier);
+        secondary.setModelTier(tier);
+    }
+
+    @Override
+    public void startNewConversation() {
+        primary.startNewConversation();
+        secondary.startNewConversation();
+    }
+
+    @Override
+    public String processUserCommandForPrompt(String userCommand) {
+        return primary.processUserCommandForPrompt(userCommand);
+    }
+
+    @Override
+    public void cleanup() {
+        timerHandler.removeCallbacksAndMessages(null);
+        primary.cleanup();
+        secondary.cleanup();
+    }
+
+    private static boolean tryAcquireHedgeBudget(String provider) {
+        int limit = AppPreferences.PROVIDER_GEMINI.equals(provider) ? GEMINI_HEDGES_PER_MINUTE : DEFAULT_HEDGES_PER_MINUTE;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (HEDGE_TIMES) {
+            Deque<Long> times = HEDGE_TIMES.get(provider);
+            if (times == null) {
+                times = new ArrayDeque<>();
+                HEDGE_TIMES.put(provider, times);
+            }
+            while (!times.isEmpty() && now - times.peekFirst() > BUDGET_WINDOW_MS) {
+                times.removeFirst();
+            }
+            if (times.size() >= limit) return false;
+            times.addLast(now);
+            return true;
+        }
+    }
+
+    private interface AttemptStarter {
+        RequestHandle start(ModelResponseCallback attemptCallback);
+    }
+
+    /** State of one hedged request. All fields are guarded by the race itself. */
+    private final class Race {
+        final ModelResponseCallback callback;
+        final boolean streaming;
+        final Attempt primaryAttempt = new Attempt(primaryName);
+        final Attempt secondaryAttempt = new Attempt(secondaryName);
+        final Runnable hedgeTimer = () -> startSecondary("no answer after " + hedgeDelayMs + "ms");
+        AttemptStarter secondaryStarter;
+        @Nullable Attempt winner;
+        boolean done;
+        @Nullable Runnable primaryFailure; // Delivers the primary's outcome if no attempt succeeds
+
+        Race(ModelResponseCallback callback) {
+            this.callback = callback;
+            this.streaming = callback instanceof StreamingResponseCallback;
+        }
+
+        void scheduleHedge() {
+            synchronized (this) {
+                if (done || winner != null || secondaryAttempt.started) return;
+            }
+            timerHandler.postDelayed(hedgeTimer, hedgeDelayMs);
+        }
+
+        void startSecondary(String reason) {
+            synchronized (this) {
+                if (done || winner != null || secondaryAttempt.started) return;
+                if (!tryAcquireHedgeBudget(secondaryName)) {
+                    Log.d(TAG, "Hedge budget for " + secondaryName + " exhausted, not hedging (" + reason + ").");
+                    MacroMetrics.getInstance().incrementCounter("hedge.budget_exhausted." + secondaryName);
+                    return;
+                }
+                secondaryAttempt.started = true;
+            }
+            timerHandler.removeCallbacks(hedgeTimer);
+            Log.d(TAG, "Hedging " + primaryName + " request to " + secondaryName + ": " + reason);
+            MacroMetrics.getInstance().incrementCounter("hedge.fired." + secondaryName);
+            secondaryAttempt.attach(secondaryStarter.start(secondaryAttempt.callback()));
+        }
+
+        void cancel() {
+            timerHandler.removeCallbacks(hedgeTimer);
+            synchronized (this) {
+                done = true;
+            }
+            primaryAttempt.cancel();
+            secondaryAttempt.cancel();
+        }
+
+        Attempt other(Attempt attempt) {
+            return attempt == primaryAttempt ? secondaryAttempt : primaryAttempt;
+        }
+
+        /** Makes {@code attempt} the winner and cancels the other one. Must hold the lock. */
+        void commit(Attempt attempt) {
+            winner = attempt;
+            timerHandler.removeCallbacks(hedgeTimer);
+            other(attempt).cancel();
+            if (secondaryAttempt.started) {
+                MacroMetrics.getInstance().incrementCounter("hedge.won." + attempt.provider);
+            }
+        }
+
+        void onChunk(Attempt attempt, String chunk) {
+            synchronized (this) {
+                if (done) return;
+                if (winner == null) commit(attempt);
+                if (winner != attempt) return;
+            }
+            ((StreamingResponseCallback) callback).onTextChunk(chunk);
+        }
+
+        void onSuccess(Attempt attempt, String response) {
+            synchronized (this) {
+                if (done || (winner != null && winner != attempt)) return;
+                if (winner == null && !streaming && !JsonResponseExtractor.extract(response).isSuccess()) {
+                    Log.w(TAG, attempt.provider + " returned no usable JSON; waiting for the other provider.");
+                    onAttemptFailed(attempt, () -> callback.onSuccess(response));
+                    return;
+                }
+                if (winner == null) commit(attempt);
+                done = true;
+            }
+            callback.onSuccess(response);
+        }
+
+        void onError(Attempt attempt, String error) {
+            synchronized (this) {
+                if (done || (winner != null && winner != attempt)) return;
+                if (winner == null) {
+                    onAttemptFailed(attempt, () -> callback.onError(error));
+                    return;
+                }
+                done = true; // The winner already streamed part of its answer; it cannot be replaced
+            }
+            callback.onError(error);
+        }
+
+        void onRateLimited(Attempt attempt, long retryAfterMillis, String detail) {
+            synchronized (this) {
+                if (done || (winner != null && winner != attempt)) return;
+                if (winner == null) {
+                    onAttemptFailed(attempt, () -> callback.onRateLimited(retryAfterMillis, detail));
+                    return;
+                }
+                done = true;
+            }
+            callback.onRateLimited(retryAfterMillis, detail);
+        }
+
+        /**
+         * Records a failed attempt while no winner exists. Fails over to the secondary if it has not been
+         * started, and reports the primary's outcome once nothing is left running. Must hold the lock.
+         */
+        private void onAttemptFailed(Attempt attempt, Runnable delivery) {
+            attempt.failed = true;
+            if (attempt == primaryAttempt) primaryFailure = delivery;
+            if (attempt == primaryAttempt && !secondaryAttempt.started) {
+                // Post so the failover never runs inside the primary's generateResponse call
+                timerHandler.removeCallbacks(hedgeTimer);
+                timerHandler.post(() -> {
+                    startSecondary("primary failed");
+                    deliverIfExhausted();
+                });
+                return;
+            }
+            deliverIfExhausted();
+        }
+
+        private void deliverIfExhausted() {
+            Runnable delivery;
+            synchronized (this) {
+                boolean secondaryRunning = secondaryAttempt.started && !secondaryAttempt.failed;
+                if (done || winner != null || !primaryAttempt.failed || secondaryRunning) return;
+                done = true;
+                delivery = primaryFailure;
+            }
+            timerHandler.removeCallbacks(hedgeTimer);
+            if (delivery != null) delivery.run();
+        }
+
+        /** One provider's request within a race. */
+        private final class Attempt {
+            final String provider;
+            boolean started; // Guarded by the race
+            boolean failed;  // Guarded by the race
+            private RequestHandle handle; // Guarded by this
+            private boolean cancelled;    // Guarded by this
+
+            Attempt(String provider) {
+                this.provider = provider;
+            }
+
+            void attach(RequestHandle handle) {
+                boolean cancelNow;
+                synchronized (this) {
+                    this.handle = handle;
+                    cancelNow = cancelled;
+                }
+                if (cancelNow) handle.cancel();
+            }
+
+            void cancel() {
+                RequestHandle toCancel;
+                synchronized (this) {
+                    cancelled = true;
+                    toCancel = handle;
+                }
+                if (toCancel != null) toCancel.cancel();
+            }
+
+            ModelResponseCallback callback() {
+                if (streaming) {
+                    return new StreamingResponseCallback() {
+                        @Override
+                        public void onTextChunk(String chunk) {
+                            Race.this.onChunk(Attempt.this, chunk);
+                        }
+
+                        @Override
+                        public void onSuccess(String response) {
+                            Race.this.onSuccess(Attempt.this, response);
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            Race.this.onError(Attempt.this, error);
+                        }
+
+                        @Override
+                        public void onRateLimited(long retryAfterMillis, String detail) {
+                            Race.this.onRateLimited(Attempt.this, retryAfterMillis, detail);
+                        }
+                    };
+                }
+                return new ModelResponseCallback() {
+                    @Override
+                    public void onSuccess(String response) {
+                        Race.this.onSuccess(Attempt.this, response);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        Race.this.onError(Attempt.this, error);
+                    }
+
+                    @Override
+                    public void onRateLimited(long retryAfterMillis, String detail) {
+                        Race.this.onRateLimited(Attempt.this, retryAfterMillis, detail);
+                    }
+                };
+            }
+        }
+    }
+}
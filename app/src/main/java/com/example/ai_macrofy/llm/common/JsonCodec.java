@@ -0,0 +1,213 @@
+package com.example.ai_macrofy.llm.common;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.gemini.data.GeminiTypeAdapters;
+import com.example.ai_macrofy.llm.gpt.data.OpenAiTypeAdapters;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Gson instance shared by every provider's Retrofit converter, SSE parser and debug dump.
+ * <p>
+ * The request and response classes of {@code llm.gemini.data} and {@code llm.gpt.data} are (de)serialized by
+ * hand-written adapters ({@link GeminiTypeAdapters}, {@link OpenAiTypeAdapters}) that stream straight between
+ * {@link JsonReader}/{@link JsonWriter} and the fields. Compared with Gson's reflective adapters there is no field
+ * lookup or boxing per value, and response fields the app does not use (safety ratings, logprobs, reasoning
+ * summaries, ...) are skipped with {@link JsonReader#skipValue()} instead of being bound or built into trees.
+ * Every streamed event is parsed through here, so this runs for each chunk of every answer.
+ * <p>
+ * Adapters that only implement the direction the app needs fall back to the reflective adapter for the other one,
+ * e.g. when a response is dumped for debugging.
+ */
+public final class JsonCodec {
+    private static volatile Gson gson;
+
+    private JsonCodec() {}
+
+    public static Gson gson() {
+        if (gson == null) {
+            synchronized (JsonCodec.class) {
+                if (gson == null) {
+                    gson = new GsonBuilder()
+                            .registerTypeAdapterFactory(GeminiTypeAdapters.FACTORY)
+                            .registerTypeAdapterFactory(OpenAiTypeAdapters.FACTORY)
+                            .create();
+                }
+            }
+        }
+        return gson;
+    }
+
+    /** Reads one non-null value; the reader is positioned at its first token. */
+    public interface Reader<T> {
+        T read(JsonReader in) throws IOException;
+    }
+
+    /** Writes one non-null value. */
+    public interface Writer<T> {
+        void write(JsonWriter out, T value) throws IOException;
+    }
+
+    /**
+     * An adapter for {@code type} from hand-written code for either direction. A missing direction uses Gson's
+     * reflective adapter, created on first use.
+     */
+    public static <T> TypeAdapter<T> adapter(Gson gson, TypeAdapterFactory skipPast, TypeToken<T> type,
+                                             @Nullable Reader<T> reader, @Nullable Writer<T> writer) {
+        return new HandWrittenAdapter<>(gson, skipPast, type, reader, writer);
+    }
+
+    private static final class HandWrittenAdapter<T> extends TypeAdapter<T> {
+        private final Gson gson;
+        private final TypeAdapterFactory skipPast;
+        private final TypeToken<T> type;
+        @Nullable private final Reader<T> reader;
+        @Nullable private final Writer<T> writer;
+        private volatile TypeAdapter<T> reflective;
+
+        HandWrittenAdapter(Gson gson, TypeAdapterFactory skipPast, TypeToken<T> type,
+                           @Nullable Reader<T> reader, @Nullable Writer<T> writer) {
+            this.gson = gson;
+            this.skipPast = skipPast;
+            this.type = type;
+            this.reader = reader;
+            this.writer = writer;
+        }
+
+        @Override
+        public void write(JsonWriter out, T value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+            } else if (writer != null) {
+                writer.write(out, value);
+            } else {
+                reflective().write(out, value);
+            }
+        }
+
+        @Override
+        public T read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            return reader != null ? reader.read(in) : reflective().read(in);
+        }
+
+        private TypeAdapter<T> reflective() {
+            if (reflective == null) {
+                reflective = gson.getDelegateAdapter(skipPast, type);
+            }
+            return reflective;
+        }
+    }
+
+    // Helpers for the adapters. Like the reflective adapters, they map JSON null to null or 0.
+
+    @Nullable
+    public static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    public static int nextInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    /** Reads an array with {@code element}, or returns null for JSON null. Null elements are kept. */
+    @Nullable
+    public static <T> List<T> readList(JsonReader in, Reader<T> element) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        List<T> list = new ArrayList<>();
+        in.beginArray();
+        while (in.hasNext()) {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                list.add(null);
+            } else {
+                list.add(element.read(in));
+            }
+        }
+        in.endArray();
+        return list;
+    }
+
+    /** Reads an object with {@code reader}, or returns null for JSON null. */
+    @Nullable
+    public static <T> T readObject(JsonReader in, Reader<T> reader) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return reader.read(in);
+    }
+
+    /**
+     * Writes {@code value} with {@code writer}, or JSON null, which the writer drops together with its name
+     * unless nulls are serialized (they are not in {@link #gson()}).
+     */
+    public static <T> void writeObject(JsonWriter out, @Nullable T value, Writer<T> writer) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            writer.write(out, value);
+        }
+    }
+
+    public static <T> void writeList(JsonWriter out, @Nullable List<T> list, Writer<T> element) throws IOException {
+        if (list == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginArray();
+        for (T value : list) {
+            writeObject(out, value, element);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Writes a base64 string, or a {@code data:} URL the app built around one, without escaping. The base64 alphabet
+     * needs none, and the per-character scan was most of the time spent writing a request with a screenshot
+     * (~200K characters). Adding the quotes costs one copy of the string, which is still several times faster.
+     * Only pass values encoded by the app.
+     */
+    public static void writeBase64(JsonWriter out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.jsonValue('"' + value + '"');
+        }
+    }
+
+    /** Writes a tree held by a request, such as a response schema. */
+    public static void writeTree(JsonWriter out, @Nullable JsonElement tree) throws IOException {
+        if (tree == null) {
+            out.nullValue();
+        } else {
+            gson().toJson(tree, out);
+        }
+    }
+}
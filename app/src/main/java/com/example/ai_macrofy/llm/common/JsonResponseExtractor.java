@@ -0,0 +1,289 @@
+package com.example.ai_macrofy.llm.common;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the first JSON object in a model response and applies a small set of conservative repairs
+ * so that a slightly malformed response can still be used instead of asking the model again.
+ * <p>
+ * The object is located and repaired in a single pass over the text: string literals and escapes are
+ * respected, so braces or newlines inside strings are never mistaken for structure. Repairs applied:
+ * <ul>
+ *     <li>text or markdown fences around the object are ignored</li>
+ *     <li>raw control characters inside strings are escaped</li>
+ *     <li>trailing commas before '}' or ']' are removed</li>
+ *     <li>bare (unquoted) object keys are quoted</li>
+ *     <li>a truncated response is cut back to its last complete action and closed</li>
+ *     <li>a single action object without an "actions" wrapper is wrapped</li>
+ * </ul>
+ * Anything else, such as a closing bracket that does not match the open one or an object without an "actions"
+ * array, is rejected rather than guessed at.
+ */
+public final class JsonResponseExtractor {
+
+    public static final String REPAIR_SURROUNDING_TEXT = "ignored text around the JSON object";
+    public static final String REPAIR_MARKDOWN_FENCE = "stripped markdown fence";
+    public static final String REPAIR_CONTROL_CHARACTERS = "escaped control characters in strings";
+    public static final String REPAIR_TRAILING_COMMA = "removed trailing commas";
+    public static final String REPAIR_BARE_KEYS = "quoted bare keys";
+    public static final String REPAIR_TRUNCATED = "closed truncated response";
+    public static final String REPAIR_ACTIONS_WRAPPER = "wrapped single action in \"actions\"";
+
+    public static final class Result {
+        /** The parsed response, always with an "actions" array. Null if nothing usable was found. */
+        @Nullable public final JSONObject json;
+        /** Repairs that were needed, in the order they were first applied. Empty for a clean response. */
+        public final List<String> repairs;
+        @Nullable public final String error;
+
+        private Result(@Nullable JSONObject json, List<String> repairs, @Nullable String error) {
+            this.json = json;
+            this.repairs = Collections.unmodifiableList(repairs);
+            this.error = error;
+        }
+
+        public boolean isSuccess() {
+            return json != null;
+        }
+
+        public boolean wasRepaired() {
+            return !repairs.isEmpty();
+        }
+    }
+
+    private JsonResponseExtractor() {}
+
+    public static Result extract(@Nullable String response) {
+        List<String> repairs = new ArrayList<>(2);
+        if (response == null) {
+            return new Result(null, repairs, "Response was empty.");
+        }
+        int start = response.indexOf('{');
+        if (start == -1) {
+            return new Result(null, repairs, "Response did not contain a JSON object.");
+        }
+
+        String objectText;
+        try {
+            objectText = scanObject(response, start, repairs);
+        } catch (JSONException e) {
+            return new Result(null, repairs, "Response was not valid JSON: " + e.getMessage());
+        }
+        if (objectText == null) {
+            // Cut before the first action was complete; running nothing would look like a successful empty step.
+            return new Result(null, repairs, "Response was truncated before any complete action.");
+        }
+
+        JSONObject json;
+        try {
+            json = new JSONObject(objectText);
+        } catch (JSONException e) {
+            return new Result(null, repairs, "Response was not valid JSON after repair: " + e.getMessage());
+        }
+
+        if (!json.has("actions") && json.has("type")) {
+            json = wrapSingleAction(json);
+            addRepair(repairs, REPAIR_ACTIONS_WRAPPER);
+        }
+        if (json.optJSONArray("actions") == null) {
+            return new Result(null, repairs, "Response had no \"actions\" array.");
+        }
+        return new Result(json, repairs, null);
+    }
+
+    /**
+     * Copies the object starting at {@code start} into a new string, repairing it on the way.
+     * Returns null if the text ends before the first element of the top-level "actions" array is complete.
+     *
+     * @throws JSONException if a closing bracket does not match the innermost open container
+     */
+    @Nullable
+    private static String scanObject(String text, int start, List<String> repairs) throws JSONException {
+        int length = text.length();
+        StringBuilder out = new StringBuilder(length - start);
+        // Open containers ('{' or '['), innermost last
+        char[] stack = new char[16];
+        int depth = 0;
+        boolean inString = false;
+        boolean escaped = false;
+        boolean expectKey = false;
+        boolean pendingComma = false;
+        // Top-level key being read (start of its text in the output), the last one read, and whether the
+        // top-level "actions" array is the container at depth 2.
+        int topLevelKeyStart = -1;
+        String topLevelKey = null;
+        boolean inActions = false;
+        // Last point at which the output ended with a complete action, for truncation recovery. Only actions
+        // count: cutting inside one would run it with fields missing (e.g. an input without its text).
+        int safeLength = -1;
+        int safeDepth = 0;
+        int end = -1;
+
+        for (int i = start; i < length && end == -1; i++) {
+            char c = text.charAt(i);
+
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                    out.append(c);
+                } else if (c == '\\') {
+                    escaped = true;
+                    out.append(c);
+                } else if (c == '"') {
+                    inString = false;
+                    out.append(c);
+                    if (topLevelKeyStart != -1) {
+                        topLevelKey = out.substring(topLevelKeyStart + 1, out.length() - 1);
+                        topLevelKeyStart = -1;
+                    }
+                } else if (c < 0x20) {
+                    appendEscapedControl(out, c);
+                    addRepair(repairs, REPAIR_CONTROL_CHARACTERS);
+                } else {
+                    out.append(c);
+                }
+                continue;
+            }
+
+            if (Character.isWhitespace(c)) {
+                if (!pendingComma) out.append(c);
+                continue;
+            }
+
+            if (pendingComma) {
+                pendingComma = false;
+                if (c == '}' || c == ']') {
+                    addRepair(repairs, REPAIR_TRAILING_COMMA);
+                } else {
+                    out.append(',');
+                }
+            }
+
+            switch (c) {
+                case '"':
+                    inString = true;
+                    if (expectKey && depth == 1) topLevelKeyStart = out.length();
+                    expectKey = false;
+                    out.append(c);
+                    break;
+                case '{':
+                case '[':
+                    if (depth == stack.length) {
+                        char[] grown = new char[stack.length * 2];
+                        System.arraycopy(stack, 0, grown, 0, depth);
+                        stack = grown;
+                    }
+                    stack[depth++] = c;
+                    if (depth == 2) inActions = c == '[' && "actions".equals(topLevelKey);
+                    expectKey = c == '{';
+                    out.append(c);
+                    break;
+                case '}':
+                case ']':
+                    // depth is at least 1 here: scanning stops as soon as the outer object closes
+                    if (stack[depth - 1] != (c == '}' ? '{' : '[')) {
+                        throw new JSONException("Mismatched '" + c + "' at character " + (i - start)
+                                + " closes '" + stack[depth - 1] + "'");
+                    }
+                    depth--;
+                    out.append(c);
+                    expectKey = false;
+                    if (depth == 0) {
+                        end = i;
+                    } else if (depth == 2 && inActions) {
+                        safeLength = out.length();
+                        safeDepth = depth;
+                    }
+                    break;
+                case ',':
+                    // Emitted only once we know it is not followed by a closer
+                    pendingComma = true;
+                    expectKey = depth > 0 && stack[depth - 1] == '{';
+                    break;
+                case ':':
+                    expectKey = false;
+                    out.append(c);
+                    break;
+                default:
+                    if (expectKey && isIdentifierStart(c)) {
+                        int keyEnd = i + 1;
+                        while (keyEnd < length && isIdentifierPart(text.charAt(keyEnd))) keyEnd++;
+                        out.append('"').append(text, i, keyEnd).append('"');
+                        if (depth == 1) topLevelKey = text.substring(i, keyEnd);
+                        addRepair(repairs, REPAIR_BARE_KEYS);
+                        expectKey = false;
+                        i = keyEnd - 1;
+                    } else {
+                        out.append(c);
+                    }
+                    break;
+            }
+        }
+
+        if (end == -1) {
+            // Truncated: keep everything up to the last complete action and close the array and the object.
+            if (safeLength == -1) return null;
+            out.setLength(safeLength);
+            for (int d = safeDepth - 1; d >= 0; d--) {
+                out.append(stack[d] == '{' ? '}' : ']');
+            }
+            addRepair(repairs, REPAIR_TRUNCATED);
+        }
+
+        if (hasNonWhitespace(text, 0, start) || (end != -1 && hasNonWhitespace(text, end + 1, length))) {
+            addRepair(repairs, text.contains("```") ? REPAIR_MARKDOWN_FENCE : REPAIR_SURROUNDING_TEXT);
+        }
+        return out.toString();
+    }
+
+    private static JSONObject wrapSingleAction(JSONObject action) {
+        JSONObject wrapped = new JSONObject();
+        try {
+            Object analysis = action.remove("analysis");
+            if (analysis != null) wrapped.put("analysis", analysis);
+            Object observation = action.remove("observation");
+            if (observation != null) wrapped.put("observation", observation);
+            wrapped.put("actions", new JSONArray().put(action));
+        } catch (JSONException e) {
+            // put() only throws for non-finite numbers, which cannot come out of a parsed object
+            throw new IllegalStateException(e);
+        }
+        return wrapped;
+    }
+
+    private static void appendEscapedControl(StringBuilder out, char c) {
+        switch (c) {
+            case '\n': out.append("\\n"); break;
+            case '\r': out.append("\\r"); break;
+            case '\t': out.append("\\t"); break;
+            default: out.append(String.format("\\u%04x", (int) c)); break;
+        }
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_' || c == '$';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    private static boolean hasNonWhitespace(String text, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(text.charAt(i))) return true;
+        }
+        return false;
+    }
+
+    private static void addRepair(List<String> repairs, String repair) {
+        if (!repairs.contains(repair)) repairs.add(repair);
+    }
+}
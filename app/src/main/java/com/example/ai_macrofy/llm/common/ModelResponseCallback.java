@@ -3,4 +3,12 @@ package com.example.ai_macrofy.llm.common;
 public interface ModelResponseCallback {
     void onSuccess(String response);
     void onError(String error);
-}
\ No newline at end of file
+
+    /**
+     * The request was not answered because the provider's quota is exhausted (locally or HTTP 429/503).
+     * This is not a model failure; the same request may be retried after {@code retryAfterMillis}.
+     */
+    default void onRateLimited(long retryAfterMillis, String detail) {
+        onError(detail);
+    }
+}
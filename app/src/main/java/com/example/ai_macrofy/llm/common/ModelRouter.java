@@ -0,0 +1,138 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.metrics.MacroMetrics;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntSupplier;
+
+/**
+ * Classifies each step and selects the model tier of the wrapped service before passing the request on,
+ * so steps that need little reasoning go to a faster, cheaper model and only hard ones pay for the strongest.
+ * <p>
+ * Signals, all of which the service already has:
+ * <ul>
+ *   <li>Consecutive failures of the current command. One failure moves the step up to the standard model,
+ *   two or more to the strong one.</li>
+ *   <li>Whether the screen layout was already seen during this command. Coming back to an earlier screen after
+ *   the macro moved on (a dialog that came back, returning to a list) is trivial. The same screen as the
+ *   previous step means the last actions made no progress, so it is never sent to the fast model.</li>
+ *   <li>History length. The first step of a command (usually opening an app) is trivial, while a new or
+ *   unchanged screen after {@link #LONG_HISTORY_MESSAGES} messages suggests the model is lost and gets the
+ *   strong model.</li>
+ * </ul>
+ * Counters in {@link MacroMetrics}: {@code route.fast}, {@code route.standard}, {@code route.strong}.
+ */
+public class ModelRouter implements AiModelService {
+    private static final String TAG = "ModelRouter";
+
+    static final int LONG_HISTORY_MESSAGES = 18; // About six steps of screenshot placeholder, answer and feedback
+    private static final int MAX_TRACKED_SCREENS = 256;
+
+    private final AiModelService delegate;
+    private final IntSupplier consecutiveFailures;
+    private final Set<Long> seenScreens = new HashSet<>(); // Layout fingerprints of this command, main thread only
+    @Nullable private Long previousScreen; // Layout fingerprint of the previous step, main thread only
+
+    /** How the step's screen relates to the screens seen earlier in the command. */
+    enum ScreenVisit {
+        NEW,
+        REVISITED, // Seen before, but the previous step was on another screen
+        REPEATED   // Same as the previous step
+    }
+
+    /**
+     * @param consecutiveFailures current failure count of the running command, read on the main thread
+     *                            before each request
+     */
+    public ModelRouter(AiModelService delegate, IntSupplier consecutiveFailures) {
+        this.delegate = delegate;
+        this.consecutiveFailures = consecutiveFailures;
+    }
+
+    @Override
+    public void setApiKey(String apiKey) {
+        delegate.setApiKey(apiKey);
+    }
+
+    @Override
+    public void setContext(Context context) {
+        delegate.setContext(context);
+    }
+
+    @Override
+    public RequestHandle generateResponse(String systemInstruction,
+                                          List<ChatMessage> conversationHistory,
+                                          @Nullable String currentScreenLayoutJson,
+                                          @Nullable Bitmap currentScreenBitmap,
+                                          @Nullable String currentScreenText,
+                                          String currentUserVoiceCommand,
+                                          ModelResponseCallback callback) {
+        int failures = consecutiveFailures.getAsInt();
+        Long fingerprint = layoutFingerprint(currentScreenText);
+        ScreenVisit visit = fingerprint == null || !seenScreens.contains(fingerprint) ? ScreenVisit.NEW
+                : fingerprint.equals(previousScreen) ? ScreenVisit.REPEATED : ScreenVisit.REVISITED;
+        if (fingerprint != null && seenScreens.size() < MAX_TRACKED_SCREENS) {
+            seenScreens.add(fingerprint);
+        }
+        previousScreen = fingerprint;
+        ModelTier tier = classify(failures, visit, conversationHistory.size());
+        Log.d(TAG, "Step routed to " + tier + " (failures " + failures + ", " + visit + " screen, "
+                + conversationHistory.size() + " history messages).");
+        MacroMetrics.getInstance().incrementCounter("route." + tier.key);
+        delegate.setModelTier(tier);
+        return delegate.generateResponse(systemInstruction, conversationHistory, currentScreenLayoutJson,
+                currentScreenBitmap, currentScreenText, currentUserVoiceCommand, callback);
+    }
+
+    static ModelTier classify(int consecutiveFailures, ScreenVisit visit, int historySize) {
+        if (consecutiveFailures >= 2) return ModelTier.STRONG;
+        if (consecutiveFailures == 1) return ModelTier.STANDARD;
+        if (historySize == 0 || visit == ScreenVisit.REVISITED) return ModelTier.FAST;
+        if (historySize >= LONG_HISTORY_MESSAGES) return ModelTier.STRONG;
+        return ModelTier.STANDARD;
+    }
+
+    /**
+     * Fingerprint of the accessibility layout the step sends as screen text, or null if the layout could not be
+     * read (the placeholder text would make every such screen look known).
+     */
+    @Nullable
+    private static Long layoutFingerprint(@Nullable String screenText) {
+        if (screenText == null || !screenText.startsWith("{")) return null;
+        long hash = 1125899906842597L;
+        for (int i = 0; i < screenText.length(); i++) {
+            hash = 31 * hash + screenText.charAt(i);
+        }
+        return hash;
+    }
+
+    @Override
+    public void setModelTier(ModelTier tier) {
+        // The router decides the tier itself
+    }
+
+    @Override
+    public void startNewConversation() {
+        seenScreens.clear(); // Screens of the previous command say nothing about this one
+        previousScreen = null;
+        delegate.startNewConversation();
+    }
+
+    @Override
+    public String processUserCommandForPrompt(String userCommand) {
+        return delegate.processUserCommandForPrompt(userCommand);
+    }
+
+    @Override
+    public void cleanup() {
+        delegate.cleanup();
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.ai_macrofy.llm.common;
+
+/**
+ * How capable a model a step needs. Each provider maps the tiers to its own models and thinking budgets;
+ * providers with a single model ignore the tier.
+ */
+public enum ModelTier {
+    FAST("fast"),         // Trivial steps: a screen revisited after progress, the first step of a command
+    STANDARD("standard"), // The provider's default model
+    STRONG("strong");     // Repeated failures, or an unfamiliar screen deep into a task
+
+    public final String key; // Used in metric names
+
+    ModelTier(String key) {
+        this.key = key;
+    }
+}
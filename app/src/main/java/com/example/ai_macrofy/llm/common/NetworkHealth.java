@@ -0,0 +1,86 @@
+package com.example.ai_macrofy.llm.common;
+
+import com.example.ai_macrofy.metrics.RollingHistogram;
+
+import androidx.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Latency and error rate of the most recent requests to one remote provider, shared by every service
+ * instance that talks to it so the picture survives switching commands.
+ * <p>
+ * Latency is measured from sending a step until its answer (or error) arrives, so it is compared against a
+ * per-step SLO rather than a network round trip; callers scale it to the standard model tier first.
+ * Rate-limited and cancelled requests are not recorded, and neither are failures that are not
+ * {@link #isDegradation degradation}.
+ */
+final class NetworkHealth {
+    private static final int WINDOW = 20;
+    private static final int MIN_SAMPLES = 5;   // Fewer samples say nothing about a percentile
+    private static final double MAX_ERROR_RATE = 0.5;
+    private static final Pattern HTTP_STATUS = Pattern.compile("API Error: (\\d{3})\\b");
+
+    private static final Map<String, NetworkHealth> BY_PROVIDER = new HashMap<>(); // Guarded by the class
+
+    private final RollingHistogram latencies = new RollingHistogram(WINDOW); // Guarded by this
+    private final boolean[] errors = new boolean[WINDOW];                  // Guarded by this
+    private int errorCount;
+    private int nextIndex;
+    private int count;
+
+    private NetworkHealth() {}
+
+    static synchronized NetworkHealth forProvider(String provider) {
+        NetworkHealth health = BY_PROVIDER.get(provider);
+        if (health == null) {
+            health = new NetworkHealth();
+            BY_PROVIDER.put(provider, health);
+        }
+        return health;
+    }
+
+    /**
+     * Whether a failed request says something about the provider's reachability or load: a transport error or
+     * timeout (the managers' "Network Error"), a 5xx or a 429. Other 4xx responses and unusable answers are
+     * the request's own fault and look the same on any network.
+     */
+    static boolean isDegradation(@Nullable String error) {
+        if (error == null) return false;
+        if (error.contains("Network Error")) return true;
+        Matcher matcher = HTTP_STATUS.matcher(error);
+        if (!matcher.find()) return false;
+        int code = Integer.parseInt(matcher.group(1));
+        return code >= 500 || code == 429;
+    }
+
+    synchronized void record(long latencyMs, boolean error) {
+        latencies.add(latencyMs);
+        if (count == WINDOW && errors[nextIndex]) errorCount--;
+        errors[nextIndex] = error;
+        if (error) errorCount++;
+        nextIndex = (nextIndex + 1) % WINDOW;
+        if (count < WINDOW) count++;
+    }
+
+    /** True if the rolling p90 exceeds the SLO or at least half of the recent requests failed. */
+    synchronized boolean isDegraded(long latencySloMs) {
+        if (count < MIN_SAMPLES) return false;
+        return latencies.percentile(90) > latencySloMs || errorCount >= count * MAX_ERROR_RATE;
+    }
+
+    /** Forgets the samples, e.g. after a recovery probe succeeded, so old slow requests do not trip it again. */
+    synchronized void reset() {
+        latencies.clear();
+        errorCount = 0;
+        nextIndex = 0;
+        count = 0;
+    }
+
+    synchronized String describe() {
+        return "p90 " + latencies.percentile(90) + "ms, " + errorCount + "/" + count + " errors";
+    }
+}
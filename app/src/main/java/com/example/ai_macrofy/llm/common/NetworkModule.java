@@ -0,0 +1,222 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.GzipSink;
+import okio.Okio;
+
+/**
+ * The HTTP client shared by all remote model providers.
+ * <p>
+ * One connection pool and dispatcher serve every provider, so a hedged or failed-over request to the other
+ * provider and the next step's request reuse warm HTTP/2 connections instead of opening new ones. Request
+ * bodies above {@link #GZIP_MIN_BYTES} are gzipped for hosts known to accept compressed uploads; the
+ * base64 screenshots make most requests several hundred KB.
+ * <p>
+ * {@link #preconnect(String)} opens the connection (DNS, TCP, TLS and HTTP/2 setup) to a provider ahead of the
+ * first request, so the first step of a macro does not pay for the handshake.
+ */
+public final class NetworkModule {
+    private static final String TAG = "NetworkModule";
+
+    public static final String GEMINI_BASE_URL = "https://generativelanguage.googleapis.com/";
+    public static final String OPENAI_BASE_URL = "https://api.openai.com/";
+
+    private static final long CONNECT_TIMEOUT_MS = 10_000;
+    private static final long WRITE_TIMEOUT_MS = 30_000; // Uploading a screenshot on a slow uplink
+    // Time between bytes. Covers the wait for the first byte of a non-streamed answer; the service enforces
+    // the overall per-step limit and cancels the call itself.
+    private static final long READ_TIMEOUT_MS = 60_000;
+
+    // HTTP/2 multiplexes all requests to a host over one connection; the extra idle slots cover HTTP/1.1
+    // fallback and the second provider when hedging.
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final long KEEP_ALIVE_MS = 5 * 60_000;
+    private static final int MAX_REQUESTS = 16;
+    private static final int MAX_REQUESTS_PER_HOST = 6;
+
+    private static final int GZIP_MIN_BYTES = 1024;
+    // OpenAI does not document compressed request bodies, so only Google's endpoint gets them.
+    private static final Set<String> GZIP_HOSTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "generativelanguage.googleapis.com")));
+
+    // Connections are kept for KEEP_ALIVE_MS, but servers close idle HTTP/2 connections sooner.
+    private static final long PRECONNECT_INTERVAL_MS = 30_000;
+
+    private static volatile OkHttpClient baseClient;
+    private static final Map<String, Long> lastPreconnect = new HashMap<>(); // Guarded by itself
+
+    private NetworkModule() {}
+
+    /** Client for provider API calls. */
+    public static OkHttpClient apiClient() {
+        return baseClient();
+    }
+
+    /**
+     * Builds a Retrofit call's HTTP request now rather than inside enqueue/execute, so serializing the body (base64
+     * screenshot included) can be timed as request building. A failure is left for the call itself to report.
+     */
+    public static void prepare(retrofit2.Call<?> call) {
+        try {
+            call.request();
+        } catch (RuntimeException e) {
+            // Retrofit keeps the failure and rethrows it from enqueue/execute
+        }
+    }
+
+    /** Time from sending a request until its response headers arrived. The body is not included. */
+    public static long timeToFirstByte(retrofit2.Response<?> response) {
+        Response raw = response.raw();
+        return raw.receivedResponseAtMillis() - raw.sentRequestAtMillis();
+    }
+
+    private static OkHttpClient baseClient() {
+        if (baseClient == null) {
+            synchronized (NetworkModule.class) {
+                if (baseClient == null) {
+                    Dispatcher dispatcher = new Dispatcher();
+                    dispatcher.setMaxRequests(MAX_REQUESTS);
+                    dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+                    baseClient = new OkHttpClient.Builder()
+                            .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MS, TimeUnit.MILLISECONDS))
+                            .dispatcher(dispatcher)
+                            .connectTimeout(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .writeTimeout(WRITE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .readTimeout(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                            .retryOnConnectionFailure(true)
+                            .addInterceptor(new GzipRequestInterceptor())
+                            .build();
+                }
+            }
+        }
+        return baseClient;
+    }
+
+    /** Base URL of a remote provider, or null for local and WebView providers. */
+    @Nullable
+    public static String baseUrlFor(@Nullable String provider) {
+        if (AppPreferences.PROVIDER_GEMINI.equals(provider)) return GEMINI_BASE_URL;
+        if (AppPreferences.PROVIDER_OPENAI.equals(provider)) return OPENAI_BASE_URL;
+        return null;
+    }
+
+    /**
+     * Opens a connection to the provider's host in the background so the next API call can reuse it.
+     * Does nothing for providers without an HTTP API or if the host was warmed recently.
+     */
+    public static void preconnect(@Nullable String provider) {
+        String baseUrl = baseUrlFor(provider);
+        if (baseUrl == null) return;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (lastPreconnect) {
+            Long last = lastPreconnect.get(baseUrl);
+            if (last != null && now - last < PRECONNECT_INTERVAL_MS) return;
+            lastPreconnect.put(baseUrl, now);
+        }
+        // Any response completes the handshake and leaves the connection in the pool; the status is irrelevant.
+        Request request = new Request.Builder().url(baseUrl).head().build();
+        final long start = SystemClock.elapsedRealtime();
+        baseClient().newCall(request).enqueue(new Callback() {
+            @Override
+            public void onResponse(Call call, Response response) {
+                response.close();
+                Log.d(TAG, "Pre-connected to " + baseUrl + " over " + response.protocol()
+                        + " in " + (SystemClock.elapsedRealtime() - start) + "ms.");
+            }
+
+            @Override
+            public void onFailure(Call call, IOException e) {
+                Log.w(TAG, "Pre-connect to " + baseUrl + " failed: " + e.getMessage());
+                synchronized (lastPreconnect) {
+                    lastPreconnect.remove(baseUrl);
+                }
+            }
+        });
+    }
+
+    /** Gzips large JSON request bodies for hosts in {@link #GZIP_HOSTS}. */
+    private static final class GzipRequestInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            RequestBody body = request.body();
+            if (body == null
+                    || request.header("Content-Encoding") != null
+                    || !GZIP_HOSTS.contains(request.url().host())
+                    || !isJson(body.contentType())
+                    || body.contentLength() < GZIP_MIN_BYTES) {
+                return chain.proceed(request);
+            }
+            // Compress into a buffer so the request keeps a Content-Length and can be retried.
+            Buffer compressed = new Buffer();
+            BufferedSink gzipSink = Okio.buffer(new GzipSink(compressed));
+            body.writeTo(gzipSink);
+            gzipSink.close();
+            RequestBody gzipped = new BufferedRequestBody(body.contentType(), compressed);
+            return chain.proceed(request.newBuilder()
+                    .header("Content-Encoding", "gzip")
+                    .method(request.method(), gzipped)
+                    .build());
+        }
+    }
+
+    // Uploaded JPEGs are already compressed; gzipping them only costs CPU.
+    private static boolean isJson(@Nullable MediaType contentType) {
+        return contentType != null && "json".equals(contentType.subtype());
+    }
+
+    private static final class BufferedRequestBody extends RequestBody {
+        private final MediaType contentType;
+        private final Buffer content;
+
+        BufferedRequestBody(@Nullable MediaType contentType, Buffer content) {
+            this.contentType = contentType;
+            this.content = content;
+        }
+
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return contentType;
+        }
+
+        @Override
+        public long contentLength() {
+            return content.size();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            sink.write(content.snapshot());
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.gemma.GemmaManager;
+import com.example.ai_macrofy.llm.gemma.InitializationCallback;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Sends steps to a remote provider while it meets a latency SLO, and to the downloaded on-device Gemma model
+ * while it does not or while the device is offline, so a macro slows down on a bad network instead of
+ * failing three steps in a row.
+ * <p>
+ * The service switches to the device when the provider's rolling p90 step latency exceeds the SLO, when at
+ * least half of its recent steps failed ({@link NetworkHealth}), or when the default network has no validated
+ * internet access. A remote step that is still unanswered after {@link #STALL_FACTOR} times the SLO, or whose
+ * network goes away, is cancelled and run on the device; so is one that fails with a network error, timeout,
+ * 5xx or 429 while the network is degraded. Other errors are passed on and not counted against the network.
+ * A step that already streamed part of its answer is never replaced.
+ * <p>
+ * The SLO is set for the standard model. A step routed to the strong model, which thinks before answering,
+ * gets {@link #STRONG_SLO_FACTOR} times the SLO, and its latency is divided by the same factor before it is
+ * recorded.
+ * <p>
+ * While on the device, a step is sent to the provider again every {@link #RECOVERY_PROBE_INTERVAL_MS}, and
+ * right away when connectivity returns. If it answers within the SLO the service switches back; otherwise it
+ * is cancelled at the SLO and the step runs on the device.
+ * <p>
+ * Gemma cannot take the remote prompt as is: it gets its own short system prompt (one action per step, a
+ * filtered app list), supplied per command, and the history compacted to its much smaller token budget. Without
+ * a Gemma prompt for the command the service stays on the provider. The provider's own conversation state is
+ * reset when switching away, so after switching back it sees the steps Gemma took in the shared history.
+ * <p>
+ * Counters in {@link MacroMetrics}: {@code slo_fallback.to_device}, {@code slo_fallback.to_remote},
+ * {@code slo_fallback.device_steps} and {@code slo_fallback.abandoned} (remote steps moved to the device).
+ */
+public class OnDeviceFallbackService implements AiModelService {
+    private static final String TAG = "OnDeviceFallback";
+
+    static final long RECOVERY_PROBE_INTERVAL_MS = 30_000;
+    static final int STALL_FACTOR = 2;
+    static final int STRONG_SLO_FACTOR = 3;
+
+    private final String remoteName;
+    private final AiModelService remote;
+    private final GemmaManager gemma;
+    private final Supplier<String> gemmaSystemPrompt;
+    private final long latencySloMs;
+    private final NetworkHealth health;
+    private final ConnectivityManager connectivityManager;
+    private final Handler timerHandler = new Handler(Looper.getMainLooper());
+
+    private volatile boolean online;
+    private volatile ModelTier tier = ModelTier.STANDARD; // Set before each request
+    private boolean onDevice;          // Guarded by this
+    private long nextProbeAt;          // Guarded by this, elapsedRealtime
+    private boolean gemmaUnavailable;  // Guarded by this; Gemma failed to load, so stay on the provider
+    @Nullable private RemoteAttempt inFlight; // Guarded by this
+
+    private final ConnectivityManager.NetworkCallback networkCallback = new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+            setOnline(hasInternet(capabilities));
+        }
+
+        @Override
+        public void onLost(Network network) {
+            setOnline(false);
+        }
+    };
+
+    /**
+     * @param gemmaSystemPrompt Gemma's system prompt for the running command, or null if it has none; read on the
+     *                          main thread before each request
+     */
+    public OnDeviceFallbackService(Context context, String remoteName, AiModelService remote, GemmaManager gemma,
+                                   Supplier<String> gemmaSystemPrompt, long latencySloMs) {
+        this.remoteName = remoteName;
+        this.remote = remote;
+        this.gemma = gemma;
+        this.gemmaSystemPrompt = gemmaSystemPrompt;
+        this.latencySloMs = latencySloMs;
+        this.health = NetworkHealth.forProvider(remoteName);
+        this.connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        this.online = hasInternet(connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork()));
+        connectivityManager.registerDefaultNetworkCallback(networkCallback);
+    }
+
+    @Override
+    public void setApiKey(String apiKey) {
+        remote.setApiKey(apiKey);
+    }
+
+    @Override
+    public void setContext(Context context) {
+        remote.setContext(context);
+    }
+
+    @Override
+    public RequestHandle generateResponse(String systemInstruction,
+                                          List<ChatMessage> conversationHistory,
+                                          @Nullable String currentScreenLayoutJson,
+                                          @Nullable Bitmap currentScreenBitmap,
+                                          @Nullable String currentScreenText,
+                                          String currentUserVoiceCommand,
+                                          ModelResponseCallback callback) {
+        RequestHandle handle = new RequestHandle();
+        Step step = new Step(handle, handle.guard(callback), sloFor(tier), systemInstruction, gemmaSystemPrompt.get(),
+                conversationHistory, currentScreenLayoutJson, currentScreenBitmap, currentScreenText,
+                currentUserVoiceCommand);
+
+        boolean useDevice;
+        boolean probe = false;
+        synchronized (this) {
+            step.canUseDevice = step.devicePrompt != null && !gemmaUnavailable;
+            if (!onDevice && step.canUseDevice && (!online || health.isDegraded(latencySloMs))) {
+                switchToDevice(online ? "latency SLO missed (" + health.describe() + ")" : "offline");
+            }
+            useDevice = onDevice && step.canUseDevice;
+            if (useDevice && online && SystemClock.elapsedRealtime() >= nextProbeAt) {
+                nextProbeAt = SystemClock.elapsedRealtime() + RECOVERY_PROBE_INTERVAL_MS;
+                probe = true;
+            }
+        }
+        if (useDevice && !probe) {
+            runOnDevice(step);
+        } else {
+            runRemote(step, probe);
+        }
+        return handle;
+    }
+
+    private void runRemote(Step step, boolean probe) {
+        RemoteAttempt attempt = new RemoteAttempt(step, probe);
+        synchronized (this) {
+            inFlight = attempt;
+        }
+        step.handle.setCanceller(attempt::cancel);
+        if (probe) Log.d(TAG, "Probing " + remoteName + " with this step.");
+        if (step.canUseDevice) {
+            timerHandler.postDelayed(attempt.deadline, probe ? step.sloMs : step.sloMs * STALL_FACTOR);
+        }
+        attempt.attach(remote.generateResponse(step.systemInstruction, step.history, step.layoutJson, step.bitmap,
+                step.screenText, step.command, attempt.callback()));
+    }
+
+    private void runOnDevice(Step step) {
+        MacroMetrics.getInstance().incrementCounter("slo_fallback.device_steps");
+        gemma.prepare(new InitializationCallback() {
+            @Override
+            public void onInitSuccess() {
+                if (step.handle.isCancelled()) return;
+                RequestHandle deviceHandle = gemma.generateResponse(step.devicePrompt, compactForGemma(step.history),
+                        step.layoutJson, step.bitmap, step.screenText, step.command, step.callback);
+                step.handle.setCanceller(deviceHandle::cancel);
+            }
+
+            @Override
+            public void onInitFailure(String error) {
+                synchronized (OnDeviceFallbackService.this) {
+                    gemmaUnavailable = true;
+                    onDevice = false;
+                }
+                Log.e(TAG, "Gemma failed to load, staying on " + remoteName + ": " + error);
+                if (step.handle.isCancelled()) return;
+                // The step itself did not fail, so it must not count against the macro's consecutive failures
+                step.canUseDevice = false;
+                runRemote(step, false);
+            }
+        });
+    }
+
+    /** The shared history, compacted to Gemma's budget. Older turns become action summaries, as in the store. */
+    private static List<ChatMessage> compactForGemma(List<ChatMessage> history) {
+        ChatHistoryStore store = new ChatHistoryStore(Integer.MAX_VALUE);
+        for (ChatMessage message : history) {
+            store.add(message);
+        }
+        store.setTokenBudget(ChatHistoryStore.budgetFor(AppPreferences.PROVIDER_GEMMA_LOCAL));
+        return store.getMessages();
+    }
+
+    private long sloFor(ModelTier tier) {
+        return tier == ModelTier.STRONG ? latencySloMs * STRONG_SLO_FACTOR : latencySloMs;
+    }
+
+    /** Must hold the lock. */
+    private void switchToDevice(String reason) {
+        if (onDevice) return;
+        onDevice = true;
+        nextProbeAt = SystemClock.elapsedRealtime() + RECOVERY_PROBE_INTERVAL_MS;
+        Log.w(TAG, "Switching from " + remoteName + " to on-device Gemma: " + reason);
+        MacroMetrics.getInstance().incrementCounter("slo_fallback.to_device");
+        // Gemma's steps go into the history, not into the provider's stored conversation
+        remote.startNewConversation();
+    }
+
+    private synchronized void switchToRemote() {
+        if (!onDevice) return;
+        onDevice = false;
+        health.reset();
+        Log.d(TAG, "Network recovered, switching back to " + remoteName + ".");
+        MacroMetrics.getInstance().incrementCounter("slo_fallback.to_remote");
+    }
+
+    private void setOnline(boolean nowOnline) {
+        if (online == nowOnline) return;
+        online = nowOnline;
+        Log.d(TAG, nowOnline ? "Network available." : "Network lost.");
+        RemoteAttempt attempt;
+        synchronized (this) {
+            if (nowOnline) nextProbeAt = 0; // Try the provider again with the next step
+            attempt = inFlight;
+        }
+        if (!nowOnline && attempt != null) {
+            timerHandler.post(() -> attempt.abandon("network lost"));
+        }
+    }
+
+    private static boolean hasInternet(@Nullable NetworkCapabilities capabilities) {
+        return capabilities != null
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                && capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED);
+    }
+
+    @Override
+    public void setModelTier(ModelTier tier) {
+        this.tier = tier;
+        remote.setModelTier(tier); // Gemma has a single model
+    }
+
+    @Override
+    public void startNewConversation() {
+        remote.startNewConversation();
+    }
+
+    @Override
+    public String processUserCommandForPrompt(String userCommand) {
+        return remote.processUserCommandForPrompt(userCommand);
+    }
+
+    @Override
+    public void cleanup() {
+        try {
+            connectivityManager.unregisterNetworkCallback(networkCallback);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Network callback was not registered", e);
+        }
+        timerHandler.removeCallbacksAndMessages(null);
+        remote.cleanup();
+    }
+
+    /** One step's arguments, kept so it can be moved to the device after the provider was tried. */
+    private static final class Step {
+        final RequestHandle handle;
+        final ModelResponseCallback callback;
+        final boolean streaming;
+        final long sloMs; // Latency SLO of the step's model tier
+        final String systemInstruction;
+        @Nullable final String devicePrompt;
+        final List<ChatMessage> history;
+        @Nullable final String layoutJson;
+        @Nullable final Bitmap bitmap;
+        @Nullable final String screenText;
+        final String command;
+        boolean canUseDevice; // Set before the step is started; cleared before a remote rerun if Gemma fails to load
+
+        Step(RequestHandle handle, ModelResponseCallback callback, long sloMs, String systemInstruction,
+             @Nullable String devicePrompt, List<ChatMessage> history, @Nullable String layoutJson,
+             @Nullable Bitmap bitmap, @Nullable String screenText, String command) {
+            this.handle = handle;
+            this.callback = callback;
+            this.streaming = callback instanceof StreamingResponseCallback;
+            this.sloMs = sloMs;
+            this.systemInstruction = systemInstruction;
+            this.devicePrompt = devicePrompt;
+            this.history = history;
+            this.layoutJson = layoutJson;
+            this.bitmap = bitmap;
+            this.screenText = screenText;
+            this.command = command;
+        }
+    }
+
+    /** A step sent to the provider, timed for {@link NetworkHealth}. */
+    private final class RemoteAttempt {
+        final Step step;
+        final boolean probe;
+        final long start = SystemClock.elapsedRealtime();
+        final Runnable deadline = () -> abandon("no answer within " + (SystemClock.elapsedRealtime() - start) + "ms");
+        private RequestHandle remoteHandle; // Guarded by this
+        private boolean settled;            // Guarded by this; a result was delivered or the step moved
+        private boolean streamed;           // Guarded by this; part of the answer was already forwarded
+
+        RemoteAttempt(Step step, boolean probe) {
+            this.step = step;
+            this.probe = probe;
+        }
+
+        void attach(RequestHandle handle) {
+            boolean cancelNow;
+            synchronized (this) {
+                remoteHandle = handle;
+                cancelNow = settled;
+            }
+            if (cancelNow) handle.cancel();
+        }
+
+        void cancel() {
+            settle();
+            cancelRemote();
+        }
+
+        /** Moves the step to the device, unless it already finished or started streaming its answer. */
+        void abandon(String reason) {
+            synchronized (this) {
+                if (settled || streamed || !step.canUseDevice) return;
+            }
+            if (!settle()) return;
+            cancelRemote();
+            recordLatency(true);
+            MacroMetrics.getInstance().incrementCounter("slo_fallback.abandoned");
+            synchronized (OnDeviceFallbackService.this) {
+                switchToDevice(reason);
+            }
+            if (!step.handle.isCancelled()) runOnDevice(step);
+        }
+
+        private boolean settle() {
+            synchronized (this) {
+                if (settled) return false;
+                settled = true;
+            }
+            timerHandler.removeCallbacks(deadline);
+            synchronized (OnDeviceFallbackService.this) {
+                if (inFlight == this) inFlight = null;
+            }
+            return true;
+        }
+
+        private void cancelRemote() {
+            RequestHandle toCancel;
+            synchronized (this) {
+                toCancel = remoteHandle;
+            }
+            if (toCancel != null) toCancel.cancel();
+        }
+
+        void onChunk(String chunk) {
+            synchronized (this) {
+                if (settled) return;
+                streamed = true;
+            }
+            timerHandler.removeCallbacks(deadline); // The provider is answering; let it finish
+            ((StreamingResponseCallback) step.callback).onTextChunk(chunk);
+        }
+
+        void onSuccess(String response) {
+            if (!settle()) return;
+            if (probe) switchToRemote();
+            recordLatency(false);
+            step.callback.onSuccess(response);
+        }
+
+        void onError(String error) {
+            if (!settle()) return;
+            boolean degradation = NetworkHealth.isDegradation(error);
+            if (degradation) recordLatency(true);
+            boolean moveToDevice;
+            synchronized (this) {
+                moveToDevice = degradation && step.canUseDevice && !streamed
+                        && (!online || probe || health.isDegraded(latencySloMs));
+            }
+            if (!moveToDevice || step.handle.isCancelled()) {
+                step.callback.onError(error);
+                return;
+            }
+            synchronized (OnDeviceFallbackService.this) {
+                switchToDevice(remoteName + " failed: " + error);
+            }
+            runOnDevice(step);
+        }
+
+        // Scaled to the standard tier, so the strong model's longer answers do not trip the SLO
+        private void recordLatency(boolean error) {
+            health.record((SystemClock.elapsedRealtime() - start) * latencySloMs / step.sloMs, error);
+        }
+
+        void onRateLimited(long retryAfterMillis, String detail) {
+            if (!settle()) return;
+            step.callback.onRateLimited(retryAfterMillis, detail); // Quota, not the network
+        }
+
+        ModelResponseCallback callback() {
+            if (step.streaming) {
+                return new StreamingResponseCallback() {
+                    @Override
+                    public void onTextChunk(String chunk) {
+                        RemoteAttempt.this.onChunk(chunk);
+                    }
+
+                    @Override
+                    public void onSuccess(String response) {
+                        RemoteAttempt.this.onSuccess(response);
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        RemoteAttempt.this.onError(error);
+                    }
+
+                    @Override
+                    public void onRateLimited(long retryAfterMillis, String detail) {
+                        RemoteAttempt.this.onRateLimited(retryAfterMillis, detail);
+                    }
+                };
+            }
+            return new ModelResponseCallback() {
+                @Override
+                public void onSuccess(String response) {
+                    RemoteAttempt.this.onSuccess(response);
+                }
+
+                @Override
+                public void onError(String error) {
+                    RemoteAttempt.this.onError(error);
+                }
+
+                @Override
+                public void onRateLimited(long retryAfterMillis, String detail) {
+                    RemoteAttempt.this.onRateLimited(retryAfterMillis, detail);
+                }
+            };
+        }
+    }
+}
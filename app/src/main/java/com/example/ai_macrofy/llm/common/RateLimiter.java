@@ -0,0 +1,232 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import okhttp3.Headers;
+
+/**
+ * Client-side quota tracking for one provider and API key.
+ * <p>
+ * Requests and prompt tokens are metered with two token buckets sized from the provider's default
+ * per-minute limits. The buckets are corrected from the provider's rate-limit headers when present, and a
+ * 429/503 response blocks the limiter for the server's Retry-After (or retry delay) or an exponential
+ * backoff with jitter, whichever is longer.
+ * <p>
+ * Callers ask {@link #reserve(int)} before sending; a non-zero result means the request should not be sent
+ * now and should be reported through {@link ModelResponseCallback#onRateLimited} instead of as an error.
+ */
+public final class RateLimiter {
+    private static final String TAG = "RateLimiter";
+
+    // Conservative defaults (requests / prompt tokens per minute) for the models used by the managers.
+    private static final int GEMINI_REQUESTS_PER_MINUTE = 15;
+    private static final int GEMINI_TOKENS_PER_MINUTE = 250_000;
+    private static final int OPENAI_REQUESTS_PER_MINUTE = 500;
+    private static final int OPENAI_TOKENS_PER_MINUTE = 200_000;
+
+    private static final long BACKOFF_BASE_MS = 1_000;
+    private static final long BACKOFF_MAX_MS = 60_000;
+    private static final long MINUTE_MS = 60_000;
+
+    private static final Pattern DURATION_PART = Pattern.compile("(\\d+(?:\\.\\d+)?)(ms|h|m|s)");
+    private static final Pattern GEMINI_RETRY_DELAY = Pattern.compile("\"retryDelay\"\\s*:\\s*\"(\\d+(?:\\.\\d+)?)s\"");
+
+    private static final Map<String, RateLimiter> LIMITERS = new HashMap<>();
+
+    private final String name;
+    private final Bucket requestBucket;
+    private final Bucket tokenBucket;
+    private final Random random;
+    private long blockedUntil = 0; // elapsedRealtime; no request before this
+    private int consecutiveThrottles = 0;
+
+    private static final class Bucket {
+        final double capacity;
+        final double refillPerMs;
+        double available;
+        long lastRefill;
+
+        Bucket(double perMinute, long now) {
+            this.capacity = perMinute;
+            this.refillPerMs = perMinute / MINUTE_MS;
+            this.available = perMinute;
+            this.lastRefill = now;
+        }
+
+        void refill(long now) {
+            available = Math.min(capacity, available + (now - lastRefill) * refillPerMs);
+            lastRefill = now;
+        }
+
+        /** Milliseconds until {@code amount} is available; 0 if it is available now. */
+        long waitFor(double amount) {
+            double missing = Math.min(amount, capacity) - available;
+            return missing <= 0 ? 0 : (long) Math.ceil(missing / refillPerMs);
+        }
+    }
+
+    RateLimiter(String name, int requestsPerMinute, int tokensPerMinute, long now, Random random) {
+        this.name = name;
+        this.requestBucket = new Bucket(requestsPerMinute, now);
+        this.tokenBucket = new Bucket(tokensPerMinute, now);
+        this.random = random;
+    }
+
+    /** The shared limiter for this provider and API key. Keys are only kept as a hash. */
+    public static synchronized RateLimiter forKey(String provider, @Nullable String apiKey) {
+        String key = provider + ":" + Integer.toHexString(apiKey != null ? apiKey.hashCode() : 0);
+        RateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            if (AppPreferences.PROVIDER_GEMINI.equals(provider)) {
+                limiter = new RateLimiter(key, GEMINI_REQUESTS_PER_MINUTE, GEMINI_TOKENS_PER_MINUTE,
+                        SystemClock.elapsedRealtime(), new Random());
+            } else {
+                limiter = new RateLimiter(key, OPENAI_REQUESTS_PER_MINUTE, OPENAI_TOKENS_PER_MINUTE,
+                        SystemClock.elapsedRealtime(), new Random());
+            }
+            LIMITERS.put(key, limiter);
+        }
+        return limiter;
+    }
+
+    public static boolean isThrottleStatus(int httpCode) {
+        return httpCode == 429 || httpCode == 503;
+    }
+
+    /**
+     * Reserves quota for one request of roughly {@code estimatedTokens} prompt tokens.
+     * @return 0 if the request may be sent now (quota is consumed), otherwise how long to wait before trying again.
+     */
+    public long reserve(int estimatedTokens) {
+        return reserve(estimatedTokens, SystemClock.elapsedRealtime());
+    }
+
+    synchronized long reserve(int estimatedTokens, long now) {
+        if (now < blockedUntil) {
+            return blockedUntil - now;
+        }
+        requestBucket.refill(now);
+        tokenBucket.refill(now);
+        long wait = Math.max(requestBucket.waitFor(1), tokenBucket.waitFor(estimatedTokens));
+        if (wait > 0) {
+            Log.d(TAG, name + ": local quota exhausted, next request in " + wait + "ms.");
+            return wait;
+        }
+        requestBucket.available -= 1;
+        tokenBucket.available -= Math.min(estimatedTokens, tokenBucket.capacity);
+        return 0;
+    }
+
+    /** Updates the limiter from a successful response's rate-limit headers and resets the backoff. */
+    public synchronized void onSuccess(@Nullable Headers headers) {
+        consecutiveThrottles = 0;
+        if (headers != null) {
+            applyRateLimitHeaders(headers, SystemClock.elapsedRealtime());
+        }
+    }
+
+    /**
+     * Records a 429/503 response.
+     * @return how long to wait before the next request
+     */
+    public long onThrottled(int httpCode, @Nullable Headers headers, @Nullable String errorBody) {
+        return onThrottled(httpCode, headers, errorBody, SystemClock.elapsedRealtime(), System.currentTimeMillis());
+    }
+
+    synchronized long onThrottled(int httpCode, @Nullable Headers headers, @Nullable String errorBody, long now, long nowWallMillis) {
+        long serverDelay = headers != null ? parseRetryAfter(headers, nowWallMillis) : -1;
+        if (serverDelay < 0 && errorBody != null) {
+            serverDelay = parseRetryDelay(errorBody);
+        }
+        if (headers != null) {
+            applyRateLimitHeaders(headers, now);
+        }
+
+        long jittered = backoffDelay(consecutiveThrottles, random.nextDouble());
+        consecutiveThrottles++;
+
+        long delay = Math.max(Math.max(serverDelay, jittered), blockedUntil - now);
+        blockedUntil = now + delay;
+        Log.w(TAG, name + ": HTTP " + httpCode + " (throttle #" + consecutiveThrottles + "), server delay "
+                + serverDelay + "ms, waiting " + delay + "ms.");
+        return delay;
+    }
+
+    /**
+     * Exponential backoff with "equal jitter" after {@code consecutiveThrottles} earlier throttles: half of the
+     * backoff is fixed, the other half scaled by {@code random} in [0, 1).
+     */
+    static long backoffDelay(int consecutiveThrottles, double random) {
+        long backoff = Math.min(BACKOFF_MAX_MS, BACKOFF_BASE_MS << Math.min(consecutiveThrottles, 16));
+        return backoff / 2 + (long) (random * (backoff / 2));
+    }
+
+    // OpenAI: x-ratelimit-remaining-requests / -tokens and x-ratelimit-reset-requests / -tokens ("1s", "6m0s")
+    private void applyRateLimitHeaders(Headers headers, long now) {
+        applyRemaining(requestBucket, headers.get("x-ratelimit-remaining-requests"), headers.get("x-ratelimit-reset-requests"), now);
+        applyRemaining(tokenBucket, headers.get("x-ratelimit-remaining-tokens"), headers.get("x-ratelimit-reset-tokens"), now);
+    }
+
+    private void applyRemaining(Bucket bucket, @Nullable String remainingHeader, @Nullable String resetHeader, long now) {
+        if (remainingHeader == null) return;
+        try {
+            double remaining = Double.parseDouble(remainingHeader.trim());
+            bucket.refill(now);
+            bucket.available = Math.min(bucket.available, remaining);
+            if (remaining <= 0 && resetHeader != null) {
+                long reset = parseDuration(resetHeader);
+                if (reset > 0) blockedUntil = Math.max(blockedUntil, now + reset);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unparseable rate-limit header: " + remainingHeader);
+        }
+    }
+
+    /** Retry-After as delta-seconds or an HTTP date; -1 if absent. */
+    static long parseRetryAfter(Headers headers, long nowWallMillis) {
+        String value = headers.get("Retry-After");
+        if (value == null) return -1;
+        try {
+            return (long) (Double.parseDouble(value.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            Date date = headers.getDate("Retry-After");
+            return date != null ? Math.max(0, date.getTime() - nowWallMillis) : -1;
+        }
+    }
+
+    /** Gemini's RetryInfo.retryDelay in a 429 error body, e.g. "retryDelay": "23s"; -1 if absent. */
+    static long parseRetryDelay(String errorBody) {
+        Matcher matcher = GEMINI_RETRY_DELAY.matcher(errorBody);
+        return matcher.find() ? (long) (Double.parseDouble(matcher.group(1)) * 1000) : -1;
+    }
+
+    /** Parses durations like "20ms", "1s", "6m0s" or "1h2m3.5s"; -1 if nothing matched. */
+    static long parseDuration(String value) {
+        Matcher matcher = DURATION_PART.matcher(value);
+        double total = 0;
+        boolean matched = false;
+        while (matcher.find()) {
+            matched = true;
+            double amount = Double.parseDouble(matcher.group(1));
+            switch (matcher.group(2)) {
+                case "h": total += amount * 3_600_000; break;
+                case "m": total += amount * 60_000; break;
+                case "s": total += amount * 1_000; break;
+                default: total += amount; break; // ms
+            }
+        }
+        return matched ? (long) Math.ceil(total) : -1;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handle for one in-flight {@link AiModelService#generateResponse} call.
+ * Cancelling it stops the underlying work (HTTP call, local generation, web polling) where the provider
+ * supports it, and guarantees that the request's callback is not called afterwards.
+ */
+public final class RequestHandle {
+    private static final String TAG = "RequestHandle";
+
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final AtomicBoolean finished = new AtomicBoolean(false); // Result delivered through a guarded callback
+    private Runnable canceller; // Guarded by this
+
+    /** A handle for a request that has already finished (e.g. rejected before it was sent). */
+    public static RequestHandle finished() {
+        RequestHandle handle = new RequestHandle();
+        handle.finished.set(true);
+        return handle;
+    }
+
+    /**
+     * Sets what to run on cancellation, replacing any previous action. If the request has already been
+     * cancelled, the action runs immediately.
+     */
+    public void setCanceller(Runnable canceller) {
+        synchronized (this) {
+            if (!cancelled.get()) {
+                this.canceller = canceller;
+                return;
+            }
+        }
+        canceller.run();
+    }
+
+    public void cancel() {
+        if (!cancelled.compareAndSet(false, true)) return;
+        Runnable action;
+        synchronized (this) {
+            action = canceller;
+            canceller = null;
+        }
+        if (action != null) {
+            try {
+                action.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Error while cancelling request", e);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /** True until the request's result has been delivered or the request has been cancelled. */
+    public boolean isActive() {
+        return !cancelled.get() && !finished.get();
+    }
+
+    private boolean tryFinish() {
+        return !cancelled.get() && finished.compareAndSet(false, true);
+    }
+
+    /**
+     * Wraps a callback so that nothing is delivered once this handle has been cancelled, and at most one
+     * result is delivered otherwise. Streaming callbacks keep their streaming interface.
+     */
+    public ModelResponseCallback guard(ModelResponseCallback callback) {
+        if (callback instanceof StreamingResponseCallback) {
+            StreamingResponseCallback streamingCallback = (StreamingResponseCallback) callback;
+            return new StreamingResponseCallback() {
+                @Override
+                public void onTextChunk(String chunk) {
+                    if (!isCancelled()) streamingCallback.onTextChunk(chunk);
+                }
+
+                @Override
+                public void onSuccess(String response) {
+                    if (tryFinish()) streamingCallback.onSuccess(response);
+                }
+
+                @Override
+                public void onError(String error) {
+                    if (tryFinish()) streamingCallback.onError(error);
+                }
+
+                @Override
+                public void onRateLimited(long retryAfterMillis, String detail) {
+                    if (tryFinish()) streamingCallback.onRateLimited(retryAfterMillis, detail);
+                }
+            };
+        }
+        return new ModelResponseCallback() {
+            @Override
+            public void onSuccess(String response) {
+                if (tryFinish()) callback.onSuccess(response);
+            }
+
+            @Override
+            public void onError(String error) {
+                if (tryFinish()) callback.onError(error);
+            }
+
+            @Override
+            public void onRateLimited(long retryAfterMillis, String detail) {
+                if (tryFinish()) callback.onRateLimited(retryAfterMillis, detail);
+            }
+        };
+    }
+}
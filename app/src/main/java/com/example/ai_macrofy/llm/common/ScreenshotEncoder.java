@@ -0,0 +1,143 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Draws the coordinate grid on a screenshot and encodes it to base64 JPEG.
+ * The last encoded frame is cached by bitmap identity, so when the macro pipeline has already
+ * encoded a screenshot on its encode stage, the model managers reuse the result instead of
+ * drawing and compressing the same frame again. The cache only holds weak references: the
+ * pipeline owns the frame and releases it when the step is superseded or the macro ends.
+ */
+public final class ScreenshotEncoder {
+    public static final int GRID_STEP = 100;
+    public static final int JPEG_QUALITY = 85;
+    public static final String MIME_TYPE = "image/jpeg";
+
+    private static final Object lock = new Object();
+    private static WeakReference<Bitmap> lastSource = new WeakReference<>(null);
+    private static WeakReference<EncodedFrame> lastFrame = new WeakReference<>(null);
+
+    private ScreenshotEncoder() {}
+
+    public static final class EncodedFrame {
+        public final Bitmap gridBitmap;
+        private byte[] jpegBytes;
+        private String base64Jpeg;
+        private String contentHash;
+
+        private EncodedFrame(Bitmap gridBitmap) {
+            this.gridBitmap = gridBitmap;
+        }
+
+        /** JPEG encoding is done lazily, since the local model only needs the grid bitmap. */
+        public synchronized String getBase64Jpeg() {
+            if (base64Jpeg == null) {
+                base64Jpeg = Base64.encodeToString(getJpegBytes(), Base64.NO_WRAP);
+            }
+            return base64Jpeg;
+        }
+
+        /** The encoded JPEG. Callers must not modify the returned array. */
+        public synchronized byte[] getJpegBytes() {
+            if (jpegBytes == null) {
+                if (gridBitmap.isRecycled()) {
+                    throw new IllegalStateException("Frame was released before it was encoded");
+                }
+                ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+                gridBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, byteArrayOutputStream);
+                jpegBytes = byteArrayOutputStream.toByteArray();
+            }
+            return jpegBytes;
+        }
+
+        /**
+         * SHA-256 of the encoded JPEG, in hex. The encoder is deterministic, so an unchanged screen captured
+         * again (for example when a step is retried) produces the same hash.
+         */
+        public synchronized String getContentHash() {
+            if (contentHash == null) {
+                contentHash = sha256Hex(getJpegBytes());
+            }
+            return contentHash;
+        }
+
+        /**
+         * Recycles the grid copy and drops the frame from the cache. Already encoded JPEG data stays
+         * readable, but the grid bitmap must not be used afterwards.
+         */
+        public void release() {
+            synchronized (lock) {
+                if (lastFrame.get() == this) {
+                    lastSource.clear();
+                    lastFrame.clear();
+                }
+            }
+            synchronized (this) {
+                gridBitmap.recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns the grid-annotated frame for the given screenshot, reusing the cached one if the same bitmap was encoded before.
+     */
+    public static EncodedFrame encode(Bitmap source) {
+        synchronized (lock) {
+            EncodedFrame cached = lastFrame.get();
+            if (source == lastSource.get() && cached != null) {
+                return cached;
+            }
+            EncodedFrame frame = new EncodedFrame(drawGridOnBitmap(source));
+            lastSource = new WeakReference<>(source);
+            lastFrame = new WeakReference<>(frame);
+            return frame;
+        }
+    }
+
+    private static String sha256Hex(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e); // Required on every Android version
+        }
+    }
+
+    private static Bitmap drawGridOnBitmap(Bitmap originalBitmap) {
+        Bitmap mutableBitmap = originalBitmap.copy(Bitmap.Config.ARGB_8888, true);
+        Canvas canvas = new Canvas(mutableBitmap);
+        Paint paint = new Paint();
+        paint.setColor(Color.RED);
+        paint.setStrokeWidth(1);
+        paint.setStyle(Paint.Style.STROKE);
+
+        int width = originalBitmap.getWidth();
+        int height = originalBitmap.getHeight();
+
+        // Draw vertical lines
+        for (int x = GRID_STEP; x < width; x += GRID_STEP) {
+            canvas.drawLine(x, 0, x, height, paint);
+        }
+
+        // Draw horizontal lines
+        for (int y = GRID_STEP; y < height; y += GRID_STEP) {
+            canvas.drawLine(0, y, width, y, paint);
+        }
+
+        return mutableBitmap;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.ai_macrofy.llm.common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import okhttp3.ResponseBody;
+
+/**
+ * Minimal reader for text/event-stream bodies as used by the Gemini (alt=sse) and OpenAI streaming endpoints.
+ * Only "data:" fields are of interest; multi-line data fields are joined with '\n'.
+ */
+public final class ServerSentEvents {
+    public static final String DONE_MARKER = "[DONE]"; // OpenAI end-of-stream sentinel
+
+    public interface DataListener {
+        void onData(String data) throws IOException;
+    }
+
+    private ServerSentEvents() {}
+
+    /**
+     * Blocks until the stream ends (or {@link #DONE_MARKER} is received), calling the listener for each event's data.
+     * Must not be called on the main thread.
+     */
+    public static void read(ResponseBody body, DataListener listener) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body.byteStream(), StandardCharsets.UTF_8))) {
+            StringBuilder data = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    // Blank line terminates an event
+                    if (data.length() > 0) {
+                        String eventData = data.toString();
+                        data.setLength(0);
+                        if (DONE_MARKER.equals(eventData)) return;
+                        listener.onData(eventData);
+                    }
+                } else if (line.startsWith("data:")) {
+                    if (data.length() > 0) data.append('\n');
+                    data.append(line.substring(line.startsWith("data: ") ? 6 : 5));
+                }
+                // Other fields (event:, id:, retry:) and comments (':') are ignored.
+            }
+            if (data.length() > 0 && !DONE_MARKER.equals(data.toString())) {
+                listener.onData(data.toString());
+            }
+        }
+    }
+}
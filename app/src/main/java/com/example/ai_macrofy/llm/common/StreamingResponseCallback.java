@@ -0,0 +1,14 @@
+package com.example.ai_macrofy.llm.common;
+
+/**
+ * A {@link ModelResponseCallback} that also wants the response as it is generated.
+ * Managers that support streaming switch to their streaming endpoint when given one of these;
+ * the others simply call {@link #onSuccess(String)} once, as before.
+ */
+public interface StreamingResponseCallback extends ModelResponseCallback {
+    /**
+     * Called with each newly generated piece of text, in order, on a background thread.
+     * {@link #onSuccess(String)} is still called with the full text at the end.
+     */
+    void onTextChunk(String chunk);
+}
@@ -1,13 +1,19 @@
 package com.example.ai_macrofy.llm.gemini;
 
+import com.example.ai_macrofy.llm.gemini.data.CachedContent;
 import com.example.ai_macrofy.llm.gemini.data.GeminiRequest;
 import com.example.ai_macrofy.llm.gemini.data.GeminiResponse;
+import com.example.ai_macrofy.llm.gemini.data.UploadedFile;
 
+import okhttp3.RequestBody;
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
+import retrofit2.http.PATCH;
 import retrofit2.http.POST;
 import retrofit2.http.Path;
 import retrofit2.http.Query;
+import retrofit2.http.Streaming;
 
 public interface GeminiApi {
     // 예시 엔드포인트 및 모델 이름. 실제 사용하는 모델에 맞게 수정 필요.
@@ -18,4 +24,36 @@ public interface GeminiApi {
             @Query("key") String apiKey,         // 쿼리 파라미터로 API 키 전달
             @Body GeminiRequest request
     );
-}
\ No newline at end of file
+
+    // 같은 요청을 SSE로 받습니다. 각 이벤트의 data는 부분 응답 하나의 GeminiResponse JSON입니다.
+    @Streaming
+    @POST("v1beta/models/{modelName}:streamGenerateContent?alt=sse")
+    Call<ResponseBody> streamGenerateContent(
+            @Path("modelName") String modelName,
+            @Query("key") String apiKey,
+            @Body GeminiRequest request
+    );
+
+    // 시스템 지시문 컨텍스트 캐시 생성. 이후 요청은 cached_content로 이름만 참조합니다.
+    @POST("v1beta/cachedContents")
+    Call<CachedContent> createCachedContent(
+            @Query("key") String apiKey,
+            @Body CachedContent content
+    );
+
+    // 캐시의 TTL 연장. name은 "cachedContents/..." 형식이므로 '/'를 인코딩하지 않음
+    @PATCH("v1beta/{name}")
+    Call<CachedContent> updateCachedContent(
+            @Path(value = "name", encoded = true) String name,
+            @Query("updateMask") String updateMask,
+            @Query("key") String apiKey,
+            @Body CachedContent content
+    );
+
+    // File API 단순 업로드. 본문은 파일 바이트 그대로이며 Content-Type은 본문의 MIME 타입을 따름
+    @POST("upload/v1beta/files?uploadType=media")
+    Call<UploadedFile.Response> uploadFile(
+            @Query("key") String apiKey,
+            @Body RequestBody content
+    );
+}
@@ -0,0 +1,247 @@
+package com.example.ai_macrofy.llm.gemini;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.common.ChatHistoryStore;
+import com.example.ai_macrofy.llm.gemini.data.CachedContent;
+import com.example.ai_macrofy.llm.gemini.data.Message;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * 시스템 지시문(프롬프트 + 실행 가능한 앱 목록)을 Gemini cachedContents로 올려 두고, 요청에서는 이름만 참조하게 합니다.
+ * <p>
+ * 항목은 API 키별로, 모델과 지시문 전체의 해시를 키로 관리합니다. 앱 목록이 바뀌면 지시문이 달라지므로 새 항목이 만들어집니다.
+ * 캐시 생성은 백그라운드에서 진행되고, 준비되기 전이나 만료가 가까운 경우 {@link #lookup}은 null을 돌려주어
+ * 호출하는 쪽이 지시문을 그대로 보내도록 합니다. 사용 중인 항목은 만료 전에 TTL을 연장하고, 서버에서 이미 사라진 항목은
+ * {@link #invalidate}로 지운 뒤 다음 요청부터 다시 만듭니다.
+ * <p>
+ * 명시적 캐시는 버전이 고정된 모델에서만 만들 수 있고 모델마다 최소 토큰 수가 다릅니다. "-latest" 같은 별칭이나
+ * 최소 크기에 못 미치는 지시문은 요청을 보내 보지 않고 건너뜁니다 ({@link #minCacheTokens}).
+ */
+final class GeminiContextCache {
+    private static final String TAG = "GeminiContextCache";
+
+    private static final long TTL_SECONDS = 600;
+    private static final long EXPIRY_MARGIN_MS = 30_000;  // 만료 직전 항목은 요청 도중 사라질 수 있으므로 사용하지 않음
+    private static final long REFRESH_BEFORE_MS = 180_000; // 남은 시간이 이보다 적으면 TTL 연장
+    // 모델별 캐시 최소 크기 (cachedContents 문서 기준). 이보다 짧은 지시문은 생성 요청이 400으로 거절됨
+    private static final Pattern VERSIONED_GEMINI_1_5 = Pattern.compile("gemini-1\\.5-(flash|pro)(-8b)?-\\d{3}");
+    private static final int MIN_CACHE_TOKENS_GEMINI_1_5 = 32_768;
+    private static final int MIN_CACHE_TOKENS_GEMINI_2_5_PRO = 4_096;
+    private static final int MIN_CACHE_TOKENS_GEMINI_2_5_FLASH = 1_024;
+    private static final long FAILURE_BACKOFF_MS = 10 * 60_000; // 생성에 실패한 지시문은 한동안 다시 시도하지 않음
+    private static final int MAX_ENTRIES = 8;
+
+    private static final Map<String, GeminiContextCache> CACHES = new HashMap<>();
+
+    private final Map<String, Entry> entries = new HashMap<>(); // 지시문 키 → 항목
+    private final Set<String> loggedSkips = new HashSet<>(); // 건너뛴 이유를 이미 기록한 모델
+
+    private static final class Entry {
+        @Nullable String name;  // 생성이 끝나면 설정
+        long expiresAt;         // elapsedRealtime
+        boolean creating;
+        boolean refreshing;
+        long retryAfter;        // 생성 실패 시 이 시각 전에는 다시 시도하지 않음
+    }
+
+    private GeminiContextCache() {}
+
+    /** API 키별 캐시. 캐시 항목은 키가 속한 프로젝트에만 보이므로 키마다 따로 관리합니다. */
+    static synchronized GeminiContextCache forKey(String apiKey) {
+        String key = Integer.toHexString(apiKey.hashCode());
+        GeminiContextCache cache = CACHES.get(key);
+        if (cache == null) {
+            cache = new GeminiContextCache();
+            CACHES.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * 지시문에 해당하는 캐시 이름을 돌려줍니다. 아직 없으면 생성을 시작하고 null을 돌려주며,
+     * 곧 만료될 항목은 TTL 연장을 요청합니다.
+     */
+    @Nullable
+    synchronized String lookup(GeminiApi api, String apiKey, String modelName, Message systemInstruction, String systemText) {
+        int minTokens = minCacheTokens(modelName);
+        if (minTokens < 0) {
+            if (loggedSkips.add(modelName)) {
+                Log.i(TAG, modelName + " has no explicit context caching (unversioned or unsupported model); sending the instruction inline.");
+            }
+            return null;
+        }
+        if (ChatHistoryStore.estimateTokens(systemText) < minTokens) {
+            if (loggedSkips.add(modelName)) {
+                Log.i(TAG, "System instruction is below the " + minTokens + "-token cache minimum of " + modelName
+                        + "; sending it inline.");
+            }
+            return null;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        String key = keyFor(modelName, systemText);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            evictExpired(now);
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+
+        if (entry.name != null && now < entry.expiresAt - EXPIRY_MARGIN_MS) {
+            if (entry.expiresAt - now < REFRESH_BEFORE_MS && !entry.refreshing) {
+                refresh(api, apiKey, entry);
+            }
+            return entry.name;
+        }
+
+        if (!entry.creating && now >= entry.retryAfter) {
+            entry.name = null;
+            create(api, apiKey, modelName, systemInstruction, entry);
+        }
+        return null;
+    }
+
+    /** 서버에서 찾을 수 없거나 만료된 캐시를 지웁니다. 다음 조회 때 새로 만듭니다. */
+    synchronized void invalidate(String name) {
+        for (Entry entry : entries.values()) {
+            if (name.equals(entry.name)) {
+                Log.w(TAG, "Invalidating " + name);
+                entry.name = null;
+                entry.expiresAt = 0;
+            }
+        }
+    }
+
+    /**
+     * 모델의 명시적 캐시 최소 토큰 수. 캐시를 만들 수 없는 모델(버전 없는 1.5 모델, "-latest" 별칭, 알 수 없는 모델)은 -1
+     */
+    static int minCacheTokens(String modelName) {
+        if (modelName.endsWith("-latest")) return -1;
+        if (VERSIONED_GEMINI_1_5.matcher(modelName).matches()) return MIN_CACHE_TOKENS_GEMINI_1_5;
+        if (modelName.startsWith("gemini-2.5-pro")) return MIN_CACHE_TOKENS_GEMINI_2_5_PRO;
+        if (modelName.startsWith("gemini-2.5-flash")) return MIN_CACHE_TOKENS_GEMINI_2_5_FLASH;
+        return -1;
+    }
+
+    /** 캐시를 참조한 요청이 캐시 때문에 실패했는지 판단합니다 (만료, 삭제, 권한 없음). */
+    static boolean isCacheError(int httpCode, @Nullable String errorBody) {
+        if (httpCode != 400 && httpCode != 403 && httpCode != 404) return false;
+        return errorBody != null && (errorBody.contains("CachedContent") || errorBody.contains("cachedContent")
+                || errorBody.contains("cached_content") || errorBody.contains("cachedContents/"));
+    }
+
+    private void create(GeminiApi api, String apiKey, String modelName, Message systemInstruction, Entry entry) {
+        entry.creating = true;
+        final long requestedAt = SystemClock.elapsedRealtime();
+        CachedContent request = new CachedContent("models/" + modelName, systemInstruction, TTL_SECONDS + "s");
+        api.createCachedContent(apiKey, request).enqueue(new Callback<CachedContent>() {
+            @Override
+            public void onResponse(Call<CachedContent> call, Response<CachedContent> response) {
+                synchronized (GeminiContextCache.this) {
+                    entry.creating = false;
+                    if (response.isSuccessful() && response.body() != null && response.body().getName() != null) {
+                        entry.name = response.body().getName();
+                        // 서버 시각 대신 요청 시각 기준으로 계산하여 항상 실제 만료보다 이르게 잡음
+                        entry.expiresAt = requestedAt + TTL_SECONDS * 1000;
+                        Log.d(TAG, "Created " + entry.name + " for " + modelName + ", expires " + response.body().getExpireTime());
+                    } else {
+                        entry.retryAfter = SystemClock.elapsedRealtime() + FAILURE_BACKOFF_MS;
+                        Log.w(TAG, "Could not create context cache (" + response.code() + "); sending the instruction inline. "
+                                + errorBodyOf(response));
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Call<CachedContent> call, Throwable t) {
+                synchronized (GeminiContextCache.this) {
+                    entry.creating = false;
+                    entry.retryAfter = SystemClock.elapsedRealtime() + FAILURE_BACKOFF_MS;
+                }
+                Log.w(TAG, "Context cache request failed: " + t.getMessage());
+            }
+        });
+    }
+
+    private void refresh(GeminiApi api, String apiKey, Entry entry) {
+        entry.refreshing = true;
+        final String name = entry.name;
+        final long requestedAt = SystemClock.elapsedRealtime();
+        api.updateCachedContent(name, "ttl", apiKey, CachedContent.ttlUpdate(TTL_SECONDS + "s")).enqueue(new Callback<CachedContent>() {
+            @Override
+            public void onResponse(Call<CachedContent> call, Response<CachedContent> response) {
+                synchronized (GeminiContextCache.this) {
+                    entry.refreshing = false;
+                    if (!name.equals(entry.name)) return; // 그 사이 무효화되었거나 다시 만들어짐
+                    if (response.isSuccessful()) {
+                        entry.expiresAt = requestedAt + TTL_SECONDS * 1000;
+                        Log.d(TAG, "Extended " + name + " by " + TTL_SECONDS + "s.");
+                    } else if (response.code() == 404 || response.code() == 403) {
+                        entry.name = null;
+                        entry.expiresAt = 0;
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Call<CachedContent> call, Throwable t) {
+                synchronized (GeminiContextCache.this) {
+                    entry.refreshing = false; // 만료 전까지 다음 조회에서 다시 시도
+                }
+            }
+        });
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (!entry.creating && now >= entry.expiresAt && now >= entry.retryAfter) iterator.remove();
+        }
+        if (entries.size() >= MAX_ENTRIES) {
+            entries.clear(); // 앱 목록이 계속 바뀌는 드문 경우. 남은 서버 항목은 TTL이 지나면 사라짐
+        }
+    }
+
+    private static String errorBodyOf(Response<?> response) {
+        try {
+            return response.errorBody() != null ? response.errorBody().string() : "";
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static String keyFor(String modelName, String systemText) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelName.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) '\n');
+            byte[] hash = digest.digest(systemText.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return modelName + ":" + systemText.length() + ":" + systemText.hashCode(); // SHA-256은 항상 있음
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.ai_macrofy.llm.gemini;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.common.FrameUploadCache;
+import com.example.ai_macrofy.llm.gemini.data.FileData;
+import com.example.ai_macrofy.llm.gemini.data.GeminiRequest;
+import com.example.ai_macrofy.llm.gemini.data.InlineData;
+import com.example.ai_macrofy.llm.gemini.data.Message;
+import com.example.ai_macrofy.llm.gemini.data.Part;
+import com.example.ai_macrofy.llm.gemini.data.UploadedFile;
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import retrofit2.Response;
+
+/**
+ * 스크린샷을 Gemini File API로 올리는 {@link FrameUploadCache.Uploader}와 API 키별 캐시입니다.
+ * <p>
+ * 업로드한 파일은 키가 속한 프로젝트에서만 참조할 수 있으므로 캐시를 키마다 따로 둡니다.
+ * 서버는 파일을 48시간 보관하지만 캐시 항목은 {@link #MAX_AGE_MS}만 사용합니다.
+ * API 인스턴스를 생성자로 받으므로 로컬 테스트 서버를 가리키는 Retrofit으로도 만들 수 있습니다.
+ */
+final class GeminiFrameUploads implements FrameUploadCache.Uploader {
+    private static final long MAX_AGE_MS = 60 * 60_000;
+    private static final int MAX_ENTRIES = 32;
+
+    private static final Map<String, FrameUploadCache> CACHES = new HashMap<>();
+
+    private final GeminiApi api;
+    private final String apiKey;
+
+    GeminiFrameUploads(GeminiApi api, String apiKey) {
+        this.api = api;
+        this.apiKey = apiKey;
+    }
+
+    static synchronized FrameUploadCache forKey(GeminiApi api, String apiKey) {
+        String key = Integer.toHexString(apiKey.hashCode());
+        FrameUploadCache cache = CACHES.get(key);
+        if (cache == null) {
+            cache = new FrameUploadCache(new GeminiFrameUploads(api, apiKey), MAX_ENTRIES, MAX_AGE_MS, AppPreferences.PROVIDER_GEMINI);
+            CACHES.put(key, cache);
+        }
+        return cache;
+    }
+
+    /**
+     * 스크린샷 파트를 만듭니다. 같은 프레임을 이미 올렸으면 URI로 참조하고 (inlineData는 파일이 거절될 때를 위해 보관),
+     * 아직 올리지 않은 프레임은 인라인으로 보내고, 두 번째로 보내는 프레임이면 백그라운드로 올려 둡니다.
+     */
+    static Part imagePart(FrameUploadCache uploads, String contentHash, byte[] content, String mimeType, InlineData inlineData) {
+        String fileUri = uploads.lookup(contentHash);
+        if (fileUri == null) {
+            uploads.uploadInBackground(contentHash, content, mimeType);
+            return new Part(inlineData);
+        }
+        return new Part(new FileData(mimeType, fileUri), inlineData);
+    }
+
+    /**
+     * 요청의 업로드 파일 참조를 모두 인라인 이미지로 바꾸고, 그 파일들을 캐시에서 지웁니다.
+     * @return 바꾼 파트가 있으면 true
+     */
+    static boolean replaceWithInline(GeminiRequest request, FrameUploadCache uploads) {
+        boolean replaced = false;
+        for (Message message : request.getContents()) {
+            for (Part part : message.getParts()) {
+                FileData fileData = part.getFileData();
+                if (fileData != null && part.replaceFileWithInline()) {
+                    uploads.invalidate(fileData.getFileUri());
+                    replaced = true;
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /** 업로드 스레드에서 호출됩니다. 응답을 받을 때까지 블록합니다. */
+    @Override
+    public String upload(byte[] content, String mimeType) throws IOException {
+        Response<UploadedFile.Response> response = api.uploadFile(apiKey, RequestBody.create(MediaType.parse(mimeType), content)).execute();
+        if (!response.isSuccessful() || response.body() == null) {
+            String errorBody = response.errorBody() != null ? response.errorBody().string() : "";
+            throw new IOException("Upload failed: " + response.code() + " " + errorBody);
+        }
+        UploadedFile file = response.body().getFile();
+        if (file == null || file.getUri() == null) {
+            throw new IOException("Upload response has no file URI");
+        }
+        // 처리 중인 파일은 아직 참조할 수 없음. 이미지는 업로드 직후 ACTIVE이므로 이 경우는 실패로 취급
+        if (file.getState() != null && !"ACTIVE".equals(file.getState())) {
+            throw new IOException("Uploaded file " + file.getName() + " is " + file.getState());
+        }
+        return file.getUri();
+    }
+
+    /** 파일을 참조한 요청이 파일 때문에 거절되었는지 판단합니다 (삭제, 만료, 권한 없음, 처리 중). */
+    static boolean isFileError(int httpCode, @Nullable String errorBody) {
+        if (httpCode != 400 && httpCode != 403 && httpCode != 404) return false;
+        return errorBody != null && (errorBody.contains("File ") || errorBody.contains("file_data")
+                || errorBody.contains("files/"));
+    }
+}
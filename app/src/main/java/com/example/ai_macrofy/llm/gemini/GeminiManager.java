@@ -1,19 +1,26 @@
 package com.example.ai_macrofy.llm.gemini;
 
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.util.Base64;
 import android.util.Log;
 import android.content.Context;
 import android.os.Environment;
 
 import androidx.annotation.Nullable;
 
+import com.example.ai_macrofy.llm.common.ActionSchema;
 import com.example.ai_macrofy.llm.common.AiModelService;
+import com.example.ai_macrofy.llm.common.ChatHistoryStore;
 import com.example.ai_macrofy.llm.common.ChatMessage; // Import common ChatMessage
+import com.example.ai_macrofy.llm.common.FrameUploadCache;
+import com.example.ai_macrofy.llm.common.JsonCodec;
 import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.ModelTier;
+import com.example.ai_macrofy.llm.common.NetworkModule;
+import com.example.ai_macrofy.llm.common.RateLimiter;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.llm.common.ScreenshotEncoder;
+import com.example.ai_macrofy.llm.common.ServerSentEvents;
+import com.example.ai_macrofy.llm.common.StreamingResponseCallback;
 // Gemini data classes
 import com.example.ai_macrofy.llm.gemini.data.Choice; //
 import com.example.ai_macrofy.llm.gemini.data.GenerationConfig;
@@ -23,38 +30,59 @@ import com.example.ai_macrofy.llm.gemini.data.InlineData; // Import InlineData
 import com.example.ai_macrofy.llm.gemini.data.Message; // This is Gemini's Message
 import com.example.ai_macrofy.llm.gemini.data.Part;
 import com.example.ai_macrofy.llm.gemini.data.ThinkingConfig;
+import com.example.ai_macrofy.llm.gemini.data.UsageMetadata;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.metrics.TokenUsage;
+import com.example.ai_macrofy.utils.AppPreferences;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 
 
 import org.json.JSONObject;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
 public class GeminiManager implements AiModelService {
-    private static final String BASE_URL = "https://generativelanguage.googleapis.com/";
+    private static final String BASE_URL = NetworkModule.GEMINI_BASE_URL;
     private String apiKeyInstance; // Instance-specific API key
     private Context context; // For file operations
-    private final Gson gson = new Gson();
+    private final Gson gson = JsonCodec.gson(); // Shared with the Retrofit converter
 
     // Model name can be made configurable
     private static final String DEFAULT_MODEL_NAME = "gemini-1.5-flash-latest"; // Updated to the latest model
+    private static final String FAST_MODEL_NAME = "gemini-2.5-flash-lite"; // 라우팅에서 쉬운 단계용 (thinking 없음)
+    private static final String STRONG_MODEL_NAME = "gemini-2.5-pro"; // 라우팅에서 어려운 단계용
+    private static final int DEFAULT_THINKING_BUDGET = 256;
+    private static final int STRONG_THINKING_BUDGET = 2048;
+    private static final int IMAGE_TOKEN_ESTIMATE = 1000; // 스크린샷 한 장의 대략적인 입력 토큰 수 (쿼터 계산용)
 
     private static volatile Retrofit retrofitInstanceGemini; // Shared Retrofit
     private GeminiApi apiInstanceInternalGemini; // Instance-specific API service
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor(); // Reads streamed responses
+    private volatile ModelTier modelTier = ModelTier.STANDARD; // ModelRouter가 단계마다 정함
 
     public GeminiManager() {
         // Constructor
@@ -67,7 +95,8 @@ public class GeminiManager implements AiModelService {
                     if (retrofitInstanceGemini == null) {
                         retrofitInstanceGemini = new Retrofit.Builder()
                                 .baseUrl(BASE_URL)
-                                .addConverterFactory(GsonConverterFactory.create())
+                                .client(NetworkModule.apiClient())
+                                .addConverterFactory(GsonConverterFactory.create(JsonCodec.gson()))
                                 .build();
                     }
                 }
@@ -88,7 +117,9 @@ public class GeminiManager implements AiModelService {
     }
 
     // This internal method now takes the structured list of Gemini Messages
-    private void callGeminiApi(String modelName, Message systemInstruction, List<com.example.ai_macrofy.llm.gemini.data.Message> geminiApiContents, @Nullable Integer thinkingBudget, ModelResponseCallback callback) {
+    // useContextCache가 true면 시스템 지시문을 cachedContents로 참조하고, 캐시가 없거나 만료되었으면 지시문을 그대로 보냄
+    // reserveQuota가 false면 같은 요청을 다시 보내는 것이므로 이미 예약한 쿼터를 그대로 사용
+    private void callGeminiApi(String modelName, Message systemInstruction, String systemText, List<com.example.ai_macrofy.llm.gemini.data.Message> geminiApiContents, @Nullable Integer thinkingBudget, int estimatedTokens, long buildStart, boolean useContextCache, boolean reserveQuota, RequestHandle handle, ModelResponseCallback callback) {
         if (apiKeyInstance == null || apiKeyInstance.isEmpty()) {
             callback.onError("Gemini API key is not set for this instance");
             return;
@@ -98,25 +129,65 @@ public class GeminiManager implements AiModelService {
             return;
         }
 
+        // 쿼터가 부족하면 요청을 보내지 않고 대기 시간만 알림 (실패로 취급하지 않음)
+        RateLimiter rateLimiter = RateLimiter.forKey(AppPreferences.PROVIDER_GEMINI, apiKeyInstance);
+        long quotaWait = reserveQuota ? rateLimiter.reserve(estimatedTokens) : 0;
+        if (quotaWait > 0) {
+            callback.onRateLimited(quotaWait, "Gemini quota exhausted, retry in " + quotaWait + "ms.");
+            return;
+        }
+
         GenerationConfig generationConfig = null;
         if (thinkingBudget != null) {
             ThinkingConfig thinkingConfig = new ThinkingConfig(thinkingBudget); //
             generationConfig = new GenerationConfig(thinkingConfig); //
         }
-
-        GeminiRequest request = new GeminiRequest(geminiApiContents, systemInstruction, generationConfig); //
+        generationConfig = applyOutputSettings(generationConfig, thinkingBudget);
+
+        String cachedContentName = useContextCache
+                ? GeminiContextCache.forKey(apiKeyInstance).lookup(getApiForInstance(), apiKeyInstance, modelName, systemInstruction, systemText)
+                : null;
+        GeminiRequest request;
+        if (cachedContentName != null) {
+            request = new GeminiRequest(geminiApiContents, generationConfig);
+            request.setCachedContent(cachedContentName);
+        } else {
+            request = new GeminiRequest(geminiApiContents, systemInstruction, generationConfig); //
+        }
+        // 캐시나 업로드한 스크린샷이 서버에서 사라졌으면 지시문과 이미지를 포함해 한 번 다시 보냄
+        Runnable resendWithoutCache = () -> callGeminiApi(modelName, systemInstruction, systemText, geminiApiContents,
+                thinkingBudget, estimatedTokens, StepTimer.now(), false, false, handle, callback);
 
         // 디버깅을 위해 최종 요청 스크립트를 저장합니다.
-        saveFinalScriptForDebug(gson.toJson(request));
+        saveFinalScriptForDebug(request);
 
         Log.d("GeminiManager", "Sending request to Gemini model: " + modelName + " with " + geminiApiContents.size() + " content items."
-                + (generationConfig != null && generationConfig.getThinkingConfig() != null ? " with thinkingBudget: " + generationConfig.getThinkingConfig().getThinkingBudget() : "")); //
-
-        getApiForInstance().generateContent(modelName, apiKeyInstance, request).enqueue(new Callback<GeminiResponse>() { //
+                + (generationConfig != null && generationConfig.getThinkingConfig() != null ? " with thinkingBudget: " + generationConfig.getThinkingConfig().getThinkingBudget() : "")
+                + (cachedContentName != null ? " using " + cachedContentName : "")); //
+
+        // 요청 본문 직렬화(스크린샷 base64 포함)도 요청 생성 시간에 포함되도록 enqueue 전에 미리 빌드
+        if (callback instanceof StreamingResponseCallback) {
+            Call<ResponseBody> streamCall = getApiForInstance().streamGenerateContent(modelName, apiKeyInstance, request);
+            NetworkModule.prepare(streamCall);
+            MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+            streamGeminiApi(streamCall, request, StepTimer.now(), rateLimiter, resendWithoutCache, handle, (StreamingResponseCallback) callback);
+            return;
+        }
+        Call<GeminiResponse> geminiCall = getApiForInstance().generateContent(modelName, apiKeyInstance, request);
+        NetworkModule.prepare(geminiCall);
+        MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+        final long requestStart = StepTimer.now();
+        handle.setCanceller(geminiCall::cancel);
+        geminiCall.enqueue(new Callback<GeminiResponse>() { //
             @Override
             public void onResponse(Call<GeminiResponse> call, retrofit2.Response<GeminiResponse> response) {
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_GEMINI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
                 if (response.isSuccessful() && response.body() != null) {
+                    rateLimiter.onSuccess(response.headers());
                     GeminiResponse geminiResponse = response.body(); //
+                    recordUsage(geminiResponse.getUsageMetadata());
                     String responseText = geminiResponse.getFirstCandidateText(); //
                     if (responseText != null) {
                         callback.onSuccess(responseText);
@@ -127,6 +198,15 @@ public class GeminiManager implements AiModelService {
                     try {
                         String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
                         Log.e("GeminiManager", "Gemini API call failed: " + response.code() + " - " + errorBody);
+                        if (fallBackFromContextCache(request, response.code(), errorBody, resendWithoutCache)
+                                || fallBackFromUploadedFrames(request, response.code(), errorBody, resendWithoutCache)) {
+                            return;
+                        }
+                        if (RateLimiter.isThrottleStatus(response.code())) {
+                            long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                            callback.onRateLimited(retryAfter, "Gemini API Error: " + response.code() + " " + errorBody);
+                            return;
+                        }
                         callback.onError("Gemini API Error: " + response.code() + " " + errorBody);
                     } catch (IOException e) {
                         Log.e("GeminiManager", "Error reading error body", e);
@@ -137,6 +217,11 @@ public class GeminiManager implements AiModelService {
 
             @Override
             public void onFailure(Call<GeminiResponse> call, Throwable t) {
+                if (call.isCanceled()) {
+                    Log.d("GeminiManager", "Gemini API call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
                 Log.e("GeminiManager", "Gemini API call onFailure: " + t.getMessage(), t);
                 callback.onError("Gemini Network Error: " + t.getMessage());
             }
@@ -144,21 +229,148 @@ public class GeminiManager implements AiModelService {
     }
 
 
+    // Same request over the SSE endpoint: each event carries the next piece of the candidate text.
+    private void streamGeminiApi(Call<ResponseBody> streamCall, GeminiRequest request, long requestStart, RateLimiter rateLimiter, Runnable resendWithoutCache, RequestHandle handle, StreamingResponseCallback callback) {
+        handle.setCanceller(streamCall::cancel); // Also aborts a stream that is already being read
+        streamExecutor.execute(() -> {
+            StringBuilder fullText = new StringBuilder();
+            AtomicReference<UsageMetadata> usage = new AtomicReference<>(); // 청크마다 누적값이 오므로 마지막 것만 기록
+            try {
+                retrofit2.Response<ResponseBody> response = streamCall.execute();
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_GEMINI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                if (!response.isSuccessful() || response.body() == null) {
+                    MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                    String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
+                    Log.e("GeminiManager", "Gemini streaming call failed: " + response.code() + " - " + errorBody);
+                    if (fallBackFromContextCache(request, response.code(), errorBody, resendWithoutCache)
+                            || fallBackFromUploadedFrames(request, response.code(), errorBody, resendWithoutCache)) {
+                        return;
+                    }
+                    if (RateLimiter.isThrottleStatus(response.code())) {
+                        long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                        callback.onRateLimited(retryAfter, "Gemini API Error: " + response.code() + " " + errorBody);
+                        return;
+                    }
+                    callback.onError("Gemini API Error: " + response.code() + " " + errorBody);
+                    return;
+                }
+                rateLimiter.onSuccess(response.headers());
+                ServerSentEvents.read(response.body(), data -> {
+                    GeminiResponse event = gson.fromJson(data, GeminiResponse.class);
+                    if (event.getUsageMetadata() != null) usage.set(event.getUsageMetadata());
+                    String chunk = event.getFirstCandidateText();
+                    if (chunk != null && !chunk.isEmpty()) {
+                        fullText.append(chunk);
+                        callback.onTextChunk(chunk);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                if (handle.isCancelled()) {
+                    Log.d("GeminiManager", "Gemini streaming call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                Log.e("GeminiManager", "Gemini streaming call failed: " + e.getMessage(), e);
+                callback.onError("Gemini Network Error: " + e.getMessage());
+                return;
+            }
+            MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+            recordUsage(usage.get());
+            if (fullText.length() > 0) {
+                callback.onSuccess(fullText.toString());
+            } else {
+                callback.onError("Gemini response was empty or invalid.");
+            }
+        });
+    }
+
+
+    // 응답의 usageMetadata를 현재 단계와 매크로의 토큰 사용량에 기록
+    private static void recordUsage(@Nullable UsageMetadata usage) {
+        if (usage == null) return;
+        TokenUsage tokens = new TokenUsage(usage.getPromptTokenCount(), usage.getCachedContentTokenCount(),
+                usage.getCandidatesTokenCount(), usage.getThoughtsTokenCount());
+        Log.d("GeminiManager", "Usage: " + tokens + " tokens.");
+        MacroMetrics.getInstance().recordUsage(AppPreferences.PROVIDER_GEMINI, tokens);
+    }
+
+    /**
+     * 참조한 컨텍스트 캐시가 만료되었거나 삭제되어 요청이 거절된 경우, 캐시를 무효화하고 지시문을 포함해 다시 보냅니다.
+     * @return 다시 보냈으면 true. 이때 원래 요청의 오류는 콜백으로 전달하지 않습니다.
+     */
+    private boolean fallBackFromContextCache(GeminiRequest request, int httpCode, String errorBody, Runnable resendWithoutCache) {
+        String cachedContentName = request.getCachedContent();
+        if (cachedContentName == null || !GeminiContextCache.isCacheError(httpCode, errorBody)) {
+            return false;
+        }
+        Log.w("GeminiManager", "Context cache " + cachedContentName + " is no longer usable. Resending with the inline system instruction.");
+        GeminiContextCache.forKey(apiKeyInstance).invalidate(cachedContentName);
+        resendWithoutCache.run();
+        return true;
+    }
+
+    /**
+     * 참조한 업로드 파일을 서버가 거절한 경우, 파일 참조를 인라인 이미지로 바꾸고 캐시에서 지운 뒤 다시 보냅니다.
+     * @return 다시 보냈으면 true. 이때 원래 요청의 오류는 콜백으로 전달하지 않습니다.
+     */
+    private boolean fallBackFromUploadedFrames(GeminiRequest request, int httpCode, String errorBody, Runnable resendInline) {
+        if (!GeminiFrameUploads.isFileError(httpCode, errorBody)) {
+            return false;
+        }
+        FrameUploadCache uploads = GeminiFrameUploads.forKey(getApiForInstance(), apiKeyInstance);
+        if (!GeminiFrameUploads.replaceWithInline(request, uploads)) {
+            return false;
+        }
+        Log.w("GeminiManager", "Uploaded screenshot is no longer usable. Resending with the inline image.");
+        resendInline.run();
+        return true;
+    }
+
+    // 설정에 따라 응답을 액션 스키마의 JSON으로 제한하고 출력 토큰 수에 상한을 둠
+    @Nullable
+    private GenerationConfig applyOutputSettings(@Nullable GenerationConfig generationConfig, @Nullable Integer thinkingBudget) {
+        if (context == null) return generationConfig;
+        AppPreferences preferences = new AppPreferences(context);
+        boolean structured = preferences.isStructuredOutputEnabled();
+        int maxOutputTokens = preferences.getMaxOutputTokens();
+        if (!structured && maxOutputTokens <= 0) return generationConfig;
+        if (generationConfig == null) generationConfig = new GenerationConfig();
+        if (structured) {
+            generationConfig.setResponseSchema(ActionSchema.forGemini());
+        }
+        if (maxOutputTokens > 0) {
+            // 생각 토큰도 출력 상한에 포함되므로 생각 예산만큼 더해 줌
+            generationConfig.setMaxOutputTokens(maxOutputTokens + (thinkingBudget != null ? thinkingBudget : 0));
+        }
+        return generationConfig;
+    }
+
+    // 설정에서 켠 경우에만 스크린샷을 File API로 올려 같은 화면을 다시 보낼 때 참조로 대신함
+    private boolean isFrameUploadCacheEnabled() {
+        return context != null && apiKeyInstance != null && !apiKeyInstance.isEmpty()
+                && new AppPreferences(context).isFrameUploadCacheEnabled();
+    }
+
     @Override
     public String processUserCommandForPrompt(String userCommand) { //
         return userCommand != null ? userCommand.trim() : ""; //
     }
 
     @Override
-    public void generateResponse(String systemInstruction,
+    public RequestHandle generateResponse(String systemInstruction,
                                  List<ChatMessage> conversationHistory,
                                  @Nullable String currentScreenLayoutJson, // Not used
                                  @Nullable Bitmap currentScreenBitmap, // New bitmap parameter
                                  @Nullable String currentScreenText, // New text parameter
                                  String currentUserVoiceCommand,
                                  ModelResponseCallback callback) {
+        long buildStart = StepTimer.now();
+        RequestHandle handle = new RequestHandle();
+        ModelResponseCallback guardedCallback = handle.guard(callback);
 
         List<com.example.ai_macrofy.llm.gemini.data.Message> geminiApiContents = new ArrayList<>();
+        int estimatedTokens = ChatHistoryStore.estimateTokens(systemInstruction);
 
         // 1. Create the dedicated system instruction message
         List<Part> systemParts = new ArrayList<>();
@@ -178,6 +390,7 @@ public class GeminiManager implements AiModelService {
                 geminiRole = "assistant".equals(histMsg.role) ? "model" : "user";
             }
             histParts.add(new Part(content));
+            estimatedTokens += ChatHistoryStore.estimateTokens(content);
             geminiApiContents.add(new com.example.ai_macrofy.llm.gemini.data.Message(histParts, geminiRole));
         }
 
@@ -190,27 +403,26 @@ public class GeminiManager implements AiModelService {
         List<Part> currentParts = new ArrayList<>();
         // Add text part first
         currentParts.add(new Part(currentTurnUserTextContent));
+        estimatedTokens += ChatHistoryStore.estimateTokens(currentTurnUserTextContent);
 
         // Add image part if available
         if (currentScreenBitmap != null) {
-            Log.d("GeminiManager", "Drawing grid on screenshot and encoding for Gemini request.");
+            Log.d("GeminiManager", "Attaching grid screenshot to Gemini request.");
 
-            // 원본 이미지에 격자 그리기
-            Bitmap bitmapWithGrid = drawGridOnBitmap(currentScreenBitmap);
+            // 격자 그리기와 JPEG 인코딩은 매크로 파이프라인에서 미리 끝났다면 캐시된 결과를 그대로 사용
+            ScreenshotEncoder.EncodedFrame frame = ScreenshotEncoder.encode(currentScreenBitmap);
 
             // (디버깅용) 격자 이미지를 파일로 저장. 필요 없으면 이 라인을 주석 처리.
-            // saveBitmapForDebug(bitmapWithGrid);
-
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-            // 품질을 낮추기 전 격자가 그려진 비트맵을 압축
-            bitmapWithGrid.compress(Bitmap.CompressFormat.JPEG, 85, byteArrayOutputStream);
-            byte[] imageBytes = byteArrayOutputStream.toByteArray();
-            String base64Image = Base64.encodeToString(imageBytes, Base64.NO_WRAP);
+            // saveBitmapForDebug(frame.gridBitmap);
 
             // 수정된 Part 생성 방식 사용
-            InlineData inlineData = new InlineData("image/jpeg", base64Image);
-            Part imagePart = new Part(inlineData);
+            InlineData inlineData = new InlineData(ScreenshotEncoder.MIME_TYPE, frame.getBase64Jpeg());
+            Part imagePart = isFrameUploadCacheEnabled()
+                    ? GeminiFrameUploads.imagePart(GeminiFrameUploads.forKey(getApiForInstance(), apiKeyInstance),
+                            frame.getContentHash(), frame.getJpegBytes(), ScreenshotEncoder.MIME_TYPE, inlineData)
+                    : new Part(inlineData);
             currentParts.add(imagePart);
+            estimatedTokens += IMAGE_TOKEN_ESTIMATE;
         } else {
             Log.e("GeminiManager", "Bitmap is null, sending request without image.");
         }
@@ -218,39 +430,39 @@ public class GeminiManager implements AiModelService {
         geminiApiContents.add(new com.example.ai_macrofy.llm.gemini.data.Message(currentParts, "user"));
 
 
-        Integer thinkingBudget = 256;
+        ModelTier tier = modelTier;
+        Integer thinkingBudget = thinkingBudgetFor(tier);
         Log.d("GeminiManager", "Final content items for Gemini: " + geminiApiContents.size());
-        callGeminiApi(DEFAULT_MODEL_NAME, systemMessage, geminiApiContents, thinkingBudget, callback);
+        callGeminiApi(modelNameFor(tier), systemMessage, systemInstruction, geminiApiContents, thinkingBudget, estimatedTokens, buildStart, true, true, handle, guardedCallback);
+        return handle;
     }
 
     @Override
-    public void cleanup() {
-        // No-op for API-based model
+    public void setModelTier(ModelTier tier) {
+        modelTier = tier;
     }
 
-    private Bitmap drawGridOnBitmap(Bitmap originalBitmap) {
-        Bitmap mutableBitmap = originalBitmap.copy(Bitmap.Config.ARGB_8888, true);
-        Canvas canvas = new Canvas(mutableBitmap);
-        Paint paint = new Paint();
-        paint.setColor(Color.RED);
-        paint.setStrokeWidth(1);
-        paint.setStyle(Paint.Style.STROKE);
-
-        int width = originalBitmap.getWidth();
-        int height = originalBitmap.getHeight();
-        int step = 100;
-
-        // Draw vertical lines
-        for (int x = step; x < width; x += step) {
-            canvas.drawLine(x, 0, x, height, paint);
+    private static String modelNameFor(ModelTier tier) {
+        switch (tier) {
+            case FAST: return FAST_MODEL_NAME;
+            case STRONG: return STRONG_MODEL_NAME;
+            default: return DEFAULT_MODEL_NAME;
         }
+    }
 
-        // Draw horizontal lines
-        for (int y = step; y < height; y += step) {
-            canvas.drawLine(0, y, width, y, paint);
+    // 쉬운 단계는 thinking 없이 바로 답하고, 어려운 단계는 더 오래 생각하게 함
+    @Nullable
+    private static Integer thinkingBudgetFor(ModelTier tier) {
+        switch (tier) {
+            case FAST: return null;
+            case STRONG: return STRONG_THINKING_BUDGET;
+            default: return DEFAULT_THINKING_BUDGET;
         }
+    }
 
-        return mutableBitmap;
+    @Override
+    public void cleanup() {
+        streamExecutor.shutdownNow();
     }
 
     /**
@@ -283,7 +495,8 @@ public class GeminiManager implements AiModelService {
         }
     }
 
-    private void saveFinalScriptForDebug(String script) {
+    // Streams the request straight into the file instead of building it as a String first
+    private void saveFinalScriptForDebug(Object request) {
         if (context == null) {
             Log.e("GeminiManager", "Context is null, cannot save debug script.");
             return;
@@ -298,12 +511,11 @@ public class GeminiManager implements AiModelService {
             String fileName = "debug_script_gemini_" + timeStamp + ".json";
             File file = new File(cacheDir, fileName);
 
-            FileOutputStream out = new FileOutputStream(file);
-            out.write(script.getBytes());
-            out.flush();
-            out.close();
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                gson.toJson(request, out);
+            }
             Log.d("GeminiManager", "Debug script saved to: " + file.getAbsolutePath());
-        } catch (IOException e) {
+        } catch (IOException | JsonIOException e) {
             Log.e("GeminiManager", "Error saving debug script", e);
         }
     }
@@ -0,0 +1,52 @@
+package com.example.ai_macrofy.llm.gemini.data;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * cachedContents 리소스. 생성 요청에는 model, systemInstruction, ttl을 채우고,
+ * 응답으로 서버가 부여한 name과 만료 시각(expireTime)을 받습니다.
+ */
+public class CachedContent {
+    String name;  // "cachedContents/..." (응답에만 있음)
+    String model; // "models/gemini-..."
+
+    @SerializedName("system_instruction")
+    Message systemInstruction;
+
+    String ttl; // "600s" 형식
+
+    @SerializedName("expire_time")
+    String expireTime; // RFC 3339 (응답에만 있음)
+
+    // 기본 생성자 (Gson)
+    public CachedContent() {}
+
+    public CachedContent(String model, Message systemInstruction, String ttl) {
+        this.model = model;
+        this.systemInstruction = systemInstruction;
+        this.ttl = ttl;
+    }
+
+    /** TTL만 바꾸는 갱신 요청용 */
+    public static CachedContent ttlUpdate(String ttl) {
+        CachedContent update = new CachedContent();
+        update.ttl = ttl;
+        return update;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getTtl() {
+        return ttl;
+    }
+
+    public String getExpireTime() {
+        return expireTime;
+    }
+}
@@ -2,8 +2,8 @@ package com.example.ai_macrofy.llm.gemini.data;
 
 // Gemini API의 Candidate 구조에 해당
 public class Choice { // 이름을 CandidateRepresentation 또는 GeminiCandidate 등으로 변경 고려
-    private Message content; // OpenAI의 message 대신 content 사용
-    private String finishReason;
+    Message content; // OpenAI의 message 대신 content 사용
+    String finishReason;
     // private List<SafetyRating> safetyRatings;
     // private CitationMetadata citationMetadata;
     // private int index; // 필요시
@@ -0,0 +1,21 @@
+package com.example.ai_macrofy.llm.gemini.data;
+
+import com.google.gson.annotations.SerializedName;
+
+/** File API로 업로드한 파일을 URI로 참조하는 파트 데이터 */
+public class FileData {
+    @SerializedName("mime_type")
+    final String mimeType;
+
+    @SerializedName("file_uri")
+    final String fileUri;
+
+    public FileData(String mimeType, String fileUri) {
+        this.mimeType = mimeType;
+        this.fileUri = fileUri;
+    }
+
+    public String getFileUri() {
+        return fileUri;
+    }
+}
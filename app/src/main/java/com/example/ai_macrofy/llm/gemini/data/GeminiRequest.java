@@ -4,13 +4,17 @@ import java.util.List;
 import com.google.gson.annotations.SerializedName;
 
 public class GeminiRequest {
-    private List<Message> contents;
+    List<Message> contents;
 
     @SerializedName("system_instruction")
-    private Message systemInstruction;
+    Message systemInstruction;
 
     @SerializedName("generation_config")
-    private GenerationConfig generationConfig;
+    GenerationConfig generationConfig;
+
+    // 시스템 지시문을 담은 cachedContents 이름. 설정하면 system_instruction은 보내지 않음
+    @SerializedName("cached_content")
+    String cachedContent;
 
     // safetySettings 등 다른 필드도 추가 가능
 
@@ -51,4 +55,12 @@ public class GeminiRequest {
     public void setSystemInstruction(Message systemInstruction) {
         this.systemInstruction = systemInstruction;
     }
-}
\ No newline at end of file
+
+    public String getCachedContent() {
+        return cachedContent;
+    }
+
+    public void setCachedContent(String cachedContent) {
+        this.cachedContent = cachedContent;
+    }
+}
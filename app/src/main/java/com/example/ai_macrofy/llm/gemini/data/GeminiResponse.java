@@ -4,8 +4,9 @@ import java.util.List;
 
 // PromptFeedback도 포함될 수 있음
 public class GeminiResponse {
-    private List<Choice> candidates; // OpenAI의 choices 대신 candidates 사용
+    List<Choice> candidates; // OpenAI의 choices 대신 candidates 사용
     // private PromptFeedback promptFeedback;
+    UsageMetadata usageMetadata; // 토큰 사용량 (비용 집계용)
 
     public GeminiResponse(List<Choice> candidates) {
         this.candidates = candidates;
@@ -16,6 +17,10 @@ public class GeminiResponse {
         return candidates;
     }
 
+    public UsageMetadata getUsageMetadata() {
+        return usageMetadata;
+    }
+
     // 편의 메서드 (OpenAI 방식과 유사하게 첫 번째 후보의 텍스트 반환)
     public String getFirstCandidateText() {
         if (candidates != null && !candidates.isEmpty()) {
@@ -0,0 +1,281 @@
+package com.example.ai_macrofy.llm.gemini.data;
+
+import com.example.ai_macrofy.llm.common.JsonCodec;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Gemini 요청/응답 클래스용 수동 TypeAdapter. {@link JsonCodec#gson()}에 등록됩니다.
+ * <p>
+ * 요청은 리플렉션 Gson과 같은 JSON을 만들고 (null 필드 생략, snake_case 이름), 응답에서는 앱이 쓰는 필드만 읽고
+ * 나머지 (safetyRatings, promptFeedback, modelVersion 등)는 트리를 만들지 않고 건너뜁니다.
+ * 필드를 추가하면 여기에도 추가해야 합니다.
+ */
+public final class GeminiTypeAdapters implements TypeAdapterFactory {
+    public static final GeminiTypeAdapters FACTORY = new GeminiTypeAdapters();
+
+    private GeminiTypeAdapters() {}
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+        // 요청 (쓰기)
+        if (raw == GeminiRequest.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<GeminiRequest>) type, null, GeminiTypeAdapters::writeRequest);
+        }
+        // 응답 (읽기)
+        if (raw == GeminiResponse.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<GeminiResponse>) type, GeminiTypeAdapters::readResponse, null);
+        }
+        if (raw == UploadedFile.Response.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<UploadedFile.Response>) type, GeminiTypeAdapters::readUploadResponse, null);
+        }
+        // cachedContents는 요청과 응답 모두
+        if (raw == CachedContent.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<CachedContent>) type,
+                    GeminiTypeAdapters::readCachedContent, GeminiTypeAdapters::writeCachedContent);
+        }
+        return null;
+    }
+
+    // --- 요청 ---
+
+    private static void writeRequest(JsonWriter out, GeminiRequest request) throws IOException {
+        out.beginObject();
+        out.name("contents");
+        JsonCodec.writeList(out, request.contents, GeminiTypeAdapters::writeMessage);
+        out.name("system_instruction");
+        JsonCodec.writeObject(out, request.systemInstruction, GeminiTypeAdapters::writeMessage);
+        out.name("generation_config");
+        JsonCodec.writeObject(out, request.generationConfig, GeminiTypeAdapters::writeGenerationConfig);
+        out.name("cached_content").value(request.cachedContent);
+        out.endObject();
+    }
+
+    private static void writeMessage(JsonWriter out, Message message) throws IOException {
+        out.beginObject();
+        out.name("parts");
+        JsonCodec.writeList(out, message.parts, GeminiTypeAdapters::writePart);
+        out.name("role").value(message.role);
+        out.endObject();
+    }
+
+    private static void writePart(JsonWriter out, Part part) throws IOException {
+        out.beginObject();
+        out.name("text").value(part.text);
+        if (part.inlineData != null) {
+            out.name("inline_data").beginObject();
+            out.name("mime_type").value(part.inlineData.mimeType);
+            out.name("data");
+            JsonCodec.writeBase64(out, part.inlineData.data); // base64 스크린샷. 요청 크기 대부분
+            out.endObject();
+        }
+        if (part.fileData != null) {
+            out.name("file_data").beginObject();
+            out.name("mime_type").value(part.fileData.mimeType);
+            out.name("file_uri").value(part.fileData.fileUri);
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static void writeGenerationConfig(JsonWriter out, GenerationConfig config) throws IOException {
+        out.beginObject();
+        if (config.thinkingConfig != null) {
+            out.name("thinking_config").beginObject();
+            out.name("thinking_budget").value(config.thinkingConfig.thinkingBudget);
+            out.endObject();
+        }
+        out.name("response_mime_type").value(config.responseMimeType);
+        out.name("response_schema");
+        JsonCodec.writeTree(out, config.responseSchema);
+        out.name("max_output_tokens").value(config.maxOutputTokens);
+        out.endObject();
+    }
+
+    private static void writeCachedContent(JsonWriter out, CachedContent content) throws IOException {
+        out.beginObject();
+        out.name("name").value(content.name);
+        out.name("model").value(content.model);
+        out.name("system_instruction");
+        JsonCodec.writeObject(out, content.systemInstruction, GeminiTypeAdapters::writeMessage);
+        out.name("ttl").value(content.ttl);
+        out.name("expire_time").value(content.expireTime);
+        out.endObject();
+    }
+
+    // --- 응답 ---
+
+    private static GeminiResponse readResponse(JsonReader in) throws IOException {
+        GeminiResponse response = new GeminiResponse(null);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "candidates":
+                    response.candidates = JsonCodec.readList(in, GeminiTypeAdapters::readCandidate);
+                    break;
+                case "usageMetadata":
+                    response.usageMetadata = JsonCodec.readObject(in, GeminiTypeAdapters::readUsageMetadata);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private static Choice readCandidate(JsonReader in) throws IOException {
+        Choice candidate = new Choice(null);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "content":
+                    candidate.content = JsonCodec.readObject(in, GeminiTypeAdapters::readMessage);
+                    break;
+                case "finishReason":
+                    candidate.finishReason = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return candidate;
+    }
+
+    private static Message readMessage(JsonReader in) throws IOException {
+        Message message = new Message(null, null);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "parts":
+                    message.parts = JsonCodec.readList(in, GeminiTypeAdapters::readPart);
+                    break;
+                case "role":
+                    message.role = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return message;
+    }
+
+    // 모델 응답 파트는 텍스트만 사용. thoughtSignature 등은 건너뜀
+    private static Part readPart(JsonReader in) throws IOException {
+        Part part = new Part((String) null);
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("text".equals(in.nextName())) {
+                part.text = JsonCodec.nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return part;
+    }
+
+    private static UsageMetadata readUsageMetadata(JsonReader in) throws IOException {
+        UsageMetadata usage = new UsageMetadata();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "promptTokenCount":
+                    usage.promptTokenCount = JsonCodec.nextInt(in);
+                    break;
+                case "cachedContentTokenCount":
+                    usage.cachedContentTokenCount = JsonCodec.nextInt(in);
+                    break;
+                case "candidatesTokenCount":
+                    usage.candidatesTokenCount = JsonCodec.nextInt(in);
+                    break;
+                case "thoughtsTokenCount":
+                    usage.thoughtsTokenCount = JsonCodec.nextInt(in);
+                    break;
+                case "totalTokenCount":
+                    usage.totalTokenCount = JsonCodec.nextInt(in);
+                    break;
+                default:
+                    in.skipValue(); // promptTokensDetails 등 모달리티별 내역
+            }
+        }
+        in.endObject();
+        return usage;
+    }
+
+    // 서버는 camelCase로 응답하므로 expireTime도 받음
+    private static CachedContent readCachedContent(JsonReader in) throws IOException {
+        CachedContent content = new CachedContent();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "name":
+                    content.name = JsonCodec.nextString(in);
+                    break;
+                case "model":
+                    content.model = JsonCodec.nextString(in);
+                    break;
+                case "ttl":
+                    content.ttl = JsonCodec.nextString(in);
+                    break;
+                case "expire_time":
+                case "expireTime":
+                    content.expireTime = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue(); // usageMetadata, createTime 등
+            }
+        }
+        in.endObject();
+        return content;
+    }
+
+    private static UploadedFile.Response readUploadResponse(JsonReader in) throws IOException {
+        UploadedFile.Response response = new UploadedFile.Response();
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("file".equals(in.nextName())) {
+                response.file = JsonCodec.readObject(in, GeminiTypeAdapters::readUploadedFile);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private static UploadedFile readUploadedFile(JsonReader in) throws IOException {
+        UploadedFile file = new UploadedFile();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "name":
+                    file.name = JsonCodec.nextString(in);
+                    break;
+                case "uri":
+                    file.uri = JsonCodec.nextString(in);
+                    break;
+                case "mimeType":
+                    file.mimeType = JsonCodec.nextString(in);
+                    break;
+                case "state":
+                    file.state = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue(); // sizeBytes, sha256Hash, expirationTime 등
+            }
+        }
+        in.endObject();
+        return file;
+    }
+}
@@ -1,12 +1,22 @@
 package com.example.ai_macrofy.llm.gemini.data;
 
+import com.google.gson.JsonObject;
 import com.google.gson.annotations.SerializedName;
 
 public class GenerationConfig {
     // temperature, topP, topK, maxOutputTokens, stopSequences 등 다른 필드도 추가 가능
 
     @SerializedName("thinking_config") // JSON 필드명과 일치
-    private ThinkingConfig thinkingConfig;
+    ThinkingConfig thinkingConfig;
+
+    @SerializedName("response_mime_type")
+    String responseMimeType; // 스키마를 쓸 때 "application/json"
+
+    @SerializedName("response_schema")
+    JsonObject responseSchema;
+
+    @SerializedName("max_output_tokens")
+    Integer maxOutputTokens; // 생각 토큰도 포함됨
 
     // 기본 생성자 (Gson)
     public GenerationConfig() {}
@@ -22,4 +32,14 @@ public class GenerationConfig {
     public void setThinkingConfig(ThinkingConfig thinkingConfig) {
         this.thinkingConfig = thinkingConfig;
     }
+
+    /** 응답을 주어진 스키마의 JSON으로 제한합니다. */
+    public void setResponseSchema(JsonObject responseSchema) {
+        this.responseMimeType = "application/json";
+        this.responseSchema = responseSchema;
+    }
+
+    public void setMaxOutputTokens(Integer maxOutputTokens) {
+        this.maxOutputTokens = maxOutputTokens;
+    }
 }
\ No newline at end of file
@@ -4,8 +4,8 @@ import com.google.gson.annotations.SerializedName;
 
 public class InlineData {
     @SerializedName("mime_type")
-    private final String mimeType;
-    private final String data;
+    final String mimeType;
+    final String data;
 
     public InlineData(String mimeType, String data) {
         this.mimeType = mimeType;
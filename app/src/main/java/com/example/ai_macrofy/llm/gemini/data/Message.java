@@ -3,8 +3,8 @@ package com.example.ai_macrofy.llm.gemini.data;
 import java.util.List;
 
 public class Message {
-    private List<Part> parts;
-    private String role; // "user" or "model"
+    List<Part> parts;
+    String role; // "user" or "model"
 
     public Message(List<Part> parts, String role) {
         this.parts = parts;
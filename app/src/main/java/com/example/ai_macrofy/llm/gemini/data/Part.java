@@ -4,10 +4,16 @@ import com.google.gson.annotations.SerializedName;
 
 public class Part {
     @SerializedName("text")
-    private String text;
+    String text;
 
     @SerializedName("inline_data")
-    private InlineData inlineData;
+    InlineData inlineData;
+
+    @SerializedName("file_data")
+    FileData fileData;
+
+    // 업로드한 파일을 더 이상 참조할 수 없을 때 대신 보낼 이미지. JSON에는 포함하지 않음
+    private transient InlineData inlineFallback;
 
     // Constructor for text part
     public Part(String text) {
@@ -19,6 +25,24 @@ public class Part {
         this.inlineData = inlineData;
     }
 
+    // Constructor for an uploaded image, with the inline image to send if the file is gone
+    public Part(FileData fileData, InlineData inlineFallback) {
+        this.fileData = fileData;
+        this.inlineFallback = inlineFallback;
+    }
+
+    public FileData getFileData() {
+        return fileData;
+    }
+
+    /** 파일 참조를 인라인 이미지로 바꿉니다. 바꿀 수 있었으면 true */
+    public boolean replaceFileWithInline() {
+        if (fileData == null || inlineFallback == null) return false;
+        inlineData = inlineFallback;
+        fileData = null;
+        return true;
+    }
+
     public String getText() {
         return text;
     }
@@ -4,7 +4,7 @@ import com.google.gson.annotations.SerializedName;
 
 public class ThinkingConfig {
     @SerializedName("thinking_budget") // JSON 필드명과 일치
-    private Integer thinkingBudget; // int 또는 Integer, null 허용 여부에 따라
+    Integer thinkingBudget; // int 또는 Integer, null 허용 여부에 따라
 
     // 기본 생성자 (Gson)
     public ThinkingConfig() {}
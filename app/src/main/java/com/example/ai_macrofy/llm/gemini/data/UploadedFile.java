@@ -0,0 +1,40 @@
+package com.example.ai_macrofy.llm.gemini.data;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * File API 업로드 응답의 file 리소스. 요청에서는 uri를 file_data로 참조하며,
+ * 서버는 업로드 후 48시간이 지나면 파일을 삭제합니다.
+ */
+public class UploadedFile {
+    String name;     // "files/..."
+    String uri;      // 요청에서 참조할 전체 URI
+    @SerializedName("mimeType")
+    String mimeType;
+    String state;    // "PROCESSING", "ACTIVE", "FAILED". 이미지는 보통 바로 ACTIVE
+
+    /** 업로드 응답 본문: {"file": {...}} */
+    public static class Response {
+        UploadedFile file;
+
+        public UploadedFile getFile() {
+            return file;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUri() {
+        return uri;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public String getState() {
+        return state;
+    }
+}
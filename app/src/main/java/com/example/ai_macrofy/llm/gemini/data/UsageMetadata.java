@@ -0,0 +1,33 @@
+package com.example.ai_macrofy.llm.gemini.data;
+
+/**
+ * 응답의 usageMetadata. 스트리밍에서는 청크마다 그때까지의 누적값이 오므로 마지막 청크의 값을 사용합니다.
+ * candidatesTokenCount에는 thinking 토큰이 포함되지 않습니다 (thoughtsTokenCount로 따로 옴).
+ */
+public class UsageMetadata {
+    int promptTokenCount;        // 캐시된 토큰 포함
+    int cachedContentTokenCount; // cachedContents로 참조한 부분
+    int candidatesTokenCount;
+    int thoughtsTokenCount;
+    int totalTokenCount;
+
+    public int getPromptTokenCount() {
+        return promptTokenCount;
+    }
+
+    public int getCachedContentTokenCount() {
+        return cachedContentTokenCount;
+    }
+
+    public int getCandidatesTokenCount() {
+        return candidatesTokenCount;
+    }
+
+    public int getThoughtsTokenCount() {
+        return thoughtsTokenCount;
+    }
+
+    public int getTotalTokenCount() {
+        return totalTokenCount;
+    }
+}
@@ -13,6 +13,10 @@ import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import com.example.ai_macrofy.llm.common.AiModelService;
 import com.example.ai_macrofy.llm.common.ChatMessage;
 import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
 import com.example.ai_macrofy.services.foreground.MyForegroundService;
 import com.example.ai_macrofy.ui.WebViewActivity;
 import com.example.ai_macrofy.utils.AppPreferences;
@@ -20,6 +24,7 @@ import com.example.ai_macrofy.utils.AppPreferences;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class GeminiWebManager implements AiModelService {
@@ -29,6 +34,7 @@ public class GeminiWebManager implements AiModelService {
     private MyForegroundService foregroundService;
     private AppPreferences appPreferences;
     private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private GeminiWebHelper webHelper;
     private boolean isFirstRequest = true; // --- 추가: 첫 요청인지 판별하는 플래그 ---
 
@@ -48,13 +54,34 @@ public class GeminiWebManager implements AiModelService {
     }
 
     @Override
-    public void generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
+    public RequestHandle generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
         if (foregroundService == null || !foregroundService.isWebViewReady()) {
             callback.onError("WebView for Gemini Web is not ready.");
-            return;
+            return RequestHandle.finished();
         }
 
-        executor.execute(() -> {
+        RequestHandle handle = new RequestHandle();
+        ModelResponseCallback guardedCallback = handle.guard(callback);
+        AtomicBoolean finished = new AtomicBoolean(false); // 끝난 요청을 취소하면서 다음 요청의 상태를 지우지 않도록
+        final long requestStart = StepTimer.now();
+        ModelResponseCallback timedCallback = new ModelResponseCallback() {
+            @Override
+            public void onSuccess(String response) {
+                finished.set(true);
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                guardedCallback.onSuccess(response);
+            }
+
+            @Override
+            public void onError(String error) {
+                finished.set(true);
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                guardedCallback.onError(error);
+            }
+        };
+
+        Future<?> task = executor.submit(() -> {
+            if (handle.isCancelled()) return;
             String finalPrompt = buildFinalPrompt(systemInstruction, conversationHistory, currentUserVoiceCommand);
 
             // --- 수정: isFirstRequest 플래그를 사용하여 첫 요청 시에만 대화 기록을 리셋합니다. ---
@@ -64,13 +91,22 @@ public class GeminiWebManager implements AiModelService {
                 if (webHelper != null) {
                     webHelper.resetConversationTracking(); // 새 매크로 세션을 위해 ID 추적 리셋
                 }
-                webHelper.generateResponse(finalPrompt, currentScreenBitmap, callback);
+                webHelper.generateResponse(finalPrompt, currentScreenBitmap, timedCallback);
             } else {
                 Log.d(TAG, "This is a subsequent request. Submitting prompt directly without reloading the page.");
                 // 후속 요청은 페이지 로드나 로그인 확인 없이 바로 프롬프트를 제출합니다.
-                webHelper.submitPrompt(finalPrompt, currentScreenBitmap, callback);
+                webHelper.submitPrompt(finalPrompt, currentScreenBitmap, timedCallback);
             }
         });
+        // 웹 페이지의 폴링은 보류 중인 콜백이 없어지면 멈추므로, 메인 스레드에서 요청 상태를 정리
+        handle.setCanceller(() -> {
+            if (finished.get()) return;
+            task.cancel(false);
+            mainHandler.post(() -> {
+                if (webHelper != null) webHelper.cleanup();
+            });
+        });
+        return handle;
     }
 
     private String buildFinalPrompt(String systemInstruction, List<ChatMessage> conversationHistory, String currentUserVoiceCommand) {
@@ -91,6 +127,11 @@ public class GeminiWebManager implements AiModelService {
         return userCommand != null ? userCommand.trim() : "";
     }
 
+    @Override
+    public void startNewConversation() {
+        isFirstRequest = true; // 다음 명령은 새 대화에서 시작
+    }
+
     @Override
     public void cleanup() {
         Log.d(TAG, "Cleaning up GeminiWebManager.");
@@ -2,9 +2,6 @@ package com.example.ai_macrofy.llm.gemma;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
@@ -12,6 +9,12 @@ import androidx.annotation.Nullable;
 import com.example.ai_macrofy.llm.common.AiModelService;
 import com.example.ai_macrofy.llm.common.ChatMessage;
 import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.llm.common.ScreenshotEncoder;
+import com.example.ai_macrofy.llm.common.StreamingResponseCallback;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
 import com.example.ai_macrofy.services.accessibility.LayoutAccessibilityService;
 import com.example.ai_macrofy.utils.AppPreferences;
 import com.google.mediapipe.framework.image.MPImage;
@@ -20,6 +23,7 @@ import com.google.mediapipe.tasks.genai.llminference.LlmInference;
 import com.google.mediapipe.tasks.genai.llminference.LlmInferenceSession;
 import com.google.mediapipe.tasks.genai.llminference.GraphOptions;
 import com.google.mediapipe.tasks.genai.llminference.LlmInference.Backend;
+import com.google.mediapipe.tasks.genai.llminference.ProgressListener;
 
 import org.json.JSONObject;
 import java.io.File;
@@ -32,7 +36,9 @@ import java.util.Locale;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class GemmaManager implements AiModelService {
     private static final String TAG = "GemmaManager";
@@ -148,21 +154,27 @@ public class GemmaManager implements AiModelService {
     }
 
     @Override
-    public void generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
+    public RequestHandle generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
         if (llmInference == null) {
             callback.onError("Gemma model is not initialized.");
-            return;
+            return RequestHandle.finished();
         }
+        RequestHandle handle = new RequestHandle();
+        ModelResponseCallback guardedCallback = handle.guard(callback);
+        // 생성 중인 세션. 취소 시 생성을 중단하는 데 사용
+        AtomicReference<LlmInferenceSession> generatingSession = new AtomicReference<>();
 
+        final long buildStart = StepTimer.now();
         // Gemma가 이제 이미지를 지원하므로, 텍스트 프롬프트와 이미지를 함께 사용합니다.
         String textPrompt = buildFinalPrompt(systemInstruction, conversationHistory, currentUserVoiceCommand);
 
         // 디버깅을 위해 텍스트 프롬프트를 저장합니다.
         saveFinalScriptForDebug(textPrompt);
 
-        requestExecutor.execute(() -> { // 요청 처리 실행기 사용
+        Future<?> task = requestExecutor.submit(() -> { // 요청 처리 실행기 사용
             LlmInferenceSession session = null;
             try {
+                if (handle.isCancelled()) return;
                 // 1. 큐에서 예비 세션을 가져옵니다. 큐가 비어있으면 세션이 준비될 때까지 대기합니다.
                 Log.d(TAG, "Waiting to take a spare session from the queue... Current size: " + spareSessionQueue.size());
                 session = spareSessionQueue.take();
@@ -176,8 +188,8 @@ public class GemmaManager implements AiModelService {
 
                 // 이미지 전송 기능 활성화
                 if (currentScreenBitmap != null) {
-                    Log.d(TAG, "Drawing grid on screenshot for Gemma request.");
-                    Bitmap bitmapWithGrid = drawGridOnBitmap(currentScreenBitmap);
+                    Log.d(TAG, "Attaching grid screenshot to Gemma request.");
+                    Bitmap bitmapWithGrid = ScreenshotEncoder.encode(currentScreenBitmap).gridBitmap;
 
                     // (디버깅용) 격자 이미지를 파일로 저장. 필요 없으면 이 라인을 주석 처리.
                     // saveBitmapForDebug(bitmapWithGrid);
@@ -189,13 +201,33 @@ public class GemmaManager implements AiModelService {
                     Log.w(TAG, "Bitmap is null, sending request without image to Gemma.");
                 }
                 
+                MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
                 Log.d("GemmaManager", "Sending request to Gemma...");
-                String result = session.generateResponse();
-                callback.onSuccess(result);
+                long inferenceStart = StepTimer.now();
+                // 취소할 수 있도록 항상 비동기 생성을 사용하고, 세션을 닫기 전에 생성이 끝날 때까지 대기
+                StreamingResponseCallback streamingCallback = guardedCallback instanceof StreamingResponseCallback
+                        ? (StreamingResponseCallback) guardedCallback : null;
+                StringBuilder fullText = new StringBuilder();
+                ProgressListener<String> progressListener = (partialResult, done) -> {
+                    if (partialResult != null && !partialResult.isEmpty()) {
+                        fullText.append(partialResult);
+                        if (streamingCallback != null) streamingCallback.onTextChunk(partialResult);
+                    }
+                };
+                generatingSession.set(session);
+                if (handle.isCancelled()) return;
+                session.generateResponseAsync(progressListener).get();
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - inferenceStart);
+                guardedCallback.onSuccess(fullText.toString());
             } catch (Exception e) {
-                Log.e(TAG, "Error generating response from Gemma", e);
-                callback.onError(e.getMessage());
+                if (handle.isCancelled()) {
+                    Log.d(TAG, "Gemma request was cancelled.");
+                } else {
+                    Log.e(TAG, "Error generating response from Gemma", e);
+                    guardedCallback.onError(e.getMessage());
+                }
             } finally {
+                generatingSession.set(null);
                 // 4. 사용이 끝난 세션은 폐기합니다.
                 if (session != null) {
                     session.close();
@@ -203,6 +235,17 @@ public class GemmaManager implements AiModelService {
                 }
             }
         });
+        handle.setCanceller(() -> {
+            LlmInferenceSession session = generatingSession.get();
+            if (session != null) {
+                // 생성을 멈추면 get()이 곧 반환되고, 세션은 finally에서 닫힙니다.
+                session.cancelGenerateResponseAsync();
+            } else {
+                // 아직 시작하지 않았거나 예비 세션을 기다리는 중인 요청
+                task.cancel(true);
+            }
+        });
+        return handle;
     }
 
     private String buildFinalPrompt(String systemInstruction, List<ChatMessage> conversationHistory, String currentUserVoiceCommand) {
@@ -238,31 +281,6 @@ public class GemmaManager implements AiModelService {
         // No-op for local model
     }
 
-    private Bitmap drawGridOnBitmap(Bitmap originalBitmap) {
-        Bitmap mutableBitmap = originalBitmap.copy(Bitmap.Config.ARGB_8888, true);
-        Canvas canvas = new Canvas(mutableBitmap);
-        Paint paint = new Paint();
-        paint.setColor(Color.RED);
-        paint.setStrokeWidth(1);
-        paint.setStyle(Paint.Style.STROKE);
-
-        int width = originalBitmap.getWidth();
-        int height = originalBitmap.getHeight();
-        int step = 100;
-
-        // Draw vertical lines
-        for (int x = step; x < width; x += step) {
-            canvas.drawLine(x, 0, x, height, paint);
-        }
-
-        // Draw horizontal lines
-        for (int y = step; y < height; y += step) {
-            canvas.drawLine(0, y, width, y, paint);
-        }
-
-        return mutableBitmap;
-    }
-
     private void saveBitmapForDebug(Bitmap bitmap) {
         if (context == null) {
             Log.e(TAG, "Context is null, cannot save debug image.");
@@ -2,13 +2,31 @@ package com.example.ai_macrofy.llm.gpt;
 
 import com.example.ai_macrofy.llm.gpt.data.GPTRequest;
 import com.example.ai_macrofy.llm.gpt.data.GPTResponse;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesRequest;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesResponse;
 
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.http.Body;
 import retrofit2.http.Header;
 import retrofit2.http.POST;
+import retrofit2.http.Streaming;
 
 public interface GPTApi {
     @POST("v1/chat/completions")
     Call<GPTResponse> createChatCompletion(@Header("Authorization") String auth, @Body GPTRequest request);
-}
\ No newline at end of file
+
+    // Same endpoint with "stream": true; the body is an SSE stream of GPTStreamChunk objects ending with [DONE].
+    @Streaming
+    @POST("v1/chat/completions")
+    Call<ResponseBody> streamChatCompletion(@Header("Authorization") String auth, @Body GPTRequest request);
+
+    // Responses API. Stored responses let the next request send only what is new through previous_response_id.
+    @POST("v1/responses")
+    Call<ResponsesResponse> createResponse(@Header("Authorization") String auth, @Body ResponsesRequest request);
+
+    // Same endpoint with "stream": true; the body is an SSE stream of ResponsesStreamEvent objects.
+    @Streaming
+    @POST("v1/responses")
+    Call<ResponseBody> streamResponse(@Header("Authorization") String auth, @Body ResponsesRequest request);
+}
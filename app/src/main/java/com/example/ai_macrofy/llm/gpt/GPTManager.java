@@ -3,34 +3,54 @@ package com.example.ai_macrofy.llm.gpt;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.Nullable;
 
+import com.example.ai_macrofy.llm.common.ActionSchema;
 import com.example.ai_macrofy.llm.common.AiModelService;
+import com.example.ai_macrofy.llm.common.ChatHistoryStore;
 import com.example.ai_macrofy.llm.common.ChatMessage;
+import com.example.ai_macrofy.llm.common.JsonCodec;
 import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.ModelTier;
+import com.example.ai_macrofy.llm.common.NetworkModule;
+import com.example.ai_macrofy.llm.common.RateLimiter;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.llm.common.ScreenshotEncoder;
+import com.example.ai_macrofy.llm.common.ServerSentEvents;
+import com.example.ai_macrofy.llm.common.StreamingResponseCallback;
 import com.example.ai_macrofy.llm.gpt.data.ContentPart;
 import com.example.ai_macrofy.llm.gpt.data.GPTRequest;
 import com.example.ai_macrofy.llm.gpt.data.GPTResponse;
+import com.example.ai_macrofy.llm.gpt.data.GPTStreamChunk;
 import com.example.ai_macrofy.llm.gpt.data.ImageUrl;
 import com.example.ai_macrofy.llm.gpt.data.Message;
+import com.example.ai_macrofy.llm.gpt.data.Usage;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.metrics.TokenUsage;
+import com.example.ai_macrofy.utils.AppPreferences;
 import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
+import okhttp3.ResponseBody;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -38,14 +58,19 @@ import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
 public class GPTManager implements AiModelService {
-    private static final String BASE_URL = "https://api.openai.com/";
+    private static final String BASE_URL = NetworkModule.OPENAI_BASE_URL;
     private String apiKeyInstance;
     private Context context;
     private static final String DEFAULT_MODEL_NAME = "gpt-4o-mini";
-    private final Gson gson = new Gson();
+    private static final String FAST_MODEL_NAME = "gpt-4.1-nano"; // Routed trivial steps
+    private static final String STRONG_MODEL_NAME = "gpt-4o"; // Routed hard steps
+    private static final int IMAGE_TOKEN_ESTIMATE = 1000; // Rough input tokens for one screenshot, for quota accounting
+    private final Gson gson = JsonCodec.gson(); // Shared with the Retrofit converter
 
     private static volatile Retrofit retrofitInstanceGpt;
     private GPTApi apiInstanceInternalGpt;
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor(); // Reads streamed responses
+    private volatile ModelTier modelTier = ModelTier.STANDARD; // Set per step by ModelRouter
 
     public GPTManager() {}
 
@@ -56,7 +81,8 @@ public class GPTManager implements AiModelService {
                     if (retrofitInstanceGpt == null) {
                         retrofitInstanceGpt = new Retrofit.Builder()
                                 .baseUrl(BASE_URL)
-                                .addConverterFactory(GsonConverterFactory.create())
+                                .client(NetworkModule.apiClient())
+                                .addConverterFactory(GsonConverterFactory.create(JsonCodec.gson()))
                                 .build();
                     }
                 }
@@ -77,14 +103,18 @@ public class GPTManager implements AiModelService {
     }
 
     @Override
-    public void generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
+    public RequestHandle generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
         if (apiKeyInstance == null || apiKeyInstance.isEmpty()) {
             callback.onError("OpenAI API key is not set.");
-            return;
+            return RequestHandle.finished();
         }
+        RequestHandle handle = new RequestHandle();
+        ModelResponseCallback guardedCallback = handle.guard(callback);
+        long buildStart = StepTimer.now();
 
         List<Message> messages = new ArrayList<>();
         messages.add(new Message("system", systemInstruction));
+        int estimatedTokens = ChatHistoryStore.estimateTokens(systemInstruction);
 
         for (ChatMessage chatMsg : conversationHistory) {
             String role = "assistant".equals(chatMsg.role) ? "assistant" : "user";
@@ -93,6 +123,7 @@ public class GPTManager implements AiModelService {
                 content = "System Execution Feedback:\n" + chatMsg.content;
             }
             messages.add(new Message(role, content));
+            estimatedTokens += ChatHistoryStore.estimateTokens(content);
         }
 
         String userPrompt = "Current Screen Text:\n" + (currentScreenText != null ? currentScreenText : "Not available.") + "\n\n" +
@@ -101,60 +132,169 @@ public class GPTManager implements AiModelService {
 
         List<ContentPart> userContentParts = new ArrayList<>();
         userContentParts.add(new ContentPart("text", userPrompt, null));
+        estimatedTokens += ChatHistoryStore.estimateTokens(userPrompt);
 
         if (currentScreenBitmap != null) {
-            Log.d("GPTManager", "Drawing grid on screenshot and encoding for GPT request.");
-            Bitmap bitmapWithGrid = drawGridOnBitmap(currentScreenBitmap);
+            Log.d("GPTManager", "Attaching grid screenshot to GPT request.");
+            ScreenshotEncoder.EncodedFrame frame = ScreenshotEncoder.encode(currentScreenBitmap);
 
             // (디버깅용) 격자 이미지를 파일로 저장. 필요 없으면 이 라인을 주석 처리.
-            // saveBitmapForDebug(bitmapWithGrid);
-
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            bitmapWithGrid.compress(Bitmap.CompressFormat.JPEG, 85, baos);
-            byte[] imageBytes = baos.toByteArray();
-            String base64Image = Base64.encodeToString(imageBytes, Base64.NO_WRAP);
+            // saveBitmapForDebug(frame.gridBitmap);
 
-            ImageUrl imageUrl = new ImageUrl("data:image/jpeg;base64," + base64Image);
+            ImageUrl imageUrl = new ImageUrl("data:" + ScreenshotEncoder.MIME_TYPE + ";base64," + frame.getBase64Jpeg());
             userContentParts.add(new ContentPart("image_url", null, imageUrl));
+            estimatedTokens += IMAGE_TOKEN_ESTIMATE;
         } else {
             Log.w("GPTManager", "Bitmap is null, sending request without image.");
         }
 
         messages.add(new Message("user", userContentParts));
 
-        GPTRequest request = new GPTRequest(DEFAULT_MODEL_NAME, messages);
+        // Don't send into an exhausted quota; the caller waits instead of counting a failure
+        RateLimiter rateLimiter = RateLimiter.forKey(AppPreferences.PROVIDER_OPENAI, apiKeyInstance);
+        long quotaWait = rateLimiter.reserve(estimatedTokens);
+        if (quotaWait > 0) {
+            guardedCallback.onRateLimited(quotaWait, "OpenAI quota exhausted, retry in " + quotaWait + "ms.");
+            return handle;
+        }
 
-        // 디버깅을 위해 최종 요청 스크립트를 저장합니다.
-        saveFinalScriptForDebug(gson.toJson(request));
+        GPTRequest request = new GPTRequest(modelNameFor(modelTier), messages);
+        applyOutputSettings(request);
+        boolean streaming = guardedCallback instanceof StreamingResponseCallback;
+        if (streaming) {
+            request.setStream(true);
+        }
 
-        getApiForInstance().createChatCompletion("Bearer " + apiKeyInstance, request).enqueue(new Callback<GPTResponse>() {
+        // 디버깅을 위해 최종 요청 스크립트를 저장합니다.
+        saveFinalScriptForDebug(request);
+
+        if (streaming) {
+            Call<ResponseBody> streamCall = getApiForInstance().streamChatCompletion("Bearer " + apiKeyInstance, request);
+            NetworkModule.prepare(streamCall);
+            MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+            streamChatCompletion(streamCall, StepTimer.now(), rateLimiter, handle, (StreamingResponseCallback) guardedCallback);
+            return handle;
+        }
+        Call<GPTResponse> gptCall = getApiForInstance().createChatCompletion("Bearer " + apiKeyInstance, request);
+        NetworkModule.prepare(gptCall);
+        MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+        final long requestStart = StepTimer.now();
+        handle.setCanceller(gptCall::cancel);
+        gptCall.enqueue(new Callback<GPTResponse>() {
             @Override
             public void onResponse(Call<GPTResponse> call, Response<GPTResponse> response) {
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_OPENAI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
                 if (response.isSuccessful() && response.body() != null) {
+                    rateLimiter.onSuccess(response.headers());
+                    recordUsage(response.body().getUsage());
                     String responseText = response.body().getFirstChoiceMessageContent();
                     if (responseText != null) {
-                        callback.onSuccess(responseText);
+                        guardedCallback.onSuccess(responseText);
                     } else {
-                        callback.onError("OpenAI response was empty or invalid.");
+                        guardedCallback.onError("OpenAI response was empty or invalid.");
                     }
                 } else {
                     try {
                         String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
                         Log.e("GPTManager", "OpenAI API call failed: " + response.code() + " - " + errorBody);
-                        callback.onError("OpenAI API Error: " + response.code() + " " + errorBody);
+                        if (RateLimiter.isThrottleStatus(response.code())) {
+                            long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                            guardedCallback.onRateLimited(retryAfter, "OpenAI API Error: " + response.code() + " " + errorBody);
+                            return;
+                        }
+                        guardedCallback.onError("OpenAI API Error: " + response.code() + " " + errorBody);
                     } catch (IOException e) {
                         Log.e("GPTManager", "Error reading error body", e);
-                        callback.onError("OpenAI API Error: " + response.code());
+                        guardedCallback.onError("OpenAI API Error: " + response.code());
                     }
                 }
             }
 
             @Override
             public void onFailure(Call<GPTResponse> call, Throwable t) {
+                if (call.isCanceled()) {
+                    Log.d("GPTManager", "OpenAI API call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
                 Log.e("GPTManager", "OpenAI API call onFailure: " + t.getMessage(), t);
-                callback.onError("OpenAI Network Error: " + t.getMessage());
+                guardedCallback.onError("OpenAI Network Error: " + t.getMessage());
             }
         });
+        return handle;
+    }
+
+    private void streamChatCompletion(Call<ResponseBody> streamCall, long requestStart, RateLimiter rateLimiter, RequestHandle handle, StreamingResponseCallback callback) {
+        handle.setCanceller(streamCall::cancel); // Also aborts a stream that is already being read
+        streamExecutor.execute(() -> {
+            StringBuilder fullText = new StringBuilder();
+            try {
+                Response<ResponseBody> response = streamCall.execute();
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_OPENAI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                if (!response.isSuccessful() || response.body() == null) {
+                    MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                    String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
+                    Log.e("GPTManager", "OpenAI streaming call failed: " + response.code() + " - " + errorBody);
+                    if (RateLimiter.isThrottleStatus(response.code())) {
+                        long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                        callback.onRateLimited(retryAfter, "OpenAI API Error: " + response.code() + " " + errorBody);
+                        return;
+                    }
+                    callback.onError("OpenAI API Error: " + response.code() + " " + errorBody);
+                    return;
+                }
+                rateLimiter.onSuccess(response.headers());
+                ServerSentEvents.read(response.body(), data -> {
+                    GPTStreamChunk streamChunk = gson.fromJson(data, GPTStreamChunk.class);
+                    recordUsage(streamChunk.getUsage());
+                    String chunk = streamChunk.getFirstChoiceDeltaContent();
+                    if (chunk != null && !chunk.isEmpty()) {
+                        fullText.append(chunk);
+                        callback.onTextChunk(chunk);
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                if (handle.isCancelled()) {
+                    Log.d("GPTManager", "OpenAI streaming call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                Log.e("GPTManager", "OpenAI streaming call failed: " + e.getMessage(), e);
+                callback.onError("OpenAI Network Error: " + e.getMessage());
+                return;
+            }
+            MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+            if (fullText.length() > 0) {
+                callback.onSuccess(fullText.toString());
+            } else {
+                callback.onError("OpenAI response was empty or invalid.");
+            }
+        });
+    }
+
+    // Constrain the answer to the action schema and cap its length, as configured in settings
+    private void applyOutputSettings(GPTRequest request) {
+        if (context == null) return;
+        AppPreferences preferences = new AppPreferences(context);
+        if (preferences.isStructuredOutputEnabled()) {
+            request.setResponseFormat(new GPTRequest.ResponseFormat(ActionSchema.NAME, ActionSchema.forOpenAi()));
+        }
+        if (preferences.getMaxOutputTokens() > 0) {
+            request.setMaxCompletionTokens(preferences.getMaxOutputTokens());
+        }
+    }
+
+    // Cached prompt tokens show whether the stable prompt prefix is actually being reused between steps
+    private static void recordUsage(@Nullable Usage usage) {
+        if (usage == null) return;
+        // completion_tokens includes the reasoning tokens; TokenUsage counts them separately
+        TokenUsage tokens = new TokenUsage(usage.getPromptTokens(), usage.getCachedTokens(),
+                usage.getCompletionTokens() - usage.getReasoningTokens(), usage.getReasoningTokens());
+        Log.d("GPTManager", "Usage: " + tokens + " tokens.");
+        MacroMetrics.getInstance().recordUsage(AppPreferences.PROVIDER_OPENAI, tokens);
     }
 
     @Override
@@ -163,31 +303,22 @@ public class GPTManager implements AiModelService {
     }
 
     @Override
-    public void cleanup() {
-
+    public void setModelTier(ModelTier tier) {
+        modelTier = tier;
     }
 
-    private Bitmap drawGridOnBitmap(Bitmap originalBitmap) {
-        Bitmap mutableBitmap = originalBitmap.copy(Bitmap.Config.ARGB_8888, true);
-        Canvas canvas = new Canvas(mutableBitmap);
-        Paint paint = new Paint();
-        paint.setColor(Color.RED);
-        paint.setStrokeWidth(1);
-        paint.setStyle(Paint.Style.STROKE);
-
-        int width = originalBitmap.getWidth();
-        int height = originalBitmap.getHeight();
-        int step = 100;
-
-        for (int x = step; x < width; x += step) {
-            canvas.drawLine(x, 0, x, height, paint);
-        }
-
-        for (int y = step; y < height; y += step) {
-            canvas.drawLine(0, y, width, y, paint);
+    // Shared with GPTResponsesManager so both OpenAI backends route to the same models
+    static String modelNameFor(ModelTier tier) {
+        switch (tier) {
+            case FAST: return FAST_MODEL_NAME;
+            case STRONG: return STRONG_MODEL_NAME;
+            default: return DEFAULT_MODEL_NAME;
         }
+    }
 
-        return mutableBitmap;
+    @Override
+    public void cleanup() {
+        streamExecutor.shutdownNow();
     }
 
     private void saveBitmapForDebug(Bitmap bitmap) {
@@ -215,7 +346,8 @@ public class GPTManager implements AiModelService {
         }
     }
 
-    private void saveFinalScriptForDebug(String script) {
+    // Streams the request straight into the file instead of building it as a String first
+    private void saveFinalScriptForDebug(Object request) {
         if (context == null) {
             Log.e("GPTManager", "Context is null, cannot save debug script.");
             return;
@@ -230,12 +362,11 @@ public class GPTManager implements AiModelService {
             String fileName = "debug_script_gpt_" + timeStamp + ".json";
             File file = new File(cacheDir, fileName);
 
-            FileOutputStream out = new FileOutputStream(file);
-            out.write(script.getBytes());
-            out.flush();
-            out.close();
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+                gson.toJson(request, out);
+            }
             Log.d("GPTManager", "Debug script saved to: " + file.getAbsolutePath());
-        } catch (IOException e) {
+        } catch (IOException | JsonIOException e) {
             Log.e("GPTManager", "Error saving debug script", e);
         }
     }
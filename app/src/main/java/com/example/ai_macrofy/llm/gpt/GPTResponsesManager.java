@@ -0,0 +1,359 @@
+package com.example.ai_macrofy.llm.gpt;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.common.ActionSchema;
+import com.example.ai_macrofy.llm.common.AiModelService;
+import com.example.ai_macrofy.llm.common.ChatHistoryStore;
+import com.example.ai_macrofy.llm.common.ChatMessage;
+import com.example.ai_macrofy.llm.common.JsonCodec;
+import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.ModelTier;
+import com.example.ai_macrofy.llm.common.NetworkModule;
+import com.example.ai_macrofy.llm.common.RateLimiter;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.llm.common.ScreenshotEncoder;
+import com.example.ai_macrofy.llm.common.ServerSentEvents;
+import com.example.ai_macrofy.llm.common.StreamingResponseCallback;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesRequest;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesRequest.InputContent;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesRequest.InputMessage;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesResponse;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesStreamEvent;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.metrics.TokenUsage;
+import com.example.ai_macrofy.utils.AppPreferences;
+import com.google.gson.Gson;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+/**
+ * OpenAI backend on the Responses API. Responses are stored on OpenAI's side, and each step continues from the
+ * previous one with previous_response_id, so a request carries only the new screenshot, screen text and the
+ * feedback added since, instead of the system prompt and the whole history. {@link ResponseChain} decides when
+ * that is possible; otherwise, or when OpenAI no longer has the previous response, the conversation is replayed
+ * in full as {@link GPTManager} does.
+ */
+public class GPTResponsesManager implements AiModelService {
+    private static final String BASE_URL = NetworkModule.OPENAI_BASE_URL;
+    private String apiKeyInstance;
+    private Context context;
+    private static final int IMAGE_TOKEN_ESTIMATE = 1000; // Rough input tokens for one screenshot, for quota accounting
+    private final Gson gson = JsonCodec.gson(); // Shared with the Retrofit converter
+    private final ResponseChain chain = new ResponseChain();
+
+    private static volatile Retrofit retrofitInstanceGpt;
+    private GPTApi apiInstanceInternalGpt;
+    private final ExecutorService streamExecutor = Executors.newSingleThreadExecutor(); // Reads streamed responses
+    private volatile ModelTier modelTier = ModelTier.STANDARD; // Set per step by ModelRouter
+
+    public GPTResponsesManager() {}
+
+    private GPTApi getApiForInstance() {
+        if (apiInstanceInternalGpt == null) {
+            if (retrofitInstanceGpt == null) {
+                synchronized (GPTResponsesManager.class) {
+                    if (retrofitInstanceGpt == null) {
+                        retrofitInstanceGpt = new Retrofit.Builder()
+                                .baseUrl(BASE_URL)
+                                .client(NetworkModule.apiClient())
+                                .addConverterFactory(GsonConverterFactory.create(JsonCodec.gson()))
+                                .build();
+                    }
+                }
+            }
+            apiInstanceInternalGpt = retrofitInstanceGpt.create(GPTApi.class);
+        }
+        return apiInstanceInternalGpt;
+    }
+
+    @Override
+    public void setApiKey(String apiKey) {
+        this.apiKeyInstance = apiKey;
+    }
+
+    @Override
+    public void setContext(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public RequestHandle generateResponse(String systemInstruction, List<ChatMessage> conversationHistory, @Nullable String currentScreenLayoutJson, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, ModelResponseCallback callback) {
+        if (apiKeyInstance == null || apiKeyInstance.isEmpty()) {
+            callback.onError("OpenAI API key is not set.");
+            return RequestHandle.finished();
+        }
+        RequestHandle handle = new RequestHandle();
+        ModelResponseCallback guardedCallback = handle.guard(callback);
+        ResponseChain.Plan plan = chain.plan(systemInstruction, conversationHistory);
+        send(plan, conversationHistory, currentScreenBitmap, currentScreenText, currentUserVoiceCommand, StepTimer.now(), true, handle, guardedCallback);
+        return handle;
+    }
+
+    // reserveQuota is false when replaying a request whose quota was already reserved
+    private void send(ResponseChain.Plan plan, List<ChatMessage> conversationHistory, @Nullable Bitmap currentScreenBitmap, @Nullable String currentScreenText, String currentUserVoiceCommand, long buildStart, boolean reserveQuota, RequestHandle handle, ModelResponseCallback callback) {
+        List<InputMessage> input = new ArrayList<>();
+        // Stored input items are carried over to the next response, unlike the instructions parameter,
+        // so the system prompt is sent as the first message and only when the chain starts.
+        if (plan.isReplay()) {
+            input.add(new InputMessage("system", plan.systemInstruction));
+        }
+        int sentTokens = plan.isReplay() ? ChatHistoryStore.estimateTokens(plan.systemInstruction) : 0;
+
+        for (ChatMessage chatMsg : plan.messages) {
+            String role = "assistant".equals(chatMsg.role) ? "assistant" : "user";
+            String content = chatMsg.content;
+            if ("execution_feedback".equals(chatMsg.role)) {
+                content = "System Execution Feedback:\n" + chatMsg.content;
+            }
+            input.add(new InputMessage(role, content));
+            sentTokens += ChatHistoryStore.estimateTokens(content);
+        }
+
+        String userPrompt = "Current Screen Text:\n" + (currentScreenText != null ? currentScreenText : "Not available.") + "\n\n" +
+                "User's Current Command/Question:\n" + processUserCommandForPrompt(currentUserVoiceCommand) + "\n\n" +
+                "Note: The provided image includes a 100x100 pixel grid. Use this grid to determine precise coordinates for your actions.";
+
+        List<InputContent> userContent = new ArrayList<>();
+        userContent.add(InputContent.text(userPrompt));
+        sentTokens += ChatHistoryStore.estimateTokens(userPrompt);
+
+        if (currentScreenBitmap != null) {
+            Log.d("GPTResponsesManager", "Attaching grid screenshot to OpenAI request.");
+            ScreenshotEncoder.EncodedFrame frame = ScreenshotEncoder.encode(currentScreenBitmap);
+            userContent.add(InputContent.image("data:" + ScreenshotEncoder.MIME_TYPE + ";base64," + frame.getBase64Jpeg()));
+            sentTokens += IMAGE_TOKEN_ESTIMATE;
+        } else {
+            Log.w("GPTResponsesManager", "Bitmap is null, sending request without image.");
+        }
+
+        input.add(new InputMessage("user", userContent));
+
+        // The stored conversation counts against the token quota just like resent history would
+        RateLimiter rateLimiter = RateLimiter.forKey(AppPreferences.PROVIDER_OPENAI, apiKeyInstance);
+        long quotaWait = reserveQuota ? rateLimiter.reserve(plan.storedTokens + sentTokens) : 0;
+        if (quotaWait > 0) {
+            callback.onRateLimited(quotaWait, "OpenAI quota exhausted, retry in " + quotaWait + "ms.");
+            return;
+        }
+
+        ResponsesRequest request = new ResponsesRequest(GPTManager.modelNameFor(modelTier), input, plan.previousResponseId);
+        applyOutputSettings(request);
+        boolean streaming = callback instanceof StreamingResponseCallback;
+        if (streaming) {
+            request.setStream(true);
+        }
+        // If OpenAI no longer has the previous response, start over with the full conversation once
+        Runnable replay = () -> {
+            chain.reset();
+            send(chain.plan(plan.systemInstruction, conversationHistory), conversationHistory, currentScreenBitmap,
+                    currentScreenText, currentUserVoiceCommand, StepTimer.now(), false, handle, callback);
+        };
+
+        Log.d("GPTResponsesManager", (plan.isReplay() ? "Replaying " : "Continuing " + plan.previousResponseId + " with ")
+                + plan.messages.size() + " history messages.");
+        MacroMetrics.getInstance().incrementCounter(plan.isReplay() ? "openai_responses.replayed" : "openai_responses.chained");
+        if (streaming) {
+            Call<ResponseBody> streamCall = getApiForInstance().streamResponse("Bearer " + apiKeyInstance, request);
+            NetworkModule.prepare(streamCall);
+            MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+            streamResponse(streamCall, plan, StepTimer.now(), rateLimiter, replay, handle, (StreamingResponseCallback) callback);
+            return;
+        }
+        Call<ResponsesResponse> responseCall = getApiForInstance().createResponse("Bearer " + apiKeyInstance, request);
+        NetworkModule.prepare(responseCall);
+        MacroMetrics.getInstance().recordCurrent(MetricStage.REQUEST_BUILD, StepTimer.now() - buildStart);
+        final long requestStart = StepTimer.now();
+        handle.setCanceller(responseCall::cancel);
+        responseCall.enqueue(new Callback<ResponsesResponse>() {
+            @Override
+            public void onResponse(Call<ResponsesResponse> call, Response<ResponsesResponse> response) {
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_OPENAI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                if (response.isSuccessful() && response.body() != null) {
+                    rateLimiter.onSuccess(response.headers());
+                    ResponsesResponse body = response.body();
+                    String responseText = body.getOutputText();
+                    if (responseText != null) {
+                        onCompleted(plan, body, handle);
+                        callback.onSuccess(responseText);
+                    } else {
+                        callback.onError("OpenAI response was empty or invalid (status " + body.getStatus() + ").");
+                    }
+                } else {
+                    try {
+                        String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
+                        Log.e("GPTResponsesManager", "OpenAI API call failed: " + response.code() + " - " + errorBody);
+                        if (replayIfChainBroken(plan, response.code(), errorBody, replay)) {
+                            return;
+                        }
+                        if (RateLimiter.isThrottleStatus(response.code())) {
+                            long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                            callback.onRateLimited(retryAfter, "OpenAI API Error: " + response.code() + " " + errorBody);
+                            return;
+                        }
+                        callback.onError("OpenAI API Error: " + response.code() + " " + errorBody);
+                    } catch (IOException e) {
+                        Log.e("GPTResponsesManager", "Error reading error body", e);
+                        callback.onError("OpenAI API Error: " + response.code());
+                    }
+                }
+            }
+
+            @Override
+            public void onFailure(Call<ResponsesResponse> call, Throwable t) {
+                if (call.isCanceled()) {
+                    Log.d("GPTResponsesManager", "OpenAI API call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                Log.e("GPTResponsesManager", "OpenAI API call onFailure: " + t.getMessage(), t);
+                callback.onError("OpenAI Network Error: " + t.getMessage());
+            }
+        });
+    }
+
+    private void streamResponse(Call<ResponseBody> streamCall, ResponseChain.Plan plan, long requestStart, RateLimiter rateLimiter, Runnable replay, RequestHandle handle, StreamingResponseCallback callback) {
+        handle.setCanceller(streamCall::cancel); // Also aborts a stream that is already being read
+        streamExecutor.execute(() -> {
+            StringBuilder fullText = new StringBuilder();
+            ResponsesResponse[] completed = new ResponsesResponse[1];
+            String[] streamError = new String[1];
+            try {
+                Response<ResponseBody> response = streamCall.execute();
+                MacroMetrics.getInstance().recordCurrent(AppPreferences.PROVIDER_OPENAI, MetricStage.TIME_TO_FIRST_BYTE,
+                        NetworkModule.timeToFirstByte(response));
+                if (!response.isSuccessful() || response.body() == null) {
+                    MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                    String errorBody = response.errorBody() != null ? response.errorBody().string() : "Unknown error";
+                    Log.e("GPTResponsesManager", "OpenAI streaming call failed: " + response.code() + " - " + errorBody);
+                    if (replayIfChainBroken(plan, response.code(), errorBody, replay)) {
+                        return;
+                    }
+                    if (RateLimiter.isThrottleStatus(response.code())) {
+                        long retryAfter = rateLimiter.onThrottled(response.code(), response.headers(), errorBody);
+                        callback.onRateLimited(retryAfter, "OpenAI API Error: " + response.code() + " " + errorBody);
+                        return;
+                    }
+                    callback.onError("OpenAI API Error: " + response.code() + " " + errorBody);
+                    return;
+                }
+                rateLimiter.onSuccess(response.headers());
+                ServerSentEvents.read(response.body(), data -> {
+                    ResponsesStreamEvent event = gson.fromJson(data, ResponsesStreamEvent.class);
+                    String type = event.getType();
+                    if (ResponsesStreamEvent.OUTPUT_TEXT_DELTA.equals(type)) {
+                        String chunk = event.getDelta();
+                        if (chunk != null && !chunk.isEmpty()) {
+                            fullText.append(chunk);
+                            callback.onTextChunk(chunk);
+                        }
+                    } else if (ResponsesStreamEvent.COMPLETED.equals(type)) {
+                        completed[0] = event.getResponse();
+                    } else if (ResponsesStreamEvent.FAILED.equals(type) || ResponsesStreamEvent.INCOMPLETE.equals(type)) {
+                        ResponsesResponse failed = event.getResponse();
+                        streamError[0] = failed != null && failed.getErrorMessage() != null ? failed.getErrorMessage() : type;
+                    } else if (ResponsesStreamEvent.ERROR.equals(type)) {
+                        streamError[0] = event.getMessage();
+                    }
+                });
+            } catch (IOException | RuntimeException e) {
+                if (handle.isCancelled()) {
+                    Log.d("GPTResponsesManager", "OpenAI streaming call was cancelled.");
+                    return;
+                }
+                MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+                Log.e("GPTResponsesManager", "OpenAI streaming call failed: " + e.getMessage(), e);
+                callback.onError("OpenAI Network Error: " + e.getMessage());
+                return;
+            }
+            MacroMetrics.getInstance().recordCurrent(MetricStage.INFERENCE, StepTimer.now() - requestStart);
+            if (streamError[0] != null) {
+                callback.onError("OpenAI API Error: " + streamError[0]);
+            } else if (fullText.length() > 0) {
+                if (completed[0] != null) onCompleted(plan, completed[0], handle);
+                callback.onSuccess(fullText.toString());
+            } else {
+                callback.onError("OpenAI response was empty or invalid.");
+            }
+        });
+    }
+
+    // Constrain the answer to the action schema and cap its length, as configured in settings
+    private void applyOutputSettings(ResponsesRequest request) {
+        if (context == null) return;
+        AppPreferences preferences = new AppPreferences(context);
+        if (preferences.isStructuredOutputEnabled()) {
+            request.setText(new ResponsesRequest.TextOptions(ActionSchema.NAME, ActionSchema.forOpenAi()));
+        }
+        if (preferences.getMaxOutputTokens() > 0) {
+            request.setMaxOutputTokens(preferences.getMaxOutputTokens());
+        }
+    }
+
+    // A cancelled request's answer is never used, so the chain must not continue from it
+    private void onCompleted(ResponseChain.Plan plan, ResponsesResponse response, RequestHandle handle) {
+        ResponsesResponse.ResponsesUsage usage = response.getUsage();
+        if (usage != null) {
+            TokenUsage tokens = new TokenUsage(usage.getInputTokens(), usage.getCachedTokens(),
+                    usage.getOutputTokens() - usage.getReasoningTokens(), usage.getReasoningTokens());
+            Log.d("GPTResponsesManager", "Usage: " + tokens + " tokens.");
+            MacroMetrics.getInstance().recordUsage(AppPreferences.PROVIDER_OPENAI, tokens);
+        }
+        if (handle.isCancelled() || response.getId() == null) return;
+        chain.commit(plan, response.getId(), usage != null ? usage.getTotalTokens() : plan.storedTokens);
+    }
+
+    /**
+     * Replays the whole conversation if a chained request failed because OpenAI no longer has the previous
+     * response (expired, deleted or never stored).
+     * @return true if the request was resent; the original error is then not reported.
+     */
+    private boolean replayIfChainBroken(ResponseChain.Plan plan, int httpCode, String errorBody, Runnable replay) {
+        if (plan.isReplay() || (httpCode != 400 && httpCode != 404) || errorBody == null
+                || !(errorBody.contains("previous_response") || errorBody.contains("Previous response"))) {
+            return false;
+        }
+        Log.w("GPTResponsesManager", "Stored response " + plan.previousResponseId + " is no longer available. Replaying the conversation.");
+        replay.run();
+        return true;
+    }
+
+    @Override
+    public void setModelTier(ModelTier tier) {
+        modelTier = tier; // A chained request may use another model than the response it continues from
+    }
+
+    @Override
+    public void startNewConversation() {
+        chain.reset(); // The next command starts from its own system prompt and history
+    }
+
+    @Override
+    public String processUserCommandForPrompt(String userCommand) {
+        return userCommand != null ? userCommand.trim() : "";
+    }
+
+    @Override
+    public void cleanup() {
+        streamExecutor.shutdownNow();
+    }
+}
@@ -0,0 +1,94 @@
+package com.example.ai_macrofy.llm.gpt;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.common.ChatMessage;
+
+import java.util.List;
+
+/**
+ * Tracks how much of the conversation OpenAI already holds as a stored response, so the next step can continue
+ * from it with previous_response_id and send only the messages added since.
+ * <p>
+ * After a step succeeds the service appends a screenshot placeholder and the model's answer to the history.
+ * The stored response already contains the real versions of both, so a chained request skips that pair and sends
+ * what follows (execution feedback, turns answered by a hedged provider). If the history no longer continues from
+ * the anchor the way this expects (a failed step, history dropped by compaction, another system prompt), the next
+ * request replays the whole conversation and starts a new chain.
+ * <p>
+ * Each stored turn keeps its screenshot, which the local history replaces with a placeholder. To stop those from
+ * piling up in the billed input, the chain is restarted after {@link #MAX_CHAINED_TURNS} steps.
+ */
+final class ResponseChain {
+    static final int MAX_CHAINED_TURNS = 10;
+
+    /** What the next request sends. */
+    static final class Plan {
+        @Nullable final String previousResponseId; // null when replaying the whole conversation
+        final List<ChatMessage> messages;          // History messages to include in the request
+        final int storedTokens;                   // Input tokens the stored conversation adds on the server
+        @Nullable final ChatMessage historyTail;   // Last history message when the plan was made
+        final String systemInstruction;
+
+        Plan(@Nullable String previousResponseId, List<ChatMessage> messages, int storedTokens,
+             @Nullable ChatMessage historyTail, String systemInstruction) {
+            this.previousResponseId = previousResponseId;
+            this.messages = messages;
+            this.storedTokens = storedTokens;
+            this.historyTail = historyTail;
+            this.systemInstruction = systemInstruction;
+        }
+
+        boolean isReplay() {
+            return previousResponseId == null;
+        }
+    }
+
+    @Nullable private String anchorId;
+    @Nullable private ChatMessage anchorTail;
+    private String anchorSystemInstruction;
+    private int anchorTokens;
+    private int chainedTurns;
+
+    synchronized Plan plan(String systemInstruction, List<ChatMessage> history) {
+        ChatMessage tail = history.isEmpty() ? null : history.get(history.size() - 1);
+        if (anchorId != null && chainedTurns < MAX_CHAINED_TURNS && systemInstruction.equals(anchorSystemInstruction)) {
+            int start = anchorTail == null ? 0 : lastIndexOf(history, anchorTail) + 1;
+            boolean anchorFound = anchorTail == null || start > 0;
+            if (anchorFound && history.size() - start >= 2
+                    && "user".equals(history.get(start).role)
+                    && "assistant".equals(history.get(start + 1).role)) {
+                return new Plan(anchorId, history.subList(start + 2, history.size()), anchorTokens, tail, systemInstruction);
+            }
+        }
+        return new Plan(null, history, 0, tail, systemInstruction);
+    }
+
+    /** Makes the response to a request built from {@code plan} the new anchor. */
+    synchronized void commit(Plan plan, String responseId, int totalTokens) {
+        if (!plan.isReplay() && !plan.previousResponseId.equals(anchorId)) {
+            return; // The chain was reset or moved on while this request was running
+        }
+        chainedTurns = plan.isReplay() ? 0 : chainedTurns + 1;
+        anchorId = responseId;
+        anchorTail = plan.historyTail;
+        anchorSystemInstruction = plan.systemInstruction;
+        anchorTokens = totalTokens; // Input plus output: what the next chained request starts from
+    }
+
+    synchronized void reset() {
+        anchorId = null;
+        anchorTail = null;
+        anchorSystemInstruction = null;
+        anchorTokens = 0;
+        chainedTurns = 0;
+    }
+
+    // History entries are compared by identity: the store hands out the same instances until they are compacted.
+    private static int lastIndexOf(List<ChatMessage> history, ChatMessage message) {
+        for (int i = history.size() - 1; i >= 0; i--) {
+            if (history.get(i) == message) return i;
+        }
+        return -1;
+    }
+}
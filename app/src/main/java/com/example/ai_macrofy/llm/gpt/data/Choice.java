@@ -1,7 +1,7 @@
 package com.example.ai_macrofy.llm.gpt.data;
 
 public class Choice {
-    private final Message message;
+    final Message message;
 
     public Choice(Message message) {
         this.message = message;
@@ -1,19 +1,85 @@
 package com.example.ai_macrofy.llm.gpt.data;
 
+import com.google.gson.JsonObject;
 import com.google.gson.annotations.SerializedName;
 import java.util.List;
 
 public class GPTRequest {
     @SerializedName("model")
-    private String model;
+    String model;
 
     @SerializedName("messages")
-    private List<Message> messages;
+    List<Message> messages;
+
+    @SerializedName("stream")
+    Boolean stream; // Omitted from the JSON unless set
+
+    @SerializedName("stream_options")
+    StreamOptions streamOptions;
+
+    @SerializedName("response_format")
+    ResponseFormat responseFormat;
+
+    // Replaces the deprecated max_tokens, which reasoning models reject
+    @SerializedName("max_completion_tokens")
+    Integer maxCompletionTokens;
+
+    public static class StreamOptions {
+        @SerializedName("include_usage")
+        final boolean includeUsage;
+
+        StreamOptions(boolean includeUsage) {
+            this.includeUsage = includeUsage;
+        }
+    }
+
+    /** {"type": "json_schema", "json_schema": {"name": ..., "strict": true, "schema": ...}} */
+    public static class ResponseFormat {
+        @SerializedName("type")
+        final String type = "json_schema";
+
+        @SerializedName("json_schema")
+        final JsonSchema jsonSchema;
+
+        public ResponseFormat(String name, JsonObject schema) {
+            this.jsonSchema = new JsonSchema(name, schema);
+        }
+    }
+
+    public static class JsonSchema {
+        @SerializedName("name")
+        final String name;
+
+        @SerializedName("strict")
+        final boolean strict = true;
+
+        @SerializedName("schema")
+        final JsonObject schema;
+
+        JsonSchema(String name, JsonObject schema) {
+            this.name = name;
+            this.schema = schema;
+        }
+    }
 
     public GPTRequest(String model, List<Message> messages) {
         this.model = model;
         this.messages = messages;
     }
 
+    public void setStream(boolean stream) {
+        this.stream = stream;
+        // Ask for a final usage chunk so cached prompt tokens are reported for streamed responses too
+        this.streamOptions = stream ? new StreamOptions(true) : null;
+    }
+
+    public void setResponseFormat(ResponseFormat responseFormat) {
+        this.responseFormat = responseFormat;
+    }
+
+    public void setMaxCompletionTokens(Integer maxCompletionTokens) {
+        this.maxCompletionTokens = maxCompletionTokens;
+    }
+
     // Getters and setters if needed
 }
\ No newline at end of file
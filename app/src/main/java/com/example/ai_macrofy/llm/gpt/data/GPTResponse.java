@@ -5,12 +5,19 @@ import java.util.List;
 
 public class GPTResponse {
     @SerializedName("choices")
-    private List<Choice> choices;
+    List<Choice> choices;
+
+    @SerializedName("usage")
+    Usage usage;
 
     public List<Choice> getChoices() {
         return choices;
     }
 
+    public Usage getUsage() {
+        return usage;
+    }
+
     public String getFirstChoiceMessageContent() {
         if (choices != null && !choices.isEmpty()) {
             Choice firstChoice = choices.get(0);
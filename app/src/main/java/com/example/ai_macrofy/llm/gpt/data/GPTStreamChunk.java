@@ -0,0 +1,38 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.List;
+
+/** One "chat.completion.chunk" event of a streamed chat completion. */
+public class GPTStreamChunk {
+    @SerializedName("choices")
+    List<StreamChoice> choices;
+
+    @SerializedName("usage")
+    Usage usage; // Only on the final chunk, which has no choices
+
+    public static class StreamChoice {
+        @SerializedName("delta")
+        Delta delta;
+    }
+
+    public static class Delta {
+        @SerializedName("content")
+        String content;
+    }
+
+    public Usage getUsage() {
+        return usage;
+    }
+
+    /** The text added by this chunk, or null if it carries none (role-only or final chunks). */
+    public String getFirstChoiceDeltaContent() {
+        if (choices != null && !choices.isEmpty()) {
+            StreamChoice firstChoice = choices.get(0);
+            if (firstChoice != null && firstChoice.delta != null) {
+                return firstChoice.delta.content;
+            }
+        }
+        return null;
+    }
+}
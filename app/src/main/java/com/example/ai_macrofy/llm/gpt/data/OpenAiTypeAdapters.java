@@ -0,0 +1,470 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.example.ai_macrofy.llm.common.JsonCodec;
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Hand-written adapters for the Chat Completions and Responses API classes, registered in {@link JsonCodec#gson()}.
+ * <p>
+ * Requests are written exactly as the reflective adapters would (null fields omitted). Responses only bind the
+ * fields the app reads; everything else (ids, logprobs, reasoning items' summaries, tool fields, ...) is skipped
+ * without building trees. New fields must be added here too.
+ */
+public final class OpenAiTypeAdapters implements TypeAdapterFactory {
+    public static final OpenAiTypeAdapters FACTORY = new OpenAiTypeAdapters();
+
+    private OpenAiTypeAdapters() {}
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        Class<? super T> raw = type.getRawType();
+        // Requests
+        if (raw == GPTRequest.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<GPTRequest>) type, null, OpenAiTypeAdapters::writeChatRequest);
+        }
+        if (raw == ResponsesRequest.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<ResponsesRequest>) type, null, OpenAiTypeAdapters::writeResponsesRequest);
+        }
+        // Responses and stream events
+        if (raw == GPTResponse.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<GPTResponse>) type, OpenAiTypeAdapters::readChatResponse, null);
+        }
+        if (raw == GPTStreamChunk.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<GPTStreamChunk>) type, OpenAiTypeAdapters::readChatChunk, null);
+        }
+        if (raw == ResponsesResponse.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<ResponsesResponse>) type, OpenAiTypeAdapters::readResponse, null);
+        }
+        if (raw == ResponsesStreamEvent.class) {
+            return (TypeAdapter<T>) JsonCodec.adapter(gson, this, (TypeToken<ResponsesStreamEvent>) type, OpenAiTypeAdapters::readStreamEvent, null);
+        }
+        return null;
+    }
+
+    // --- Chat Completions request ---
+
+    private static void writeChatRequest(JsonWriter out, GPTRequest request) throws IOException {
+        out.beginObject();
+        out.name("model").value(request.model);
+        out.name("messages");
+        JsonCodec.writeList(out, request.messages, OpenAiTypeAdapters::writeChatMessage);
+        out.name("stream").value(request.stream);
+        if (request.streamOptions != null) {
+            out.name("stream_options").beginObject();
+            out.name("include_usage").value(request.streamOptions.includeUsage);
+            out.endObject();
+        }
+        if (request.responseFormat != null) {
+            out.name("response_format").beginObject();
+            out.name("type").value(request.responseFormat.type);
+            out.name("json_schema").beginObject();
+            out.name("name").value(request.responseFormat.jsonSchema.name);
+            out.name("strict").value(request.responseFormat.jsonSchema.strict);
+            out.name("schema");
+            JsonCodec.writeTree(out, request.responseFormat.jsonSchema.schema);
+            out.endObject();
+            out.endObject();
+        }
+        out.name("max_completion_tokens").value(request.maxCompletionTokens);
+        out.endObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeChatMessage(JsonWriter out, Message message) throws IOException {
+        out.beginObject();
+        out.name("role").value(message.role);
+        out.name("content");
+        if (message.content instanceof List) {
+            JsonCodec.writeList(out, (List<ContentPart>) message.content, OpenAiTypeAdapters::writeContentPart);
+        } else {
+            out.value((String) message.content);
+        }
+        out.endObject();
+    }
+
+    private static void writeContentPart(JsonWriter out, ContentPart part) throws IOException {
+        out.beginObject();
+        out.name("type").value(part.type);
+        out.name("text").value(part.text);
+        if (part.imageUrl != null) {
+            out.name("image_url").beginObject();
+            out.name("url");
+            writeImageUrl(out, part.imageUrl.url); // The base64 screenshot, most of the request
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    // --- Responses API request ---
+
+    private static void writeResponsesRequest(JsonWriter out, ResponsesRequest request) throws IOException {
+        out.beginObject();
+        out.name("model").value(request.model);
+        out.name("input");
+        JsonCodec.writeList(out, request.input, OpenAiTypeAdapters::writeInputMessage);
+        out.name("previous_response_id").value(request.previousResponseId);
+        out.name("store").value(request.store);
+        out.name("truncation").value(request.truncation);
+        out.name("stream").value(request.stream);
+        if (request.text != null) {
+            ResponsesRequest.Format format = request.text.format;
+            out.name("text").beginObject();
+            out.name("format").beginObject();
+            out.name("type").value(format.type);
+            out.name("name").value(format.name);
+            out.name("strict").value(format.strict);
+            out.name("schema");
+            JsonCodec.writeTree(out, format.schema);
+            out.endObject();
+            out.endObject();
+        }
+        out.name("max_output_tokens").value(request.maxOutputTokens);
+        out.endObject();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeInputMessage(JsonWriter out, ResponsesRequest.InputMessage message) throws IOException {
+        out.beginObject();
+        out.name("role").value(message.role);
+        out.name("content");
+        if (message.content instanceof List) {
+            JsonCodec.writeList(out, (List<ResponsesRequest.InputContent>) message.content, OpenAiTypeAdapters::writeInputContent);
+        } else {
+            out.value((String) message.content);
+        }
+        out.endObject();
+    }
+
+    private static void writeInputContent(JsonWriter out, ResponsesRequest.InputContent content) throws IOException {
+        out.beginObject();
+        out.name("type").value(content.type);
+        out.name("text").value(content.text);
+        out.name("image_url");
+        writeImageUrl(out, content.imageUrl);
+        out.endObject();
+    }
+
+    // Screenshots are sent as data URLs built by ScreenshotEncoder; anything else is escaped as usual
+    private static void writeImageUrl(JsonWriter out, String url) throws IOException {
+        if (url != null && url.startsWith("data:image/")) {
+            JsonCodec.writeBase64(out, url);
+        } else {
+            out.value(url);
+        }
+    }
+
+    // --- Chat Completions response ---
+
+    private static GPTResponse readChatResponse(JsonReader in) throws IOException {
+        GPTResponse response = new GPTResponse();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "choices":
+                    response.choices = JsonCodec.readList(in, OpenAiTypeAdapters::readChoice);
+                    break;
+                case "usage":
+                    response.usage = JsonCodec.readObject(in, OpenAiTypeAdapters::readUsage);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private static Choice readChoice(JsonReader in) throws IOException {
+        Message message = null;
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("message".equals(in.nextName())) {
+                message = JsonCodec.readObject(in, OpenAiTypeAdapters::readAssistantMessage);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return new Choice(message);
+    }
+
+    // Answers are plain strings; refusals and tool calls are not used
+    private static Message readAssistantMessage(JsonReader in) throws IOException {
+        Message message = new Message(null, (String) null);
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "role":
+                    message.role = JsonCodec.nextString(in);
+                    break;
+                case "content":
+                    if (in.peek() == JsonToken.STRING || in.peek() == JsonToken.NULL) {
+                        message.content = JsonCodec.nextString(in);
+                    } else {
+                        in.skipValue();
+                    }
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return message;
+    }
+
+    private static Usage readUsage(JsonReader in) throws IOException {
+        Usage usage = new Usage();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "prompt_tokens":
+                    usage.promptTokens = JsonCodec.nextInt(in);
+                    break;
+                case "completion_tokens":
+                    usage.completionTokens = JsonCodec.nextInt(in);
+                    break;
+                case "total_tokens":
+                    usage.totalTokens = JsonCodec.nextInt(in);
+                    break;
+                case "prompt_tokens_details": {
+                    Usage.PromptTokensDetails details = new Usage.PromptTokensDetails();
+                    details.cachedTokens = readSingleInt(in, "cached_tokens");
+                    usage.promptTokensDetails = details;
+                    break;
+                }
+                case "completion_tokens_details": {
+                    Usage.CompletionTokensDetails details = new Usage.CompletionTokensDetails();
+                    details.reasoningTokens = readSingleInt(in, "reasoning_tokens");
+                    usage.completionTokensDetails = details;
+                    break;
+                }
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return usage;
+    }
+
+    private static GPTStreamChunk readChatChunk(JsonReader in) throws IOException {
+        GPTStreamChunk chunk = new GPTStreamChunk();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "choices":
+                    chunk.choices = JsonCodec.readList(in, OpenAiTypeAdapters::readStreamChoice);
+                    break;
+                case "usage":
+                    chunk.usage = JsonCodec.readObject(in, OpenAiTypeAdapters::readUsage);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return chunk;
+    }
+
+    private static GPTStreamChunk.StreamChoice readStreamChoice(JsonReader in) throws IOException {
+        GPTStreamChunk.StreamChoice choice = new GPTStreamChunk.StreamChoice();
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("delta".equals(in.nextName())) {
+                choice.delta = JsonCodec.readObject(in, OpenAiTypeAdapters::readDelta);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return choice;
+    }
+
+    private static GPTStreamChunk.Delta readDelta(JsonReader in) throws IOException {
+        GPTStreamChunk.Delta delta = new GPTStreamChunk.Delta();
+        in.beginObject();
+        while (in.hasNext()) {
+            if ("content".equals(in.nextName())) {
+                delta.content = JsonCodec.nextString(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return delta;
+    }
+
+    // --- Responses API response ---
+
+    private static ResponsesStreamEvent readStreamEvent(JsonReader in) throws IOException {
+        ResponsesStreamEvent event = new ResponsesStreamEvent();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "type":
+                    event.type = JsonCodec.nextString(in);
+                    break;
+                case "delta":
+                    event.delta = JsonCodec.nextString(in);
+                    break;
+                case "response":
+                    event.response = JsonCodec.readObject(in, OpenAiTypeAdapters::readResponse);
+                    break;
+                case "message":
+                    event.message = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return event;
+    }
+
+    private static ResponsesResponse readResponse(JsonReader in) throws IOException {
+        ResponsesResponse response = new ResponsesResponse();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "id":
+                    response.id = JsonCodec.nextString(in);
+                    break;
+                case "status":
+                    response.status = JsonCodec.nextString(in);
+                    break;
+                case "output":
+                    response.output = JsonCodec.readList(in, OpenAiTypeAdapters::readOutputItem);
+                    break;
+                case "usage":
+                    response.usage = JsonCodec.readObject(in, OpenAiTypeAdapters::readResponsesUsage);
+                    break;
+                case "error":
+                    response.error = JsonCodec.readObject(in, OpenAiTypeAdapters::readError);
+                    break;
+                default:
+                    in.skipValue(); // Echoed request fields: instructions, text, tools, metadata, ...
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private static ResponsesResponse.OutputItem readOutputItem(JsonReader in) throws IOException {
+        ResponsesResponse.OutputItem item = new ResponsesResponse.OutputItem();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "type":
+                    item.type = JsonCodec.nextString(in);
+                    break;
+                case "content":
+                    item.content = JsonCodec.readList(in, OpenAiTypeAdapters::readOutputContent);
+                    break;
+                default:
+                    in.skipValue(); // Includes the summary of reasoning items
+            }
+        }
+        in.endObject();
+        return item;
+    }
+
+    private static ResponsesResponse.OutputContent readOutputContent(JsonReader in) throws IOException {
+        ResponsesResponse.OutputContent content = new ResponsesResponse.OutputContent();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "type":
+                    content.type = JsonCodec.nextString(in);
+                    break;
+                case "text":
+                    content.text = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue(); // annotations, logprobs
+            }
+        }
+        in.endObject();
+        return content;
+    }
+
+    private static ResponsesResponse.Error readError(JsonReader in) throws IOException {
+        ResponsesResponse.Error error = new ResponsesResponse.Error();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "code":
+                    error.code = JsonCodec.nextString(in);
+                    break;
+                case "message":
+                    error.message = JsonCodec.nextString(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return error;
+    }
+
+    private static ResponsesResponse.ResponsesUsage readResponsesUsage(JsonReader in) throws IOException {
+        ResponsesResponse.ResponsesUsage usage = new ResponsesResponse.ResponsesUsage();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "input_tokens":
+                    usage.inputTokens = JsonCodec.nextInt(in);
+                    break;
+                case "output_tokens":
+                    usage.outputTokens = JsonCodec.nextInt(in);
+                    break;
+                case "total_tokens":
+                    usage.totalTokens = JsonCodec.nextInt(in);
+                    break;
+                case "input_tokens_details": {
+                    ResponsesResponse.ResponsesUsage.InputTokensDetails details = new ResponsesResponse.ResponsesUsage.InputTokensDetails();
+                    details.cachedTokens = readSingleInt(in, "cached_tokens");
+                    usage.inputTokensDetails = details;
+                    break;
+                }
+                case "output_tokens_details": {
+                    ResponsesResponse.ResponsesUsage.OutputTokensDetails details = new ResponsesResponse.ResponsesUsage.OutputTokensDetails();
+                    details.reasoningTokens = readSingleInt(in, "reasoning_tokens");
+                    usage.outputTokensDetails = details;
+                    break;
+                }
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return usage;
+    }
+
+    /** Reads one int field of a details object, or 0 if it or the object is missing. */
+    private static int readSingleInt(JsonReader in, String name) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        int value = 0;
+        in.beginObject();
+        while (in.hasNext()) {
+            if (name.equals(in.nextName())) {
+                value = JsonCodec.nextInt(in);
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+        return value;
+    }
+}
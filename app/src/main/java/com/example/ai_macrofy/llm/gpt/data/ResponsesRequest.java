@@ -0,0 +1,131 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.google.gson.JsonObject;
+import com.google.gson.annotations.SerializedName;
+import java.util.List;
+
+/**
+ * Request body for the Responses API (v1/responses). With {@code store} set, OpenAI keeps the response so the
+ * next request can continue from it through {@code previous_response_id} instead of resending the conversation.
+ */
+public class ResponsesRequest {
+    @SerializedName("model")
+    String model;
+
+    @SerializedName("input")
+    List<InputMessage> input;
+
+    @SerializedName("previous_response_id")
+    String previousResponseId; // Omitted from the JSON when replaying the whole conversation
+
+    @SerializedName("store")
+    boolean store = true;
+
+    // Drop the oldest stored turns instead of failing once a long chain exceeds the context window
+    @SerializedName("truncation")
+    String truncation = "auto";
+
+    @SerializedName("stream")
+    Boolean stream; // Omitted from the JSON unless set
+
+    @SerializedName("text")
+    TextOptions text;
+
+    @SerializedName("max_output_tokens")
+    Integer maxOutputTokens;
+
+    /** {"format": {"type": "json_schema", "name": ..., "strict": true, "schema": ...}} */
+    public static class TextOptions {
+        @SerializedName("format")
+        final Format format;
+
+        public TextOptions(String schemaName, JsonObject schema) {
+            this.format = new Format(schemaName, schema);
+        }
+    }
+
+    public static class Format {
+        @SerializedName("type")
+        final String type = "json_schema";
+
+        @SerializedName("name")
+        final String name;
+
+        @SerializedName("strict")
+        final boolean strict = true;
+
+        @SerializedName("schema")
+        final JsonObject schema;
+
+        Format(String name, JsonObject schema) {
+            this.name = name;
+            this.schema = schema;
+        }
+    }
+
+    public static class InputMessage {
+        @SerializedName("role")
+        public String role; // "system", "user" or "assistant"
+
+        // A plain string, or a list of InputContent for vision
+        @SerializedName("content")
+        public Object content;
+
+        public InputMessage(String role, String textContent) {
+            this.role = role;
+            this.content = textContent;
+        }
+
+        public InputMessage(String role, List<InputContent> contentParts) {
+            this.role = role;
+            this.content = contentParts;
+        }
+    }
+
+    public static class InputContent {
+        @SerializedName("type")
+        public String type; // "input_text" or "input_image"
+
+        @SerializedName("text")
+        public String text; // Only for "input_text"
+
+        @SerializedName("image_url")
+        public String imageUrl; // Only for "input_image"; a URL or data URL
+
+        public static InputContent text(String text) {
+            InputContent content = new InputContent();
+            content.type = "input_text";
+            content.text = text;
+            return content;
+        }
+
+        public static InputContent image(String imageUrl) {
+            InputContent content = new InputContent();
+            content.type = "input_image";
+            content.imageUrl = imageUrl;
+            return content;
+        }
+    }
+
+    public ResponsesRequest(String model, List<InputMessage> input, String previousResponseId) {
+        this.model = model;
+        this.input = input;
+        this.previousResponseId = previousResponseId;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
+
+    public void setText(TextOptions text) {
+        this.text = text;
+    }
+
+    public void setMaxOutputTokens(Integer maxOutputTokens) {
+        this.maxOutputTokens = maxOutputTokens;
+    }
+
+    public String getPreviousResponseId() {
+        return previousResponseId;
+    }
+}
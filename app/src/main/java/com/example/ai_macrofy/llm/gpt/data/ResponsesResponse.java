@@ -0,0 +1,127 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.google.gson.annotations.SerializedName;
+import java.util.List;
+
+/** A response object of the Responses API, returned directly or inside the stream's response.* events. */
+public class ResponsesResponse {
+    @SerializedName("id")
+    String id; // Passed as previous_response_id to continue from this response
+
+    @SerializedName("status")
+    String status; // "completed", "failed", "incomplete", ...
+
+    @SerializedName("output")
+    List<OutputItem> output;
+
+    @SerializedName("usage")
+    ResponsesUsage usage;
+
+    @SerializedName("error")
+    Error error;
+
+    public static class OutputItem {
+        @SerializedName("type")
+        String type; // "message" carries the answer; reasoning items are skipped
+
+        @SerializedName("content")
+        List<OutputContent> content;
+    }
+
+    public static class OutputContent {
+        @SerializedName("type")
+        String type; // "output_text" or "refusal"
+
+        @SerializedName("text")
+        String text;
+    }
+
+    public static class Error {
+        @SerializedName("code")
+        String code;
+
+        @SerializedName("message")
+        String message;
+    }
+
+    /** Token usage. Input tokens include everything the stored conversation contributed, not just this request. */
+    public static class ResponsesUsage {
+        @SerializedName("input_tokens")
+        int inputTokens;
+
+        @SerializedName("output_tokens")
+        int outputTokens;
+
+        @SerializedName("total_tokens")
+        int totalTokens;
+
+        @SerializedName("input_tokens_details")
+        InputTokensDetails inputTokensDetails;
+
+        @SerializedName("output_tokens_details")
+        OutputTokensDetails outputTokensDetails;
+
+        public static class InputTokensDetails {
+            @SerializedName("cached_tokens")
+            int cachedTokens;
+        }
+
+        public static class OutputTokensDetails {
+            @SerializedName("reasoning_tokens")
+            int reasoningTokens; // Part of output_tokens
+        }
+
+        public int getInputTokens() {
+            return inputTokens;
+        }
+
+        public int getOutputTokens() {
+            return outputTokens;
+        }
+
+        public int getTotalTokens() {
+            return totalTokens;
+        }
+
+        public int getCachedTokens() {
+            return inputTokensDetails != null ? inputTokensDetails.cachedTokens : 0;
+        }
+
+        public int getReasoningTokens() {
+            return outputTokensDetails != null ? outputTokensDetails.reasoningTokens : 0;
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public ResponsesUsage getUsage() {
+        return usage;
+    }
+
+    public String getErrorMessage() {
+        return error != null ? error.code + ": " + error.message : null;
+    }
+
+    /** The concatenated output_text of all message items, or null if there is none. */
+    public String getOutputText() {
+        if (output == null) return null;
+        StringBuilder text = new StringBuilder();
+        boolean found = false;
+        for (OutputItem item : output) {
+            if (item == null || !"message".equals(item.type) || item.content == null) continue;
+            for (OutputContent content : item.content) {
+                if (content != null && "output_text".equals(content.type) && content.text != null) {
+                    text.append(content.text);
+                    found = true;
+                }
+            }
+        }
+        return found ? text.toString() : null;
+    }
+}
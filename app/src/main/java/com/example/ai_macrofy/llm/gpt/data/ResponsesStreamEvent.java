@@ -0,0 +1,43 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.google.gson.annotations.SerializedName;
+
+/**
+ * One event of a streamed Responses API call. Only the fields of the events the app uses are mapped:
+ * "response.output_text.delta" (delta), "response.completed" / "response.failed" (response) and "error" (message).
+ */
+public class ResponsesStreamEvent {
+    public static final String OUTPUT_TEXT_DELTA = "response.output_text.delta";
+    public static final String COMPLETED = "response.completed";
+    public static final String FAILED = "response.failed";
+    public static final String INCOMPLETE = "response.incomplete";
+    public static final String ERROR = "error";
+
+    @SerializedName("type")
+    String type;
+
+    @SerializedName("delta")
+    String delta;
+
+    @SerializedName("response")
+    ResponsesResponse response;
+
+    @SerializedName("message")
+    String message;
+
+    public String getType() {
+        return type;
+    }
+
+    public String getDelta() {
+        return delta;
+    }
+
+    public ResponsesResponse getResponse() {
+        return response;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+}
@@ -0,0 +1,51 @@
+package com.example.ai_macrofy.llm.gpt.data;
+
+import com.google.gson.annotations.SerializedName;
+
+/** Token usage of one chat completion. Streamed completions only report it when stream_options.include_usage is set. */
+public class Usage {
+    @SerializedName("prompt_tokens")
+    int promptTokens;
+
+    @SerializedName("completion_tokens")
+    int completionTokens;
+
+    @SerializedName("total_tokens")
+    int totalTokens;
+
+    @SerializedName("prompt_tokens_details")
+    PromptTokensDetails promptTokensDetails;
+
+    @SerializedName("completion_tokens_details")
+    CompletionTokensDetails completionTokensDetails;
+
+    public static class PromptTokensDetails {
+        @SerializedName("cached_tokens")
+        int cachedTokens; // Prompt tokens served from OpenAI's automatic prefix cache
+    }
+
+    public static class CompletionTokensDetails {
+        @SerializedName("reasoning_tokens")
+        int reasoningTokens; // Part of completion_tokens, never shown in the answer
+    }
+
+    public int getPromptTokens() {
+        return promptTokens;
+    }
+
+    public int getCompletionTokens() {
+        return completionTokens;
+    }
+
+    public int getTotalTokens() {
+        return totalTokens;
+    }
+
+    public int getCachedTokens() {
+        return promptTokensDetails != null ? promptTokensDetails.cachedTokens : 0;
+    }
+
+    public int getReasoningTokens() {
+        return completionTokensDetails != null ? completionTokensDetails.reasoningTokens : 0;
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.ai_macrofy.metrics;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide, in-memory latency metrics for macro steps.
+ * Keeps rolling percentiles per provider and stage, the most recent steps for export, and named event counters.
+ * Token usage reported by the providers is summed per step, per macro ({@link TokenAccount}) and per provider.
+ */
+public final class MacroMetrics {
+    private static final int HISTOGRAM_CAPACITY = 256;
+    private static final int RECENT_STEP_LIMIT = 500;
+    private static final double[] REPORTED_PERCENTILES = {50, 90, 99};
+    private static final String PROMPT_TOKENS = "prompt_tokens.";
+    private static final String CACHED_PROMPT_TOKENS = "prompt_tokens_cached.";
+    private static final String OUTPUT_TOKENS = "output_tokens.";
+    private static final String THINKING_TOKENS = "thinking_tokens.";
+    private static final int MACRO_HISTOGRAM_CAPACITY = 64;
+
+    private static final MacroMetrics INSTANCE = new MacroMetrics();
+
+    private final Map<String, Map<MetricStage, RollingHistogram>> histograms = new LinkedHashMap<>();
+    private final Deque<StepRecord> recentSteps = new ArrayDeque<>();
+    private final Map<String, Long> counters = new TreeMap<>();
+    private final Map<String, RollingHistogram> tokensPerMacro = new LinkedHashMap<>(); // By provider
+    private volatile StepTimer currentStep;
+    private volatile TokenAccount currentMacro;
+
+    private static final class StepRecord {
+        final long timestamp;
+        final String provider;
+        final Map<MetricStage, Long> durations;
+        final TokenUsage usage;
+
+        StepRecord(long timestamp, String provider, Map<MetricStage, Long> durations, TokenUsage usage) {
+            this.timestamp = timestamp;
+            this.provider = provider;
+            this.durations = durations;
+            this.usage = usage;
+        }
+    }
+
+    private MacroMetrics() {}
+
+    public static MacroMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts timing a new step. The returned timer also becomes the "current" step, so that code without a direct
+     * reference to it (model managers) can record into it.
+     */
+    public StepTimer beginStep(String provider) {
+        StepTimer timer = new StepTimer(provider != null ? provider : "unknown");
+        currentStep = timer;
+        return timer;
+    }
+
+    /** The step currently in progress, or null if none. */
+    @Nullable
+    public StepTimer currentStep() {
+        return currentStep;
+    }
+
+    /**
+     * Starts accounting tokens for a new macro. Usage recorded until {@link #endMacro} is added to the returned
+     * account, which also enforces {@code tokenBudget} (0 for no limit).
+     */
+    public TokenAccount beginMacro(String provider, long tokenBudget) {
+        TokenAccount account = new TokenAccount(provider != null ? provider : "unknown", tokenBudget);
+        currentMacro = account;
+        return account;
+    }
+
+    /** Closes a macro's account and adds its total to the tokens-per-macro percentiles. Later calls do nothing. */
+    public void endMacro(TokenAccount account) {
+        if (currentMacro == account) currentMacro = null;
+        if (!account.close()) return;
+        long total = account.getUsage().total();
+        if (total == 0) return; // Local and web providers report no usage
+        synchronized (this) {
+            RollingHistogram histogram = tokensPerMacro.get(account.provider);
+            if (histogram == null) {
+                histogram = new RollingHistogram(MACRO_HISTOGRAM_CAPACITY);
+                tokensPerMacro.put(account.provider, histogram);
+            }
+            histogram.add(total);
+        }
+    }
+
+    /** Records a stage duration into the current step, if there is one. */
+    public void recordCurrent(MetricStage stage, long millis) {
+        StepTimer timer = currentStep;
+        if (timer != null) {
+            timer.record(stage, millis);
+        }
+    }
+
+    /**
+     * Records a stage of a request to {@code provider}. It goes into the current step only if the step runs on that
+     * provider; a hedged or failed-over request to the other provider only feeds that provider's percentiles.
+     */
+    public void recordCurrent(String provider, MetricStage stage, long millis) {
+        StepTimer timer = currentStep;
+        if (timer != null && timer.provider.equals(provider)) {
+            timer.record(stage, millis);
+        } else {
+            addSample(provider, stage, millis);
+        }
+    }
+
+    /** Counts one occurrence of a named event, e.g. "hedge.fired.openai". */
+    public void incrementCounter(String name) {
+        addToCounter(name, 1);
+    }
+
+    public synchronized void addToCounter(String name, long amount) {
+        Long previous = counters.get(name);
+        counters.put(name, previous != null ? previous + amount : amount);
+    }
+
+    /**
+     * Records the token usage of one response: into the provider's counters, the current step and the current
+     * macro. The prompt cache hit rate per provider is reported alongside the counters.
+     */
+    public void recordUsage(String provider, TokenUsage usage) {
+        synchronized (this) {
+            addToCounter(PROMPT_TOKENS + provider, usage.promptTokens);
+            addToCounter(CACHED_PROMPT_TOKENS + provider, usage.cachedTokens);
+            addToCounter(OUTPUT_TOKENS + provider, usage.outputTokens);
+            addToCounter(THINKING_TOKENS + provider, usage.thinkingTokens);
+        }
+        StepTimer step = currentStep;
+        if (step != null) step.addUsage(usage);
+        TokenAccount macro = currentMacro;
+        if (macro != null) macro.add(usage);
+    }
+
+    /** Cached share of prompt tokens per provider, for providers that reported any prompt tokens. */
+    private Map<String, Double> promptCacheHitRates() {
+        Map<String, Double> rates = new TreeMap<>();
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            if (!counter.getKey().startsWith(PROMPT_TOKENS) || counter.getValue() <= 0) continue;
+            String provider = counter.getKey().substring(PROMPT_TOKENS.length());
+            Long cached = counters.get(CACHED_PROMPT_TOKENS + provider);
+            rates.put(provider, (cached != null ? cached : 0L) / (double) counter.getValue());
+        }
+        return rates;
+    }
+
+    synchronized void addSample(String provider, MetricStage stage, long millis) {
+        Map<MetricStage, RollingHistogram> byStage = histograms.get(provider);
+        if (byStage == null) {
+            byStage = new EnumMap<>(MetricStage.class);
+            histograms.put(provider, byStage);
+        }
+        RollingHistogram histogram = byStage.get(stage);
+        if (histogram == null) {
+            histogram = new RollingHistogram(HISTOGRAM_CAPACITY);
+            byStage.put(stage, histogram);
+        }
+        histogram.add(millis);
+    }
+
+    synchronized void archiveStep(StepTimer timer, Map<MetricStage, Long> durations, TokenUsage usage) {
+        recentSteps.addLast(new StepRecord(timer.startWallTime, timer.provider, durations, usage));
+        while (recentSteps.size() > RECENT_STEP_LIMIT) {
+            recentSteps.removeFirst();
+        }
+        if (currentStep == timer) {
+            currentStep = null;
+        }
+    }
+
+    public synchronized void reset() {
+        histograms.clear();
+        recentSteps.clear();
+        counters.clear();
+        tokensPerMacro.clear();
+    }
+
+    /**
+     * Human-readable percentile table, one block per provider.
+     */
+    public synchronized String formatSummary() {
+        if (histograms.isEmpty() && counters.isEmpty()) {
+            return "No steps recorded yet.";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Map<MetricStage, RollingHistogram>> providerEntry : histograms.entrySet()) {
+            RollingHistogram totals = providerEntry.getValue().get(MetricStage.STEP_TOTAL);
+            sb.append(providerEntry.getKey())
+                    .append(" (").append(totals != null ? totals.getCount() : 0).append(" steps)\n");
+            sb.append(String.format(Locale.US, "%-14s %7s %7s %7s %7s%n", "stage", "p50", "p90", "p99", "max"));
+            for (MetricStage stage : MetricStage.values()) {
+                RollingHistogram histogram = providerEntry.getValue().get(stage);
+                if (histogram == null) continue;
+                sb.append(String.format(Locale.US, "%-14s %7d %7d %7d %7d%n", stage.key,
+                        histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.max()));
+            }
+            sb.append('\n');
+        }
+        if (!tokensPerMacro.isEmpty()) {
+            sb.append("tokens per macro\n");
+            sb.append(String.format(Locale.US, "%-14s %7s %7s %7s %7s%n", "provider", "p50", "p90", "p99", "max"));
+            for (Map.Entry<String, RollingHistogram> entry : tokensPerMacro.entrySet()) {
+                RollingHistogram histogram = entry.getValue();
+                sb.append(String.format(Locale.US, "%-14s %7d %7d %7d %7d%n", entry.getKey(),
+                        histogram.percentile(50), histogram.percentile(90), histogram.percentile(99), histogram.max()));
+            }
+            sb.append('\n');
+        }
+        if (!counters.isEmpty()) {
+            sb.append("counters\n");
+            for (Map.Entry<String, Long> counter : counters.entrySet()) {
+                sb.append(String.format(Locale.US, "%-30s %7d%n", counter.getKey(), counter.getValue()));
+            }
+            for (Map.Entry<String, Double> rate : promptCacheHitRates().entrySet()) {
+                sb.append(String.format(Locale.US, "%-30s %6.1f%%%n", "prompt_cache_hit_rate." + rate.getKey(), rate.getValue() * 100));
+            }
+        }
+        return sb.toString();
+    }
+
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject root = new JSONObject();
+
+        JSONObject percentiles = new JSONObject();
+        for (Map.Entry<String, Map<MetricStage, RollingHistogram>> providerEntry : histograms.entrySet()) {
+            JSONObject stages = new JSONObject();
+            for (Map.Entry<MetricStage, RollingHistogram> stageEntry : providerEntry.getValue().entrySet()) {
+                RollingHistogram histogram = stageEntry.getValue();
+                JSONObject stats = new JSONObject();
+                stats.put("count", histogram.getCount());
+                for (double p : REPORTED_PERCENTILES) {
+                    stats.put("p" + (int) p, histogram.percentile(p));
+                }
+                stats.put("max", histogram.max());
+                stages.put(stageEntry.getKey().key, stats);
+            }
+            percentiles.put(providerEntry.getKey(), stages);
+        }
+        root.put("percentiles_ms", percentiles);
+
+        JSONObject macroTokens = new JSONObject();
+        for (Map.Entry<String, RollingHistogram> entry : tokensPerMacro.entrySet()) {
+            RollingHistogram histogram = entry.getValue();
+            JSONObject stats = new JSONObject();
+            stats.put("count", histogram.getCount());
+            for (double p : REPORTED_PERCENTILES) {
+                stats.put("p" + (int) p, histogram.percentile(p));
+            }
+            stats.put("max", histogram.max());
+            macroTokens.put(entry.getKey(), stats);
+        }
+        root.put("tokens_per_macro", macroTokens);
+
+        JSONObject counterValues = new JSONObject();
+        for (Map.Entry<String, Long> counter : counters.entrySet()) {
+            counterValues.put(counter.getKey(), counter.getValue().longValue());
+        }
+        root.put("counters", counterValues);
+
+        JSONObject hitRates = new JSONObject();
+        for (Map.Entry<String, Double> rate : promptCacheHitRates().entrySet()) {
+            hitRates.put(rate.getKey(), rate.getValue().doubleValue());
+        }
+        root.put("prompt_cache_hit_rate", hitRates);
+
+        JSONArray steps = new JSONArray();
+        for (StepRecord record : recentSteps) {
+            JSONObject step = new JSONObject();
+            step.put("timestamp", record.timestamp);
+            step.put("provider", record.provider);
+            for (Map.Entry<MetricStage, Long> duration : record.durations.entrySet()) {
+                step.put(duration.getKey().key, duration.getValue());
+            }
+            step.put("prompt_tokens", record.usage.promptTokens);
+            step.put("cached_tokens", record.usage.cachedTokens);
+            step.put("output_tokens", record.usage.outputTokens);
+            step.put("thinking_tokens", record.usage.thinkingTokens);
+            steps.put(step);
+        }
+        root.put("steps", steps);
+        return root;
+    }
+
+    /** One row per recorded step; stages that did not run in a step are left empty. */
+    public synchronized String toCsv() {
+        StringBuilder sb = new StringBuilder("timestamp,provider");
+        for (MetricStage stage : MetricStage.values()) {
+            sb.append(',').append(stage.key);
+        }
+        sb.append(",prompt_tokens,cached_tokens,output_tokens,thinking_tokens\n");
+        for (StepRecord record : recentSteps) {
+            sb.append(record.timestamp).append(',').append(record.provider);
+            for (MetricStage stage : MetricStage.values()) {
+                sb.append(',');
+                Long value = record.durations.get(stage);
+                if (value != null) sb.append(value);
+            }
+            sb.append(',').append(record.usage.promptTokens).append(',').append(record.usage.cachedTokens)
+                    .append(',').append(record.usage.outputTokens).append(',').append(record.usage.thinkingTokens);
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,25 @@
+package com.example.ai_macrofy.metrics;
+
+/**
+ * Timed stages of a single macro step, in the order they happen.
+ */
+public enum MetricStage {
+    SETTLE("settle"),                 // Waiting for the screen to stop changing
+    CAPTURE("capture"),               // Screenshot acquisition
+    LAYOUT("layout"),                 // Accessibility layout extraction
+    ENCODE("encode"),                 // Grid overlay + JPEG/base64 encoding
+    REQUEST_BUILD("request_build"),   // Building and serializing the provider request
+    QUOTA_WAIT("quota_wait"),         // Step postponed because the provider's rate limit was exhausted
+    TIME_TO_FIRST_BYTE("ttfb"),       // Request sent -> response headers received
+    FIRST_ACTION("first_action"),     // Request sent -> first complete action parsed from a streamed response
+    INFERENCE("inference"),           // Request sent -> full response received (or local generation time)
+    PARSE("parse"),                   // Extracting and parsing the JSON actions
+    ACTION("action"),                 // Executing the action plan
+    STEP_TOTAL("step_total");         // Step start -> action plan completed
+
+    public final String key;
+
+    MetricStage(String key) {
+        this.key = key;
+    }
+}
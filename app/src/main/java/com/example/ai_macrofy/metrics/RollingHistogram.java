@@ -0,0 +1,52 @@
+package com.example.ai_macrofy.metrics;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size ring buffer of the most recent samples, used to compute rolling percentiles.
+ * Not thread-safe; callers synchronize access.
+ */
+public final class RollingHistogram {
+    private final long[] samples;
+    private int count = 0;
+    private int nextIndex = 0;
+
+    public RollingHistogram(int capacity) {
+        this.samples = new long[capacity];
+    }
+
+    public void add(long value) {
+        samples[nextIndex] = value;
+        nextIndex = (nextIndex + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    public void clear() {
+        count = 0;
+        nextIndex = 0;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0-100
+     * @return the nearest-rank percentile of the retained samples, or -1 if there are none
+     */
+    public long percentile(double percentile) {
+        if (count == 0) return -1;
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.max(0, Math.min(rank, count - 1))];
+    }
+
+    public long max() {
+        long max = -1;
+        for (int i = 0; i < count; i++) {
+            max = Math.max(max, samples[i]);
+        }
+        return max;
+    }
+}
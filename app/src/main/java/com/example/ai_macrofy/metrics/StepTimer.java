@@ -0,0 +1,64 @@
+package com.example.ai_macrofy.metrics;
+
+import android.os.SystemClock;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Collects the stage timings of one macro step. Stages may be recorded from any thread.
+ * Call {@link #finish()} once the step's action plan has completed; the step is then archived in {@link MacroMetrics}.
+ */
+public final class StepTimer {
+    final String provider;
+    final long startWallTime = System.currentTimeMillis();
+    private final long startUptime = SystemClock.elapsedRealtime();
+    private final Map<MetricStage, Long> durations = new EnumMap<>(MetricStage.class);
+    private TokenUsage usage = TokenUsage.NONE; // Summed over every response of the step (retries, hedges)
+    private boolean finished = false;
+
+    StepTimer(String provider) {
+        this.provider = provider;
+    }
+
+    public static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    /** Records the time elapsed since {@code startMillis} (from {@link #now()}) for the given stage. */
+    public void recordSince(MetricStage stage, long startMillis) {
+        record(stage, now() - startMillis);
+    }
+
+    public void record(MetricStage stage, long millis) {
+        synchronized (this) {
+            if (finished) return;
+            // A stage can run more than once per step (e.g. a retried request); keep the sum.
+            Long previous = durations.get(stage);
+            durations.put(stage, previous != null ? previous + millis : millis);
+        }
+        MacroMetrics.getInstance().addSample(provider, stage, millis);
+    }
+
+    void addUsage(TokenUsage responseUsage) {
+        synchronized (this) {
+            if (finished) return;
+            usage = usage.plus(responseUsage);
+        }
+    }
+
+    public void finish() {
+        Map<MetricStage, Long> snapshot;
+        TokenUsage stepUsage;
+        long total = SystemClock.elapsedRealtime() - startUptime;
+        synchronized (this) {
+            if (finished) return;
+            durations.put(MetricStage.STEP_TOTAL, total);
+            finished = true;
+            snapshot = new EnumMap<>(durations);
+            stepUsage = usage;
+        }
+        MacroMetrics.getInstance().addSample(provider, MetricStage.STEP_TOTAL, total);
+        MacroMetrics.getInstance().archiveStep(this, snapshot, stepUsage);
+    }
+}
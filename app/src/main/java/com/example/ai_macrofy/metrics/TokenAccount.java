@@ -0,0 +1,57 @@
+package com.example.ai_macrofy.metrics;
+
+/**
+ * Tokens used by one macro, with an optional budget. Usage reported by the model managers while the macro is
+ * current is added through {@link MacroMetrics#recordUsage}; responses from a hedge that lost still count, since
+ * they are billed.
+ * <p>
+ * Usage is only known after a response, so the budget is checked before each step against what the step would
+ * likely cost: the most expensive step so far. The macro may end slightly below the budget, but never runs a step
+ * that is expected to go over it.
+ */
+public final class TokenAccount {
+    final String provider;
+    private final long budget; // 0 means no limit
+    private TokenUsage usage = TokenUsage.NONE; // Guarded by this
+    private long stepStartTotal;                // Guarded by this
+    private long largestStep;                   // Guarded by this
+    private int steps;                          // Guarded by this
+    private boolean closed;                     // Guarded by this
+
+    TokenAccount(String provider, long budget) {
+        this.provider = provider;
+        this.budget = budget;
+    }
+
+    synchronized void add(TokenUsage step) {
+        usage = usage.plus(step);
+    }
+
+    /** Returns true the first time it is called. */
+    synchronized boolean close() {
+        if (closed) return false;
+        closed = true;
+        return true;
+    }
+
+    public synchronized TokenUsage getUsage() {
+        return usage;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Starts the next step if the budget allows it. Returns false if the used tokens plus the cost of the most
+     * expensive step so far would exceed the budget.
+     */
+    public synchronized boolean tryBeginStep() {
+        long total = usage.total();
+        if (steps > 0) largestStep = Math.max(largestStep, total - stepStartTotal);
+        if (budget > 0 && total + largestStep > budget) return false;
+        stepStartTotal = total;
+        steps++;
+        return true;
+    }
+}
@@ -0,0 +1,39 @@
+package com.example.ai_macrofy.metrics;
+
+/**
+ * Tokens billed for one or more model responses, normalized across providers.
+ * {@code outputTokens} is the visible answer only; reasoning ("thinking") tokens are counted separately, although
+ * OpenAI reports them as part of its completion tokens. {@code cachedTokens} is the part of {@code promptTokens}
+ * served from the provider's prompt or context cache.
+ */
+public final class TokenUsage {
+    public static final TokenUsage NONE = new TokenUsage(0, 0, 0, 0);
+
+    public final long promptTokens;
+    public final long cachedTokens;
+    public final long outputTokens;
+    public final long thinkingTokens;
+
+    public TokenUsage(long promptTokens, long cachedTokens, long outputTokens, long thinkingTokens) {
+        this.promptTokens = promptTokens;
+        this.cachedTokens = cachedTokens;
+        this.outputTokens = outputTokens;
+        this.thinkingTokens = thinkingTokens;
+    }
+
+    public TokenUsage plus(TokenUsage other) {
+        return new TokenUsage(promptTokens + other.promptTokens, cachedTokens + other.cachedTokens,
+                outputTokens + other.outputTokens, thinkingTokens + other.thinkingTokens);
+    }
+
+    /** All billed tokens: prompt (cached included), answer and thinking. */
+    public long total() {
+        return promptTokens + outputTokens + thinkingTokens;
+    }
+
+    @Override
+    public String toString() {
+        return promptTokens + " prompt (" + cachedTokens + " cached), " + outputTokens + " output, "
+                + thinkingTokens + " thinking";
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LLM 응답 하나에 담긴 액션 목록과 그 실행 상태입니다.
+ * 계획마다 고유한 세대(generation) ID와 취소 토큰을 가지므로, 중단되었거나 새 계획으로 대체된
+ * 이전 계획의 지연된 콜백(제스처 완료, 예약된 메시지 등)은 실행기에서 무시됩니다.
+ * 실행 결과는 {@link #getCompletion()}의 Future로 전달됩니다.
+ * <p>
+ * 스트리밍 응답용 계획은 열린 상태로 시작하여 액션이 도착하는 대로 추가되며, 봉인(seal)된 뒤 마지막 액션이 끝나야 완료됩니다.
+ */
+public final class ActionPlan {
+    private static final AtomicLong GENERATION_COUNTER = new AtomicLong();
+
+    private final long generation;
+    private final JSONArray actions;
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private final CompletableFuture<ActionResult> completion = new CompletableFuture<>();
+    private int nextIndex = 0; // 실행기 스레드에서만 접근
+    private final List<ActionVerdict> verdicts = new ArrayList<>(); // 실행기 스레드에서만 접근
+    private ActionVerifier.Pending pendingVerification; // 실행기 스레드에서만 접근
+    private boolean sealed; // 실행기 스레드에서만 접근. false면 이후에도 액션이 추가될 수 있음
+    private boolean waitingForActions = false; // 실행기 스레드에서만 접근
+
+    ActionPlan(JSONArray actions) {
+        this(actions, true);
+    }
+
+    ActionPlan(JSONArray actions, boolean sealed) {
+        this.generation = GENERATION_COUNTER.incrementAndGet();
+        this.actions = actions != null ? actions : new JSONArray();
+        this.sealed = sealed;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public CompletableFuture<ActionResult> getCompletion() {
+        return completion;
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /** 취소되지 않았고 아직 결과가 확정되지 않은 경우 true */
+    public boolean isActive() {
+        return !cancelled.get() && !completion.isDone();
+    }
+
+    /**
+     * 계획을 취소합니다. 이후 이 계획에 대해 예약된 액션과 완료 보고는 모두 무시됩니다.
+     */
+    public void cancel() {
+        if (cancelled.compareAndSet(false, true)) {
+            completion.complete(ActionResult.cancelled(generation));
+        }
+    }
+
+    /**
+     * 결과를 확정합니다. 지금까지 모인 액션 검증 결과가 함께 전달됩니다.
+     * 이미 취소되었거나 완료된 계획이면 무시하고 false를 반환합니다.
+     */
+    boolean complete(ActionResult result) {
+        return !cancelled.get() && completion.complete(result.withVerdicts(verdicts));
+    }
+
+    void addVerdict(ActionVerdict verdict) {
+        verdicts.add(verdict);
+    }
+
+    void setPendingVerification(ActionVerifier.Pending pending) {
+        this.pendingVerification = pending;
+    }
+
+    /** 검증 대기 중인 액션을 꺼냅니다. 없으면 null */
+    ActionVerifier.Pending takePendingVerification() {
+        ActionVerifier.Pending pending = pendingVerification;
+        pendingVerification = null;
+        return pending;
+    }
+
+    int size() {
+        return actions.length();
+    }
+
+    void append(JSONObject action) {
+        actions.put(action);
+    }
+
+    boolean isSealed() {
+        return sealed;
+    }
+
+    /** 더 이상 액션이 추가되지 않음을 표시합니다. */
+    void seal() {
+        sealed = true;
+    }
+
+    boolean isWaitingForActions() {
+        return waitingForActions;
+    }
+
+    void setWaitingForActions(boolean waitingForActions) {
+        this.waitingForActions = waitingForActions;
+    }
+
+    boolean hasNext() {
+        return nextIndex < actions.length();
+    }
+
+    JSONObject next() throws JSONException {
+        return actions.getJSONObject(nextIndex++);
+    }
+
+    /** 마지막으로 꺼낸 액션의 1부터 시작하는 순번 */
+    int getCurrentIndex() {
+        return nextIndex;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * {@link ActionPlan} 실행 결과입니다. 어떤 계획의 결과인지 식별할 수 있도록 계획의 세대 ID를 함께 담습니다.
+ */
+public final class ActionResult {
+    public final long generation;
+    public final boolean success;
+    @Nullable
+    public final String feedback;
+    public final boolean taskDone; // 'done' 액션이 실행되어 전체 작업이 끝났는지 여부
+    public final boolean cancelled;
+    public final List<ActionVerdict> verdicts; // 실행한 액션별 로컬 검증 결과
+
+    private ActionResult(long generation, boolean success, @Nullable String feedback, boolean taskDone, boolean cancelled,
+                         List<ActionVerdict> verdicts) {
+        this.generation = generation;
+        this.success = success;
+        this.feedback = feedback;
+        this.taskDone = taskDone;
+        this.cancelled = cancelled;
+        this.verdicts = verdicts;
+    }
+
+    private ActionResult(long generation, boolean success, @Nullable String feedback, boolean taskDone, boolean cancelled) {
+        this(generation, success, feedback, taskDone, cancelled, Collections.<ActionVerdict>emptyList());
+    }
+
+    /** 같은 결과에 검증 결과 목록을 덧붙인 복사본을 반환합니다. */
+    ActionResult withVerdicts(List<ActionVerdict> verdicts) {
+        if (verdicts.isEmpty()) return this;
+        return new ActionResult(generation, success, feedback, taskDone, cancelled,
+                Collections.unmodifiableList(new ArrayList<>(verdicts)));
+    }
+
+    public static ActionResult success(long generation, @Nullable String feedback) {
+        return new ActionResult(generation, true, feedback, false, false);
+    }
+
+    public static ActionResult failure(long generation, String feedback) {
+        return new ActionResult(generation, false, feedback, false, false);
+    }
+
+    public static ActionResult done(long generation) {
+        return new ActionResult(generation, true, null, true, false);
+    }
+
+    public static ActionResult cancelled(long generation) {
+        return new ActionResult(generation, false, "Action plan cancelled.", false, true);
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.ai_macrofy.services.accessibility;
+
+/**
+ * 실행한 액션 하나에 대한 로컬 검증 결과입니다.
+ */
+public final class ActionVerdict {
+
+    public enum Outcome {
+        EFFECT,            // 화면이 바뀌었거나 포커스가 이동함
+        NO_EFFECT,         // 레이아웃, 포커스, 창이 모두 그대로임
+        UNEXPECTED_WINDOW  // 액션 후 예상하지 못한 다른 앱/창이 전면에 나타남
+    }
+
+    public final String actionDescription;
+    public final Outcome outcome;
+    public final String detail;
+
+    public ActionVerdict(String actionDescription, Outcome outcome, String detail) {
+        this.actionDescription = actionDescription;
+        this.outcome = outcome;
+        this.detail = detail;
+    }
+
+    /**
+     * 레이아웃은 그대로지만 스크린샷 프레임이 달라진 경우(예: 캔버스, 웹뷰 내부 변화) 효과가 있었던 것으로 정정합니다.
+     */
+    public ActionVerdict withVisualChange() {
+        if (outcome != Outcome.NO_EFFECT) return this;
+        return new ActionVerdict(actionDescription, Outcome.EFFECT, "screenshot changed although the layout tree did not");
+    }
+
+    public String toFeedback() {
+        String label;
+        switch (outcome) {
+            case NO_EFFECT: label = "no-effect"; break;
+            case UNEXPECTED_WINDOW: label = "unexpected-window"; break;
+            default: label = "effect"; break;
+        }
+        return actionDescription + " -> " + label + " (" + detail + ")";
+    }
+}
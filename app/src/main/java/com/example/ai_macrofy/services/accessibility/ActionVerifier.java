@@ -0,0 +1,149 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import android.accessibilityservice.AccessibilityService;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.Nullable;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 액션 실행 전후의 화면 상태를 비교하여 액션이 실제로 효과가 있었는지 로컬에서 판정합니다.
+ * 아무것도 맞추지 못한 터치가 '성공'으로 보고되고 다음 스크린샷에서야 모델이 알아차리는 문제를 줄이기 위한 것입니다.
+ */
+public final class ActionVerifier {
+
+    // 화면 변화를 기대할 수 있고 실행기 스스로 결과를 확인하지 않는 액션들
+    private static final Set<String> VERIFIED_ACTION_TYPES = new HashSet<>(Arrays.asList(
+            "touch", "long_touch", "double_tap", "input", "scroll", "swipe", "drag_and_drop"));
+
+    private static final int FRAME_HASH_SAMPLES = 32;
+
+    private ActionVerifier() {}
+
+    /** 검증 대기 중인 액션과 실행 전 스냅샷 */
+    static final class Pending {
+        final JSONObject action;
+        final ScreenSnapshot before;
+        final boolean retried;
+        final long changeCount; // 실행 시점의 SettleDetector 변화 이벤트 수. 화면이 반응하기 시작했는지 확인하는 데만 사용
+        final long startTime;
+
+        Pending(JSONObject action, ScreenSnapshot before, boolean retried, long changeCount) {
+            this.action = action;
+            this.before = before;
+            this.retried = retried;
+            this.changeCount = changeCount;
+            this.startTime = SystemClock.uptimeMillis();
+        }
+    }
+
+    static boolean shouldVerify(String actionType) {
+        return VERIFIED_ACTION_TYPES.contains(actionType);
+    }
+
+    /**
+     * 현재 활성 창의 레이아웃 지문, 패키지, 창 ID, 입력 포커스 노드를 캡처합니다.
+     */
+    static ScreenSnapshot capture(AccessibilityService service) {
+        AccessibilityNodeInfo rootNode = service.getRootInActiveWindow();
+        if (rootNode == null) {
+            return new ScreenSnapshot(0L, null, -1, null);
+        }
+        String windowPackage = rootNode.getPackageName() != null ? rootNode.getPackageName().toString() : null;
+        int windowId = rootNode.getWindowId();
+        long fingerprint = LayoutFingerprint.of(rootNode);
+
+        String focusedNodeKey = null;
+        AccessibilityNodeInfo focusedNode = rootNode.findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
+        if (focusedNode != null) {
+            Rect bounds = new Rect();
+            focusedNode.getBoundsInScreen(bounds);
+            focusedNodeKey = focusedNode.getClassName() + "|" + focusedNode.getViewIdResourceName() + "|" + bounds.toShortString();
+            focusedNode.recycle();
+        }
+        rootNode.recycle();
+        return new ScreenSnapshot(fingerprint, windowPackage, windowId, focusedNodeKey);
+    }
+
+    /**
+     * 실행 전후 스냅샷을 비교하여 액션의 결과를 분류합니다.
+     * 다른 앱으로의 전환(런처 아이콘, 공유 시트, 선택기, 권한 대화상자 등)은 대개 의도한 결과이므로 효과로 봅니다.
+     * 현재 창 안에서만 움직여야 하는 스크롤 중에 포그라운드 앱이 바뀐 경우만 예상치 못한 창으로 보고합니다.
+     */
+    static ActionVerdict classify(JSONObject action, ScreenSnapshot before, ScreenSnapshot after, boolean retried) {
+        String description = describe(action) + (retried ? " [retried on nearest clickable node]" : "");
+
+        if (before.isEmpty() || after.isEmpty()) {
+            return new ActionVerdict(description, ActionVerdict.Outcome.EFFECT, "window content not available for verification");
+        }
+        if (!before.sameWindowPackage(after)) {
+            String detail = "foreground changed from " + before.windowPackage + " to " + after.windowPackage;
+            ActionVerdict.Outcome outcome = "scroll".equals(action.optString("type"))
+                    ? ActionVerdict.Outcome.UNEXPECTED_WINDOW : ActionVerdict.Outcome.EFFECT;
+            return new ActionVerdict(description, outcome, detail);
+        }
+        if (before.windowId != after.windowId) {
+            return new ActionVerdict(description, ActionVerdict.Outcome.EFFECT, "a new window opened");
+        }
+        if (before.layoutFingerprint != after.layoutFingerprint) {
+            return new ActionVerdict(description, ActionVerdict.Outcome.EFFECT, "layout changed");
+        }
+        if (!before.sameFocus(after)) {
+            return new ActionVerdict(description, ActionVerdict.Outcome.EFFECT, "input focus moved");
+        }
+        return new ActionVerdict(description, ActionVerdict.Outcome.NO_EFFECT, "layout, focus and window unchanged");
+    }
+
+    /**
+     * 스크린샷을 격자로 샘플링한 가벼운 해시입니다. 연속된 두 단계의 프레임이 달라졌는지 확인하는 데 사용합니다.
+     */
+    public static long hashFrame(@Nullable Bitmap bitmap) {
+        if (bitmap == null) return 0L;
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        long hash = 1125899906842597L;
+        for (int row = 0; row < FRAME_HASH_SAMPLES; row++) {
+            int y = (int) ((row + 0.5f) * height / FRAME_HASH_SAMPLES);
+            for (int col = 0; col < FRAME_HASH_SAMPLES; col++) {
+                int x = (int) ((col + 0.5f) * width / FRAME_HASH_SAMPLES);
+                hash = 31 * hash + bitmap.getPixel(x, y);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * 검증 결과 중 효과가 없었거나 예상치 못한 창이 나타난 것만 모아 실행 피드백 문자열로 만듭니다.
+     * @return 보고할 내용이 없으면 null
+     */
+    @Nullable
+    public static String summarizeForFeedback(List<ActionVerdict> verdicts) {
+        StringBuilder sb = null;
+        for (ActionVerdict verdict : verdicts) {
+            if (verdict.outcome == ActionVerdict.Outcome.EFFECT) continue;
+            if (sb == null) {
+                sb = new StringBuilder("Local action verification:");
+            }
+            sb.append("\n- ").append(verdict.toFeedback());
+        }
+        return sb != null ? sb.toString() : null;
+    }
+
+    private static String describe(JSONObject action) {
+        String type = action.optString("type");
+        JSONObject coordinates = action.optJSONObject("coordinates");
+        if (coordinates != null) {
+            return type + " at (" + coordinates.optInt("x") + "," + coordinates.optInt("y") + ")";
+        }
+        return type;
+    }
+}
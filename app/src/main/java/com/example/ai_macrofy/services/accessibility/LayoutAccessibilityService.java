@@ -14,6 +14,7 @@ public class LayoutAccessibilityService extends AccessibilityService {
 
     private static final String TAG = "LayoutAccessibilityService";
     public static LayoutAccessibilityService instance;
+    private final SettleDetector settleDetector = new SettleDetector();
 
     @Override
     public void onServiceConnected() {
@@ -24,7 +25,24 @@ public class LayoutAccessibilityService extends AccessibilityService {
 
     @Override
     public void onAccessibilityEvent(AccessibilityEvent event) {
-        // Event processing not implemented
+        if (event == null) return;
+        // 이 앱 자신의 창(백그라운드 WebView 등)에서 오는 이벤트는 화면 안정 판단에서 제외
+        if (event.getPackageName() != null && getPackageName().contentEquals(event.getPackageName())) return;
+
+        switch (event.getEventType()) {
+            case AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED:
+            case AccessibilityEvent.TYPE_WINDOWS_CHANGED:
+            case AccessibilityEvent.TYPE_VIEW_SCROLLED:
+                settleDetector.onScreenChanged();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public SettleDetector getSettleDetector() {
+        return settleDetector;
     }
 
     @Override
@@ -0,0 +1,58 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import android.graphics.Rect;
+import android.view.accessibility.AccessibilityNodeInfo;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * 접근성 노드 트리의 구조와 내용을 하나의 해시값으로 요약합니다.
+ * 스크롤 후 화면이 실제로 바뀌었는지 등을 LLM 호출 없이 로컬에서 판단할 때 사용합니다.
+ */
+public final class LayoutFingerprint {
+
+    private LayoutFingerprint() {}
+
+    /**
+     * 주어진 노드와 모든 자손 노드의 클래스, 텍스트, 설명, ID, 화면상 위치, 체크/선택 상태를 해시합니다.
+     * @param node 지문을 계산할 루트 노드 (호출자가 소유하며 여기서 recycle하지 않음)
+     * @return 레이아웃 지문. 노드가 null이면 0
+     */
+    public static long of(@Nullable AccessibilityNodeInfo node) {
+        if (node == null) return 0L;
+
+        long hash = 1125899906842597L;
+        Rect bounds = new Rect();
+        Deque<AccessibilityNodeInfo> deque = new ArrayDeque<>();
+        deque.add(AccessibilityNodeInfo.obtain(node));
+
+        while (!deque.isEmpty()) {
+            AccessibilityNodeInfo currentNode = deque.poll();
+            if (currentNode == null) continue;
+
+            currentNode.getBoundsInScreen(bounds);
+            hash = 31 * hash + hashOf(currentNode.getClassName());
+            hash = 31 * hash + hashOf(currentNode.getText());
+            hash = 31 * hash + hashOf(currentNode.getContentDescription());
+            hash = 31 * hash + hashOf(currentNode.getViewIdResourceName());
+            hash = 31 * hash + bounds.hashCode();
+            hash = 31 * hash + (currentNode.isChecked() ? 1 : 0) + (currentNode.isSelected() ? 2 : 0);
+
+            for (int i = 0; i < currentNode.getChildCount(); i++) {
+                AccessibilityNodeInfo child = currentNode.getChild(i);
+                if (child != null) {
+                    deque.add(AccessibilityNodeInfo.obtain(child));
+                }
+            }
+            currentNode.recycle();
+        }
+        return hash;
+    }
+
+    private static int hashOf(@Nullable CharSequence value) {
+        return value != null ? value.toString().hashCode() : 0;
+    }
+}
@@ -5,63 +5,102 @@ import android.accessibilityservice.GestureDescription;
 import android.content.Intent;
 import android.graphics.Path;
 import android.graphics.Rect;
-import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.accessibility.AccessibilityEvent;
 import android.view.accessibility.AccessibilityNodeInfo;
 import android.widget.Toast;
-import com.example.ai_macrofy.services.foreground.MyForegroundService;
 
-import org.json.JSONArray;
+import androidx.annotation.Nullable;
+
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayDeque;
 import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
 
 public class MacroAccessibilityService extends AccessibilityService {
 
     private static final String TAG = "MacroAccessibilityService";
     public static MacroAccessibilityService instance;
+    // 액션은 메인 스레드가 아닌 전용 루퍼에서 순차적으로 실행됩니다.
+    private HandlerThread actionThread;
     private Handler actionHandler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
     private static final int MSG_EXECUTE_NEXT_ACTION = 1;
-    private JSONArray actionsQueue;
-    private int currentActionIndex = 0;
-
-    // 제스처 완료 후 다음 액션을 실행하기 위한 콜백
-    private final GestureResultCallback gestureResultCallback = new GestureResultCallback() {
-        @Override
-        public void onCompleted(GestureDescription gestureDescription) {
-            super.onCompleted(gestureDescription);
-            Log.i(TAG, "Gesture COMPLETED for action index: " + (currentActionIndex - 1));
-            // 제스처 완료 후 200ms 딜레이를 주어 UI가 안정될 시간을 줌
-            actionHandler.sendEmptyMessageDelayed(MSG_EXECUTE_NEXT_ACTION, 200);
-        }
-
-        @Override
-        public void onCancelled(GestureDescription gestureDescription) {
-            super.onCancelled(gestureDescription);
-            String failureMessage = "Gesture CANCELLED for action index: " + (currentActionIndex - 1);
-            Log.e(TAG, failureMessage);
-            if (MyForegroundService.instance != null) {
-                MyForegroundService.instance.reportActionCompleted(false, failureMessage);
+    private volatile ActionPlan currentPlan;
+    private ActionPlan executingPlan; // 실행기 스레드에서 지금 처리 중인 계획
+
+    // 효과 없는 터치를 로컬에서 재시도할 때, 터치 지점에서 이 거리(dp) 이내의 클릭 가능한 노드만 대상으로 함
+    private static final int NEAREST_CLICKABLE_MAX_DISTANCE_DP = 48;
+
+    // 액션 검증: 화면이 반응하기를 기다리는 최대 시간, 반응이 시작된 뒤 안정으로 보는 무변화 시간과 그 최대 대기 시간
+    private static final long VERIFY_RESPONSE_TIMEOUT_MS = 800;
+    private static final long VERIFY_SETTLE_QUIET_MS = 200;
+    private static final long VERIFY_SETTLE_TIMEOUT_MS = 1500;
+    private static final long VERIFY_POLL_INTERVAL_MS = 50;
+
+    private static final int SCROLL_UNTIL_DEFAULT_MAX = 10;
+    private static final long SCROLL_UNTIL_SETTLE_DELAY_MS = 350;
+
+    // open_application: 대상 패키지의 창 전환 이벤트와 콘텐츠 안정화를 기다리는 데 사용
+    private static final long OPEN_APP_TIMEOUT_MS = 5000;
+    private static final long OPEN_APP_CONTENT_QUIET_MS = 250;
+    private final Map<String, Intent> launchIntentCache = new HashMap<>();
+    private volatile String pendingLaunchPackage;
+    private ActionPlan pendingLaunchPlan;
+    private boolean pendingLaunchWindowShown;
+    private long pendingLaunchStartTime;
+    private final Runnable openAppSettledRunnable = () -> completeOpenApplication("content stable");
+    private final Runnable openAppTimeoutRunnable = () -> completeOpenApplication("timeout");
+
+    /**
+     * 제스처 완료 후 다음 액션을 실행하기 위한 콜백을 생성합니다.
+     * 콜백은 제스처를 보낸 계획에 묶여 있으므로, 그 사이 계획이 취소되거나 대체되면 아무 일도 하지 않습니다.
+     */
+    private GestureResultCallback gestureCallbackFor(ActionPlan plan) {
+        return new GestureResultCallback() {
+            @Override
+            public void onCompleted(GestureDescription gestureDescription) {
+                super.onCompleted(gestureDescription);
+                Log.i(TAG, "Gesture COMPLETED for action index: " + (plan.getCurrentIndex() - 1));
+                // 제스처 완료 후 200ms 딜레이를 주어 UI가 안정될 시간을 줌
+                scheduleNextAction(plan, 200);
             }
-        }
-    };
+
+            @Override
+            public void onCancelled(GestureDescription gestureDescription) {
+                super.onCancelled(gestureDescription);
+                String failureMessage = "Gesture CANCELLED for action index: " + (plan.getCurrentIndex() - 1);
+                Log.e(TAG, failureMessage);
+                plan.complete(ActionResult.failure(plan.getGeneration(), failureMessage));
+            }
+        };
+    }
 
     @Override
     public void onServiceConnected() {
         super.onServiceConnected();
-        // 액션을 순차적으로 처리하기 위한 핸들러 초기화
-        actionHandler = new Handler(Looper.getMainLooper()) {
+        // 액션을 순차적으로 처리하기 위한 전용 스레드와 핸들러 초기화
+        actionThread = new HandlerThread("MacroActionExecutor");
+        actionThread.start();
+        actionHandler = new Handler(actionThread.getLooper()) {
             @Override
             public void handleMessage(Message msg) {
                 if (msg.what == MSG_EXECUTE_NEXT_ACTION) {
-                    executeNextAction();
+                    ActionPlan plan = (ActionPlan) msg.obj;
+                    if (plan == currentPlan && plan.isActive()) {
+                        executeNextAction(plan);
+                    } else {
+                        Log.d(TAG, "Ignoring stale action message for plan " + plan.getGeneration());
+                    }
                 }
             }
         };
@@ -70,31 +109,59 @@ public class MacroAccessibilityService extends AccessibilityService {
     }
 
     @Override
-    public void onAccessibilityEvent(AccessibilityEvent event) {}
+    public void onAccessibilityEvent(AccessibilityEvent event) {
+        String launchPackage = pendingLaunchPackage;
+        if (launchPackage == null || event == null || event.getPackageName() == null) return;
+        if (!launchPackage.contentEquals(event.getPackageName())) return;
+
+        // 이벤트 객체는 재사용되므로 필요한 값만 복사하여 실행기 스레드로 넘깁니다.
+        final int eventType = event.getEventType();
+        actionHandler.post(() -> onLaunchPackageEvent(launchPackage, eventType));
+    }
+
+    private void onLaunchPackageEvent(String packageName, int eventType) {
+        if (!packageName.equals(pendingLaunchPackage)) return;
+
+        if (eventType == AccessibilityEvent.TYPE_WINDOW_STATE_CHANGED) {
+            if (!pendingLaunchWindowShown) {
+                Log.d(TAG, "Window of " + packageName + " appeared after " + (System.currentTimeMillis() - pendingLaunchStartTime) + "ms.");
+            }
+            pendingLaunchWindowShown = true;
+            scheduleOpenAppSettleCheck();
+        } else if (eventType == AccessibilityEvent.TYPE_WINDOW_CONTENT_CHANGED && pendingLaunchWindowShown) {
+            // 첫 화면이 그려지는 동안에는 콘텐츠 변경 이벤트가 이어지므로, 조용해질 때까지 완료를 미룹니다.
+            scheduleOpenAppSettleCheck();
+        }
+    }
 
     @Override
     public void onInterrupt() {
         Log.w(TAG, "Service interrupted");
-        if (actionHandler != null) actionHandler.removeCallbacksAndMessages(null);
-        instance = null;
+        cancelExecution();
     }
 
     @Override
     public void onDestroy() {
         Log.d(TAG, "Service destroyed");
+        cancelExecution();
         if (actionHandler != null) actionHandler.removeCallbacksAndMessages(null);
+        if (actionThread != null) actionThread.quitSafely();
         instance = null;
         super.onDestroy();
     }
 
     /**
-     * AI로부터 받은 JSON 액션 목록을 실행합니다.
+     * AI로부터 받은 JSON 액션 목록을 전용 실행기 스레드에서 실행합니다.
+     * 실행 중인 이전 계획이 있으면 취소하고 새 계획으로 대체합니다.
      * @param json 실행할 액션이 담긴 JSON 문자열
+     * @return 실행 중인 계획. 결과는 {@link ActionPlan#getCompletion()}으로 전달됩니다.
      */
-    public void executeActionsFromJson(String json) {
+    public ActionPlan executeActionsFromJson(String json) {
         if (json == null || json.isEmpty()) {
             Log.w(TAG, "JSON string is null or empty.");
-            return;
+            ActionPlan emptyPlan = new ActionPlan(null);
+            emptyPlan.complete(ActionResult.failure(emptyPlan.getGeneration(), "Empty action JSON."));
+            return emptyPlan;
         }
         try {
             // 마크다운 형식 정리
@@ -105,71 +172,255 @@ public class MacroAccessibilityService extends AccessibilityService {
             }
 
             JSONObject jsonObject = new JSONObject(json);
-            actionsQueue = jsonObject.optJSONArray("actions");
+            ActionPlan plan = new ActionPlan(jsonObject.optJSONArray("actions"));
 
-            if (actionsQueue == null || actionsQueue.length() == 0) {
+            if (plan.size() == 0) {
                 Log.w(TAG, "No actions found in JSON to execute.");
-                if (MyForegroundService.instance != null) {
-                    MyForegroundService.instance.reportActionCompleted(true, "No actions in JSON");
-                }
-                return;
+                plan.complete(ActionResult.success(plan.getGeneration(), "No actions in JSON"));
+                return plan;
             }
 
-            // 액션 큐 실행 시작
-            currentActionIndex = 0;
-            actionHandler.sendEmptyMessage(MSG_EXECUTE_NEXT_ACTION);
+            // 이전 계획을 취소하고 새 액션 큐 실행 시작
+            activatePlan(plan);
+            scheduleNextAction(plan, 0);
+            return plan;
 
         } catch (JSONException e) {
             Log.e(TAG, "JSONException parsing actions: " + e.getMessage(), e);
-            if (MyForegroundService.instance != null) {
-                MyForegroundService.instance.reportActionCompleted(false, "JSON parsing error: " + e.getMessage());
-            }
+            ActionPlan failedPlan = new ActionPlan(null);
+            failedPlan.complete(ActionResult.failure(failedPlan.getGeneration(), "JSON parsing error: " + e.getMessage()));
+            return failedPlan;
+        }
+    }
+
+    /**
+     * 스트리밍 응답을 위한 빈 계획을 시작합니다. 액션은 {@link #appendAction}으로 도착하는 즉시 실행되고,
+     * {@link #sealPlan}이 호출된 뒤 마지막 액션이 끝나면 계획이 완료됩니다.
+     */
+    public ActionPlan beginStreamingPlan() {
+        ActionPlan plan = new ActionPlan(null, false);
+        activatePlan(plan);
+        actionHandler.post(() -> plan.setWaitingForActions(true));
+        return plan;
+    }
+
+    /**
+     * 스트리밍 계획에 액션을 추가합니다. 실행기가 다음 액션을 기다리고 있었다면 바로 실행합니다.
+     */
+    public void appendAction(ActionPlan plan, JSONObject action) {
+        actionHandler.post(() -> {
+            if (!plan.isActive() || plan.isSealed()) return;
+            plan.append(action);
+            resumeIfWaiting(plan);
+        });
+    }
+
+    /**
+     * 스트리밍 계획에 더 이상 액션이 없음을 알립니다.
+     */
+    public void sealPlan(ActionPlan plan) {
+        actionHandler.post(() -> {
+            if (!plan.isActive()) return;
+            plan.seal();
+            resumeIfWaiting(plan);
+        });
+    }
+
+    private void resumeIfWaiting(ActionPlan plan) {
+        if (plan.isWaitingForActions()) {
+            plan.setWaitingForActions(false);
+            scheduleNextAction(plan, 0);
+        }
+    }
+
+    private void activatePlan(ActionPlan plan) {
+        ActionPlan previousPlan = currentPlan;
+        if (previousPlan != null && previousPlan.isActive()) {
+            Log.w(TAG, "Superseding active plan " + previousPlan.getGeneration() + " with plan " + plan.getGeneration());
+            previousPlan.cancel();
+        }
+        currentPlan = plan;
+    }
+
+    /**
+     * 실행 중인 계획을 취소하고 예약된 액션 메시지를 모두 제거합니다.
+     * 취소된 계획의 지연된 콜백은 세대 ID 확인으로 무시됩니다.
+     */
+    public void cancelExecution() {
+        ActionPlan plan = currentPlan;
+        currentPlan = null;
+        pendingLaunchPackage = null;
+        if (plan != null && plan.isActive()) {
+            Log.d(TAG, "Cancelling action plan " + plan.getGeneration());
+            plan.cancel();
+        }
+        if (actionHandler != null) {
+            actionHandler.removeMessages(MSG_EXECUTE_NEXT_ACTION);
+            actionHandler.post(this::clearPendingLaunch);
         }
     }
 
+    private void scheduleNextAction(ActionPlan plan, long delayMillis) {
+        if (!plan.isActive()) return;
+        actionHandler.sendMessageDelayed(actionHandler.obtainMessage(MSG_EXECUTE_NEXT_ACTION, plan), delayMillis);
+    }
+
+    private void failPlan(ActionPlan plan, String failureMessage) {
+        Log.e(TAG, failureMessage);
+        plan.complete(ActionResult.failure(plan.getGeneration(), failureMessage));
+    }
+
     /**
      * 액션 큐에서 다음 액션을 꺼내 실행합니다.
      */
-    private void executeNextAction() {
-        if (actionsQueue == null || currentActionIndex >= actionsQueue.length()) {
-            Log.d(TAG, "All actions executed successfully.");
-            if (MyForegroundService.instance != null) {
-                MyForegroundService.instance.reportActionCompleted(true, null);
+    private void executeNextAction(ActionPlan plan) {
+        // 이전 액션의 효과를 먼저 확인합니다. 화면을 더 기다리거나 로컬 재시도가 시작되면 이번 차례는 그것으로 끝납니다.
+        if (verifyPreviousAction(plan)) return;
+
+        if (!plan.hasNext()) {
+            if (!plan.isSealed()) {
+                // 스트리밍 중: 다음 액션이 도착하거나 계획이 봉인될 때까지 대기
+                plan.setWaitingForActions(true);
+                return;
             }
+            Log.d(TAG, "All actions executed successfully.");
+            plan.complete(ActionResult.success(plan.getGeneration(), null));
             return;
         }
 
+        executingPlan = plan;
         try {
-            JSONObject action = actionsQueue.getJSONObject(currentActionIndex);
-            currentActionIndex++; // 다음 액션을 위해 인덱스 증가
+            JSONObject action = plan.next(); // 다음 액션을 위해 인덱스 증가
+            ScreenSnapshot before = ActionVerifier.shouldVerify(action.optString("type")) ? ActionVerifier.capture(this) : null;
+            long changeCount = changeCount();
 
             if (!handleAction(action)) {
-                String failureMessage = "Action failed: " + action.optString("type");
-                Log.e(TAG, failureMessage);
-                if (MyForegroundService.instance != null) {
-                    MyForegroundService.instance.reportActionCompleted(false, failureMessage);
-                }
+                failPlan(plan, "Action failed: " + action.optString("type"));
+            } else if (before != null) {
+                plan.setPendingVerification(new ActionVerifier.Pending(action, before, false, changeCount));
             }
         } catch (JSONException e) {
             Log.e(TAG, "JSONException during executing next action: " + e.getMessage(), e);
-            if (MyForegroundService.instance != null) {
-                MyForegroundService.instance.reportActionCompleted(false, "JSON parsing error: " + e.getMessage());
-            }
+            plan.complete(ActionResult.failure(plan.getGeneration(), "JSON parsing error: " + e.getMessage()));
+        } finally {
+            executingPlan = null;
         }
     }
 
+    /**
+     * 직전에 실행한 액션 전후의 화면을 비교하여 판정 결과를 계획에 기록합니다.
+     * 느린 화면이 효과 없음으로 분류되지 않도록, 화면이 반응하고 안정될 때까지 비교를 미룹니다.
+     * 터치 지점이 어떤 클릭 가능한 노드에도 속하지 않았고 아무 효과도 없었다면, 모델을 다시 호출하지 않고
+     * 가장 가까운 클릭 가능한 노드에 한 번 더 클릭을 시도합니다.
+     * @return 확인을 다시 예약했거나 로컬 재시도를 시작했으면 true (다음 차례에 다시 검증됨)
+     */
+    private boolean verifyPreviousAction(ActionPlan plan) {
+        ActionVerifier.Pending pending = plan.takePendingVerification();
+        if (pending == null) return false;
+
+        // 실행기 스레드를 막지 않고 확인을 다시 예약합니다. 계획이 취소되면 예약된 메시지와 함께 대기도 끝납니다.
+        long waitMillis = settleWaitMillis(pending);
+        if (waitMillis > 0) {
+            plan.setPendingVerification(pending);
+            scheduleNextAction(plan, waitMillis);
+            return true;
+        }
+
+        ScreenSnapshot after = ActionVerifier.capture(this);
+        ActionVerdict verdict = ActionVerifier.classify(pending.action, pending.before, after, pending.retried);
+        Log.d(TAG, "Action verdict: " + verdict.toFeedback());
+
+        long changeCount = changeCount();
+        if (verdict.outcome == ActionVerdict.Outcome.NO_EFFECT && !pending.retried
+                && "touch".equals(pending.action.optString("type"))
+                && retryTouchOnNearestClickable(pending.action)) {
+            plan.setPendingVerification(new ActionVerifier.Pending(pending.action, after, true, changeCount));
+            scheduleNextAction(plan, 200);
+            return true;
+        }
+        plan.addVerdict(verdict);
+        return false;
+    }
+
+    @Nullable
+    private static SettleDetector settleDetector() {
+        LayoutAccessibilityService layoutService = LayoutAccessibilityService.instance;
+        return layoutService != null ? layoutService.getSettleDetector() : null;
+    }
+
+    private static long changeCount() {
+        SettleDetector settleDetector = settleDetector();
+        return settleDetector != null ? settleDetector.getChangeCount() : 0L;
+    }
+
+    /**
+     * 검증 전에 더 기다려야 할 시간을 반환합니다. 0이면 지금 비교합니다.
+     * 화면 변화 이벤트가 오기 시작하면 안정될 때까지, 오지 않으면 VERIFY_RESPONSE_TIMEOUT_MS까지 기다립니다.
+     * 레이아웃 서비스가 꺼져 있으면 기다리지 않습니다.
+     */
+    private static long settleWaitMillis(ActionVerifier.Pending pending) {
+        SettleDetector settleDetector = settleDetector();
+        if (settleDetector == null || pending.before.isEmpty()) return 0;
+
+        long elapsed = SystemClock.uptimeMillis() - pending.startTime;
+        if (settleDetector.getChangeCount() == pending.changeCount) {
+            return elapsed < VERIFY_RESPONSE_TIMEOUT_MS
+                    ? Math.min(VERIFY_POLL_INTERVAL_MS, VERIFY_RESPONSE_TIMEOUT_MS - elapsed) : 0;
+        }
+        long remaining = VERIFY_RESPONSE_TIMEOUT_MS + VERIFY_SETTLE_TIMEOUT_MS - elapsed;
+        long quietFor = settleDetector.getMillisSinceLastChange();
+        if (quietFor >= VERIFY_SETTLE_QUIET_MS || remaining <= 0) return 0;
+        return Math.min(VERIFY_SETTLE_QUIET_MS - quietFor, remaining);
+    }
+
+    /**
+     * 터치 지점이 어떤 클릭 가능한 노드에도 속하지 않을 때만, 가까운 클릭 가능한 노드에 ACTION_CLICK을 보냅니다.
+     * 터치가 이미 노드를 맞췄다면 화면이 반응하지 않았더라도 다시 누르지 않습니다 (보내기, 결제, 토글 등의 중복 실행 방지).
+     */
+    private boolean retryTouchOnNearestClickable(JSONObject action) {
+        JSONObject coordinates = action.optJSONObject("coordinates");
+        if (coordinates == null) return false;
+        int x = coordinates.optInt("x", -1);
+        int y = coordinates.optInt("y", -1);
+        if (x < 0 || y < 0) return false;
+
+        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+        if (rootNode == null) return false;
+        AccessibilityNodeInfo hitNode = findClickableNodeAtCoordinates(rootNode, x, y);
+        if (hitNode != null) {
+            hitNode.recycle();
+            rootNode.recycle();
+            Log.d(TAG, "Touch at (" + x + "," + y + ") hit a clickable node. Not retrying.");
+            return false;
+        }
+        int maxDistance = (int) (NEAREST_CLICKABLE_MAX_DISTANCE_DP * getResources().getDisplayMetrics().density);
+        AccessibilityNodeInfo targetNode = findNearestClickableNode(rootNode, x, y, maxDistance);
+        rootNode.recycle();
+        if (targetNode == null) {
+            Log.d(TAG, "No clickable node near (" + x + "," + y + ") for local retry.");
+            return false;
+        }
+
+        boolean success = targetNode.performAction(AccessibilityNodeInfo.ACTION_CLICK);
+        Log.i(TAG, "Touch at (" + x + "," + y + ") missed every clickable node. Local retry with ACTION_CLICK: " + success);
+        targetNode.recycle();
+        return success;
+    }
+
     /**
      * 개별 액션을 타입에 따라 처리합니다.
      * @param action 처리할 액션의 JSONObject
      * @return 액션 처리가 성공적으로 시작되었는지 여부
      */
     private boolean handleAction(JSONObject action) throws JSONException {
+        ActionPlan plan = executingPlan;
         String type = action.optString("type");
-        Log.d(TAG, "Handling action " + (currentActionIndex) + "/" + actionsQueue.length() + ": " + type);
+        Log.d(TAG, "Handling action " + plan.getCurrentIndex() + "/" + plan.size() + ": " + type);
 
-        // 제스처 기반 액션들은 콜백에서 다음 액션을 호출하므로, 여기서 sendEmptyMessage를 호출하지 않음
+        // 제스처 기반 액션들은 콜백에서 다음 액션을 호출하므로, 여기서 scheduleNextAction을 호출하지 않음
         switch (type) {
             case "scroll": return handleScroll(action);
+            case "scroll_until": return handleScrollUntil(action);
             case "swipe": case "drag_and_drop": return handleSwipe(action);
             case "touch": return handleTouch(action);
             case "long_touch": return handleLongTouch(action);
@@ -178,22 +429,20 @@ public class MacroAccessibilityService extends AccessibilityService {
             // 즉시 완료되는 액션들은 여기서 다음 액션을 호출
             case "input":
                 boolean inputSuccess = handleInput(action);
-                performSearchAction();
-                if (inputSuccess) actionHandler.sendEmptyMessageDelayed(MSG_EXECUTE_NEXT_ACTION, 200);
+                if (inputSuccess) scheduleNextAction(plan, 200);
                 return inputSuccess;
             case "gesture":
                 boolean gestureSuccess = handleGlobalGesture(action);
-                if (gestureSuccess) actionHandler.sendEmptyMessageDelayed(MSG_EXECUTE_NEXT_ACTION, 200);
+                if (gestureSuccess) scheduleNextAction(plan, 200);
                 return gestureSuccess;
             case "wait":
-                actionHandler.sendEmptyMessageDelayed(MSG_EXECUTE_NEXT_ACTION, action.getLong("duration"));
+                scheduleNextAction(plan, action.getLong("duration"));
                 return true;
             case "open_application":
-                boolean openSuccess = handleOpenApplication(action);
-                if(openSuccess) actionHandler.sendEmptyMessageDelayed(MSG_EXECUTE_NEXT_ACTION, 1500); // 앱 전환 시간 대기
-                return openSuccess;
+                // 다음 액션은 대상 앱의 창이 뜨고 화면이 안정된 뒤 completeOpenApplication()에서 호출
+                return handleOpenApplication(action);
             case "done":
-                handleDone();
+                handleDone(plan);
                 return true;
             default:
                 Log.e(TAG, "Unknown action type: " + type);
@@ -201,51 +450,6 @@ public class MacroAccessibilityService extends AccessibilityService {
         }
     }
 
-    private boolean performSearchAction() {
-        // API 30 (Android 11) 이상에서만 동작
-        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
-            Log.w(TAG, "performImeAction is only available on Android 11+");
-            return false;
-        }
-
-        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
-        if (rootNode == null) {
-            Log.w(TAG, "Root node is null, cannot perform search action.");
-            return false;
-        }
-
-        AccessibilityNodeInfo focusedNode = rootNode.findFocus(AccessibilityNodeInfo.FOCUS_INPUT);
-
-        if (focusedNode != null && focusedNode.isEditable()) {
-            // --- 수정된 로직 시작 ---
-
-            // 1. 입력 필드가 여러 줄을 지원하는지 확인합니다. (API 21 이상 지원)
-            if (focusedNode.isMultiLine()) {
-                // 2. 여러 줄 입력 필드이면 'Enter'는 줄바꿈이므로 작업을 건너뜁니다.
-                Log.i(TAG, "The input field is multi-line. Skipping IME action to avoid simple newline.");
-                focusedNode.recycle();
-                return false; // 작업을 수행하지 않았으므로 false 반환
-            }
-
-            // --- 수정된 로직 끝 ---
-
-            // 한 줄 입력 필드이므로 'Enter'는 특정 액션(검색, 완료 등)일 가능성이 높습니다.
-            Log.d(TAG, "The input field is single-line. Attempting to perform IME action.");
-
-            boolean success = focusedNode.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_IME_ENTER.getId());
-            Log.d(TAG, "performAction(ACTION_IME_ENTER) result: " + success);
-
-            focusedNode.recycle();
-            return success;
-        }
-
-        if (focusedNode != null) {
-            focusedNode.recycle();
-        }
-
-        Log.w(TAG, "No focused editable field found.");
-        return false;
-    }
     private boolean handleTouch(JSONObject action) throws JSONException {
         JSONObject coordinates = action.getJSONObject("coordinates");
         int x = coordinates.getInt("x");
@@ -304,8 +508,8 @@ public class MacroAccessibilityService extends AccessibilityService {
         JSONObject coordinates = action.getJSONObject("coordinates");
         int x = coordinates.getInt("x");
         int y = coordinates.getInt("y");
-        // 수정: 편집 가능한 노드를 찾는 전용 메서드 사용
-        return performInput(text, x, y);
+        boolean submit = action.optBoolean("submit", false);
+        return performInput(text, x, y, submit);
     }
     /**
      * 'scroll' 액션을 처리합니다.
@@ -324,6 +528,106 @@ public class MacroAccessibilityService extends AccessibilityService {
         return performScroll(direction, centerX, centerY, distance);
     }
 
+    /**
+     * 'scroll_until' 액션을 처리합니다.
+     * 가장 가까운 스크롤 가능한 컨테이너를 반복해서 스크롤하면서, 매 스크롤 후 실제 레이아웃에서 대상을 찾습니다.
+     * 대상을 찾거나 목록 끝(레이아웃 지문 불변 또는 ACTION_SCROLL 실패)에 도달하면 LLM 호출 없이 종료합니다.
+     * 예: {"type":"scroll_until","target":{"text":"Wi-Fi"},"direction":"down","max":15}
+     */
+    private boolean handleScrollUntil(JSONObject action) throws JSONException {
+        JSONObject target = action.getJSONObject("target");
+        String direction = action.optString("direction", "down").toLowerCase();
+        int maxScrolls = action.optInt("max", SCROLL_UNTIL_DEFAULT_MAX);
+
+        int scrollAction;
+        switch (direction) {
+            case "down": case "right":
+                scrollAction = AccessibilityNodeInfo.ACTION_SCROLL_FORWARD;
+                break;
+            case "up": case "left":
+                scrollAction = AccessibilityNodeInfo.ACTION_SCROLL_BACKWARD;
+                break;
+            default:
+                Log.e(TAG, "Unsupported scroll_until direction: " + direction);
+                return false;
+        }
+
+        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+        if (rootNode == null) return false;
+
+        AccessibilityNodeInfo match = findMatchingNode(rootNode, target);
+        if (match != null) {
+            Log.i(TAG, "scroll_until target already visible. No scrolling needed.");
+            match.recycle();
+            rootNode.recycle();
+            scheduleNextAction(executingPlan, 200);
+            return true;
+        }
+
+        // 좌표가 주어지면 그 좌표를 포함하는 가장 작은 컨테이너, 아니면 화면에서 가장 큰 컨테이너를 사용
+        JSONObject coordinates = action.optJSONObject("coordinates");
+        int x = coordinates != null ? coordinates.optInt("x", -1) : -1;
+        int y = coordinates != null ? coordinates.optInt("y", -1) : -1;
+        AccessibilityNodeInfo container = findScrollableContainer(rootNode, x, y);
+        rootNode.recycle();
+
+        if (container == null) {
+            Log.w(TAG, "scroll_until: no scrollable container found.");
+            return false;
+        }
+
+        Log.d(TAG, "Handling scroll_until. Target: " + target + ", Direction: " + direction + ", Max: " + maxScrolls);
+        scrollUntilStep(executingPlan, container, target, scrollAction, 0, maxScrolls, LayoutFingerprint.of(container));
+        return true;
+    }
+
+    private void scrollUntilStep(ActionPlan plan, AccessibilityNodeInfo container, JSONObject target, int scrollAction,
+                                 int attempt, int maxScrolls, long previousFingerprint) {
+        if (attempt >= maxScrolls) {
+            finishScrollUntil(plan, container, false, "scroll_until: target " + target + " not found after " + attempt + " scrolls.");
+            return;
+        }
+        if (!container.performAction(scrollAction)) {
+            // 더 이상 스크롤할 수 없으면 목록의 끝으로 간주
+            finishScrollUntil(plan, container, false, "scroll_until: reached end of list after " + attempt + " scrolls without finding " + target + ".");
+            return;
+        }
+
+        actionHandler.postDelayed(() -> {
+            if (!plan.isActive()) {
+                container.recycle();
+                return;
+            }
+            container.refresh();
+
+            AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+            AccessibilityNodeInfo match = rootNode != null ? findMatchingNode(rootNode, target) : null;
+            if (rootNode != null) rootNode.recycle();
+            if (match != null) {
+                match.recycle();
+                Log.i(TAG, "scroll_until found target after " + (attempt + 1) + " scrolls.");
+                finishScrollUntil(plan, container, true, null);
+                return;
+            }
+
+            long fingerprint = LayoutFingerprint.of(container);
+            if (fingerprint == previousFingerprint) {
+                finishScrollUntil(plan, container, false, "scroll_until: reached end of list after " + (attempt + 1) + " scrolls without finding " + target + ".");
+                return;
+            }
+            scrollUntilStep(plan, container, target, scrollAction, attempt + 1, maxScrolls, fingerprint);
+        }, SCROLL_UNTIL_SETTLE_DELAY_MS);
+    }
+
+    private void finishScrollUntil(ActionPlan plan, AccessibilityNodeInfo container, boolean found, @Nullable String failureMessage) {
+        container.recycle();
+        if (found) {
+            scheduleNextAction(plan, 200);
+            return;
+        }
+        failPlan(plan, failureMessage);
+    }
+
     private boolean handleGlobalGesture(JSONObject action) throws JSONException {
         String name = action.getString("name");
         boolean success = false;
@@ -349,21 +653,78 @@ public class MacroAccessibilityService extends AccessibilityService {
         if (packageName == null || packageName.isEmpty()) {
             return false;
         }
-        Intent intent = getPackageManager().getLaunchIntentForPackage(packageName);
+        Intent intent = getLaunchIntent(packageName);
         if (intent == null) {
             return false;
         }
-        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+
+        // 이미 전면에 있는 앱이면 창 전환 이벤트가 오지 않을 수 있으므로, 화면 안정화만 기다립니다.
+        boolean alreadyForeground = false;
+        AccessibilityNodeInfo rootNode = getRootInActiveWindow();
+        if (rootNode != null) {
+            alreadyForeground = rootNode.getPackageName() != null && packageName.contentEquals(rootNode.getPackageName());
+            rootNode.recycle();
+        }
+
+        clearPendingLaunch();
+        pendingLaunchPlan = executingPlan;
+        pendingLaunchPackage = packageName;
+        pendingLaunchWindowShown = alreadyForeground;
+        pendingLaunchStartTime = System.currentTimeMillis();
+        actionHandler.postDelayed(openAppTimeoutRunnable, OPEN_APP_TIMEOUT_MS);
+        if (alreadyForeground) {
+            scheduleOpenAppSettleCheck();
+        }
+
         startActivity(intent);
         return true;
     }
 
-    private void handleDone() {
-        Log.d(TAG, "Execution completed.");
-        if (MyForegroundService.instance != null) {
-            MyForegroundService.instance.stopMacroExecution();
+    /**
+     * 패키지별 실행 Intent를 캐시하여 매번 getLaunchIntentForPackage()를 호출하지 않도록 합니다.
+     * 캐시된 Intent는 수정되지 않도록 복사본을 반환합니다.
+     */
+    private Intent getLaunchIntent(String packageName) {
+        Intent cached = launchIntentCache.get(packageName);
+        if (cached == null) {
+            cached = getPackageManager().getLaunchIntentForPackage(packageName);
+            if (cached == null) {
+                return null;
+            }
+            cached.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            launchIntentCache.put(packageName, cached);
         }
-        actionHandler.post(() -> Toast.makeText(getApplicationContext(), "All actions completed.", Toast.LENGTH_LONG).show());
+        return new Intent(cached);
+    }
+
+    private void scheduleOpenAppSettleCheck() {
+        actionHandler.removeCallbacks(openAppSettledRunnable);
+        actionHandler.postDelayed(openAppSettledRunnable, OPEN_APP_CONTENT_QUIET_MS);
+    }
+
+    private void completeOpenApplication(String reason) {
+        ActionPlan plan = pendingLaunchPlan;
+        if (pendingLaunchPackage == null || plan == null) return;
+        Log.i(TAG, "open_application " + pendingLaunchPackage + " resolved (" + reason + ") after "
+                + (System.currentTimeMillis() - pendingLaunchStartTime) + "ms. Window shown: " + pendingLaunchWindowShown);
+        clearPendingLaunch();
+        scheduleNextAction(plan, 0);
+    }
+
+    private void clearPendingLaunch() {
+        pendingLaunchPackage = null;
+        pendingLaunchPlan = null;
+        pendingLaunchWindowShown = false;
+        if (actionHandler != null) {
+            actionHandler.removeCallbacks(openAppSettledRunnable);
+            actionHandler.removeCallbacks(openAppTimeoutRunnable);
+        }
+    }
+
+    private void handleDone(ActionPlan plan) {
+        Log.d(TAG, "Execution completed.");
+        plan.complete(ActionResult.done(plan.getGeneration()));
+        mainHandler.post(() -> Toast.makeText(getApplicationContext(), "All actions completed.", Toast.LENGTH_LONG).show());
     }
     private boolean performGestureTouch(int x, int y, long duration) {
         if (x < 0 || y < 0) return false;
@@ -371,7 +732,7 @@ public class MacroAccessibilityService extends AccessibilityService {
         path.moveTo((float) x, (float) y);
         GestureDescription.Builder gestureBuilder = new GestureDescription.Builder();
         gestureBuilder.addStroke(new GestureDescription.StrokeDescription(path, 0L, duration));
-        return dispatchGesture(gestureBuilder.build(), gestureResultCallback, null);
+        return dispatchGesture(gestureBuilder.build(), gestureCallbackFor(executingPlan), actionHandler);
     }
     private boolean performDoubleTap(int x, int y) {
         if (x < 0 || y < 0) return false;
@@ -380,7 +741,7 @@ public class MacroAccessibilityService extends AccessibilityService {
         GestureDescription.Builder gestureBuilder = new GestureDescription.Builder();
         gestureBuilder.addStroke(new GestureDescription.StrokeDescription(path, 0L, 100L));
         gestureBuilder.addStroke(new GestureDescription.StrokeDescription(path, 150L, 100L));
-        return dispatchGesture(gestureBuilder.build(), gestureResultCallback, null);
+        return dispatchGesture(gestureBuilder.build(), gestureCallbackFor(executingPlan), actionHandler);
     }
 
     private boolean performSwipe(int startX, int startY, int endX, int endY, long duration) {
@@ -390,24 +751,38 @@ public class MacroAccessibilityService extends AccessibilityService {
         path.lineTo((float) endX, (float) endY);
         GestureDescription.Builder gestureBuilder = new GestureDescription.Builder();
         gestureBuilder.addStroke(new GestureDescription.StrokeDescription(path, 0L, duration));
-        return dispatchGesture(gestureBuilder.build(), gestureResultCallback, null);
+        return dispatchGesture(gestureBuilder.build(), gestureCallbackFor(executingPlan), actionHandler);
     }
-    private boolean performInput(String text, int x, int y) {
+    /**
+     * 좌표의 편집 가능한 노드를 한 번만 찾아, 같은 노드에 포커스, 텍스트 입력, (요청 시) IME 제출을 차례로 수행합니다.
+     * @param submit true이면 입력 후 ACTION_IME_ENTER를 실행합니다. 여러 줄 입력 필드에서는 줄바꿈이 되므로 건너뜁니다.
+     */
+    private boolean performInput(String text, int x, int y, boolean submit) {
         AccessibilityNodeInfo rootNode = getRootInActiveWindow();
         if (rootNode == null) return false;
-        // 수정: findClickableNodeAtCoordinates 대신 findEditableNodeAtCoordinates 사용
         AccessibilityNodeInfo targetNode = findEditableNodeAtCoordinates(rootNode, x, y);
         rootNode.recycle();
 
-        if (targetNode != null) { // isEditable() 체크는 findEditableNodeAtCoordinates에서 이미 수행됨
-            targetNode.performAction(AccessibilityNodeInfo.ACTION_FOCUS);
-            Bundle args = new Bundle();
-            args.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
-            boolean success = targetNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, args);
-            targetNode.recycle();
-            return success;
+        if (targetNode == null) { // isEditable() 체크는 findEditableNodeAtCoordinates에서 이미 수행됨
+            Log.w(TAG, "No editable node found at (" + x + "," + y + ").");
+            return false;
         }
-        return false;
+
+        targetNode.performAction(AccessibilityNodeInfo.ACTION_FOCUS);
+        Bundle args = new Bundle();
+        args.putCharSequence(AccessibilityNodeInfo.ACTION_ARGUMENT_SET_TEXT_CHARSEQUENCE, text);
+        boolean success = targetNode.performAction(AccessibilityNodeInfo.ACTION_SET_TEXT, args);
+
+        if (success && submit) {
+            if (targetNode.isMultiLine()) {
+                Log.i(TAG, "The input field is multi-line. Skipping IME action to avoid simple newline.");
+            } else {
+                boolean submitted = targetNode.performAction(AccessibilityNodeInfo.AccessibilityAction.ACTION_IME_ENTER.getId());
+                Log.d(TAG, "performAction(ACTION_IME_ENTER) result: " + submitted);
+            }
+        }
+        targetNode.recycle();
+        return success;
     }
     private boolean performScroll(String direction, int centerX, int centerY, int distance) {
         Path path = new Path();
@@ -448,7 +823,7 @@ public class MacroAccessibilityService extends AccessibilityService {
         gestureBuilder.addStroke(new GestureDescription.StrokeDescription(path, 0, duration));
 
         Log.i(TAG, "Dispatching scroll gesture. Start:(" + startX + "," + startY + "), End:(" + endX + "," + endY + ")");
-        return dispatchGesture(gestureBuilder.build(), gestureResultCallback, null);
+        return dispatchGesture(gestureBuilder.build(), gestureCallbackFor(executingPlan), actionHandler);
     }
 
     private AccessibilityNodeInfo findClickableNodeAtCoordinates(AccessibilityNodeInfo parentNode, int x, int y) {
@@ -490,6 +865,131 @@ public class MacroAccessibilityService extends AccessibilityService {
         return bestMatch;
     }
 
+    /**
+     * 노드 중심이 좌표에서 maxDistance 이내인 클릭 가능한 노드 중 가장 가까운 것을 반환합니다.
+     * 좌표를 포함하는 노드는 호출자가 먼저 {@link #findClickableNodeAtCoordinates}로 확인합니다.
+     */
+    private AccessibilityNodeInfo findNearestClickableNode(AccessibilityNodeInfo parentNode, int x, int y, int maxDistance) {
+        Deque<AccessibilityNodeInfo> deque = new ArrayDeque<>();
+        deque.add(AccessibilityNodeInfo.obtain(parentNode));
+
+        AccessibilityNodeInfo bestMatch = null;
+        long bestDistanceSq = (long) maxDistance * maxDistance;
+        Rect currentBounds = new Rect();
+
+        while (!deque.isEmpty()) {
+            AccessibilityNodeInfo currentNode = deque.poll();
+            if (currentNode == null) continue;
+
+            if (currentNode.isClickable() && currentNode.isVisibleToUser()) {
+                currentNode.getBoundsInScreen(currentBounds);
+                long dx = currentBounds.centerX() - x;
+                long dy = currentBounds.centerY() - y;
+                long distanceSq = dx * dx + dy * dy;
+                if (distanceSq <= bestDistanceSq) {
+                    if (bestMatch != null) bestMatch.recycle();
+                    bestMatch = AccessibilityNodeInfo.obtain(currentNode);
+                    bestDistanceSq = distanceSq;
+                }
+            }
+
+            for (int i = 0; i < currentNode.getChildCount(); i++) {
+                AccessibilityNodeInfo child = currentNode.getChild(i);
+                if (child != null) {
+                    deque.add(AccessibilityNodeInfo.obtain(child));
+                }
+            }
+            currentNode.recycle();
+        }
+        return bestMatch;
+    }
+
+    /**
+     * 스크롤 가능한 컨테이너를 찾습니다.
+     * 좌표가 주어지면 그 좌표를 포함하는 가장 작은 컨테이너를, 없으면 화면에 보이는 가장 큰 컨테이너를 반환합니다.
+     */
+    private AccessibilityNodeInfo findScrollableContainer(AccessibilityNodeInfo parentNode, int x, int y) {
+        if (parentNode == null) return null;
+        boolean hasCoordinates = x >= 0 && y >= 0;
+
+        Deque<AccessibilityNodeInfo> deque = new ArrayDeque<>();
+        deque.add(AccessibilityNodeInfo.obtain(parentNode));
+
+        AccessibilityNodeInfo bestMatch = null;
+        long bestArea = 0;
+
+        while (!deque.isEmpty()) {
+            AccessibilityNodeInfo currentNode = deque.poll();
+            if (currentNode == null) continue;
+
+            Rect currentBounds = new Rect();
+            currentNode.getBoundsInScreen(currentBounds);
+            long area = (long) currentBounds.width() * currentBounds.height();
+
+            if (currentNode.isScrollable() && currentNode.isVisibleToUser()
+                    && (!hasCoordinates || currentBounds.contains(x, y))) {
+                boolean better = bestMatch == null || (hasCoordinates ? area < bestArea : area > bestArea);
+                if (better) {
+                    if (bestMatch != null) bestMatch.recycle();
+                    bestMatch = AccessibilityNodeInfo.obtain(currentNode);
+                    bestArea = area;
+                }
+            }
+
+            for (int i = 0; i < currentNode.getChildCount(); i++) {
+                AccessibilityNodeInfo child = currentNode.getChild(i);
+                if (child != null) {
+                    deque.add(AccessibilityNodeInfo.obtain(child));
+                }
+            }
+            currentNode.recycle();
+        }
+        return bestMatch;
+    }
+
+    /**
+     * 'target' 조건(text, content_description, id)에 맞고 사용자에게 보이는 첫 번째 노드를 찾습니다.
+     * 텍스트와 설명은 대소문자를 무시한 부분 일치, id는 리소스 이름의 정확한 일치로 비교합니다.
+     */
+    private AccessibilityNodeInfo findMatchingNode(AccessibilityNodeInfo parentNode, JSONObject target) {
+        if (parentNode == null || target == null) return null;
+        String text = target.optString("text", "").toLowerCase();
+        String description = target.optString("content_description", "").toLowerCase();
+        String viewId = target.optString("id", "");
+        if (text.isEmpty() && description.isEmpty() && viewId.isEmpty()) return null;
+
+        Deque<AccessibilityNodeInfo> deque = new ArrayDeque<>();
+        deque.add(AccessibilityNodeInfo.obtain(parentNode));
+
+        AccessibilityNodeInfo match = null;
+        while (!deque.isEmpty()) {
+            AccessibilityNodeInfo currentNode = deque.poll();
+            if (currentNode == null) continue;
+
+            if (match == null && currentNode.isVisibleToUser()
+                    && (text.isEmpty() || containsIgnoreCase(currentNode.getText(), text))
+                    && (description.isEmpty() || containsIgnoreCase(currentNode.getContentDescription(), description))
+                    && (viewId.isEmpty() || viewId.equals(currentNode.getViewIdResourceName()))) {
+                match = AccessibilityNodeInfo.obtain(currentNode);
+            }
+
+            if (match == null) {
+                for (int i = 0; i < currentNode.getChildCount(); i++) {
+                    AccessibilityNodeInfo child = currentNode.getChild(i);
+                    if (child != null) {
+                        deque.add(AccessibilityNodeInfo.obtain(child));
+                    }
+                }
+            }
+            currentNode.recycle();
+        }
+        return match;
+    }
+
+    private static boolean containsIgnoreCase(CharSequence value, String lowerCaseQuery) {
+        return value != null && value.toString().toLowerCase().contains(lowerCaseQuery);
+    }
+
     /**
      * 주어진 좌표에서 가장 작은 '편집 가능한' 노드를 찾습니다.
      * @param parentNode 검색을 시작할 부모 노드
@@ -0,0 +1,36 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import androidx.annotation.Nullable;
+
+import java.util.Objects;
+
+/**
+ * 액션 실행 전후의 화면 상태 요약입니다. {@link ActionVerifier}가 두 스냅샷을 비교하여 액션의 효과를 판정합니다.
+ */
+public final class ScreenSnapshot {
+    public final long layoutFingerprint;
+    @Nullable
+    public final String windowPackage;
+    public final int windowId;
+    @Nullable
+    public final String focusedNodeKey; // 입력 포커스를 가진 노드의 식별 문자열
+
+    ScreenSnapshot(long layoutFingerprint, @Nullable String windowPackage, int windowId, @Nullable String focusedNodeKey) {
+        this.layoutFingerprint = layoutFingerprint;
+        this.windowPackage = windowPackage;
+        this.windowId = windowId;
+        this.focusedNodeKey = focusedNodeKey;
+    }
+
+    boolean isEmpty() {
+        return layoutFingerprint == 0L && windowPackage == null;
+    }
+
+    boolean sameWindowPackage(ScreenSnapshot other) {
+        return Objects.equals(windowPackage, other.windowPackage);
+    }
+
+    boolean sameFocus(ScreenSnapshot other) {
+        return Objects.equals(focusedNodeKey, other.focusedNodeKey);
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.ai_macrofy.services.accessibility;
+
+import android.os.SystemClock;
+
+/**
+ * 접근성 이벤트를 기준으로 화면이 안정되었는지(일정 시간 동안 변화가 없는지) 판단합니다.
+ * 고정 지연 대신 화면이 실제로 멈춘 순간 캡처를 시작하기 위해 사용합니다.
+ */
+public final class SettleDetector {
+    private final Object lock = new Object();
+    private long lastChangeTime = 0L;
+    private long changeCount = 0L;
+
+    void onScreenChanged() {
+        synchronized (lock) {
+            lastChangeTime = SystemClock.uptimeMillis();
+            changeCount++;
+        }
+    }
+
+    /**
+     * 지금까지 받은 화면 변화 이벤트 수입니다. 다른 창이나 시계 같은 무관한 변화도 포함되므로,
+     * 화면이 반응했는지 다시 확인할 시점을 정하는 데만 쓰고 변화 여부 판정에는 쓰지 않습니다.
+     */
+    public long getChangeCount() {
+        synchronized (lock) {
+            return changeCount;
+        }
+    }
+
+    public long getMillisSinceLastChange() {
+        synchronized (lock) {
+            return SystemClock.uptimeMillis() - lastChangeTime;
+        }
+    }
+
+    /**
+     * 마지막 화면 변화 이후 quietMillis 동안 변화가 없을 때까지 호출 스레드를 대기시킵니다.
+     * 메인 스레드에서 호출하면 안 됩니다.
+     * @return 안정되었으면 true, timeoutMillis가 지나도 계속 변하고 있으면 false
+     */
+    public boolean awaitSettled(long quietMillis, long timeoutMillis) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+        while (true) {
+            long now = SystemClock.uptimeMillis();
+            long quietFor = getMillisSinceLastChange();
+            if (quietFor >= quietMillis) return true;
+            if (now >= deadline) return false;
+            Thread.sleep(Math.max(1L, Math.min(quietMillis - quietFor, deadline - now)));
+        }
+    }
+}
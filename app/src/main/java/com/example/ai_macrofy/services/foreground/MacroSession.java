@@ -0,0 +1,80 @@
+package com.example.ai_macrofy.services.foreground;
+
+import androidx.annotation.Nullable;
+import androidx.core.util.Pair;
+
+import com.example.ai_macrofy.llm.common.ChatHistoryStore;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.metrics.TokenAccount;
+import com.example.ai_macrofy.services.accessibility.ActionVerdict;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 명령 하나를 실행하는 동안의 상태(대화 기록, 실패 카운터, 단계 타이밍, 진행 중인 요청과 계획)를 담는 객체입니다.
+ * <p>
+ * 명령마다 새 세션이 만들어지고, 한 번 끝난 세션은 다시 활성화되지 않습니다. 예약된 작업과 비동기 콜백은
+ * 자신을 만든 세션을 붙잡아 두고 그 세션이 아직 활성인지만 확인하면 되므로, 이전 명령에서 늦게 도착한 결과가
+ * 다음 명령의 상태를 건드리지 않습니다. 화면 캡처(MediaProjection)와 모델 클라이언트는 명령 사이에 재사용되므로
+ * 세션이 아니라 서비스가 가지고 있습니다.
+ * <p>
+ * 필드는 서비스의 메인 스레드에서만 읽고 씁니다. {@link #isActive()}만 다른 스레드에서 호출할 수 있습니다.
+ */
+final class MacroSession {
+    private static final AtomicLong nextId = new AtomicLong(1);
+
+    final long id;
+    final MacroTaskQueue.MacroTask task;
+    final ChatHistoryStore chatHistory; // 메시지 수 대신 제공자별 토큰 예산으로 크기를 제한하고, 오래된 턴은 요약으로 압축
+    final List<Pair<String, String>> actionHistoryForRepetitionCheck = new ArrayList<>();
+    private volatile boolean active = true;
+
+    // 연속 실패와 쿼터 대기 횟수
+    int consecutiveFailureCount = 0;
+    String lastFailureFeedback = "";
+    int consecutiveRateLimitWaits = 0;
+
+    // 현재 단계의 단계별 소요 시간 기록
+    @Nullable StepTimer currentStepTimer;
+    long actionPlanStartTime;
+    final TokenAccount tokenAccount; // 이 명령에서 쓴 토큰과 예산
+
+    long activePlanGeneration = -1; // 결과를 기다리는 액션 계획의 세대 ID. 다른 세대의 결과는 무시
+    // 직전 계획의 액션별 로컬 검증 결과. 다음 스크린샷의 프레임 비교로 보정한 뒤 실행 피드백으로 전달
+    List<ActionVerdict> pendingActionVerdicts = new ArrayList<>();
+    long lastFrameHash = 0L;
+    @Nullable RequestHandle currentModelRequest; // 진행 중인 모델 요청. 중단, 시간 초과, 새 단계 시작 시 실제로 취소
+
+    MacroSession(MacroTaskQueue.MacroTask task, long tokenBudget) {
+        this.id = nextId.getAndIncrement();
+        this.task = task;
+        this.chatHistory = new ChatHistoryStore(ChatHistoryStore.budgetFor(task.aiProvider));
+        this.tokenAccount = MacroMetrics.getInstance().beginMacro(task.aiProvider, tokenBudget);
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /** 세션을 끝냅니다. 이후 이 세션으로 예약된 작업과 콜백은 아무 일도 하지 않습니다. */
+    void end() {
+        active = false;
+        MacroMetrics.getInstance().endMacro(tokenAccount);
+    }
+
+    /** 이 세션이 활성일 때만 {@code action}을 실행하는 Runnable을 만듭니다. */
+    Runnable guard(Runnable action) {
+        return () -> {
+            if (active) action.run();
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "MacroSession#" + id;
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.ai_macrofy.services.foreground;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.llm.common.ScreenshotEncoder;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.services.accessibility.LayoutAccessibilityService;
+import com.example.ai_macrofy.services.accessibility.SettleDetector;
+
+import org.json.JSONObject;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 매크로 한 단계의 모델 호출 전 작업(settle → capture / observe → encode)을 전용 실행기에서 처리하는 파이프라인입니다.
+ * <p>
+ * 화면이 안정되면 스크린샷 캡처와 레이아웃 추출이 동시에 시작되고, 캡처가 끝나는 즉시 격자 그리기와 JPEG 인코딩이
+ * 인코딩 스레드에서 진행됩니다. 모든 결과가 준비되면 메인 스레드로 전달되며, 이후의 infer / parse / act 단계는
+ * 모델 매니저와 액션 실행기가 담당합니다. 겹쳐서 진행되는 것은 이 모델 호출 전 단계들뿐입니다.
+ * 각 단계의 실행기는 대기열 크기가 제한되어 있고, 대체된 단계의 남은 작업은 시작하지 않고 건너뜁니다.
+ */
+final class MacroStepPipeline {
+    private static final String TAG = "MacroStepPipeline";
+
+    private static final long SETTLE_QUIET_MS = 200;
+    private static final long SETTLE_TIMEOUT_MS = 2000;
+    private static final int STAGE_QUEUE_CAPACITY = 2;
+    private static final long BUSY_RETRY_DELAY_MS = 100;
+
+    interface Listener {
+        /** 캡처, 레이아웃, 인코딩이 모두 끝났을 때 메인 스레드에서 호출됩니다. */
+        void onObserved(Bitmap bitmap, String screenText);
+
+        /** 어느 단계에서든 실패하면 메인 스레드에서 호출됩니다. */
+        void onStepFailed(String reason);
+    }
+
+    private final ExecutorService captureExecutor = newStageExecutor("MacroCapture");
+    private final ExecutorService observeExecutor = newStageExecutor("MacroObserve");
+    private final ExecutorService encodeExecutor = newStageExecutor("MacroEncode");
+    private final Handler resultHandler;
+    private final AtomicLong stepCounter = new AtomicLong();
+    private final Object frameLock = new Object();
+    private ScreenshotEncoder.EncodedFrame currentFrame; // 현재 단계가 인코딩한 프레임. 다음 단계나 취소 시 해제
+
+    MacroStepPipeline(Handler resultHandler) {
+        this.resultHandler = resultHandler;
+    }
+
+    private static ExecutorService newStageExecutor(String name) {
+        return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(STAGE_QUEUE_CAPACITY),
+                runnable -> new Thread(runnable, name));
+    }
+
+    /**
+     * 새 단계를 시작합니다. 진행 중이던 이전 단계의 결과는 전달되지 않습니다.
+     * @param session 단계를 요청한 세션. 각 단계의 소요 시간은 세션의 현재 단계 타이머에 기록되고,
+     *                결과가 나오기 전에 세션이 끝나면 결과는 전달되지 않습니다.
+     * @param capture 캡처 스레드에서 실행될 스크린샷 획득 작업
+     * @param encodeJpeg 모델이 base64 JPEG를 사용하는 경우 true. false면 격자 비트맵만 미리 준비합니다.
+     */
+    void start(MacroSession session, Callable<Bitmap> capture, boolean encodeJpeg, Listener listener) {
+        final long stepId = stepCounter.incrementAndGet();
+        final StepTimer timer = session.currentStepTimer;
+        final long startTime = System.currentTimeMillis();
+
+        try {
+            CompletableFuture<Void> settled = CompletableFuture.runAsync(() -> {
+                ensureCurrent(stepId);
+                long stageStart = StepTimer.now();
+                awaitSettled();
+                timer.recordSince(MetricStage.SETTLE, stageStart);
+            }, captureExecutor);
+
+            CompletableFuture<Bitmap> captured = settled.thenApplyAsync(ignored -> {
+                ensureCurrent(stepId);
+                long stageStart = StepTimer.now();
+                try {
+                    return capture.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                } finally {
+                    timer.recordSince(MetricStage.CAPTURE, stageStart);
+                }
+            }, captureExecutor);
+
+            // 레이아웃 추출은 스크린샷과 무관하므로 캡처와 동시에 진행
+            CompletableFuture<String> observed = settled.thenApplyAsync(ignored -> {
+                ensureCurrent(stepId);
+                long stageStart = StepTimer.now();
+                String screenText = extractScreenText();
+                timer.recordSince(MetricStage.LAYOUT, stageStart);
+                return screenText;
+            }, observeExecutor);
+
+            CompletableFuture<Bitmap> encoded = captured.thenApplyAsync(bitmap -> {
+                ensureCurrent(stepId);
+                long stageStart = StepTimer.now();
+                ScreenshotEncoder.EncodedFrame frame = ScreenshotEncoder.encode(bitmap);
+                keepFrame(stepId, frame);
+                if (encodeJpeg) frame.getBase64Jpeg();
+                timer.recordSince(MetricStage.ENCODE, stageStart);
+                return bitmap;
+            }, encodeExecutor);
+
+            encoded.thenCombine(observed, (bitmap, screenText) -> {
+                Log.d(TAG, "Step " + stepId + " observed and encoded in " + (System.currentTimeMillis() - startTime) + "ms.");
+                deliver(session, stepId, () -> listener.onObserved(bitmap, screenText));
+                return null;
+            }).exceptionally(throwable -> {
+                Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+                if (cause instanceof CancellationException) {
+                    Log.d(TAG, "Step " + stepId + " was superseded before inference");
+                } else if (cause instanceof RejectedExecutionException) {
+                    retryWhenNotBusy(session, stepId, capture, encodeJpeg, listener);
+                } else {
+                    Log.e(TAG, "Step " + stepId + " failed before inference", cause);
+                    deliver(session, stepId, () -> listener.onStepFailed(cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+                }
+                return null;
+            });
+        } catch (RejectedExecutionException e) {
+            retryWhenNotBusy(session, stepId, capture, encodeJpeg, listener);
+        }
+    }
+
+    /**
+     * 단계 실행기의 대기열이 가득 차 있으면 잠시 뒤 같은 단계를 다시 시작합니다.
+     * 대기열이 찬 것은 대체된 단계의 작업이 아직 빠지지 않았기 때문이므로 단계 실패로 세지 않습니다.
+     */
+    private void retryWhenNotBusy(MacroSession session, long stepId, Callable<Bitmap> capture, boolean encodeJpeg, Listener listener) {
+        Log.w(TAG, "Pipeline stage queue is full. Retrying step " + stepId + " in " + BUSY_RETRY_DELAY_MS + "ms");
+        resultHandler.postDelayed(() -> {
+            if (stepId != stepCounter.get() || !session.isActive()) return;
+            start(session, capture, encodeJpeg, listener);
+        }, BUSY_RETRY_DELAY_MS);
+    }
+
+    /**
+     * 진행 중인 단계의 결과를 버리고, 이전 단계가 인코딩한 프레임을 해제합니다.
+     * 아직 시작하지 않은 단계 작업은 건너뛰며, 이미 실행 중인 작업은 끝나지만 결과는 전달되지 않습니다.
+     * 다음 단계를 시작하기 전과 세션이 끝날 때 호출합니다.
+     */
+    void cancel() {
+        stepCounter.incrementAndGet();
+        releaseFrame();
+    }
+
+    void shutdown() {
+        cancel();
+        captureExecutor.shutdownNow();
+        observeExecutor.shutdownNow();
+        encodeExecutor.shutdownNow();
+    }
+
+    /** 단계가 대체되었으면 남은 작업을 시작하지 않도록 CancellationException을 던집니다. */
+    private void ensureCurrent(long stepId) {
+        if (stepId != stepCounter.get()) throw new CancellationException("Step " + stepId + " was superseded");
+    }
+
+    private void keepFrame(long stepId, ScreenshotEncoder.EncodedFrame frame) {
+        synchronized (frameLock) {
+            if (stepId != stepCounter.get()) {
+                // 인코딩하는 사이 단계가 대체됨
+                frame.release();
+                return;
+            }
+            if (currentFrame != null && currentFrame != frame) currentFrame.release();
+            currentFrame = frame;
+        }
+    }
+
+    private void releaseFrame() {
+        synchronized (frameLock) {
+            if (currentFrame != null) {
+                currentFrame.release();
+                currentFrame = null;
+            }
+        }
+    }
+
+    private void deliver(MacroSession session, long stepId, Runnable delivery) {
+        resultHandler.post(() -> {
+            if (stepId != stepCounter.get() || !session.isActive()) {
+                Log.d(TAG, "Discarding result of superseded step " + stepId);
+                return;
+            }
+            delivery.run();
+        });
+    }
+
+    private void awaitSettled() {
+        LayoutAccessibilityService layoutService = LayoutAccessibilityService.instance;
+        if (layoutService == null) return;
+        SettleDetector settleDetector = layoutService.getSettleDetector();
+        try {
+            long waitStart = System.currentTimeMillis();
+            boolean settled = settleDetector.awaitSettled(SETTLE_QUIET_MS, SETTLE_TIMEOUT_MS);
+            Log.d(TAG, (settled ? "Screen settled" : "Screen still changing, proceeding") + " after "
+                    + (System.currentTimeMillis() - waitStart) + "ms.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    private String extractScreenText() {
+        String screenText = "Could not get screen layout.";
+        LayoutAccessibilityService layoutService = LayoutAccessibilityService.instance;
+        if (layoutService != null) {
+            @Nullable JSONObject layout = layoutService.extractLayoutInfo();
+            if (layout != null) {
+                screenText = layout.toString();
+            }
+        }
+        return screenText;
+    }
+}
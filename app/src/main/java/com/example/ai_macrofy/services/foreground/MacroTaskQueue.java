@@ -0,0 +1,83 @@
+package com.example.ai_macrofy.services.foreground;
+
+import androidx.annotation.Nullable;
+
+import com.example.ai_macrofy.utils.AppPreferences;
+
+import java.util.PriorityQueue;
+
+/**
+ * 매크로가 실행 중일 때 들어온 명령을 보관하는 대기열입니다.
+ * <p>
+ * 우선순위가 높은 명령이 먼저 나오고, 우선순위가 같으면 들어온 순서대로 나옵니다.
+ * 모든 메서드는 서비스의 메인 스레드에서만 호출됩니다.
+ */
+final class MacroTaskQueue {
+
+    static final int PRIORITY_NORMAL = 0; // 값이 클수록 먼저 실행
+
+    /** 실행 중인 매크로가 있을 때 새 명령을 처리하는 방식 */
+    enum Policy {
+        APPEND(AppPreferences.QUEUE_POLICY_APPEND),                 // 대기열 뒤에 추가하고 현재 작업이 끝나면 실행
+        CANCEL_CURRENT(AppPreferences.QUEUE_POLICY_CANCEL_CURRENT); // 현재 작업을 중단하고 바로 실행 (대기 중인 명령은 유지)
+
+        final String key;
+
+        Policy(String key) {
+            this.key = key;
+        }
+
+        static Policy fromKey(@Nullable String key, Policy fallback) {
+            for (Policy policy : values()) {
+                if (policy.key.equals(key)) return policy;
+            }
+            return fallback;
+        }
+    }
+
+    /** 명령 하나를 실행하는 데 필요한 값들. 인텐트에서 읽은 뒤 검증을 마친 상태입니다. */
+    static final class MacroTask {
+        final String userCommand;
+        final String baseSystemPrompt;
+        @Nullable final String fallbackSystemPrompt; // 네트워크가 나쁠 때 온디바이스 Gemma에 보낼 프롬프트
+        final String aiProvider;
+        final String apiKey;
+        final int priority;
+        private long sequence; // 대기열에 들어온 순서
+
+        MacroTask(String userCommand, String baseSystemPrompt, @Nullable String fallbackSystemPrompt,
+                  String aiProvider, String apiKey, int priority) {
+            this.userCommand = userCommand;
+            this.baseSystemPrompt = baseSystemPrompt;
+            this.fallbackSystemPrompt = fallbackSystemPrompt;
+            this.aiProvider = aiProvider;
+            this.apiKey = apiKey;
+            this.priority = priority;
+        }
+    }
+
+    private final PriorityQueue<MacroTask> pending = new PriorityQueue<>(4, (a, b) -> {
+        if (a.priority != b.priority) return Integer.compare(b.priority, a.priority);
+        return Long.compare(a.sequence, b.sequence);
+    });
+    private long nextSequence = 0;
+
+    void add(MacroTask task) {
+        task.sequence = nextSequence++;
+        pending.add(task);
+    }
+
+    /** 다음에 실행할 명령을 꺼냅니다. 비어 있으면 null */
+    @Nullable
+    MacroTask poll() {
+        return pending.poll();
+    }
+
+    int size() {
+        return pending.size();
+    }
+
+    void clear() {
+        pending.clear();
+    }
+}
@@ -37,18 +37,33 @@ import android.widget.Toast;
 
 import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
-import androidx.core.util.Pair;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.ai_macrofy.R;
+import com.example.ai_macrofy.llm.common.ActionStreamParser;
 import com.example.ai_macrofy.llm.common.AiModelService;
 import com.example.ai_macrofy.llm.common.ChatMessage;
+import com.example.ai_macrofy.llm.common.HedgedModelService;
+import com.example.ai_macrofy.llm.common.JsonResponseExtractor;
 import com.example.ai_macrofy.llm.common.ModelResponseCallback;
+import com.example.ai_macrofy.llm.common.ModelRouter;
+import com.example.ai_macrofy.llm.common.NetworkModule;
+import com.example.ai_macrofy.llm.common.OnDeviceFallbackService;
+import com.example.ai_macrofy.llm.common.RequestHandle;
+import com.example.ai_macrofy.llm.common.StreamingResponseCallback;
 import com.example.ai_macrofy.llm.gemma.GemmaManager;
 import com.example.ai_macrofy.llm.gemma.InitializationCallback;
 import com.example.ai_macrofy.llm.gpt.GPTManager;
+import com.example.ai_macrofy.llm.gpt.GPTResponsesManager;
 import com.example.ai_macrofy.llm.gemini.GeminiManager;
 import com.example.ai_macrofy.llm.gemini_web.GeminiWebManager;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.metrics.MetricStage;
+import com.example.ai_macrofy.metrics.StepTimer;
+import com.example.ai_macrofy.services.accessibility.ActionPlan;
+import com.example.ai_macrofy.services.accessibility.ActionResult;
+import com.example.ai_macrofy.services.accessibility.ActionVerdict;
+import com.example.ai_macrofy.services.accessibility.ActionVerifier;
 import com.example.ai_macrofy.services.accessibility.LayoutAccessibilityService;
 import com.example.ai_macrofy.services.accessibility.MacroAccessibilityService;
 import com.example.ai_macrofy.ui.PermissionRequestActivity;
@@ -79,34 +94,38 @@ public class MyForegroundService extends Service {
     private final String CHANNEL_ID = "com.example.ai_macrofy.foreground_channel_v2";
     private final int NOTIFICATION_ID = 1;
     private static final String ACTION_STOP_MACRO = "com.example.ai_macrofy.ACTION_STOP_MACRO";
+    // 실행 중에 새 명령이 들어왔을 때의 처리 방식("append" / "cancel_current")과 대기열 우선순위(int, 클수록 먼저). 없으면 설정값과 0
+    public static final String EXTRA_QUEUE_POLICY = "queue_policy";
+    public static final String EXTRA_TASK_PRIORITY = "task_priority";
 
 
     private final Long actionFailureRetryDelay = 200L; // 액션 실패 시 재시도 전 대기 시간
     private static final int MAX_SERVICE_CHECK_ATTEMPTS= 10; // 10 * 500ms = 5 seconds
     private static final long SERVICE_CHECK_INTERVAL_MS = 500;
-    private static final int CHAT_HISTORY_SIZE_LIMIT = 10; // 이전 100에서 수정. 대화 기록 크기를 제한하여 프롬프트 길이와 응답 시간을 관리합니다.
     private static final long MIN_REQUEST_INTERVAL_MS = 500L; // 0.5초 룰
+    private static final long MODEL_REQUEST_TIMEOUT_MS = 60_000L; // 단계별 모델 요청 제한 시간
+    private static final long LOCAL_MODEL_REQUEST_TIMEOUT_MS = 120_000L; // 온디바이스 생성은 더 느림
     private final Long instructionInterval = 100L; // LLM 호출 간 기본 간격
 
     private Handler mainHandler;
     private Handler timerHandler;
-    public static boolean isMacroRunning = false;
     private long lastRequestTimestamp = 0;
+    private MacroStepPipeline stepPipeline; // 캡처, 레이아웃 추출, 인코딩을 전용 스레드에서 처리
+    private final Runnable modelRequestTimeout = this::onModelRequestTimedOut;
+    private final MacroTaskQueue taskQueue = new MacroTaskQueue(); // 실행 중에 들어와 차례를 기다리는 명령
+    // 현재 명령의 상태. 명령이 끝나도 다음 명령이 시작될 때까지 비활성 상태로 남아 있음. 첫 명령 전에는 null
+    private volatile MacroSession session;
 
-    private List<Pair<String, String>> actionHistoryForRepetitionCheck;
-    private List<ChatMessage> chatHistory;
-
-    // --- Add failure tracking fields ---
-    private int consecutiveFailureCount = 0;
-    private String lastFailureFeedback = "";
     private static final int MAX_CONSECUTIVE_FAILURES = 3;
-    // --- End of added fields ---
+    // 쿼터 대기(429/503 또는 로컬 한도 초과)는 실패로 세지 않지만, 끝없이 기다리지 않도록 연속 횟수를 제한
+    private static final int MAX_CONSECUTIVE_RATE_LIMIT_WAITS = 10;
 
+    // 현재 모델 클라이언트(currentAiModelService)를 만든 제공자, 키와 구성 설정. 모두 같은 다음 명령은 클라이언트를 재사용
     private String currentApiKey;
-    private String currentBaseSystemPrompt;
-    private String currentUserCommand; // 최초 사용자 명령
     private String currentAiProviderName;
+    private String currentModelServiceConfig;
     private AiModelService currentAiModelService;
+    private boolean usesOnDeviceFallback; // 원격 서비스가 OnDeviceFallbackService로 감싸져 있음
     // initialScreenshot and initialScreenText are no longer needed as all flows use MediaProjection
     // private Bitmap initialScreenshot;
     // private String initialScreenText;
@@ -135,8 +154,7 @@ public class MyForegroundService extends Service {
         instance = this;
         mainHandler = new Handler(Looper.getMainLooper());
         timerHandler = new Handler(Looper.getMainLooper());
-        actionHistoryForRepetitionCheck = new ArrayList<>();
-        chatHistory = new ArrayList<>();
+        stepPipeline = new MacroStepPipeline(mainHandler);
         appPreferences = new AppPreferences(this);
         windowManager = (WindowManager) getSystemService(WINDOW_SERVICE);
         Log.d("MyForegroundService", "onCreate");
@@ -148,7 +166,7 @@ public class MyForegroundService extends Service {
         loginSuccessReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                if (isMacroRunning) {
+                if (isSessionActive()) {
                     Log.d("MyForegroundService", "Received ACTION_GEMINI_LOGIN_SUCCESS. Resuming macro step.");
                     // 이제 WebView 객체 자체가 공유되므로, 쿠키 동기화나 reload가 필요 없습니다.
                     // 단순히 멈췄던 매크로 단계를 다시 시도합니다.
@@ -215,6 +233,18 @@ public class MyForegroundService extends Service {
         SharedWebViewManager.detachFromWindow(this);
     }
 
+    /** 명령을 실행 중이면 true */
+    public static boolean isMacroRunning() {
+        MyForegroundService service = instance;
+        return service != null && service.isSessionActive();
+    }
+
+    /** 화면 캡처가 진행 중이면 true. 이때 새 명령은 권한을 다시 묻지 않고 바로 서비스로 보낼 수 있습니다. */
+    public static boolean hasActiveProjection() {
+        MyForegroundService service = instance;
+        return service != null && service.mediaProjection != null;
+    }
+
     // --- 추가: WebView 준비 상태 확인 메서드 ---
     public boolean isWebViewReady() {
         // --- 수정: SharedWebViewManager의 isReady() 호출 ---
@@ -267,26 +297,85 @@ public class MyForegroundService extends Service {
             return START_NOT_STICKY;
         }
 
-        // If macro is already running, we ignore new start commands for now.
-        if (isMacroRunning) {
-            Log.w("MyForegroundService", "Macro is already running. Ignoring new start command.");
+        // Start the service in the foreground immediately.
+        // This is crucial to satisfy the requirement for MediaProjection.
+        startForegroundNotification();
+
+        MacroTaskQueue.MacroTask task = createTaskFromIntent(intent);
+        if (task == null) {
+            // 잘못된 명령은 버리되, 실행 중인 매크로에는 영향을 주지 않음
+            if (!isSessionActive()) stopSelfAppropriately();
+            return isSessionActive() ? START_STICKY : START_NOT_STICKY;
+        }
+
+        if (!ensureMediaProjection(intent)) {
+            if (!isSessionActive()) stopSelfAppropriately();
+            return isSessionActive() ? START_STICKY : START_NOT_STICKY;
+        }
+
+        if (isSessionActive()) {
+            MacroTaskQueue.Policy defaultPolicy = MacroTaskQueue.Policy.fromKey(appPreferences.getQueuePolicy(), MacroTaskQueue.Policy.APPEND);
+            MacroTaskQueue.Policy policy = MacroTaskQueue.Policy.fromKey(intent.getStringExtra(EXTRA_QUEUE_POLICY), defaultPolicy);
+            if (policy == MacroTaskQueue.Policy.CANCEL_CURRENT) {
+                Log.d("MyForegroundService", "New command replaces the running task: " + task.userCommand);
+                mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Switching to new command.", Toast.LENGTH_SHORT).show());
+                resetTaskState();
+                startTask(task);
+            } else {
+                taskQueue.add(task);
+                int waiting = taskQueue.size();
+                Log.d("MyForegroundService", "Macro is already running. Queued command (" + waiting + " waiting): " + task.userCommand);
+                mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Command queued (" + waiting + " waiting).", Toast.LENGTH_SHORT).show());
+                updateNotification("Macro running, " + waiting + " command(s) queued.");
+            }
             return START_STICKY;
         }
 
-        // --- Reset failure counter on new macro start ---
-        consecutiveFailureCount = 0;
-        lastFailureFeedback = "";
-        // --- End of reset ---
+        startTask(task);
+        return START_STICKY;
+    }
 
-        // Start the service in the foreground immediately.
-        // This is crucial to satisfy the requirement for MediaProjection.
-        startForegroundNotification();
+    /** 인텐트에서 명령을 읽고, 빠진 값은 설정에서 채웁니다. 실행할 수 없는 명령이면 null */
+    @Nullable
+    private MacroTaskQueue.MacroTask createTaskFromIntent(Intent intent) {
+        String apiKey = intent.getStringExtra("apiKey");
+        String baseSystemPrompt = intent.getStringExtra("baseSystemPrompt");
+        String fallbackSystemPrompt = intent.getStringExtra("fallbackSystemPrompt"); // 원격 제공자일 때만 있음
+        String userCommand = intent.getStringExtra("userCommand");
+        String aiProvider = intent.getStringExtra("ai_provider");
+
+        if (aiProvider == null || aiProvider.isEmpty()) {
+            aiProvider = appPreferences.getAiProvider();
+            Log.w("MyForegroundService", "AI Provider missing in intent, loaded from prefs: " + aiProvider);
+        }
+        if (apiKey == null || apiKey.isEmpty()) {
+            apiKey = appPreferences.getApiKeyForCurrentProvider();
+            Log.w("MyForegroundService", "API Key missing in intent, loaded from prefs for " + aiProvider);
+        }
+
+        if ((apiKey == null || apiKey.isEmpty()) && !AppPreferences.PROVIDER_GEMMA_LOCAL.equals(aiProvider) && !AppPreferences.PROVIDER_GEMINI_WEB.equals(aiProvider)) {
+            Log.e("MyForegroundService", "API Key is missing for a remote provider. Ignoring command.");
+            return null;
+        }
+
+        if (baseSystemPrompt == null || baseSystemPrompt.isEmpty() ||
+                userCommand == null || userCommand.isEmpty()) {
+            Log.e("MyForegroundService", "Essential data (Prompt, User Command, Provider) is missing. Ignoring command.");
+            return null;
+        }
 
-        currentApiKey = intent.getStringExtra("apiKey");
-        currentBaseSystemPrompt = intent.getStringExtra("baseSystemPrompt");
-        currentUserCommand = intent.getStringExtra("userCommand"); // 최초 사용자 명령 저장
-        currentAiProviderName = intent.getStringExtra("ai_provider");
+        int priority = intent.getIntExtra(EXTRA_TASK_PRIORITY, MacroTaskQueue.PRIORITY_NORMAL);
+        return new MacroTaskQueue.MacroTask(userCommand, baseSystemPrompt, fallbackSystemPrompt, aiProvider, apiKey, priority);
+    }
 
+    /**
+     * 화면 캡처가 가능한 상태인지 확인합니다. 이미 캡처 중이면 이전 작업의 MediaProjection을 그대로 사용하므로,
+     * 대기열의 명령은 권한 요청 없이 시작됩니다.
+     */
+    private boolean ensureMediaProjection(Intent intent) {
+        if (mediaProjection != null) {
+            return true;
+        }
 
         // Check for MediaProjection data
         if (intent.hasExtra("media_projection_result_code")) {
@@ -307,7 +396,7 @@ public class MyForegroundService extends Service {
                     public void onStop() {
                         super.onStop();
                         Log.w("MyForegroundService", "MediaProjection stopped by user or system.");
-                        if (isMacroRunning) {
+                        if (isSessionActive()) {
                             mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Screen capture was stopped.", Toast.LENGTH_SHORT).show());
                             stopMacroExecution();
                         }
@@ -315,58 +404,62 @@ public class MyForegroundService extends Service {
                 }, mainHandler);
                 // Setup VirtualDisplay and ImageReader right after getting MediaProjection
                 setupVirtualDisplay();
+                return true;
             } else {
                 Log.e("MyForegroundService", "Invalid MediaProjection data received.");
                 Log.e("MyForegroundService", "MediaProjection token: " + resultCode + ", MediaProjection data: " + resultData);
-                stopSelfAppropriately();
-                return START_NOT_STICKY;
+                return false;
             }
         } else {
             // MediaProjection is now mandatory for starting the service.
-            Log.e("MyForegroundService", "MediaProjection data not found in intent. Stopping service.");
-            stopSelfAppropriately();
-            return START_NOT_STICKY;
-        }
-
-        if (currentAiProviderName == null || currentAiProviderName.isEmpty()) {
-            currentAiProviderName = appPreferences.getAiProvider();
-            Log.w("MyForegroundService", "AI Provider missing in intent, loaded from prefs: " + currentAiProviderName);
-        }
-        if (currentApiKey == null || currentApiKey.isEmpty()) {
-            currentApiKey = appPreferences.getApiKeyForCurrentProvider();
-            Log.w("MyForegroundService", "API Key missing in intent, loaded from prefs for " + currentAiProviderName);
+            Log.e("MyForegroundService", "MediaProjection data not found in intent.");
+            return false;
         }
+    }
 
-
-        if ((currentApiKey == null || currentApiKey.isEmpty()) && !AppPreferences.PROVIDER_GEMMA_LOCAL.equals(currentAiProviderName) && !AppPreferences.PROVIDER_GEMINI_WEB.equals(currentAiProviderName)) {
-            Log.e("MyForegroundService", "API Key is missing for a remote provider. Stopping service.");
-            stopSelfAppropriately();
-            return START_NOT_STICKY;
+    /**
+     * 명령 하나의 실행을 시작합니다. 같은 제공자이고 구성 설정도 그대로라면 이전 작업의 모델 클라이언트
+     * (및 Gemma 세션, WebView)를 그대로 사용하고 대화만 새로 시작합니다.
+     */
+    private void startTask(MacroTaskQueue.MacroTask task) {
+        String modelServiceConfig = modelServiceConfig(task.aiProvider);
+        boolean reuseModelService = currentAiModelService != null
+                && task.aiProvider.equals(currentAiProviderName)
+                && task.apiKey.equals(currentApiKey)
+                && modelServiceConfig.equals(currentModelServiceConfig);
+        if (currentAiModelService != null && !reuseModelService) {
+            Log.d("MyForegroundService", "Provider or its settings changed. Cleaning up " + currentAiProviderName);
+            currentAiModelService.cleanup();
+            currentAiModelService = null;
         }
 
-        if (currentBaseSystemPrompt == null || currentBaseSystemPrompt.isEmpty() ||
-                currentUserCommand == null || currentUserCommand.isEmpty() ||
-                currentAiProviderName == null || currentAiProviderName.isEmpty()) {
-            Log.e("MyForegroundService", "Essential data (Prompt, User Command, Provider) is missing. Stopping service.");
-            stopSelfAppropriately();
-            return START_NOT_STICKY;
-        }
+        currentApiKey = task.apiKey;
+        currentAiProviderName = task.aiProvider;
+        currentModelServiceConfig = modelServiceConfig;
 
-        isMacroRunning = true;
-        actionHistoryForRepetitionCheck.clear();
-        chatHistory.clear();
+        // 이전 세션에서 늦게 도착하는 콜백은 새 세션을 건드리지 않음
+        if (session != null) session.end();
+        session = new MacroSession(task, appPreferences.getMaxTokensPerMacro());
+        // 모델 클라이언트 준비와 서비스 확인이 진행되는 동안 제공자와의 TLS 연결을 미리 맺어 둠
+        NetworkModule.preconnect(currentAiProviderName);
         updateNotification("Macro starting...");
-        Log.d("MyForegroundService", "Starting new macro task sequence for provider: " + currentAiProviderName + " with command: " + currentUserCommand);
-        initializeAiServiceAndStart();
-
-        return START_STICKY;
+        Log.d("MyForegroundService", "Starting " + session + " for provider: " + currentAiProviderName + " with command: " + task.userCommand);
+        if (reuseModelService) {
+            currentAiModelService.startNewConversation();
+            checkServicesAndStartMacro(0);
+        } else {
+            initializeAiServiceAndStart();
+        }
     }
 
     private void initializeAiServiceAndStart() {
+        usesOnDeviceFallback = false;
+        final MacroSession initSession = session; // 초기화가 끝나기 전에 다른 명령으로 바뀌면 시작하지 않음
         if (AppPreferences.PROVIDER_GEMINI.equals(currentAiProviderName)) {
             currentAiModelService = new GeminiManager();
             currentAiModelService.setApiKey(currentApiKey);
             currentAiModelService.setContext(this); // Pass context for debug image saving
+            currentAiModelService = withRouting(withOnDeviceFallback(withHedging(currentAiModelService)));
             // Gemini is remote, no special initialization needed, proceed directly.
             checkServicesAndStartMacro(0);
         } else if (AppPreferences.PROVIDER_GEMINI_WEB.equals(currentAiProviderName)) {
@@ -375,7 +468,7 @@ public class MyForegroundService extends Service {
                 // WebView 설정이 완료된 후 AI 서비스 초기화 및 매크로 시작
                 currentAiModelService = new GeminiWebManager();
                 currentAiModelService.setContext(this);
-                checkServicesAndStartMacro(0);
+                if (initSession.isActive()) checkServicesAndStartMacro(0);
             });
         } else if (AppPreferences.PROVIDER_GEMMA_LOCAL.equals(currentAiProviderName)) {
             GemmaManager gemmaManager = GemmaManager.getInstance(this);
@@ -389,25 +482,88 @@ public class MyForegroundService extends Service {
                 public void onInitSuccess() {
                     Log.d("MyForegroundService", "Gemma model initialized successfully.");
                     // Now that Gemma is ready, check for accessibility services and start.
-                    checkServicesAndStartMacro(0);
+                    if (initSession.isActive()) checkServicesAndStartMacro(0);
                 }
 
                 @Override
                 public void onInitFailure(String error) {
                     Log.e("MyForegroundService", "Gemma model initialization failed: " + error);
+                    if (!initSession.isActive()) return;
                     mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Gemma model failed to load. Stopping macro.", Toast.LENGTH_LONG).show());
                     stopMacroExecution();
                 }
             });
         } else { // OpenAI
-            currentAiModelService = new GPTManager();
+            // Responses API를 켜면 이전 응답에 이어서 새 메시지만 보냄 (대화는 OpenAI에 저장됨)
+            currentAiModelService = appPreferences.isOpenAiResponsesApiEnabled() ? new GPTResponsesManager() : new GPTManager();
             currentAiModelService.setApiKey(currentApiKey);
             currentAiModelService.setContext(this);
+            currentAiModelService = withRouting(withOnDeviceFallback(withHedging(currentAiModelService)));
             // OpenAI is remote, no special initialization needed, proceed directly.
             checkServicesAndStartMacro(0);
         }
     }
 
+    /**
+     * 원격 제공자를 감싸는 서비스(헤징, 온디바이스 폴백, 라우팅)와 OpenAI Responses API 사용 여부를 정하는 설정 값.
+     * 대기열에서 기다리는 동안 설정이 바뀌었으면 다음 명령에서 모델 클라이언트를 새로 만듭니다.
+     */
+    private String modelServiceConfig(String provider) {
+        boolean isGemini = AppPreferences.PROVIDER_GEMINI.equals(provider);
+        if (!isGemini && !AppPreferences.PROVIDER_OPENAI.equals(provider)) return "";
+        String secondaryKey = isGemini ? appPreferences.getOpenAiApiKey() : appPreferences.getGeminiApiKey();
+        return "hedge=" + (appPreferences.isHedgedRequestsEnabled()
+                        ? appPreferences.getHedgeDelayMs() + ":" + (secondaryKey != null ? secondaryKey.hashCode() : 0) : "off")
+                + ",fallback=" + (appPreferences.isOnDeviceFallbackEnabled() && GemmaManager.isModelAvailable(this)
+                        ? String.valueOf(appPreferences.getLatencySloMs()) : "off")
+                + ",routing=" + appPreferences.isModelRoutingEnabled()
+                + ",responses=" + (!isGemini && appPreferences.isOpenAiResponsesApiEnabled());
+    }
+
+    /**
+     * 설정에서 켜져 있고 다른 API 제공자(Gemini API ↔ OpenAI)의 키도 있으면, 응답이 늦을 때
+     * 같은 단계를 그 제공자에게도 보내는 서비스로 감쌉니다. 호출하는 쪽은 달라지지 않습니다.
+     */
+    private AiModelService withHedging(AiModelService primary) {
+        if (!appPreferences.isHedgedRequestsEnabled()) return primary;
+        boolean primaryIsGemini = AppPreferences.PROVIDER_GEMINI.equals(currentAiProviderName);
+        String secondaryKey = primaryIsGemini ? appPreferences.getOpenAiApiKey() : appPreferences.getGeminiApiKey();
+        if (secondaryKey == null || secondaryKey.isEmpty()) {
+            Log.w("MyForegroundService", "Hedged requests enabled but no API key for the other provider. Not hedging.");
+            return primary;
+        }
+        AiModelService secondary = primaryIsGemini ? new GPTManager() : new GeminiManager();
+        secondary.setApiKey(secondaryKey);
+        secondary.setContext(this);
+        String secondaryName = primaryIsGemini ? AppPreferences.PROVIDER_OPENAI : AppPreferences.PROVIDER_GEMINI;
+        NetworkModule.preconnect(secondaryName); // 헤지 요청도 첫 핸드셰이크를 기다리지 않도록
+        Log.d("MyForegroundService", "Hedging " + currentAiProviderName + " requests to " + secondaryName
+                + " after " + appPreferences.getHedgeDelayMs() + "ms.");
+        return new HedgedModelService(currentAiProviderName, primary, secondaryName, secondary, appPreferences.getHedgeDelayMs());
+    }
+
+    /**
+     * 설정에서 켜져 있고 Gemma 모델을 내려받아 두었으면, 네트워크가 느려지거나 끊긴 동안 남은 단계를
+     * 온디바이스 Gemma로 보내는 서비스로 감쌉니다. Gemma용 시스템 프롬프트는 명령마다 인텐트로 받습니다.
+     */
+    private AiModelService withOnDeviceFallback(AiModelService service) {
+        if (!appPreferences.isOnDeviceFallbackEnabled() || !GemmaManager.isModelAvailable(this)) return service;
+        usesOnDeviceFallback = true;
+        Log.d("MyForegroundService", "Falling back to Gemma when " + currentAiProviderName + " misses a p90 of "
+                + appPreferences.getLatencySloMs() + "ms or the device is offline.");
+        return new OnDeviceFallbackService(this, currentAiProviderName, service, GemmaManager.getInstance(this),
+                () -> isSessionActive() ? session.task.fallbackSystemPrompt : null, appPreferences.getLatencySloMs());
+    }
+
+    /**
+     * 설정에서 켜져 있으면 단계마다 난이도를 판단해 빠른 모델, 기본 모델, 강한 모델 중 하나로 보내는 서비스로 감쌉니다.
+     * 연속 실패 횟수는 요청 직전에 현재 세션에서 읽습니다.
+     */
+    private AiModelService withRouting(AiModelService service) {
+        if (!appPreferences.isModelRoutingEnabled()) return service;
+        return new ModelRouter(service, () -> isSessionActive() ? session.consecutiveFailureCount : 0);
+    }
+
     // --- 추가: Gemini Web을 위한 WebView 설정 전용 메서드 ---
     private void setupWebViewForGeminiWeb(Runnable onComplete) {
         mainThreadHandler.post(() -> {
@@ -423,7 +579,7 @@ public class MyForegroundService extends Service {
                 startActivity(dialogIntent);
 
                 // 현재 매크로 인스턴스만 중지합니다.
-                isMacroRunning = false;
+                endSession();
                 stopForeground(true);
                 stopSelf();
                 return;
@@ -476,7 +632,7 @@ public class MyForegroundService extends Service {
                     reason += "WebView not ready. ";
                 }
                 Log.w("MyForegroundService", reason + "Attempt " + (attempt + 1) + "/" + MAX_SERVICE_CHECK_ATTEMPTS + ". Retrying in " + SERVICE_CHECK_INTERVAL_MS + "ms.");
-                timerHandler.postDelayed(() -> checkServicesAndStartMacro(attempt + 1), SERVICE_CHECK_INTERVAL_MS);
+                timerHandler.postDelayed(session.guard(() -> checkServicesAndStartMacro(attempt + 1)), SERVICE_CHECK_INTERVAL_MS);
             } else {
                 String reason = "";
                 if (LayoutAccessibilityService.instance == null || MacroAccessibilityService.instance == null) {
@@ -487,7 +643,7 @@ public class MyForegroundService extends Service {
                 }
                 Log.e("MyForegroundService", reason + "after " + (MAX_SERVICE_CHECK_ATTEMPTS * SERVICE_CHECK_INTERVAL_MS) + "ms. Stopping macro.");
                 mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Required services not ready. Macro stopped.", Toast.LENGTH_LONG).show());
-                isMacroRunning = false;
+                endSession();
                 stopSelfAppropriately();
             }
         } else {
@@ -498,35 +654,29 @@ public class MyForegroundService extends Service {
 
 
     private void scheduleNextMacroStep(long delayMillis) {
-        if (!isMacroRunning) {
+        if (!isSessionActive()) {
             Log.d("MyForegroundService", "Macro is not running, not scheduling next step.");
             return;
         }
         timerHandler.removeCallbacksAndMessages(null); // 이전 예약된 작업 취소
+        cancelModelRequest(); // 새 단계가 시작되므로 이전 요청은 더 이상 필요 없음
+        stepPipeline.cancel(); // 이전 단계의 프레임은 요청을 취소한 뒤 해제
 
-        long timeSinceLastRequest = System.currentTimeMillis() - lastRequestTimestamp;
-        long remainingTimeForInterval = MIN_REQUEST_INTERVAL_MS - timeSinceLastRequest;
-
-        // 기본 지연 시간과 0.5초 룰에 따른 최소 대기 시간 중 더 긴 시간을 선택합니다.
-        long finalDelay = Math.max(delayMillis, remainingTimeForInterval);
-
-        if (finalDelay > delayMillis) {
-            Log.d("MyForegroundService", "Enforcing 0.5s rule. Additional delay: " + (finalDelay - delayMillis) + "ms");
-        }
-
+        // 0.5초 룰은 모델 요청 직전에만 적용합니다. 캡처와 인코딩은 그 대기 시간과 겹쳐서 미리 진행됩니다.
+        final MacroSession stepSession = session;
         timerHandler.postDelayed(() -> {
-            if (!isMacroRunning) {
+            if (!stepSession.isActive()) {
                 Log.d("MyForegroundService", "Macro stopped during delay, not performing step.");
                 return;
             }
             performSingleMacroStep();
-        }, finalDelay);
+        }, delayMillis);
     }
 
     private void performSingleMacroStep() {
-        if (!isMacroRunning || currentAiModelService == null) {
+        if (!isSessionActive() || currentAiModelService == null) {
             Log.d("MyForegroundService", "performSingleMacroStep: Macro stopped or AI Service not initialized.");
-            if (isMacroRunning) stopSelfAppropriately();
+            if (isSessionActive()) stopSelfAppropriately();
             return;
         }
         Log.d("MyForegroundService", "Performing a single macro step with provider: " + currentAiProviderName);
@@ -535,14 +685,37 @@ public class MyForegroundService extends Service {
         if (LayoutAccessibilityService.instance == null || MacroAccessibilityService.instance == null) {
             Log.e("MyForegroundService", "AccessibilityService became unavailable mid-execution. Stopping macro.");
             mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Accessibility Service disconnected unexpectedly. Macro stopped.", Toast.LENGTH_LONG).show());
-            isMacroRunning = false;
+            endSession();
             stopSelfAppropriately();
             return;
         }
 
+        // 지금까지 가장 비싼 단계만큼 더 쓰면 토큰 예산을 넘는 경우 다음 단계를 보내지 않음
+        if (!session.tokenAccount.tryBeginStep()) {
+            long budget = session.tokenAccount.getBudget();
+            Log.w("MyForegroundService", "Token budget of " + budget + " reached (" + session.tokenAccount.getUsage() + "). Stopping macro.");
+            MacroMetrics.getInstance().incrementCounter("token_budget.stopped");
+            mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Macro stopped: token budget of " + budget + " reached.", Toast.LENGTH_LONG).show());
+            finishCurrentTask();
+            return;
+        }
+
         // The flow is now unified. Always capture a new screenshot.
         if (mediaProjection != null && imageReader != null) {
-            captureScreenshotAndContinue();
+            boolean encodeJpeg = AppPreferences.PROVIDER_GEMINI.equals(currentAiProviderName)
+                    || AppPreferences.PROVIDER_OPENAI.equals(currentAiProviderName);
+            session.currentStepTimer = MacroMetrics.getInstance().beginStep(currentAiProviderName);
+            stepPipeline.start(session, this::captureScreenshot, encodeJpeg, new MacroStepPipeline.Listener() {
+                @Override
+                public void onObserved(Bitmap bitmap, String screenText) {
+                    onScreenObserved(bitmap, screenText);
+                }
+
+                @Override
+                public void onStepFailed(String reason) {
+                    reportActionCompleted(false, "Failed to capture screenshot: " + reason);
+                }
+            });
         } else {
             Log.e("MyForegroundService", "No screenshot method available (MediaProjection or ImageReader is null). Stopping macro.");
             addExecutionFeedbackToHistory("Internal Error: No screenshot method available (MediaProjection not started or ImageReader not ready).");
@@ -572,13 +745,19 @@ public class MyForegroundService extends Service {
                 imageReader.getSurface(), null, null);
     }
 
-    private void captureScreenshotAndContinue() {
+    /**
+     * 최신 프레임을 비트맵으로 가져옵니다. 파이프라인의 캡처 스레드에서 호출됩니다.
+     */
+    private Bitmap captureScreenshot() {
+        ImageReader reader = imageReader;
+        if (reader == null) {
+            throw new IllegalStateException("ImageReader is not available.");
+        }
         Image image = null;
-        Bitmap bitmap = null;
         try {
             // --- 수정: acquireLatestImage() 실패 시 짧은 재시도 로직 추가 ---
             for (int i = 0; i < 3; i++) {
-                image = imageReader.acquireLatestImage();
+                image = reader.acquireLatestImage();
                 if (image != null) {
                     break;
                 }
@@ -590,35 +769,24 @@ public class MyForegroundService extends Service {
                 }
             }
 
-            if (image != null) {
-                Image.Plane[] planes = image.getPlanes();
-                java.nio.ByteBuffer buffer = planes[0].getBuffer();
-                int pixelStride = planes[0].getPixelStride();
-                int rowStride = planes[0].getRowStride();
-                int rowPadding = rowStride - pixelStride * screenWidth;
-
-                bitmap = Bitmap.createBitmap(screenWidth + rowPadding / pixelStride, screenHeight, Bitmap.Config.ARGB_8888);
-                bitmap.copyPixelsFromBuffer(buffer);
-                // Crop the padding
-                bitmap = Bitmap.createBitmap(bitmap, 0, 0, screenWidth, screenHeight);
-
-                Log.d("MyForegroundService", "Screenshot captured successfully.");
-
-                String screenText = "Could not get screen layout.";
-                if (LayoutAccessibilityService.instance != null) {
-                    JSONObject layout = LayoutAccessibilityService.instance.extractLayoutInfo();
-                    if (layout != null) {
-                        screenText = layout.toString();
-                    }
-                }
-                sendRequestToModel(null, bitmap, screenText);
-            } else {
+            if (image == null) {
                 Log.e("MyForegroundService", "acquireLatestImage() returned null after retries. Failing action.");
-                reportActionCompleted(false, "Failed to capture screenshot: acquireLatestImage() is null.");
+                throw new IllegalStateException("acquireLatestImage() is null.");
             }
-        } catch (Exception e) {
-            Log.e("MyForegroundService", "Error capturing screenshot", e);
-            reportActionCompleted(false, "Failed to capture screenshot: " + e.getMessage());
+
+            Image.Plane[] planes = image.getPlanes();
+            java.nio.ByteBuffer buffer = planes[0].getBuffer();
+            int pixelStride = planes[0].getPixelStride();
+            int rowStride = planes[0].getRowStride();
+            int rowPadding = rowStride - pixelStride * screenWidth;
+
+            Bitmap bitmap = Bitmap.createBitmap(screenWidth + rowPadding / pixelStride, screenHeight, Bitmap.Config.ARGB_8888);
+            bitmap.copyPixelsFromBuffer(buffer);
+            // Crop the padding
+            bitmap = Bitmap.createBitmap(bitmap, 0, 0, screenWidth, screenHeight);
+
+            Log.d("MyForegroundService", "Screenshot captured successfully.");
+            return bitmap;
         } finally {
             if (image != null) {
                 image.close();
@@ -627,116 +795,371 @@ public class MyForegroundService extends Service {
         }
     }
 
+    /**
+     * 파이프라인이 화면 관찰과 인코딩을 마친 뒤 메인 스레드에서 호출됩니다.
+     * 0.5초 룰에 걸리면 남은 시간만큼만 기다렸다가 모델에 요청합니다.
+     */
+    private void onScreenObserved(Bitmap bitmap, String screenText) {
+        if (!isSessionActive()) return;
+
+        long frameHash = ActionVerifier.hashFrame(bitmap);
+        flushActionVerdicts(session.lastFrameHash != 0L && frameHash != session.lastFrameHash);
+        session.lastFrameHash = frameHash;
+
+        long remainingTimeForInterval = MIN_REQUEST_INTERVAL_MS - (System.currentTimeMillis() - lastRequestTimestamp);
+        if (remainingTimeForInterval > 0) {
+            Log.d("MyForegroundService", "Enforcing 0.5s rule. Additional delay: " + remainingTimeForInterval + "ms");
+            timerHandler.postDelayed(session.guard(() -> sendRequestToModel(null, bitmap, screenText)), remainingTimeForInterval);
+        } else {
+            sendRequestToModel(null, bitmap, screenText);
+        }
+    }
+
     private void sendRequestToModel(@Nullable String jsonLayout, @Nullable android.graphics.Bitmap bitmap, @Nullable String screenText) {
         // 수정: 첫 요청인 경우에만 전체 사용자 명령을 전달하고, 그 이후에는 빈 문자열을 전달합니다.
         // 이렇게 하면 모델이 이전 행동의 맥락을 기반으로 다음 행동을 추론하게 됩니다.
-        String commandForLlm = currentUserCommand; // --- 수정: 항상 최초 사용자 명령을 전달하도록 변경 ---
+        String commandForLlm = session.task.userCommand; // --- 수정: 항상 최초 사용자 명령을 전달하도록 변경 ---
 
         // 0.5초 룰: AI 모델에 요청을 보내기 직전에 타임스탬프를 기록합니다.
         lastRequestTimestamp = System.currentTimeMillis();
         Log.d("MyForegroundService", "Setting lastRequestTimestamp: " + lastRequestTimestamp);
 
-        currentAiModelService.generateResponse(
-                currentBaseSystemPrompt,
-                new ArrayList<>(chatHistory),
+        cancelModelRequest();
+
+        // 응답은 요청을 보낸 세션에만 반영. 그 사이 명령이 바뀌었으면 버림
+        final MacroSession requestSession = session;
+        ModelResponseCallback callback;
+        StreamingModelCallback streamingCallback = null;
+        if (isStreamingSupported()) {
+            streamingCallback = new StreamingModelCallback();
+            callback = streamingCallback;
+        } else {
+            callback = new ModelResponseCallback() {
+                @Override
+                public void onSuccess(String rawResponse) {
+                    if (!requestSession.isActive()) return;
+                    timerHandler.removeCallbacks(modelRequestTimeout);
+                    // 온디바이스 폴백은 자체 스레드에서 응답하므로, 세션 상태는 메인 스레드에서만 변경
+                    mainHandler.post(requestSession.guard(() -> handleModelResponse(rawResponse, null, 0)));
+                }
+
+                @Override
+                public void onError(String error) {
+                    if (!requestSession.isActive()) return;
+                    timerHandler.removeCallbacks(modelRequestTimeout);
+                    mainHandler.post(requestSession.guard(() -> handleModelError(error)));
+                }
+
+                @Override
+                public void onRateLimited(long retryAfterMillis, String detail) {
+                    if (!requestSession.isActive()) return;
+                    timerHandler.removeCallbacks(modelRequestTimeout);
+                    mainHandler.post(requestSession.guard(() -> handleRateLimited(retryAfterMillis, detail)));
+                }
+            };
+        }
+
+        RequestHandle request = currentAiModelService.generateResponse(
+                session.task.baseSystemPrompt,
+                session.chatHistory.getMessages(),
                 jsonLayout, // No longer used
                 bitmap,     // The screenshot
                 screenText, // The screen text
                 commandForLlm, // previousActionContext is no longer needed
-                new ModelResponseCallback() {
-                    @Override
-                    public void onSuccess(String rawResponse) {
-                        if (!isMacroRunning) return;
-
-                        Log.d("MyForegroundService", currentAiProviderName + " Raw Response: " + rawResponse);
-
-                        String jsonResponse = rawResponse.trim();
-                        // Find the start of the JSON object, ignoring any prefixes like "JSON" or markdown backticks
-                        int jsonStart = jsonResponse.indexOf('{');
-                        if (jsonStart != -1) {
-                            // Find the last closing brace
-                            int jsonEnd = jsonResponse.lastIndexOf('}');
-                            if (jsonEnd > jsonStart) {
-                                jsonResponse = jsonResponse.substring(jsonStart, jsonEnd + 1);
-                            } else {
-                                 // Malformed response, couldn't find closing brace
-                                jsonStart = -1; // Mark as not found
-                            }
-                        }
+                callback);
+        if (streamingCallback != null) streamingCallback.request = request;
+        if (request.isActive()) {
+            session.currentModelRequest = request;
+            timerHandler.postDelayed(modelRequestTimeout, getModelRequestTimeout());
+        }
+    }
 
-                        if (jsonStart == -1) {
-                             Log.e("MyForegroundService", "Could not extract valid JSON from model response.");
-                             handleFailure("LLM response did not contain a valid JSON object.");
-                             scheduleNextMacroStep(actionFailureRetryDelay);
-                             return; // Stop processing this response
-                        }
+    private long getModelRequestTimeout() {
+        // 온디바이스 대체가 켜져 있으면 어느 단계든 Gemma에서 끝날 수 있음
+        return AppPreferences.PROVIDER_GEMMA_LOCAL.equals(currentAiProviderName) || usesOnDeviceFallback
+                ? LOCAL_MODEL_REQUEST_TIMEOUT_MS
+                : MODEL_REQUEST_TIMEOUT_MS;
+    }
 
-                        // Clean up newline characters that can break parsing, as suggested by user feedback.
-                        jsonResponse = jsonResponse.replace("\n", "").replace("\r", "");
-
-
-                        Log.d("MyForegroundService", "Extracted JSON: " + jsonResponse);
-
-                        try {
-                            // Successful response, so reset the failure counter.
-                            resetFailureCounter();
-
-                            JSONObject parsedJson = new JSONObject(jsonResponse);
-                            String finalJsonString = jsonResponse;
-
-                            // Handle cases where the model returns a single action object instead of an array
-                            if (!parsedJson.has("actions") && parsedJson.has("type")) {
-                                Log.w("MyForegroundService", "Response missing 'actions' wrapper. Reconstructing JSON.");
-                                JSONArray actionsArray = new JSONArray();
-                                actionsArray.put(parsedJson);
-                                JSONObject reconstructedJson = new JSONObject();
-                                if (parsedJson.has("analysis")) {
-                                    reconstructedJson.put("analysis", parsedJson.getString("analysis"));
-                                }
-                                 if (parsedJson.has("observation")) {
-                                    reconstructedJson.put("observation", parsedJson.getJSONArray("observation"));
-                                }
-                                reconstructedJson.put("actions", actionsArray);
-                                finalJsonString = reconstructedJson.toString();
-                                Log.d("MyForegroundService", "Reconstructed JSON: " + finalJsonString);
-                            }
-
-                            // Add to chat history
-                            String inputContextForHistory = "[SCREENSHOT] + User Command: " + currentUserCommand;
-                            chatHistory.add(new ChatMessage("user", inputContextForHistory));
-                            chatHistory.add(new ChatMessage("assistant", finalJsonString));
-                            limitChatHistory();
-
-                            // Execute actions
-                            if (MacroAccessibilityService.instance != null) {
-                                MacroAccessibilityService.instance.executeActionsFromJson(finalJsonString);
-                            } else {
-                                Log.e("MyForegroundService", "MacroAccessibilityService instance is null. Cannot execute actions.");
-                                handleFailure("Internal Error: MacroAccessibilityService not available.");
-                                scheduleNextMacroStep(actionFailureRetryDelay);
-                            }
-
-                        } catch (JSONException e) {
-                            Log.e("MyForegroundService", "JSON parsing failed for extracted string: " + jsonResponse, e);
-                            handleFailure("LLM response was not valid JSON. " + e.getMessage());
-                            scheduleNextMacroStep(actionFailureRetryDelay);
-                        }
-                    }
+    /** 진행 중인 모델 요청의 HTTP 호출이나 로컬 생성을 중단합니다. 취소된 요청의 콜백은 호출되지 않습니다. */
+    private void cancelModelRequest() {
+        timerHandler.removeCallbacks(modelRequestTimeout);
+        if (session != null && session.currentModelRequest != null) {
+            session.currentModelRequest.cancel();
+            session.currentModelRequest = null;
+        }
+    }
 
-                    @Override
-                    public void onError(String error) {
-                        if (!isMacroRunning) return;
-                        Log.e("MyForegroundService", currentAiProviderName + " API Error: " + error);
+    private void onModelRequestTimedOut() {
+        if (!isSessionActive() || session.currentModelRequest == null || !session.currentModelRequest.isActive()) return;
+        long timeoutSeconds = getModelRequestTimeout() / 1000;
+        Log.w("MyForegroundService", "Model request timed out after " + timeoutSeconds + "s. Cancelling it.");
+        cancelModelRequest();
+        // 스트리밍 중 이미 시작된 계획이 있다면 나머지 액션은 실행하지 않음
+        if (session.activePlanGeneration != -1 && MacroAccessibilityService.instance != null) {
+            MacroAccessibilityService.instance.cancelExecution();
+        }
+        session.activePlanGeneration = -1;
+        handleFailure("LLM request timed out after " + timeoutSeconds + "s.");
+    }
 
-                        // --- Add failure tracking for API errors ---
-                        handleFailure("LLM API Error: " + error);
-                        // --- End of failure tracking ---
-                    }
-                });
+    /** Gemini Web은 완성된 응답만 받을 수 있으므로 스트리밍하지 않습니다. */
+    private boolean isStreamingSupported() {
+        return appPreferences.isStreamingResponsesEnabled()
+                && !AppPreferences.PROVIDER_GEMINI_WEB.equals(currentAiProviderName);
+    }
+
+    /**
+     * 모델의 전체 응답을 파싱하여 대화 기록에 추가하고 액션을 실행합니다.
+     * @param streamingPlan 스트리밍 중에 이미 시작된 계획. 없으면 null
+     * @param streamedCount streamingPlan에 이미 추가된 앞쪽 액션의 수
+     */
+    private void handleModelResponse(String rawResponse, @Nullable ActionPlan streamingPlan, int streamedCount) {
+        Log.d("MyForegroundService", currentAiProviderName + " Raw Response: " + rawResponse);
+        long parseStart = StepTimer.now();
+
+        // 단일 패스로 첫 JSON 객체를 찾고, 가벼운 형식 오류는 모델에 다시 묻지 않고 고쳐서 사용
+        JsonResponseExtractor.Result extracted = JsonResponseExtractor.extract(rawResponse);
+        if (!extracted.isSuccess()) {
+            Log.e("MyForegroundService", "Could not extract valid JSON from model response: " + extracted.error);
+            abandonStreamingPlan(streamingPlan);
+            handleFailure("LLM response did not contain a valid JSON object. " + extracted.error);
+            return;
+        }
+        if (extracted.wasRepaired()) {
+            Log.w("MyForegroundService", "Recovered malformed model response. Repairs: " + extracted.repairs);
+        }
+
+        // 실패 카운터 초기화와 대화 기록 추가 전에 실행할 액션을 모두 꺼내 둠 (잘못된 응답이 기록에 남지 않도록)
+        List<JSONObject> remainingActions = new ArrayList<>();
+        try {
+            JSONArray actions = extracted.json.getJSONArray("actions");
+            for (int i = streamedCount; i < actions.length(); i++) {
+                remainingActions.add(actions.getJSONObject(i));
+            }
+        } catch (JSONException e) {
+            Log.e("MyForegroundService", "Extracted response has no usable actions array.", e);
+            abandonStreamingPlan(streamingPlan);
+            handleFailure("LLM response was not valid JSON. " + e.getMessage());
+            return;
+        }
+
+        // Successful response, so reset the failure counter.
+        resetFailureCounter();
+        if (session.consecutiveRateLimitWaits > 0) {
+            session.consecutiveRateLimitWaits = 0;
+            updateNotification("Macro running...");
+        }
+
+        String finalJsonString = extracted.json.toString();
+        Log.d("MyForegroundService", "Extracted JSON: " + finalJsonString);
+
+        // Add to chat history
+        String inputContextForHistory = "[SCREENSHOT] + User Command: " + session.task.userCommand;
+        session.chatHistory.add(new ChatMessage("user", inputContextForHistory));
+        session.chatHistory.add(new ChatMessage("assistant", finalJsonString));
+
+        if (session.currentStepTimer != null) session.currentStepTimer.recordSince(MetricStage.PARSE, parseStart);
+
+        // Execute actions
+        MacroAccessibilityService macroService = MacroAccessibilityService.instance;
+        if (macroService != null && streamingPlan != null) {
+            // 앞쪽 액션은 이미 스트리밍 중에 실행되었으므로 나머지만 추가하고 계획을 봉인
+            for (JSONObject action : remainingActions) {
+                macroService.appendAction(streamingPlan, action);
+            }
+            macroService.sealPlan(streamingPlan);
+        } else if (macroService != null) {
+            session.actionPlanStartTime = StepTimer.now();
+            ActionPlan plan = macroService.executeActionsFromJson(finalJsonString);
+            session.activePlanGeneration = plan.getGeneration();
+            // 완료 시점이 아니라 계획을 요청한 시점의 세션에 결과를 반영
+            final MacroSession owner = session;
+            plan.getCompletion().thenAccept(result -> mainHandler.post(owner.guard(() -> onActionPlanCompleted(result))));
+        } else {
+            Log.e("MyForegroundService", "MacroAccessibilityService instance is null. Cannot execute actions.");
+            abandonStreamingPlan(streamingPlan);
+            handleFailure("Internal Error: MacroAccessibilityService not available.");
+            scheduleNextMacroStep(actionFailureRetryDelay);
+        }
+    }
+
+    private void handleModelError(String error) {
+        Log.e("MyForegroundService", currentAiProviderName + " API Error: " + error);
+
+        // --- Add failure tracking for API errors ---
+        handleFailure("LLM API Error: " + error);
+        // --- End of failure tracking ---
+    }
+
+    /**
+     * 제공자 쿼터 때문에 요청이 거절되었거나 보내지 않았을 때 호출됩니다. 실패 횟수에 포함하지 않고,
+     * 알림에 대기 상태를 표시한 뒤 제한이 풀리는 시점에 같은 단계를 다시 진행합니다.
+     */
+    private void handleRateLimited(long retryAfterMillis, String detail) {
+        session.consecutiveRateLimitWaits++;
+        if (session.consecutiveRateLimitWaits > MAX_CONSECUTIVE_RATE_LIMIT_WAITS) {
+            Log.e("MyForegroundService", "Still rate limited after " + MAX_CONSECUTIVE_RATE_LIMIT_WAITS + " waits: " + detail);
+            session.consecutiveRateLimitWaits = 0;
+            handleFailure("LLM API quota exhausted: " + detail);
+            return;
+        }
+        long delay = Math.max(retryAfterMillis, MIN_REQUEST_INTERVAL_MS);
+        Log.w("MyForegroundService", "Rate limited (" + session.consecutiveRateLimitWaits + "/" + MAX_CONSECUTIVE_RATE_LIMIT_WAITS
+                + "), retrying in " + delay + "ms: " + detail);
+        if (session.currentStepTimer != null) session.currentStepTimer.record(MetricStage.QUOTA_WAIT, delay);
+        updateNotification("Waiting for API quota (" + ((delay + 999) / 1000) + "s)...");
+        scheduleNextMacroStep(delay);
     }
 
-    public void reportActionCompleted(boolean success, @Nullable String feedback) {
-        if (!isMacroRunning) return;
+    /** 스트리밍 계획을 버립니다. 이미 실행된 액션은 되돌릴 수 없지만, 남은 액션은 실행되지 않습니다. */
+    private void abandonStreamingPlan(@Nullable ActionPlan streamingPlan) {
+        if (streamingPlan == null) return;
+        streamingPlan.cancel();
+        if (session.activePlanGeneration == streamingPlan.getGeneration()) {
+            session.activePlanGeneration = -1;
+        }
+    }
+
+    /**
+     * 스트리밍 응답을 받아 "actions" 배열의 요소가 완성될 때마다 바로 실행기로 넘기는 콜백입니다.
+     * 모든 처리는 메인 스레드에서 이루어집니다. 응답이 끝나기 전에 계획이 먼저 끝나면(실패 등),
+     * 응답 전체가 대화 기록에 추가된 뒤에 그 결과를 처리합니다.
+     */
+    private class StreamingModelCallback implements StreamingResponseCallback {
+        RequestHandle request; // 요청을 보낸 직후 설정. 취소된 뒤 이미 게시된 조각은 무시
+        private final MacroSession owner = session; // 요청을 보낸 세션. 끝난 세션의 조각과 결과는 무시
+        private final long requestStart = StepTimer.now();
+        private final ActionStreamParser parser = new ActionStreamParser(this::dispatchStreamedAction);
+        private ActionPlan streamingPlan;
+        private boolean dispatchDisabled = false;
+        private boolean responseComplete = false;
+        private ActionResult deferredResult;
+
+        @Override
+        public void onTextChunk(String chunk) {
+            mainHandler.post(() -> {
+                if (!owner.isActive() || responseComplete || isCancelled()) return;
+                parser.feed(chunk);
+            });
+        }
+
+        @Override
+        public void onSuccess(String rawResponse) {
+            if (!owner.isActive()) return;
+            timerHandler.removeCallbacks(modelRequestTimeout);
+            mainHandler.post(() -> {
+                if (!owner.isActive() || isCancelled()) return;
+                responseComplete = true;
+                handleModelResponse(rawResponse, streamingPlan, streamingPlan != null ? parser.getEmittedCount() : 0);
+                if (deferredResult != null) {
+                    onActionPlanCompleted(deferredResult);
+                    deferredResult = null;
+                }
+            });
+        }
+
+        @Override
+        public void onError(String error) {
+            if (!owner.isActive()) return;
+            timerHandler.removeCallbacks(modelRequestTimeout);
+            mainHandler.post(() -> {
+                if (!owner.isActive() || isCancelled()) return;
+                responseComplete = true;
+                abandonStreamingPlan(streamingPlan);
+                handleModelError(error);
+            });
+        }
+
+        @Override
+        public void onRateLimited(long retryAfterMillis, String detail) {
+            if (!owner.isActive()) return;
+            timerHandler.removeCallbacks(modelRequestTimeout);
+            mainHandler.post(() -> {
+                if (!owner.isActive() || isCancelled()) return;
+                responseComplete = true;
+                abandonStreamingPlan(streamingPlan);
+                handleRateLimited(retryAfterMillis, detail);
+            });
+        }
+
+        private boolean isCancelled() {
+            return request != null && request.isCancelled();
+        }
+
+        private void dispatchStreamedAction(JSONObject action) {
+            if (dispatchDisabled) return;
+            MacroAccessibilityService service = MacroAccessibilityService.instance;
+            if (streamingPlan == null) {
+                if (service == null) {
+                    // 전체 응답을 받은 뒤 일반 경로에서 처리
+                    dispatchDisabled = true;
+                    return;
+                }
+                if (owner.currentStepTimer != null) owner.currentStepTimer.recordSince(MetricStage.FIRST_ACTION, requestStart);
+                Log.d("MyForegroundService", "First action streamed after " + (StepTimer.now() - requestStart) + "ms. Starting execution early.");
+                owner.actionPlanStartTime = StepTimer.now();
+                streamingPlan = service.beginStreamingPlan();
+                owner.activePlanGeneration = streamingPlan.getGeneration();
+                streamingPlan.getCompletion().thenAccept(result -> mainHandler.post(owner.guard(() -> onPlanCompleted(result))));
+            }
+            service.appendAction(streamingPlan, action);
+        }
+
+        private void onPlanCompleted(ActionResult result) {
+            if (responseComplete) {
+                onActionPlanCompleted(result);
+            } else {
+                deferredResult = result;
+            }
+        }
+    }
+
+    /**
+     * 액션 실행기의 계획 완료 결과를 처리합니다. 메인 스레드에서 호출됩니다.
+     * 중단되었거나 더 새로운 계획으로 대체된 계획의 결과는 무시합니다.
+     */
+    private void onActionPlanCompleted(ActionResult result) {
+        if (!isSessionActive() || result.cancelled || result.generation != session.activePlanGeneration) {
+            Log.d("MyForegroundService", "Ignoring stale action plan result (generation " + result.generation + ", active " + session.activePlanGeneration + ").");
+            return;
+        }
+        session.activePlanGeneration = -1;
+        session.pendingActionVerdicts = new ArrayList<>(result.verdicts);
+        if (session.currentStepTimer != null) {
+            session.currentStepTimer.recordSince(MetricStage.ACTION, session.actionPlanStartTime);
+            session.currentStepTimer.finish();
+            session.currentStepTimer = null;
+        }
+
+        if (result.taskDone) {
+            finishCurrentTask();
+            return;
+        }
+        reportActionCompleted(result.success, result.feedback);
+    }
+
+    /**
+     * 직전 계획의 검증 결과를 실행 피드백으로 기록합니다. 효과가 없었거나 예상치 못한 창이 나타난 액션만 보고합니다.
+     * @param frameChanged 이전 단계 이후 스크린샷 프레임이 바뀌었는지 여부. 바뀌었다면 'no-effect' 판정을 정정합니다.
+     */
+    private void flushActionVerdicts(boolean frameChanged) {
+        if (session.pendingActionVerdicts.isEmpty()) return;
+        List<ActionVerdict> verdicts = new ArrayList<>(session.pendingActionVerdicts.size());
+        for (ActionVerdict verdict : session.pendingActionVerdicts) {
+            verdicts.add(frameChanged ? verdict.withVisualChange() : verdict);
+        }
+        session.pendingActionVerdicts = new ArrayList<>();
+
+        String summary = ActionVerifier.summarizeForFeedback(verdicts);
+        if (summary != null) {
+            Log.d("MyForegroundService", summary);
+            addExecutionFeedbackToHistory(summary);
+        }
+    }
+
+    private void reportActionCompleted(boolean success, @Nullable String feedback) {
+        if (!isSessionActive()) return;
 
         if (success) {
             Log.d("MyForegroundService", "Action reported as successful.");
@@ -752,30 +1175,30 @@ public class MyForegroundService extends Service {
     }
 
     private void resetFailureCounter() {
-        if (consecutiveFailureCount > 0) {
+        if (session.consecutiveFailureCount > 0) {
             Log.d("MyForegroundService", "Resetting failure counter.");
         }
-        consecutiveFailureCount = 0;
-        lastFailureFeedback = "";
+        session.consecutiveFailureCount = 0;
+        session.lastFailureFeedback = "";
     }
 
     private void handleFailure(String feedback) {
-        if (feedback.equals(lastFailureFeedback)) {
-            consecutiveFailureCount++;
-            Log.w("MyForegroundService", "Consecutive failure " + consecutiveFailureCount + " with same feedback: " + feedback);
+        if (feedback.equals(session.lastFailureFeedback)) {
+            session.consecutiveFailureCount++;
+            Log.w("MyForegroundService", "Consecutive failure " + session.consecutiveFailureCount + " with same feedback: " + feedback);
         } else {
-            consecutiveFailureCount = 1;
-            lastFailureFeedback = feedback;
+            session.consecutiveFailureCount = 1;
+            session.lastFailureFeedback = feedback;
             Log.w("MyForegroundService", "New failure type, resetting count to 1. Feedback: " + feedback);
         }
 
-        if (consecutiveFailureCount >= MAX_CONSECUTIVE_FAILURES) {
+        if (session.consecutiveFailureCount >= MAX_CONSECUTIVE_FAILURES) {
             Log.e("MyForegroundService", "Max consecutive failures (" + MAX_CONSECUTIVE_FAILURES + ") reached. Stopping macro.");
             mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Macro stopped after " + MAX_CONSECUTIVE_FAILURES + " consecutive errors.", Toast.LENGTH_LONG).show());
-            stopMacroExecution();
+            finishCurrentTask();
         } else {
             if (getApplicationContext() != null) {
-                mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Action Failed: " + feedback + ". Retrying (" + consecutiveFailureCount + "/" + MAX_CONSECUTIVE_FAILURES + ")", Toast.LENGTH_LONG).show());
+                mainHandler.post(() -> Toast.makeText(getApplicationContext(), "Action Failed: " + feedback + ". Retrying (" + session.consecutiveFailureCount + "/" + MAX_CONSECUTIVE_FAILURES + ")", Toast.LENGTH_LONG).show());
             }
             addExecutionFeedbackToHistory(feedback);
             scheduleNextMacroStep(actionFailureRetryDelay);
@@ -783,24 +1206,58 @@ public class MyForegroundService extends Service {
     }
 
     private void addExecutionFeedbackToHistory(String feedbackText) {
-        chatHistory.add(new ChatMessage("execution_feedback", feedbackText));
-        limitChatHistory();
+        session.chatHistory.add(new ChatMessage("execution_feedback", feedbackText));
     }
 
-    private void limitChatHistory() {
-        while (chatHistory.size() > CHAT_HISTORY_SIZE_LIMIT) {
-            chatHistory.remove(0);
+    /**
+     * 현재 명령을 끝내고 대기열의 다음 명령을 이어서 실행합니다. 캡처와 모델 클라이언트는 그대로 유지됩니다.
+     * 대기열이 비어 있으면 서비스를 종료합니다.
+     */
+    private void finishCurrentTask() {
+        MacroTaskQueue.MacroTask next = taskQueue.poll();
+        if (next == null) {
+            stopMacroExecution();
+            return;
+        }
+        Log.d("MyForegroundService", "Task finished. Starting next queued command (" + taskQueue.size() + " left): " + next.userCommand);
+        resetTaskState();
+        startTask(next);
+    }
+
+    /** 현재 세션을 끝냅니다. 세션에 묶인 예약 작업과 콜백은 이후 아무 일도 하지 않습니다. */
+    private void endSession() {
+        MacroSession current = session;
+        if (current != null) current.end();
+        // 세션이 끝나면 파이프라인이 들고 있던 마지막 프레임도 해제
+        if (stepPipeline != null) stepPipeline.cancel();
+    }
+
+    private boolean isSessionActive() {
+        MacroSession current = session;
+        return current != null && current.isActive();
+    }
+
+    /** 진행 중인 단계, 모델 요청, 액션 계획을 취소하여 이후에는 현재 명령의 어떤 액션도 실행되지 않도록 합니다. */
+    private void resetTaskState() {
+        timerHandler.removeCallbacksAndMessages(null);
+        cancelModelRequest();
+        endSession();
+        if (MacroAccessibilityService.instance != null) {
+            MacroAccessibilityService.instance.cancelExecution();
         }
     }
 
     public void stopMacroExecution() {
         Log.d("MyForegroundService", "stopMacroExecution called. Stopping service.");
-        isMacroRunning = false;
+        // 대기 중인 명령도 함께 버림
+        taskQueue.clear();
+        resetTaskState();
 
         // --- 추가: 현재 AI 서비스에 대한 정리 작업 호출 ---
         if (currentAiModelService != null) {
             Log.d("MyForegroundService", "Performing cleanup for provider: " + currentAiProviderName);
             currentAiModelService.cleanup();
+            currentAiModelService = null;
         }
 
         // Release all resources related to MediaProjection
@@ -904,7 +1361,10 @@ public class MyForegroundService extends Service {
     @Override
     public void onDestroy() {
         Log.d("MyForegroundService", "onDestroy called for MyForegroundService.");
-        isMacroRunning = false;
+        endSession();
+        if (MacroAccessibilityService.instance != null) {
+            MacroAccessibilityService.instance.cancelExecution();
+        }
         // isWebViewAttached = false; // --- 제거 ---
 
         // 서비스 종료 시 WebView 일시정지
@@ -913,6 +1373,9 @@ public class MyForegroundService extends Service {
         if (timerHandler != null) {
             timerHandler.removeCallbacksAndMessages(null);
         }
+        if (stepPipeline != null) {
+            stepPipeline.shutdown();
+        }
 
         // --- BroadcastReceiver 해제 ---
         if (loginSuccessReceiver != null) {
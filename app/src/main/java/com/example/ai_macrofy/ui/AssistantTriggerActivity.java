@@ -25,6 +25,8 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
+import com.example.ai_macrofy.llm.common.NetworkModule;
+import com.example.ai_macrofy.llm.gemma.GemmaManager;
 import com.example.ai_macrofy.services.foreground.MyForegroundService;
 import com.example.ai_macrofy.utils.AppPreferences;
 import android.app.PendingIntent;
@@ -115,6 +117,8 @@ public class AssistantTriggerActivity extends AppCompatActivity {
             return;
         }
 
+        // Warm up the connection to the model API while the user is speaking
+        NetworkModule.preconnect(appPreferences.getAiProvider());
         Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
         intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
         intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault());
@@ -160,18 +164,8 @@ public class AssistantTriggerActivity extends AppCompatActivity {
     }
 
     private String getLaunchableApplicationsListString() {
-        List<Pair<String, String>> launchableApps = getLaunchableApplications();
-
-        if (launchableApps.isEmpty()) {
-            return "App list is not available yet. Please try again in a moment.\n";
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("List of launchable applications (Format: Package Name : Display Name):\n");
-        for (Pair<String, String> appEntry : launchableApps) {
-            sb.append("- ").append(appEntry.first).append(" : ").append(appEntry.second).append("\n");
-        }
-        return sb.toString();
+        // 프롬프트 캐시가 유지되도록 항상 같은 순서(패키지 이름순)로 만듦
+        return PromptManager.formatAppList(appPreferences.getAppList());
     }
 
     private List<Pair<String, String>> getLaunchableApplications() {
@@ -235,6 +229,11 @@ public class AssistantTriggerActivity extends AppCompatActivity {
     }
 
 
+    private boolean usesOnDeviceFallback(String provider) {
+        return (AppPreferences.PROVIDER_GEMINI.equals(provider) || AppPreferences.PROVIDER_OPENAI.equals(provider))
+                && appPreferences.isOnDeviceFallbackEnabled() && GemmaManager.isModelAvailable(this);
+    }
+
     private void startMacro(String recognizedCommand) {
         String currentProvider = appPreferences.getAiProvider();
         String apiKey = appPreferences.getApiKeyForCurrentProvider();
@@ -271,6 +270,11 @@ public class AssistantTriggerActivity extends AppCompatActivity {
         Intent serviceIntent = new Intent(this, PermissionRequestActivity.class);
         serviceIntent.putExtra("apiKey", apiKey);
         serviceIntent.putExtra("baseSystemPrompt", finalSystemPrompt);
+        if (usesOnDeviceFallback(currentProvider)) {
+            // Gemma's own prompt, used if the network degrades and the steps move to the device
+            serviceIntent.putExtra("fallbackSystemPrompt", PromptManager.getSystemPrompt(AppPreferences.PROVIDER_GEMMA_LOCAL,
+                    screenWidth, screenHeight, getFilteredAppsListForPrompt(recognizedCommand, allApps)));
+        }
         serviceIntent.putExtra("userCommand", recognizedCommand);
         serviceIntent.putExtra("ai_provider", currentProvider);
         // MediaProjection data is no longer passed from here.
@@ -53,6 +53,7 @@ import androidx.core.view.WindowInsetsCompat;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 
 import com.example.ai_macrofy.R;
+import com.example.ai_macrofy.llm.common.NetworkModule;
 import com.example.ai_macrofy.llm.gemma.GemmaManager;
 import com.example.ai_macrofy.llm.gemma.InitializationCallback;
 import com.example.ai_macrofy.services.accessibility.LayoutAccessibilityService;
@@ -162,24 +163,24 @@ public class MainActivity extends AppCompatActivity {
                     return; // Stop here, let user decide on download
                 }
 
-                if (!MyForegroundService.isMacroRunning) {
-                    currentRecognizedText = textViewRecognizedPrompt.getText().toString();
-                    if (currentRecognizedText.isEmpty()) {
-                        Toast.makeText(this, "Please speak or type a command first.", Toast.LENGTH_SHORT).show();
-                        return;
-                    }
-                    Log.d("MainActivity", "Start Macro button clicked. Starting service.");
-                    // Directly start the service. The service will request permission.
-                    startMacro();
-
+                currentRecognizedText = textViewRecognizedPrompt.getText().toString();
+                if (currentRecognizedText.isEmpty()) {
+                    Toast.makeText(this, "Please speak or type a command first.", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                if (MyForegroundService.isMacroRunning()) {
+                    // The running service queues the command (or replaces the current one, depending on settings).
+                    Log.d("MainActivity", "Start Macro button clicked while a macro is running. Sending command to the queue.");
                 } else {
-                    Toast.makeText(this, "Macro is already running.", Toast.LENGTH_SHORT).show();
+                    Log.d("MainActivity", "Start Macro button clicked. Starting service.");
                 }
+                // Directly start the service. The service will request permission.
+                startMacro();
             }
         });
 
         buttonStopMacro.setOnClickListener(v -> {
-            if (MyForegroundService.isMacroRunning) {
+            if (MyForegroundService.isMacroRunning()) {
                 // The service will handle its own shutdown process.
                 stopService(new Intent(this, MyForegroundService.class));
                 Log.d("MainActivity", "Stop Macro button clicked. Sent stop intent to service.");
@@ -391,7 +392,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void updateUiBasedOnServiceState() {
-        if (MyForegroundService.isMacroRunning) {
+        if (MyForegroundService.isMacroRunning()) {
             textViewResult.setText("Macro is currently running.");
         } else {
             // Check if there's a final message to display or just reset
@@ -423,6 +424,8 @@ public class MainActivity extends AppCompatActivity {
         if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO) != PackageManager.PERMISSION_GRANTED) {
             ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.RECORD_AUDIO}, REQUEST_RECORD_AUDIO_PERMISSION);
         } else {
+            // 사용자가 말하는 동안 모델 API 서버와의 연결을 미리 맺어 둠
+            NetworkModule.preconnect(appPreferences.getAiProvider());
             Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
             intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE_MODEL, RecognizerIntent.LANGUAGE_MODEL_FREE_FORM);
             intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, Locale.getDefault());
@@ -487,20 +490,10 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private String getLaunchableApplicationsListString() {
-        List<Pair<String, String>> launchableApps = getLaunchableApplications();
-
-        if (launchableApps.isEmpty()) {
-            return "App list is not available yet. Please try again in a moment.\n";
-        }
-
-        StringBuilder sb = new StringBuilder();
-        sb.append("List of launchable applications (Format: Package Name : Display Name):\n");
-        for (Pair<String, String> appEntry : launchableApps) {
-            sb.append("- ").append(appEntry.first).append(" : ").append(appEntry.second).append("\n");
-        }
-
-        Log.d("MainActivity", "Total launchable apps found (from cache): " + launchableApps.size());
-        return sb.toString();
+        // 프롬프트 캐시가 유지되도록 항상 같은 순서(패키지 이름순)로 만듦
+        Map<String, String> appMap = appPreferences.getAppList();
+        Log.d("MainActivity", "Total launchable apps found (from cache): " + appMap.size());
+        return PromptManager.formatAppList(appMap);
     }
 
     private String getFilteredAppsListForPrompt(String command, List<Pair<String, String>> allApps) {
@@ -551,6 +544,11 @@ public class MainActivity extends AppCompatActivity {
         return "Available apps: " + TextUtils.join(", ", sortedAppNames) + "\n";
     }
 
+    private boolean usesOnDeviceFallback(String provider) {
+        return (AppPreferences.PROVIDER_GEMINI.equals(provider) || AppPreferences.PROVIDER_OPENAI.equals(provider))
+                && appPreferences.isOnDeviceFallbackEnabled() && GemmaManager.isModelAvailable(this);
+    }
+
     @SuppressLint("SetTextI18n")
     private void startMacro() {
         String recognizedCommand = textViewRecognizedPrompt.getText().toString();
@@ -581,6 +579,11 @@ public class MainActivity extends AppCompatActivity {
         Intent serviceIntent = new Intent(this, PermissionRequestActivity.class);
         serviceIntent.putExtra("apiKey", apiKey);
         serviceIntent.putExtra("baseSystemPrompt", finalSystemPrompt);
+        if (usesOnDeviceFallback(currentProvider)) {
+            // 네트워크가 나빠져 Gemma로 넘어갈 때 쓸 프롬프트. 앱 목록도 Gemma에 맞게 줄임
+            serviceIntent.putExtra("fallbackSystemPrompt", PromptManager.getSystemPrompt(AppPreferences.PROVIDER_GEMMA_LOCAL,
+                    screenWidth, screenHeight, getFilteredAppsListForPrompt(recognizedCommand, allApps)));
+        }
         serviceIntent.putExtra("userCommand", recognizedCommand);
         serviceIntent.putExtra("ai_provider", currentProvider);
         // MediaProjection data is no longer passed from here.
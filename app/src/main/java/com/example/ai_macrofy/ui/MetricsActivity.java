@@ -0,0 +1,99 @@
+package com.example.ai_macrofy.ui;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.FileProvider;
+
+import com.example.ai_macrofy.R;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Debug screen showing per-stage latency percentiles of macro steps, with JSON/CSV export.
+ */
+public class MetricsActivity extends AppCompatActivity {
+    private static final String TAG = "MetricsActivity";
+    private static final String EXPORT_DIR = "metrics"; // Must match res/xml/file_paths.xml
+
+    private TextView textViewSummary;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_metrics);
+
+        textViewSummary = findViewById(R.id.textView_metrics_summary);
+        findViewById(R.id.button_metrics_export_json).setOnClickListener(v -> exportJson());
+        findViewById(R.id.button_metrics_export_csv).setOnClickListener(v -> exportCsv());
+        findViewById(R.id.button_metrics_reset).setOnClickListener(v -> {
+            MacroMetrics.getInstance().reset();
+            refresh();
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    private void refresh() {
+        textViewSummary.setText(MacroMetrics.getInstance().formatSummary());
+    }
+
+    private void exportJson() {
+        try {
+            share(writeExport("json", MacroMetrics.getInstance().toJson().toString(2)), "application/json");
+        } catch (JSONException | IOException e) {
+            Log.e(TAG, "Failed to export metrics as JSON", e);
+            Toast.makeText(this, "Export failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private void exportCsv() {
+        try {
+            share(writeExport("csv", MacroMetrics.getInstance().toCsv()), "text/csv");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to export metrics as CSV", e);
+            Toast.makeText(this, "Export failed: " + e.getMessage(), Toast.LENGTH_LONG).show();
+        }
+    }
+
+    private File writeExport(String extension, String content) throws IOException {
+        File dir = new File(getCacheDir(), EXPORT_DIR);
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir.getAbsolutePath());
+        }
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
+        File file = new File(dir, "macro_metrics_" + timeStamp + "." + extension);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+        Log.d(TAG, "Metrics exported to: " + file.getAbsolutePath());
+        return file;
+    }
+
+    private void share(File file, String mimeType) {
+        Uri uri = FileProvider.getUriForFile(this, getPackageName() + ".provider", file);
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType(mimeType);
+        intent.putExtra(Intent.EXTRA_STREAM, uri);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        startActivity(Intent.createChooser(intent, getString(R.string.metrics_title)));
+    }
+}
@@ -29,6 +29,22 @@ public class PermissionRequestActivity extends AppCompatActivity {
         // Store the intent that started this activity, it contains all the data for the service.
         serviceIntentData = getIntent();
 
+        // Screen capture is still running from the current macro: hand the command over without asking again.
+        if (MyForegroundService.hasActiveProjection()) {
+            Log.d(TAG, "Screen capture already active. Sending command to the running service.");
+            Intent serviceIntent = new Intent(this, MyForegroundService.class);
+            if (serviceIntentData != null && serviceIntentData.getExtras() != null) {
+                serviceIntent.putExtras(serviceIntentData.getExtras());
+            }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                startForegroundService(serviceIntent);
+            } else {
+                startService(serviceIntent);
+            }
+            finish();
+            return;
+        }
+
         mediaProjectionLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
                 result -> {
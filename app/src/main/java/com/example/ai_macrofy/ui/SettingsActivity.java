@@ -18,6 +18,7 @@ import androidx.appcompat.app.AppCompatActivity;
 import com.example.ai_macrofy.R;
 import com.example.ai_macrofy.utils.AppPreferences;
 import com.example.ai_macrofy.utils.SharedWebViewManager;
+import com.google.android.material.materialswitch.MaterialSwitch;
 
 public class SettingsActivity extends AppCompatActivity {
 
@@ -34,6 +35,18 @@ public class SettingsActivity extends AppCompatActivity {
     private RadioButton radioButtonGemmaGpu;
     private LinearLayout layoutApiKeys;
     private Button buttonGeminiWebLogout;
+    private MaterialSwitch switchStreamingResponses;
+    private MaterialSwitch switchHedgedRequests;
+    private EditText editTextHedgeDelay;
+    private MaterialSwitch switchFrameUploadCache;
+    private MaterialSwitch switchOpenAiResponsesApi;
+    private MaterialSwitch switchStructuredOutput;
+    private EditText editTextMaxOutputTokens;
+    private MaterialSwitch switchModelRouting;
+    private MaterialSwitch switchOnDeviceFallback;
+    private EditText editTextLatencySlo;
+    private EditText editTextMaxTokensPerMacro;
+    private MaterialSwitch switchReplaceRunningMacro;
 
     private AppPreferences appPreferences;
 
@@ -65,12 +78,25 @@ public class SettingsActivity extends AppCompatActivity {
         radioButtonGemmaGpu = findViewById(R.id.radioButton_gemma_gpu);
         layoutApiKeys = findViewById(R.id.layout_api_keys);
         buttonGeminiWebLogout = findViewById(R.id.button_gemini_web_logout);
+        switchStreamingResponses = findViewById(R.id.switch_streaming_responses);
+        switchHedgedRequests = findViewById(R.id.switch_hedged_requests);
+        editTextHedgeDelay = findViewById(R.id.editText_hedge_delay);
+        switchFrameUploadCache = findViewById(R.id.switch_frame_upload_cache);
+        switchOpenAiResponsesApi = findViewById(R.id.switch_openai_responses_api);
+        switchStructuredOutput = findViewById(R.id.switch_structured_output);
+        editTextMaxOutputTokens = findViewById(R.id.editText_max_output_tokens);
+        switchModelRouting = findViewById(R.id.switch_model_routing);
+        switchOnDeviceFallback = findViewById(R.id.switch_on_device_fallback);
+        editTextLatencySlo = findViewById(R.id.editText_latency_slo);
+        editTextMaxTokensPerMacro = findViewById(R.id.editText_max_tokens_per_macro);
+        switchReplaceRunningMacro = findViewById(R.id.switch_replace_running_macro);
 
         loadSettings();
 
         radioGroupAiProvider.setOnCheckedChangeListener((group, checkedId) -> updateUiForProvider(checkedId));
         buttonSaveSettings.setOnClickListener(v -> saveSettings());
         buttonGeminiWebLogout.setOnClickListener(v -> logoutFromGeminiWeb());
+        findViewById(R.id.button_open_metrics).setOnClickListener(v -> startActivity(new Intent(this, MetricsActivity.class)));
     }
 
     private void updateUiForProvider(int checkedId) {
@@ -142,6 +168,18 @@ public class SettingsActivity extends AppCompatActivity {
         } else {
             radioButtonGemmaCpu.setChecked(true);
         }
+        switchStreamingResponses.setChecked(appPreferences.isStreamingResponsesEnabled());
+        switchHedgedRequests.setChecked(appPreferences.isHedgedRequestsEnabled());
+        editTextHedgeDelay.setText(String.valueOf(appPreferences.getHedgeDelayMs()));
+        switchFrameUploadCache.setChecked(appPreferences.isFrameUploadCacheEnabled());
+        switchOpenAiResponsesApi.setChecked(appPreferences.isOpenAiResponsesApiEnabled());
+        switchStructuredOutput.setChecked(appPreferences.isStructuredOutputEnabled());
+        editTextMaxOutputTokens.setText(String.valueOf(appPreferences.getMaxOutputTokens()));
+        switchModelRouting.setChecked(appPreferences.isModelRoutingEnabled());
+        switchOnDeviceFallback.setChecked(appPreferences.isOnDeviceFallbackEnabled());
+        editTextLatencySlo.setText(String.valueOf(appPreferences.getLatencySloMs()));
+        editTextMaxTokensPerMacro.setText(String.valueOf(appPreferences.getMaxTokensPerMacro()));
+        switchReplaceRunningMacro.setChecked(AppPreferences.QUEUE_POLICY_CANCEL_CURRENT.equals(appPreferences.getQueuePolicy()));
 
         updateUiForProvider(radioGroupAiProvider.getCheckedRadioButtonId());
     }
@@ -168,6 +206,36 @@ public class SettingsActivity extends AppCompatActivity {
                 ? AppPreferences.DELEGATE_GPU
                 : AppPreferences.DELEGATE_CPU;
         appPreferences.saveGemmaDelegate(gemmaDelegate);
+        appPreferences.setStreamingResponsesEnabled(switchStreamingResponses.isChecked());
+        appPreferences.setHedgedRequestsEnabled(switchHedgedRequests.isChecked());
+        try {
+            appPreferences.saveHedgeDelayMs(Math.max(0, Long.parseLong(editTextHedgeDelay.getText().toString().trim())));
+        } catch (NumberFormatException e) {
+            appPreferences.saveHedgeDelayMs(AppPreferences.DEFAULT_HEDGE_DELAY_MS);
+        }
+        appPreferences.setFrameUploadCacheEnabled(switchFrameUploadCache.isChecked());
+        appPreferences.setOpenAiResponsesApiEnabled(switchOpenAiResponsesApi.isChecked());
+        appPreferences.setStructuredOutputEnabled(switchStructuredOutput.isChecked());
+        try {
+            appPreferences.saveMaxOutputTokens(Math.max(0, Integer.parseInt(editTextMaxOutputTokens.getText().toString().trim())));
+        } catch (NumberFormatException e) {
+            appPreferences.saveMaxOutputTokens(AppPreferences.DEFAULT_MAX_OUTPUT_TOKENS);
+        }
+        appPreferences.setModelRoutingEnabled(switchModelRouting.isChecked());
+        appPreferences.setOnDeviceFallbackEnabled(switchOnDeviceFallback.isChecked());
+        try {
+            appPreferences.saveLatencySloMs(Math.max(1000, Long.parseLong(editTextLatencySlo.getText().toString().trim())));
+        } catch (NumberFormatException e) {
+            appPreferences.saveLatencySloMs(AppPreferences.DEFAULT_LATENCY_SLO_MS);
+        }
+        try {
+            appPreferences.saveMaxTokensPerMacro(Math.max(0, Long.parseLong(editTextMaxTokensPerMacro.getText().toString().trim())));
+        } catch (NumberFormatException e) {
+            appPreferences.saveMaxTokensPerMacro(0);
+        }
+        appPreferences.saveQueuePolicy(switchReplaceRunningMacro.isChecked()
+                ? AppPreferences.QUEUE_POLICY_CANCEL_CURRENT
+                : AppPreferences.QUEUE_POLICY_APPEND);
 
         Toast.makeText(this, "Settings saved!", Toast.LENGTH_SHORT).show();
         finish();
@@ -19,6 +19,9 @@ public class AppPreferences {
     public static final String PROVIDER_GEMMA_LOCAL = "gemma_local";
     public static final String PROVIDER_GEMINI_WEB = "gemini_web";
 
+    public static final String QUEUE_POLICY_APPEND = "append";
+    public static final String QUEUE_POLICY_CANCEL_CURRENT = "cancel_current";
+
     public static final String DELEGATE_CPU = "cpu";
     public static final String DELEGATE_GPU = "gpu";
 
@@ -29,6 +32,22 @@ public class AppPreferences {
     private static final String KEY_GEMMA_DELEGATE = "gemma_delegate";
     private static final String KEY_GEMINI_WEB_LOGGED_IN = "gemini_web_logged_in";
     private static final String KEY_APP_LIST_JSON = "app_list_json"; // 앱 목록 캐시 키
+    private static final String KEY_STREAMING_RESPONSES = "streaming_responses";
+    private static final String KEY_HEDGED_REQUESTS = "hedged_requests";
+    private static final String KEY_HEDGE_DELAY_MS = "hedge_delay_ms";
+    private static final String KEY_FRAME_UPLOAD_CACHE = "frame_upload_cache";
+    private static final String KEY_OPENAI_RESPONSES_API = "openai_responses_api";
+    private static final String KEY_STRUCTURED_OUTPUT = "structured_output";
+    private static final String KEY_MAX_OUTPUT_TOKENS = "max_output_tokens";
+    private static final String KEY_MODEL_ROUTING = "model_routing";
+    private static final String KEY_ON_DEVICE_FALLBACK = "on_device_fallback";
+    private static final String KEY_LATENCY_SLO_MS = "latency_slo_ms";
+    private static final String KEY_MAX_TOKENS_PER_MACRO = "max_tokens_per_macro";
+    private static final String KEY_QUEUE_POLICY = "queue_policy";
+
+    public static final long DEFAULT_HEDGE_DELAY_MS = 2500;
+    public static final int DEFAULT_MAX_OUTPUT_TOKENS = 1024; // Room for a long on-screen keyboard sequence
+    public static final long DEFAULT_LATENCY_SLO_MS = 8000;
 
     private final Gson gson = new Gson();
 
@@ -68,6 +87,113 @@ public class AppPreferences {
         return prefs.getString(KEY_GEMMA_DELEGATE, DELEGATE_CPU); // Default to CPU
     }
 
+    public void setStreamingResponsesEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_STREAMING_RESPONSES, enabled).apply();
+    }
+
+    public boolean isStreamingResponsesEnabled() {
+        return prefs.getBoolean(KEY_STREAMING_RESPONSES, true); // Default to streaming
+    }
+
+    // Methods for hedging slow requests to the other API provider
+    public void setHedgedRequestsEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_HEDGED_REQUESTS, enabled).apply();
+    }
+
+    public boolean isHedgedRequestsEnabled() {
+        return prefs.getBoolean(KEY_HEDGED_REQUESTS, false); // Off by default: a fired hedge is a second paid request
+    }
+
+    public void saveHedgeDelayMs(long delayMs) {
+        prefs.edit().putLong(KEY_HEDGE_DELAY_MS, delayMs).apply();
+    }
+
+    public long getHedgeDelayMs() {
+        return prefs.getLong(KEY_HEDGE_DELAY_MS, DEFAULT_HEDGE_DELAY_MS);
+    }
+
+    // What to do with a new command while a macro is running
+    public void saveQueuePolicy(String policy) {
+        prefs.edit().putString(KEY_QUEUE_POLICY, policy).apply();
+    }
+
+    public String getQueuePolicy() {
+        return prefs.getString(KEY_QUEUE_POLICY, QUEUE_POLICY_APPEND); // Default to queueing
+    }
+
+    // Methods for reusing uploaded screenshots (Gemini File API)
+    public void setFrameUploadCacheEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_FRAME_UPLOAD_CACHE, enabled).apply();
+    }
+
+    public boolean isFrameUploadCacheEnabled() {
+        return prefs.getBoolean(KEY_FRAME_UPLOAD_CACHE, false); // Off by default: screenshots are stored on the provider for up to 48h
+    }
+
+    // Methods for continuing OpenAI conversations from stored responses (Responses API)
+    public void setOpenAiResponsesApiEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_OPENAI_RESPONSES_API, enabled).apply();
+    }
+
+    public boolean isOpenAiResponsesApiEnabled() {
+        return prefs.getBoolean(KEY_OPENAI_RESPONSES_API, false); // Off by default: OpenAI stores the conversation for up to 30 days
+    }
+
+    // Methods for constraining responses to the action schema and capping their length
+    public void setStructuredOutputEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_STRUCTURED_OUTPUT, enabled).apply();
+    }
+
+    public boolean isStructuredOutputEnabled() {
+        return prefs.getBoolean(KEY_STRUCTURED_OUTPUT, true);
+    }
+
+    public void saveMaxOutputTokens(int maxOutputTokens) {
+        prefs.edit().putInt(KEY_MAX_OUTPUT_TOKENS, maxOutputTokens).apply();
+    }
+
+    /** Output token cap for remote providers, excluding thinking tokens. 0 means no cap. */
+    public int getMaxOutputTokens() {
+        return prefs.getInt(KEY_MAX_OUTPUT_TOKENS, DEFAULT_MAX_OUTPUT_TOKENS);
+    }
+
+    // Methods for routing each step to a fast, default or strong model
+    public void setModelRoutingEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_MODEL_ROUTING, enabled).apply();
+    }
+
+    public boolean isModelRoutingEnabled() {
+        return prefs.getBoolean(KEY_MODEL_ROUTING, false);
+    }
+
+    // Methods for falling back to the on-device model while the network is slow or offline
+    public void setOnDeviceFallbackEnabled(boolean enabled) {
+        prefs.edit().putBoolean(KEY_ON_DEVICE_FALLBACK, enabled).apply();
+    }
+
+    public boolean isOnDeviceFallbackEnabled() {
+        return prefs.getBoolean(KEY_ON_DEVICE_FALLBACK, false);
+    }
+
+    public void saveLatencySloMs(long sloMs) {
+        prefs.edit().putLong(KEY_LATENCY_SLO_MS, sloMs).apply();
+    }
+
+    /** p90 step latency of a remote provider above which steps move to the on-device model. */
+    public long getLatencySloMs() {
+        return prefs.getLong(KEY_LATENCY_SLO_MS, DEFAULT_LATENCY_SLO_MS);
+    }
+
+    // Methods for capping the tokens one macro may use
+    public void saveMaxTokensPerMacro(long maxTokens) {
+        prefs.edit().putLong(KEY_MAX_TOKENS_PER_MACRO, maxTokens).apply();
+    }
+
+    /** Token budget per macro, prompt and output included, as reported by the provider. 0 means no limit. */
+    public long getMaxTokensPerMacro() {
+        return prefs.getLong(KEY_MAX_TOKENS_PER_MACRO, 0);
+    }
+
     public String getApiKeyForCurrentProvider() {
         String provider = getAiProvider();
         if (PROVIDER_GEMINI.equals(provider)) {
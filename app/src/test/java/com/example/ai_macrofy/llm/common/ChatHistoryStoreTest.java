@@ -0,0 +1,165 @@
+package com.example.ai_macrofy.llm.common;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ChatHistoryStoreTest {
+    private static final int UNLIMITED = Integer.MAX_VALUE;
+
+    private final ChatHistoryStore store = new ChatHistoryStore(UNLIMITED);
+    private final List<ChatMessage> added = new ArrayList<>();
+
+    @Test
+    public void withinBudgetKeepsEverything() {
+        addTurns(4);
+
+        assertEquals(added, store.getMessages());
+        assertEquals(sumOf(added), store.getEstimatedTokens());
+    }
+
+    @Test
+    public void compactsOldestTurnFirst() {
+        addTurns(4);
+        int total = store.getEstimatedTokens();
+        ChatMessage placeholder = added.get(0);
+        ChatMessage answer = added.get(1);
+        String summary = ChatHistoryStore.summarizeAssistantTurn(answer.content);
+
+        store.setTokenBudget(total - tokens(placeholder) - tokens(answer) + ChatHistoryStore.estimateTokens(summary));
+
+        List<ChatMessage> messages = store.getMessages();
+        assertEquals(7, messages.size());
+        assertEquals("assistant", messages.get(0).role);
+        assertEquals(summary, messages.get(0).content);
+        assertEquals(added.subList(2, 8), messages.subList(1, 7)); // The second turn is still verbatim
+    }
+
+    @Test
+    public void removesPlaceholdersOfSummarizedTurnsOnly() {
+        addTurn(1);
+        ChatMessage feedback = add("user", "Execution feedback: touch (100,200) had no effect.");
+        addTurn(2);
+        addTurn(3);
+        addTurn(4);
+        int saved = 0;
+        for (ChatMessage message : Arrays.asList(added.get(0), added.get(1), added.get(3), added.get(4))) {
+            saved += tokens(message);
+            if ("assistant".equals(message.role)) {
+                saved -= ChatHistoryStore.estimateTokens(ChatHistoryStore.summarizeAssistantTurn(message.content));
+            }
+        }
+
+        store.setTokenBudget(store.getEstimatedTokens() - saved);
+
+        List<ChatMessage> messages = store.getMessages();
+        assertEquals(7, messages.size());
+        assertEquals(ChatHistoryStore.summarizeAssistantTurn(added.get(1).content), messages.get(0).content);
+        assertSame(feedback, messages.get(1)); // Only screenshot placeholders are removed
+        assertEquals(ChatHistoryStore.summarizeAssistantTurn(added.get(4).content), messages.get(2).content);
+        assertEquals(added.subList(5, 9), messages.subList(3, 7)); // Recent placeholders stay
+    }
+
+    @Test
+    public void keepsFourMostRecentMessagesVerbatim() {
+        addTurns(4);
+
+        store.setTokenBudget(1);
+
+        List<ChatMessage> messages = store.getMessages();
+        assertEquals(4, messages.size());
+        for (int i = 0; i < 4; i++) {
+            assertSame(added.get(4 + i), messages.get(i));
+        }
+        assertEquals(sumOf(messages), store.getEstimatedTokens());
+    }
+
+    @Test
+    public void dropsOldestWhenSummariesAreNotEnough() {
+        addTurns(4);
+        String secondSummary = ChatHistoryStore.summarizeAssistantTurn(added.get(3).content);
+
+        store.setTokenBudget(sumOf(added.subList(4, 8)) + ChatHistoryStore.estimateTokens(secondSummary));
+
+        List<ChatMessage> messages = store.getMessages();
+        assertEquals(5, messages.size());
+        assertEquals(secondSummary, messages.get(0).content);
+        assertEquals(added.subList(4, 8), messages.subList(1, 5));
+    }
+
+    @Test
+    public void summarizesActionsOnly() {
+        String answer = "{\"observation\":[\"Chat screen\"],\"analysis\":\"Type the reply and send it.\",\"actions\":["
+                + "{\"type\":\"touch\",\"coordinates\":{\"x\":540,\"y\":1200}},"
+                + "{\"type\":\"input\",\"coordinates\":{\"x\":500,\"y\":2100},\"text\":\"hello\",\"submit\":true},"
+                + "{\"type\":\"scroll\",\"direction\":\"down\"},"
+                + "{\"type\":\"wait\",\"duration\":500}]}";
+
+        assertEquals("[Summary of an earlier step] touch (540,1200); input (500,2100) \"hello\" + submit; scroll down; wait 500ms",
+                ChatHistoryStore.summarizeAssistantTurn(answer));
+        assertEquals("[Summary of an earlier step] no actions",
+                ChatHistoryStore.summarizeAssistantTurn("{\"analysis\":\"Done.\",\"actions\":[]}"));
+        assertEquals("[Summary of an earlier step] not json",
+                ChatHistoryStore.summarizeAssistantTurn("not json"));
+    }
+
+    @Test
+    public void snapshotIsReusedUntilChanged() {
+        addTurns(1);
+        List<ChatMessage> first = store.getMessages();
+
+        assertSame(first, store.getMessages());
+        add("user", "Execution feedback: done.");
+        assertNotSame(first, store.getMessages());
+        assertFalse(first.contains(added.get(2)));
+    }
+
+    @Test
+    public void estimatesNonAsciiDenser() {
+        assertEquals(0, ChatHistoryStore.estimateTokens(""));
+        assertEquals(2, ChatHistoryStore.estimateTokens("open wi"));
+        assertEquals(6, ChatHistoryStore.estimateTokens("와이파이 켜"));
+        assertTrue(ChatHistoryStore.estimateTokens("와이파이") > ChatHistoryStore.estimateTokens("wifi"));
+    }
+
+    private void addTurns(int count) {
+        for (int step = 1; step <= count; step++) {
+            addTurn(step);
+        }
+    }
+
+    /** The screenshot placeholder and the model's answer the service adds after a successful step. */
+    private void addTurn(int step) {
+        add("user", "[SCREENSHOT] + User Command: turn on wifi");
+        add("assistant", "{\"observation\":[\"Settings list with Wi-Fi, Bluetooth and Display rows\"],"
+                + "\"analysis\":\"" + "The Wi-Fi row is at the top of the list and is currently off. ".repeat(4) + "\","
+                + "\"actions\":[{\"type\":\"touch\",\"coordinates\":{\"x\":" + (100 * step) + ",\"y\":200}}]}");
+    }
+
+    private ChatMessage add(String role, String content) {
+        ChatMessage message = new ChatMessage(role, content);
+        added.add(message);
+        store.add(message);
+        return message;
+    }
+
+    private static int tokens(ChatMessage message) {
+        return ChatHistoryStore.estimateTokens(message.content);
+    }
+
+    private static int sumOf(List<ChatMessage> messages) {
+        int sum = 0;
+        for (ChatMessage message : messages) {
+            sum += tokens(message);
+        }
+        return sum;
+    }
+}
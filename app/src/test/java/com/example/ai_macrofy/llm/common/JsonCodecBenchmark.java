@@ -0,0 +1,288 @@
+package com.example.ai_macrofy.llm.common;
+
+import com.example.ai_macrofy.llm.gemini.data.GeminiRequest;
+import com.example.ai_macrofy.llm.gemini.data.GeminiResponse;
+import com.example.ai_macrofy.llm.gemini.data.GenerationConfig;
+import com.example.ai_macrofy.llm.gemini.data.InlineData;
+import com.example.ai_macrofy.llm.gemini.data.Part;
+import com.example.ai_macrofy.llm.gemini.data.ThinkingConfig;
+import com.example.ai_macrofy.llm.gpt.data.ContentPart;
+import com.example.ai_macrofy.llm.gpt.data.GPTRequest;
+import com.example.ai_macrofy.llm.gpt.data.GPTResponse;
+import com.example.ai_macrofy.llm.gpt.data.GPTStreamChunk;
+import com.example.ai_macrofy.llm.gpt.data.ImageUrl;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesRequest;
+import com.example.ai_macrofy.llm.gpt.data.ResponsesResponse;
+import com.google.gson.Gson;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that {@link JsonCodec} produces and reads the same JSON as Gson's reflective adapters, and prints the
+ * throughput and allocation of both paths for typical requests and responses:
+ * a step with twelve history messages, a 150 KB screenshot and the action schema, a non-streamed answer with the
+ * fields the providers add around it, and the SSE events of a streamed answer.
+ * <p>
+ * Numbers are printed, not asserted, since they depend on the host. Allocation needs a HotSpot JVM.
+ * The benchmark only runs with {@code ./gradlew testDebugUnitTest -Pbenchmark}; the equivalence checks always run.
+ */
+public class JsonCodecBenchmark {
+    private static final int WARMUP_ITERATIONS = 2_000;
+    private static final int MEASURED_ITERATIONS = 5_000;
+
+    private static final String ANSWER = "{\"observation\":[\"Settings app is open\",\"Wi-Fi row at the top\"],"
+            + "\"analysis\":\"Tap Wi-Fi to open its settings.\",\"actions\":[{\"type\":\"touch\",\"coordinates\":{\"x\":540,\"y\":412}}]}";
+
+    private static final String GEMINI_RESPONSE = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":" + quote(ANSWER)
+            + "}],\"role\":\"model\"},\"finishReason\":\"STOP\",\"index\":0,\"safetyRatings\":["
+            + "{\"category\":\"HARM_CATEGORY_HATE_SPEECH\",\"probability\":\"NEGLIGIBLE\"},"
+            + "{\"category\":\"HARM_CATEGORY_DANGEROUS_CONTENT\",\"probability\":\"NEGLIGIBLE\"},"
+            + "{\"category\":\"HARM_CATEGORY_HARASSMENT\",\"probability\":\"NEGLIGIBLE\"},"
+            + "{\"category\":\"HARM_CATEGORY_SEXUALLY_EXPLICIT\",\"probability\":\"NEGLIGIBLE\"}]}],"
+            + "\"usageMetadata\":{\"promptTokenCount\":4211,\"candidatesTokenCount\":58,\"totalTokenCount\":4520,"
+            + "\"cachedContentTokenCount\":2048,\"thoughtsTokenCount\":251,"
+            + "\"promptTokensDetails\":[{\"modality\":\"TEXT\",\"tokenCount\":3953},{\"modality\":\"IMAGE\",\"tokenCount\":258}]},"
+            + "\"modelVersion\":\"gemini-2.5-flash\",\"responseId\":\"mZ5aaPOaK4-mz7IPqcH-yAk\"}";
+
+    private static final String GPT_RESPONSE = "{\"id\":\"chatcmpl-BtN2aqE5hK\",\"object\":\"chat.completion\",\"created\":1752301234,"
+            + "\"model\":\"gpt-4o-mini-2024-07-18\",\"choices\":[{\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":"
+            + quote(ANSWER) + ",\"refusal\":null,\"annotations\":[]},\"logprobs\":null,\"finish_reason\":\"stop\"}],"
+            + "\"usage\":{\"prompt_tokens\":4180,\"completion_tokens\":61,\"total_tokens\":4241,"
+            + "\"prompt_tokens_details\":{\"cached_tokens\":3840,\"audio_tokens\":0},"
+            + "\"completion_tokens_details\":{\"reasoning_tokens\":0,\"audio_tokens\":0,\"accepted_prediction_tokens\":0,"
+            + "\"rejected_prediction_tokens\":0}},\"service_tier\":\"default\",\"system_fingerprint\":\"fp_34a54ae93c\"}";
+
+    private static final String RESPONSES_RESPONSE = "{\"id\":\"resp_6872f1e2c4\",\"object\":\"response\",\"created_at\":1752301234,"
+            + "\"status\":\"completed\",\"error\":null,\"incomplete_details\":null,\"instructions\":null,\"max_output_tokens\":1024,"
+            + "\"model\":\"gpt-4o-mini-2024-07-18\",\"output\":[{\"id\":\"rs_1\",\"type\":\"reasoning\",\"summary\":[]},"
+            + "{\"id\":\"msg_1\",\"type\":\"message\",\"status\":\"completed\",\"content\":[{\"type\":\"output_text\","
+            + "\"annotations\":[],\"logprobs\":[],\"text\":" + quote(ANSWER) + "}],\"role\":\"assistant\"}],"
+            + "\"parallel_tool_calls\":true,\"previous_response_id\":\"resp_6872f1d0a1\",\"reasoning\":{\"effort\":null,\"summary\":null},"
+            + "\"store\":true,\"temperature\":1.0,\"text\":{\"format\":{\"type\":\"json_schema\",\"name\":\"macro_step\",\"strict\":true,"
+            + "\"schema\":" + ActionSchema.forOpenAi() + "}},\"tool_choice\":\"auto\",\"tools\":[],\"top_p\":1.0,\"truncation\":\"auto\","
+            + "\"usage\":{\"input_tokens\":4180,\"input_tokens_details\":{\"cached_tokens\":3840},\"output_tokens\":61,"
+            + "\"output_tokens_details\":{\"reasoning_tokens\":0},\"total_tokens\":4241},\"user\":null,\"metadata\":{}}";
+
+    private static final List<String> GEMINI_STREAM = streamChunks("{\"candidates\":[{\"content\":{\"parts\":[{\"text\":%s}],"
+            + "\"role\":\"model\"},\"index\":0}],\"usageMetadata\":{\"promptTokenCount\":4211,\"totalTokenCount\":4211},"
+            + "\"modelVersion\":\"gemini-2.5-flash\",\"responseId\":\"mZ5aaPOaK4-mz7IPqcH-yAk\"}");
+
+    private static final List<String> GPT_STREAM = streamChunks("{\"id\":\"chatcmpl-BtN2aqE5hK\",\"object\":\"chat.completion.chunk\","
+            + "\"created\":1752301234,\"model\":\"gpt-4o-mini-2024-07-18\",\"service_tier\":\"default\","
+            + "\"system_fingerprint\":\"fp_34a54ae93c\",\"choices\":[{\"index\":0,\"delta\":{\"content\":%s},"
+            + "\"logprobs\":null,\"finish_reason\":null}],\"usage\":null}");
+
+    private static final Writer DISCARD = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int length) {}
+
+        @Override
+        public void write(String text, int offset, int length) {}
+
+        @Override
+        public void flush() {}
+
+        @Override
+        public void close() {}
+    };
+
+    private final Gson reflective = new Gson();
+    private final Gson codec = JsonCodec.gson();
+
+    @Test
+    public void requestsMatchReflectiveJson() {
+        for (Object request : Arrays.asList(geminiRequest(), gptRequest(), responsesRequest())) {
+            // JsonParser.parseString needs Gson 2.8.6; converter-gson brings 2.8.5
+            JsonParser parser = new JsonParser();
+            assertEquals(parser.parse(reflective.toJson(request)), parser.parse(codec.toJson(request)));
+        }
+    }
+
+    @Test
+    public void responsesMatchReflectiveParse() {
+        GeminiResponse gemini = codec.fromJson(GEMINI_RESPONSE, GeminiResponse.class);
+        GeminiResponse geminiReflective = reflective.fromJson(GEMINI_RESPONSE, GeminiResponse.class);
+        assertEquals(geminiReflective.getFirstCandidateText(), gemini.getFirstCandidateText());
+        assertEquals(geminiReflective.getCandidates().get(0).getFinishReason(), gemini.getCandidates().get(0).getFinishReason());
+        assertEquals(geminiReflective.getUsageMetadata().getThoughtsTokenCount(), gemini.getUsageMetadata().getThoughtsTokenCount());
+        assertEquals(geminiReflective.getUsageMetadata().getCachedContentTokenCount(), gemini.getUsageMetadata().getCachedContentTokenCount());
+
+        GPTResponse gpt = codec.fromJson(GPT_RESPONSE, GPTResponse.class);
+        GPTResponse gptReflective = reflective.fromJson(GPT_RESPONSE, GPTResponse.class);
+        assertEquals(gptReflective.getFirstChoiceMessageContent(), gpt.getFirstChoiceMessageContent());
+        assertEquals(gptReflective.getUsage().getCachedTokens(), gpt.getUsage().getCachedTokens());
+        assertEquals(gptReflective.getUsage().getTotalTokens(), gpt.getUsage().getTotalTokens());
+
+        ResponsesResponse responses = codec.fromJson(RESPONSES_RESPONSE, ResponsesResponse.class);
+        ResponsesResponse responsesReflective = reflective.fromJson(RESPONSES_RESPONSE, ResponsesResponse.class);
+        assertEquals(responsesReflective.getId(), responses.getId());
+        assertEquals(responsesReflective.getOutputText(), responses.getOutputText());
+        assertEquals(responsesReflective.getUsage().getCachedTokens(), responses.getUsage().getCachedTokens());
+        assertEquals(responsesReflective.getErrorMessage(), responses.getErrorMessage());
+
+        for (String chunk : GPT_STREAM) {
+            assertEquals(reflective.fromJson(chunk, GPTStreamChunk.class).getFirstChoiceDeltaContent(),
+                    codec.fromJson(chunk, GPTStreamChunk.class).getFirstChoiceDeltaContent());
+        }
+    }
+
+    @Test
+    public void benchmark() {
+        assumeTrue("Run with -Pbenchmark", Boolean.getBoolean("benchmark"));
+        GeminiRequest geminiRequest = geminiRequest();
+        GPTRequest gptRequest = gptRequest();
+        ResponsesRequest responsesRequest = responsesRequest();
+        System.out.println(String.format("%-28s %12s %12s %14s %14s", "case", "reflect us", "codec us", "reflect B/op", "codec B/op"));
+        compare("serialize gemini request", () -> write(reflective, geminiRequest), () -> write(codec, geminiRequest));
+        compare("serialize chat request", () -> write(reflective, gptRequest), () -> write(codec, gptRequest));
+        compare("serialize responses request", () -> write(reflective, responsesRequest), () -> write(codec, responsesRequest));
+        compare("parse gemini response", () -> reflective.fromJson(GEMINI_RESPONSE, GeminiResponse.class),
+                () -> codec.fromJson(GEMINI_RESPONSE, GeminiResponse.class));
+        compare("parse chat response", () -> reflective.fromJson(GPT_RESPONSE, GPTResponse.class),
+                () -> codec.fromJson(GPT_RESPONSE, GPTResponse.class));
+        compare("parse responses response", () -> reflective.fromJson(RESPONSES_RESPONSE, ResponsesResponse.class),
+                () -> codec.fromJson(RESPONSES_RESPONSE, ResponsesResponse.class));
+        compare("parse gemini stream", () -> parseAll(reflective, GEMINI_STREAM, GeminiResponse.class),
+                () -> parseAll(codec, GEMINI_STREAM, GeminiResponse.class));
+        compare("parse chat stream", () -> parseAll(reflective, GPT_STREAM, GPTStreamChunk.class),
+                () -> parseAll(codec, GPT_STREAM, GPTStreamChunk.class));
+    }
+
+    private static void compare(String name, Runnable reflectivePath, Runnable codecPath) {
+        long[] reflectiveResult = measure(reflectivePath);
+        long[] codecResult = measure(codecPath);
+        System.out.println(String.format("%-28s %12.1f %12.1f %14d %14d", name,
+                reflectiveResult[0] / 1000.0, codecResult[0] / 1000.0, reflectiveResult[1], codecResult[1]));
+    }
+
+    /** Returns nanoseconds and allocated bytes per iteration (bytes are -1 if the JVM cannot count them). */
+    private static long[] measure(Runnable task) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            task.run();
+        }
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            task.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        long bytes = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / MEASURED_ITERATIONS;
+        return new long[]{elapsed / MEASURED_ITERATIONS, bytes};
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** Writes like Retrofit's converter, which streams into the request buffer, so the sink itself costs nothing. */
+    private static void write(Gson gson, Object request) {
+        try {
+            JsonWriter writer = gson.newJsonWriter(DISCARD);
+            gson.toJson(request, request.getClass(), writer);
+            writer.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void parseAll(Gson gson, List<String> events, Class<?> type) {
+        for (String event : events) {
+            gson.fromJson(event, type);
+        }
+    }
+
+    // --- Typical payloads ---
+
+    private static String screenshotBase64() {
+        byte[] jpeg = new byte[150 * 1024];
+        new Random(42).nextBytes(jpeg);
+        return Base64.getEncoder().encodeToString(jpeg);
+    }
+
+    private static List<String> history() {
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            texts.add("Screen " + i + ": {\"nodes\":[{\"text\":\"Wi-Fi\",\"bounds\":[0,380,1080,444]},"
+                    + "{\"text\":\"Bluetooth\",\"bounds\":[0,444,1080,508]}]}");
+            texts.add(ANSWER);
+        }
+        return texts;
+    }
+
+    private static GeminiRequest geminiRequest() {
+        List<com.example.ai_macrofy.llm.gemini.data.Message> contents = new ArrayList<>();
+        List<String> history = history();
+        for (int i = 0; i < history.size(); i++) {
+            contents.add(new com.example.ai_macrofy.llm.gemini.data.Message(
+                    Arrays.asList(new Part(history.get(i))), i % 2 == 0 ? "user" : "model"));
+        }
+        contents.add(new com.example.ai_macrofy.llm.gemini.data.Message(Arrays.asList(
+                new Part("Turn on Wi-Fi"), new Part(new InlineData("image/jpeg", screenshotBase64()))), "user"));
+        GenerationConfig config = new GenerationConfig(new ThinkingConfig(256));
+        config.setResponseSchema(ActionSchema.forGemini());
+        config.setMaxOutputTokens(1024);
+        com.example.ai_macrofy.llm.gemini.data.Message system = new com.example.ai_macrofy.llm.gemini.data.Message(
+                Arrays.asList(new Part("You operate an Android phone through accessibility actions.")), null);
+        return new GeminiRequest(contents, system, config);
+    }
+
+    private static GPTRequest gptRequest() {
+        List<com.example.ai_macrofy.llm.gpt.data.Message> messages = new ArrayList<>();
+        messages.add(new com.example.ai_macrofy.llm.gpt.data.Message("system",
+                "You operate an Android phone through accessibility actions."));
+        List<String> history = history();
+        for (int i = 0; i < history.size(); i++) {
+            messages.add(new com.example.ai_macrofy.llm.gpt.data.Message(i % 2 == 0 ? "user" : "assistant", history.get(i)));
+        }
+        messages.add(new com.example.ai_macrofy.llm.gpt.data.Message("user", Arrays.asList(
+                new ContentPart("text", "Turn on Wi-Fi", null),
+                new ContentPart("image_url", null, new ImageUrl("data:image/jpeg;base64," + screenshotBase64())))));
+        GPTRequest request = new GPTRequest("gpt-4o-mini", messages);
+        request.setStream(true);
+        request.setResponseFormat(new GPTRequest.ResponseFormat(ActionSchema.NAME, ActionSchema.forOpenAi()));
+        request.setMaxCompletionTokens(1024);
+        return request;
+    }
+
+    private static ResponsesRequest responsesRequest() {
+        List<ResponsesRequest.InputMessage> input = new ArrayList<>();
+        input.add(new ResponsesRequest.InputMessage("user", Arrays.asList(
+                ResponsesRequest.InputContent.text("Turn on Wi-Fi"),
+                ResponsesRequest.InputContent.image("data:image/jpeg;base64," + screenshotBase64()))));
+        ResponsesRequest request = new ResponsesRequest("gpt-4o-mini", input, "resp_6872f1d0a1");
+        request.setText(new ResponsesRequest.TextOptions(ActionSchema.NAME, ActionSchema.forOpenAi()));
+        request.setMaxOutputTokens(1024);
+        return request;
+    }
+
+    /** The answer split into SSE events of a few characters each, as the providers stream it. */
+    private static List<String> streamChunks(String eventTemplate) {
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < ANSWER.length(); i += 12) {
+            events.add(String.format(eventTemplate, quote(ANSWER.substring(i, Math.min(ANSWER.length(), i + 12)))));
+        }
+        return events;
+    }
+
+    private static String quote(String text) {
+        return new Gson().toJson(text);
+    }
+}
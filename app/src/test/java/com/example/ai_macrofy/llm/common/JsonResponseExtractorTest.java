@@ -0,0 +1,203 @@
+package com.example.ai_macrofy.llm.common;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JsonResponseExtractorTest {
+    private static final String TOUCH = "{\"type\":\"touch\",\"coordinates\":{\"x\":1,\"y\":2}}";
+
+    @Test
+    public void cleanResponseNeedsNoRepair() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"analysis\":\"tap\",\"actions\":[" + TOUCH + "]}");
+
+        assertTrue(result.isSuccess());
+        assertFalse(result.wasRepaired());
+        assertEquals("tap", result.json.getString("analysis"));
+        assertEquals(2, result.json.getJSONArray("actions").getJSONObject(0).getJSONObject("coordinates").getInt("y"));
+    }
+
+    @Test
+    public void ignoresSurroundingText() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "Here is the next step: {\"actions\":[" + TOUCH + "]} Let me know.");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_SURROUNDING_TEXT), result.repairs);
+        assertEquals(1, result.json.getJSONArray("actions").length());
+    }
+
+    @Test
+    public void stripsMarkdownFence() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "```json\n{\"actions\":[" + TOUCH + "]}\n```");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_MARKDOWN_FENCE), result.repairs);
+        assertEquals(1, result.json.getJSONArray("actions").length());
+    }
+
+    @Test
+    public void escapesControlCharactersInStrings() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"actions\":[{\"type\":\"input\",\"text\":\"line one\nline\ttwo\"}]}");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_CONTROL_CHARACTERS), result.repairs);
+        assertEquals("line one\nline\ttwo", result.json.getJSONArray("actions").getJSONObject(0).getString("text"));
+    }
+
+    @Test
+    public void removesTrailingCommas() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"actions\":[{\"type\":\"touch\",\"coordinates\":{\"x\":1,\"y\":2,},},\n],}");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_TRAILING_COMMA), result.repairs);
+        assertEquals(1, result.json.getJSONArray("actions").length());
+    }
+
+    @Test
+    public void quotesBareKeys() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{actions:[{type:\"touch\",coordinates:{x:1,y:2}}]}");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_BARE_KEYS), result.repairs);
+        assertEquals("touch", result.json.getJSONArray("actions").getJSONObject(0).getString("type"));
+    }
+
+    @Test
+    public void leavesStructureInsideStringsAlone() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"analysis\":\"a } or ] or , here, key: \\\"x\\\"\",\"actions\":[" + TOUCH + "]}");
+
+        assertFalse(result.wasRepaired());
+        assertEquals("a } or ] or , here, key: \"x\"", result.json.getString("analysis"));
+    }
+
+    @Test
+    public void wrapsSingleAction() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"analysis\":\"tap\",\"type\":\"touch\",\"coordinates\":{\"x\":1,\"y\":2}}");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_ACTIONS_WRAPPER), result.repairs);
+        assertEquals("tap", result.json.getString("analysis"));
+        JSONObject action = result.json.getJSONArray("actions").getJSONObject(0);
+        assertEquals("touch", action.getString("type"));
+        assertFalse(action.has("analysis"));
+    }
+
+    @Test
+    public void truncatedResponseKeepsCompleteActionsOnly() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"analysis\":\"two steps\",\"actions\":[" + TOUCH
+                        + ",{\"type\":\"input\",\"coordinates\":{\"x\":3,\"y\":4},\"text\":\"hel");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_TRUNCATED), result.repairs);
+        assertEquals("two steps", result.json.getString("analysis"));
+        JSONArray actions = result.json.getJSONArray("actions");
+        assertEquals(1, actions.length());
+        assertEquals("touch", actions.getJSONObject(0).getString("type"));
+    }
+
+    @Test
+    public void truncatedAfterActionsDropsLaterFields() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"actions\":[" + TOUCH + "],\"observation\":[\"Settings\",\"Wi-");
+
+        assertEquals(Collections.singletonList(JsonResponseExtractor.REPAIR_TRUNCATED), result.repairs);
+        assertEquals(1, result.json.getJSONArray("actions").length());
+        assertFalse(result.json.has("observation"));
+    }
+
+    @Test
+    public void repairsCombine() throws Exception {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "```json\n{actions:[" + TOUCH + ",],\"analysis\":\"first\nsecond\"}\n```");
+
+        assertEquals(Arrays.asList(JsonResponseExtractor.REPAIR_BARE_KEYS, JsonResponseExtractor.REPAIR_TRAILING_COMMA,
+                JsonResponseExtractor.REPAIR_CONTROL_CHARACTERS, JsonResponseExtractor.REPAIR_MARKDOWN_FENCE), result.repairs);
+        assertEquals("first\nsecond", result.json.getString("analysis"));
+    }
+
+    @Test
+    public void failsOnEmptyResponse() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(null);
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWithoutObject() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract("I cannot see the screen.");
+
+        assertNull(result.json);
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWhenTruncatedInsideFirstAction() {
+        // Cutting back to the closed "coordinates" would run an input without its text
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"actions\":[{\"type\":\"input\",\"coordinates\":{\"x\":1,\"y\":2},\"text\":\"hel");
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWhenTruncatedBeforeActions() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"observation\":[\"Settings\"],\"analysis\":\"Tap Wi-Fi\",\"actions\":[");
+
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void failsWhenTruncatedSingleAction() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"type\":\"input\",\"coordinates\":{\"x\":1,\"y\":2},\"text\":\"hel");
+
+        assertFalse(result.isSuccess());
+    }
+
+    @Test
+    public void failsOnMismatchedCloser() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract(
+                "{\"actions\":[{\"type\":\"touch\",\"coordinates\":{\"x\":1,\"y\":2}]]}");
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWhenStillInvalidAfterRepair() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract("{\"actions\":[" + TOUCH + " " + TOUCH + "]}");
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWithoutActions() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract("{\"analysis\":\"The screen is loading.\"}");
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+
+    @Test
+    public void failsWhenActionsIsNotArray() {
+        JsonResponseExtractor.Result result = JsonResponseExtractor.extract("{\"actions\":" + TOUCH + "}");
+
+        assertFalse(result.isSuccess());
+        assertNotNull(result.error);
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.ai_macrofy.llm.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.example.ai_macrofy.llm.common.ModelRouter.ScreenVisit.NEW;
+import static com.example.ai_macrofy.llm.common.ModelRouter.ScreenVisit.REPEATED;
+import static com.example.ai_macrofy.llm.common.ModelRouter.ScreenVisit.REVISITED;
+import static org.junit.Assert.assertEquals;
+
+public class ModelRouterTest {
+    private static final String SETTINGS_LAYOUT = "{\"package\":\"com.android.settings\",\"nodes\":[\"Wi-Fi\",\"Bluetooth\"]}";
+    private static final String WIFI_LAYOUT = "{\"package\":\"com.android.settings\",\"nodes\":[\"Wi-Fi\",\"Add network\"]}";
+    private static final String NO_LAYOUT = "Could not get screen layout.";
+
+    private final RecordingService delegate = new RecordingService();
+    private int failures;
+    private final ModelRouter router = new ModelRouter(delegate, () -> failures);
+
+    @Test
+    public void tierTable() {
+        // failures, screen visit, history size -> tier
+        Object[][] table = {
+                {0, NEW, 0, ModelTier.FAST},
+                {0, REVISITED, 0, ModelTier.FAST},
+                {0, REVISITED, 6, ModelTier.FAST},
+                {0, REVISITED, ModelRouter.LONG_HISTORY_MESSAGES, ModelTier.FAST},
+                {0, REPEATED, 6, ModelTier.STANDARD},
+                {0, REPEATED, ModelRouter.LONG_HISTORY_MESSAGES, ModelTier.STRONG},
+                {0, NEW, 6, ModelTier.STANDARD},
+                {0, NEW, ModelRouter.LONG_HISTORY_MESSAGES - 1, ModelTier.STANDARD},
+                {0, NEW, ModelRouter.LONG_HISTORY_MESSAGES, ModelTier.STRONG},
+                {1, REVISITED, 6, ModelTier.STANDARD},
+                {1, NEW, 0, ModelTier.STANDARD},
+                {1, NEW, ModelRouter.LONG_HISTORY_MESSAGES, ModelTier.STANDARD},
+                {2, REVISITED, 0, ModelTier.STRONG},
+                {3, NEW, 6, ModelTier.STRONG},
+        };
+        for (Object[] row : table) {
+            assertEquals(Arrays.toString(row), row[3],
+                    ModelRouter.classify((Integer) row[0], (ModelRouter.ScreenVisit) row[1], (Integer) row[2]));
+        }
+    }
+
+    @Test
+    public void routesBySeenScreensAndFailures() {
+        assertEquals(ModelTier.FAST, route(SETTINGS_LAYOUT, 0));     // First step of the command
+        assertEquals(ModelTier.STANDARD, route(WIFI_LAYOUT, 3));     // New screen
+        assertEquals(ModelTier.FAST, route(SETTINGS_LAYOUT, 6));     // Back on a known screen
+        assertEquals(ModelTier.STANDARD, route(SETTINGS_LAYOUT, 9)); // Unchanged since the last step: no progress
+        failures = 1;
+        assertEquals(ModelTier.STANDARD, route(SETTINGS_LAYOUT, 9));
+        failures = 2;
+        assertEquals(ModelTier.STRONG, route(SETTINGS_LAYOUT, 12));
+    }
+
+    @Test
+    public void repeatedScreenAfterLongHistoryIsStrong() {
+        route(WIFI_LAYOUT, 3);
+
+        assertEquals(ModelTier.STRONG, route(WIFI_LAYOUT, ModelRouter.LONG_HISTORY_MESSAGES));
+    }
+
+    @Test
+    public void unreadableLayoutIsNeverKnown() {
+        route(NO_LAYOUT, 3);
+
+        assertEquals(ModelTier.STANDARD, route(NO_LAYOUT, 6));
+    }
+
+    @Test
+    public void newCommandForgetsScreens() {
+        route(SETTINGS_LAYOUT, 3);
+
+        router.startNewConversation();
+
+        assertEquals(ModelTier.STANDARD, route(SETTINGS_LAYOUT, 3));
+        assertEquals(1, delegate.newConversations);
+    }
+
+    private ModelTier route(String screenText, int historySize) {
+        List<ChatMessage> history = new ArrayList<>(Collections.nCopies(historySize, new ChatMessage("user", "[SCREENSHOT]")));
+        router.generateResponse("system", history, null, null, screenText, "turn on wifi", new ModelResponseCallback() {
+            @Override
+            public void onSuccess(String response) {}
+
+            @Override
+            public void onError(String error) {}
+        });
+        return delegate.tier;
+    }
+
+    private static final class RecordingService implements AiModelService {
+        ModelTier tier;
+        int newConversations;
+
+        @Override
+        public void setApiKey(String apiKey) {}
+
+        @Override
+        public void setContext(Context context) {}
+
+        @Override
+        public RequestHandle generateResponse(String systemInstruction, List<ChatMessage> conversationHistory,
+                                              String currentScreenLayoutJson, Bitmap currentScreenBitmap,
+                                              String currentScreenText, String currentUserVoiceCommand,
+                                              ModelResponseCallback callback) {
+            return RequestHandle.finished();
+        }
+
+        @Override
+        public void setModelTier(ModelTier tier) {
+            this.tier = tier;
+        }
+
+        @Override
+        public void startNewConversation() {
+            newConversations++;
+        }
+
+        @Override
+        public String processUserCommandForPrompt(String userCommand) {
+            return userCommand;
+        }
+
+        @Override
+        public void cleanup() {}
+    }
+}
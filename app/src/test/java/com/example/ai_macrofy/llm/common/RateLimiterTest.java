@@ -0,0 +1,141 @@
+package com.example.ai_macrofy.llm.common;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import okhttp3.Headers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    // Sun, 06 Nov 1994 08:49:37 GMT
+    private static final long NOW = 784111777_000L;
+
+    // One request per second and 100 tokens per second
+    private static RateLimiter newLimiter() {
+        return new RateLimiter("test", 60, 6_000, 0, new Random(42));
+    }
+
+    @Test
+    public void reserveWaitsForNextRequest() {
+        RateLimiter limiter = newLimiter();
+        for (int i = 0; i < 60; i++) {
+            assertEquals(0, limiter.reserve(1, 0));
+        }
+        assertEquals(1_000, limiter.reserve(1, 0));
+        assertEquals(500, limiter.reserve(1, 500));
+        assertEquals(0, limiter.reserve(1, 1_000));
+    }
+
+    @Test
+    public void reserveWaitsForTokens() {
+        RateLimiter limiter = newLimiter();
+        assertEquals(0, limiter.reserve(6_000, 0));
+        assertEquals(30_000, limiter.reserve(3_000, 0));
+        // A refused reservation consumes nothing
+        assertEquals(0, limiter.reserve(3_000, 30_000));
+    }
+
+    @Test
+    public void oversizedRequestWaitsForFullBucketOnly() {
+        RateLimiter limiter = newLimiter();
+        assertEquals(0, limiter.reserve(10_000, 0));
+        assertEquals(60_000, limiter.reserve(10_000, 0));
+    }
+
+    @Test
+    public void refillStopsAtCapacity() {
+        RateLimiter limiter = newLimiter();
+        assertEquals(0, limiter.reserve(6_000, 0));
+        // Ten idle minutes refill one minute's worth, not ten
+        assertEquals(0, limiter.reserve(6_000, 600_000));
+        assertEquals(10, limiter.reserve(1, 600_000));
+    }
+
+    @Test
+    public void backoffDoublesUpToMaximumWithEqualJitter() {
+        long backoff = 1_000;
+        for (int throttles = 0; throttles < 20; throttles++) {
+            long fixed = RateLimiter.backoffDelay(throttles, 0);
+            long maxJitter = RateLimiter.backoffDelay(throttles, 0.999_999);
+            assertEquals(backoff / 2, fixed);
+            assertTrue(maxJitter >= fixed && maxJitter < backoff);
+            backoff = Math.min(60_000, backoff * 2);
+        }
+        assertEquals(30_000, RateLimiter.backoffDelay(30, 0));
+        assertEquals(45_000, RateLimiter.backoffDelay(30, 0.5));
+    }
+
+    @Test
+    public void throttleBlocksReserveForBackoff() {
+        RateLimiter limiter = newLimiter();
+        long delay = limiter.onThrottled(429, null, null, 0, NOW);
+
+        assertTrue(delay >= 500 && delay < 1_000);
+        assertEquals(1, limiter.reserve(1, delay - 1));
+        assertEquals(0, limiter.reserve(1, delay));
+    }
+
+    @Test
+    public void serverDelayOverridesShorterBackoff() {
+        RateLimiter limiter = newLimiter();
+        assertEquals(30_000, limiter.onThrottled(429, Headers.of("Retry-After", "30"), null, 0, NOW));
+        assertEquals(23_000, limiter.onThrottled(429, null, "{\"retryDelay\":\"23s\"}", 30_000, NOW));
+    }
+
+    @Test
+    public void successResetsBackoff() {
+        RateLimiter limiter = newLimiter();
+        long now = 0;
+        for (int i = 0; i < 4; i++) {
+            now += limiter.onThrottled(503, null, null, now, NOW);
+        }
+        assertTrue(limiter.onThrottled(503, null, null, now, NOW) >= 8_000);
+
+        limiter.onSuccess(null);
+        long delay = limiter.onThrottled(503, null, null, now + 60_000, NOW);
+        assertTrue(delay >= 500 && delay < 1_000);
+    }
+
+    @Test
+    public void parsesOpenAiResetDurations() {
+        assertEquals(360_000, RateLimiter.parseDuration("6m0s"));
+        assertEquals(3_723_500, RateLimiter.parseDuration("1h2m3.5s"));
+        assertEquals(20, RateLimiter.parseDuration("20ms"));
+        assertEquals(1_000, RateLimiter.parseDuration("1s"));
+        assertEquals(-1, RateLimiter.parseDuration("soon"));
+    }
+
+    @Test
+    public void parsesRetryAfterSeconds() {
+        assertEquals(30_000, RateLimiter.parseRetryAfter(Headers.of("Retry-After", "30"), NOW));
+        assertEquals(1_500, RateLimiter.parseRetryAfter(Headers.of("Retry-After", "1.5"), NOW));
+    }
+
+    @Test
+    public void parsesRetryAfterHttpDate() {
+        assertEquals(90_000, RateLimiter.parseRetryAfter(Headers.of("Retry-After", "Sun, 06 Nov 1994 08:51:07 GMT"), NOW));
+        // A date in the past means "now", not a negative wait
+        assertEquals(0, RateLimiter.parseRetryAfter(Headers.of("Retry-After", "Sun, 06 Nov 1994 08:00:00 GMT"), NOW));
+    }
+
+    @Test
+    public void missingOrInvalidRetryAfter() {
+        assertEquals(-1, RateLimiter.parseRetryAfter(Headers.of("x-ratelimit-remaining-requests", "0"), NOW));
+        assertEquals(-1, RateLimiter.parseRetryAfter(Headers.of("Retry-After", "later"), NOW));
+    }
+
+    @Test
+    public void parsesGeminiRetryDelay() {
+        String errorBody = "{\n  \"error\": {\n    \"code\": 429,\n    \"message\": \"You exceeded your current quota.\",\n"
+                + "    \"status\": \"RESOURCE_EXHAUSTED\",\n    \"details\": [\n"
+                + "      {\"@type\": \"type.googleapis.com/google.rpc.QuotaFailure\", \"violations\": []},\n"
+                + "      {\"@type\": \"type.googleapis.com/google.rpc.RetryInfo\", \"retryDelay\": \"23s\"}\n    ]\n  }\n}";
+
+        assertEquals(23_000, RateLimiter.parseRetryDelay(errorBody));
+        assertEquals(1_500, RateLimiter.parseRetryDelay("{\"retryDelay\":\"1.5s\"}"));
+        assertEquals(-1, RateLimiter.parseRetryDelay("{\"error\":{\"code\":429,\"status\":\"RESOURCE_EXHAUSTED\"}}"));
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.ai_macrofy.llm.gemini;
+
+import com.example.ai_macrofy.llm.common.FrameUploadCache;
+import com.example.ai_macrofy.llm.common.JsonCodec;
+import com.example.ai_macrofy.llm.gemini.data.GeminiRequest;
+import com.example.ai_macrofy.llm.gemini.data.GeminiResponse;
+import com.example.ai_macrofy.llm.gemini.data.InlineData;
+import com.example.ai_macrofy.llm.gemini.data.Message;
+import com.example.ai_macrofy.llm.gemini.data.Part;
+import com.example.ai_macrofy.metrics.MacroMetrics;
+import com.example.ai_macrofy.utils.AppPreferences;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.converter.gson.GsonConverterFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 프레임 업로드 캐시를 로컬 MockWebServer에 대고 확인합니다: 인라인 전송과 두 번째 전송 때의 백그라운드 업로드,
+ * 같은 프레임의 file_data 재사용, 파일 오류 시 무효화와 인라인 재전송, 업로드 실패 후의 일시 중지,
+ * 한 번도 쓰이지 않은 업로드 집계.
+ */
+public class GeminiFrameUploadsTest {
+    private static final String API_KEY = "test-key";
+    private static final String MODEL = "gemini-test";
+    private static final String MIME_TYPE = "image/jpeg";
+    private static final byte[] FRAME = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, 1, 2, 3};
+    private static final String FRAME_BASE64 = "/9j/AQID";
+    private static final String FILE_URI = "https://generativelanguage.googleapis.com/v1beta/files/frame1";
+    private static final String FILE_URI_2 = "https://generativelanguage.googleapis.com/v1beta/files/frame2";
+
+    private static final String ANSWER = "{\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"{\\\"actions\\\":[]}\"}],"
+            + "\"role\":\"model\"},\"finishReason\":\"STOP\"}]}";
+    private static final String FILE_ERROR = "{\"error\":{\"code\":403,\"message\":\"You do not have permission to access "
+            + "the File frame1 or it may not exist.\",\"status\":\"PERMISSION_DENIED\"}}";
+
+    private static final long TIMEOUT_MS = 5_000;
+
+    private MockWebServer server;
+    private GeminiApi api;
+    private FrameUploadCache uploads;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        api = new Retrofit.Builder()
+                .baseUrl(server.url("/"))
+                .addConverterFactory(GsonConverterFactory.create(JsonCodec.gson()))
+                .build()
+                .create(GeminiApi.class);
+        uploads = new FrameUploadCache(new GeminiFrameUploads(api, API_KEY), 4, 60_000, AppPreferences.PROVIDER_GEMINI);
+        MacroMetrics.getInstance().reset();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void firstSendIsInlineWithoutUpload() throws Exception {
+        assertNull(imagePart("frame1").getFileData());
+
+        assertNull("no upload for a frame seen once", server.takeRequest(500, TimeUnit.MILLISECONDS));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void secondSendIsInlineAndUploadsInBackground() throws Exception {
+        server.enqueue(uploadResponse(FILE_URI));
+
+        imagePart("frame1");
+        Part part = imagePart("frame1");
+
+        assertNull(part.getFileData());
+        RecordedRequest upload = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertNotNull(upload);
+        assertEquals("POST", upload.getMethod());
+        assertTrue(upload.getPath().startsWith("/upload/v1beta/files"));
+        assertEquals(API_KEY, upload.getRequestUrl().queryParameter("key"));
+        assertEquals(MIME_TYPE, upload.getHeader("Content-Type"));
+        assertArrayEquals(FRAME, upload.getBody().readByteArray());
+        assertEquals(FILE_URI, awaitUploaded("frame1"));
+    }
+
+    @Test
+    public void repeatedFrameReferencesUploadedFile() throws Exception {
+        uploadFrame("frame1", FILE_URI);
+
+        Part part = imagePart("frame1");
+        assertEquals(FILE_URI, part.getFileData().getFileUri());
+
+        server.enqueue(new MockResponse().setBody(ANSWER));
+        Response<GeminiResponse> response = api.generateContent(MODEL, API_KEY, request(part)).execute();
+
+        assertTrue(response.isSuccessful());
+        JsonObject sent = sentImagePart();
+        assertEquals(FILE_URI, sent.getAsJsonObject("file_data").get("file_uri").getAsString());
+        assertFalse(sent.has("inline_data"));
+        assertEquals("no second upload", 2, server.getRequestCount());
+    }
+
+    @Test
+    public void rejectedFileIsInvalidatedAndResentInline() throws Exception {
+        uploadFrame("frame1", FILE_URI);
+        GeminiRequest request = request(imagePart("frame1"));
+
+        server.enqueue(new MockResponse().setResponseCode(403).setBody(FILE_ERROR));
+        Response<GeminiResponse> rejected = api.generateContent(MODEL, API_KEY, request).execute();
+        assertTrue(GeminiFrameUploads.isFileError(rejected.code(), rejected.errorBody().string()));
+        server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+        assertTrue(GeminiFrameUploads.replaceWithInline(request, uploads));
+        assertNull(uploads.lookup("frame1"));
+
+        server.enqueue(new MockResponse().setBody(ANSWER));
+        assertTrue(api.generateContent(MODEL, API_KEY, request).execute().isSuccessful());
+        JsonObject resent = sentImagePart();
+        assertEquals(FRAME_BASE64, resent.getAsJsonObject("inline_data").get("data").getAsString());
+        assertFalse(resent.has("file_data"));
+
+        // 같은 프레임을 다시 두 번 보내면 다시 올림
+        server.enqueue(uploadResponse(FILE_URI_2));
+        assertNull(imagePart("frame1").getFileData());
+        assertNull(imagePart("frame1").getFileData());
+        assertTrue(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS).getPath().startsWith("/upload/v1beta/files"));
+        assertEquals(FILE_URI_2, awaitUploaded("frame1"));
+    }
+
+    @Test
+    public void failedUploadPausesUploading() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(500).setBody("{\"error\":{\"code\":500,\"status\":\"INTERNAL\"}}"));
+
+        imagePart("frame1");
+        assertNull(imagePart("frame1").getFileData());
+        assertNotNull(server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        awaitCounter("frame_upload.failed." + AppPreferences.PROVIDER_GEMINI);
+
+        imagePart("frame2");
+        assertNull(imagePart("frame2").getFileData());
+        assertNull("no upload while paused", server.takeRequest(500, TimeUnit.MILLISECONDS));
+        assertNull(uploads.lookup("frame1"));
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void evictedUploadWithoutReuseIsCounted() throws Exception {
+        uploads = new FrameUploadCache(new GeminiFrameUploads(api, API_KEY), 1, 60_000, AppPreferences.PROVIDER_GEMINI);
+        String unused = "frame_upload.unused." + AppPreferences.PROVIDER_GEMINI;
+
+        uploadFrame("frame1", FILE_URI);
+        uploadFrame("frame2", FILE_URI_2); // frame1은 한 번도 참조되지 않고 밀려남
+        awaitCounter(unused);
+        assertEquals(1, MacroMetrics.getInstance().toJson().getJSONObject("counters").getLong(unused));
+
+        assertEquals(FILE_URI_2, imagePart("frame2").getFileData().getFileUri());
+        uploads.invalidate(FILE_URI_2); // 참조된 적이 있으므로 집계하지 않음
+        assertEquals(1, MacroMetrics.getInstance().toJson().getJSONObject("counters").getLong(unused));
+    }
+
+    private Part imagePart(String contentHash) {
+        return GeminiFrameUploads.imagePart(uploads, contentHash, FRAME, MIME_TYPE, new InlineData(MIME_TYPE, FRAME_BASE64));
+    }
+
+    // 두 번 보내 업로드시키고 끝날 때까지 기다림
+    private void uploadFrame(String contentHash, String fileUri) throws Exception {
+        server.enqueue(uploadResponse(fileUri));
+        imagePart(contentHash);
+        imagePart(contentHash);
+        server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertEquals(fileUri, awaitUploaded(contentHash));
+    }
+
+    private static GeminiRequest request(Part imagePart) {
+        Message user = new Message(Arrays.asList(new Part("Current Screen Text:\nSettings"), imagePart), "user");
+        return new GeminiRequest(Collections.singletonList(user), null);
+    }
+
+    /** 서버가 받은 다음 generateContent 요청의 이미지 파트 */
+    private JsonObject sentImagePart() throws InterruptedException {
+        RecordedRequest recorded = server.takeRequest(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertTrue(recorded.getPath().startsWith("/v1beta/models/" + MODEL + ":generateContent"));
+        JsonObject body = new JsonParser().parse(recorded.getBody().readUtf8()).getAsJsonObject();
+        return body.getAsJsonArray("contents").get(0).getAsJsonObject()
+                .getAsJsonArray("parts").get(1).getAsJsonObject();
+    }
+
+    private static MockResponse uploadResponse(String fileUri) {
+        String name = "files/" + fileUri.substring(fileUri.lastIndexOf('/') + 1);
+        return new MockResponse().setBody("{\"file\":{\"name\":\"" + name + "\",\"mimeType\":\"" + MIME_TYPE
+                + "\",\"sizeBytes\":\"" + FRAME.length + "\",\"uri\":\"" + fileUri + "\",\"state\":\"ACTIVE\"}}");
+    }
+
+    // 업로드는 캐시의 백그라운드 스레드에서 끝나므로 결과가 보일 때까지 기다림
+    private String awaitUploaded(String contentHash) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        String uri;
+        while ((uri = uploads.lookup(contentHash)) == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        return uri;
+    }
+
+    private static void awaitCounter(String name) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (MacroMetrics.getInstance().toJson().getJSONObject("counters").optLong(name) == 0
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(name, MacroMetrics.getInstance().toJson().getJSONObject("counters").optLong(name) > 0);
+    }
+}
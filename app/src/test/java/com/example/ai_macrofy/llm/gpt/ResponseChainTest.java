@@ -0,0 +1,155 @@
+package com.example.ai_macrofy.llm.gpt;
+
+import com.example.ai_macrofy.llm.common.ChatMessage;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResponseChainTest {
+    private static final String SYSTEM = "You control the phone.";
+
+    private final ResponseChain chain = new ResponseChain();
+    private final List<ChatMessage> history = new ArrayList<>();
+
+    @Test
+    public void firstRequestReplays() {
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+
+        assertTrue(plan.isReplay());
+        assertEquals(0, plan.storedTokens);
+        assertNull(plan.historyTail);
+    }
+
+    @Test
+    public void nextStepChainsAndSkipsStoredTurn() {
+        completeStep("resp_1", 1200);
+        ChatMessage feedback = add("user", "Execution feedback: touch had no effect");
+
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+
+        assertEquals("resp_1", plan.previousResponseId);
+        assertEquals(Collections.singletonList(feedback), plan.messages);
+        assertEquals(1200, plan.storedTokens);
+    }
+
+    @Test
+    public void chainFollowsEachCommittedStep() {
+        completeStep("resp_1", 1200);
+        completeStep("resp_2", 2600);
+
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+
+        assertEquals("resp_2", plan.previousResponseId);
+        assertTrue(plan.messages.isEmpty());
+        assertEquals(2600, plan.storedTokens);
+    }
+
+    @Test
+    public void hedgeAnsweredTurnIsSent() {
+        completeStep("resp_1", 1200);
+        // The next step is answered by the hedged provider: nothing is committed, but its turn lands in the history
+        chain.plan(SYSTEM, history);
+        ChatMessage placeholder = add("user", "[screenshot 2]");
+        ChatMessage answer = add("assistant", "{\"actions\":[{\"type\":\"scroll\"}]}");
+
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+
+        assertEquals("resp_1", plan.previousResponseId);
+        assertEquals(Arrays.asList(placeholder, answer), plan.messages);
+    }
+
+    @Test
+    public void staleCommitIsIgnored() {
+        completeStep("resp_1", 1200);
+        ResponseChain.Plan slow = chain.plan(SYSTEM, history);
+        completeStep("resp_2", 2600);
+
+        chain.commit(slow, "resp_late", 9000);
+
+        assertEquals("resp_2", chain.plan(SYSTEM, history).previousResponseId);
+    }
+
+    @Test
+    public void compactedAnchorReplays() {
+        completeStep("resp_1", 1200);
+        completeStep("resp_2", 2600);
+        // Compaction replaced the older turns, including the anchor's tail, with new instances
+        List<ChatMessage> compacted = new ArrayList<>();
+        for (ChatMessage message : history) {
+            compacted.add(new ChatMessage(message.role, message.content));
+        }
+        history.clear();
+        history.addAll(compacted.subList(1, compacted.size()));
+
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+
+        assertTrue(plan.isReplay());
+        assertEquals(history, plan.messages);
+    }
+
+    @Test
+    public void failedStepReplays() {
+        completeStep("resp_1", 1200);
+        chain.commit(chain.plan(SYSTEM, history), "resp_2", 2600);
+        // The answer could not be used, so the stored turn never reached the history
+        add("user", "The previous response could not be parsed.");
+
+        assertTrue(chain.plan(SYSTEM, history).isReplay());
+    }
+
+    @Test
+    public void otherSystemInstructionReplays() {
+        completeStep("resp_1", 1200);
+
+        assertTrue(chain.plan(SYSTEM + " Answer in JSON.", history).isReplay());
+    }
+
+    @Test
+    public void chainRestartsAfterMaxTurns() {
+        completeStep("resp_0", 1000);
+        for (int i = 1; i <= ResponseChain.MAX_CHAINED_TURNS; i++) {
+            assertFalse(chain.plan(SYSTEM, history).isReplay());
+            completeStep("resp_" + i, 1000 + i);
+        }
+
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+        assertTrue(plan.isReplay());
+
+        chain.commit(plan, "resp_restart", 800);
+        add("user", "[screenshot]");
+        add("assistant", "{\"actions\":[]}");
+        assertEquals("resp_restart", chain.plan(SYSTEM, history).previousResponseId);
+    }
+
+    @Test
+    public void resetReplays() {
+        completeStep("resp_1", 1200);
+
+        chain.reset();
+
+        assertTrue(chain.plan(SYSTEM, history).isReplay());
+    }
+
+    /** Plans and commits a step, then adds the placeholder and answer as the service does after a success. */
+    private void completeStep(String responseId, int totalTokens) {
+        ResponseChain.Plan plan = chain.plan(SYSTEM, history);
+        chain.commit(plan, responseId, totalTokens);
+        add("user", "[screenshot for " + responseId + "]");
+        add("assistant", "{\"actions\":[{\"type\":\"touch\"}]}");
+    }
+
+    private ChatMessage add(String role, String content) {
+        ChatMessage message = new ChatMessage(role, content);
+        history.add(message);
+        return message;
+    }
+}